@@ -109,7 +109,7 @@ public class BCIntegrationTests {
 	@Test
 	public void testCXCL13SENSITIVE() {
 
-		m_pParticle.field[15][15][15] = (1 * Math.pow(10, -17));
+		m_pParticle.setValue(15, 15, 15, (1 * Math.pow(10, -17)));
 
 		// make the BCs highly sensitive to chemokine
 		Settings.CXCL13.DECAY_CONSTANT = 0.005;
@@ -136,7 +136,7 @@ public class BCIntegrationTests {
 				bcCells[j].step(null);
 			}
 
-			m_pParticle.field[15][15][15] += 5 * Math.pow(10, -19);
+			m_pParticle.setValue(15, 15, 15, m_pParticle.getValue(15, 15, 15) + 5 * Math.pow(10, -19));
 			m_pParticle.step(null);
 		}
 
@@ -343,7 +343,7 @@ public class BCIntegrationTests {
 	@Test
 	public void testTRANSIENTSENSITIVITY() {
 		for (int i = 0; i < 31; i++) {
-			m_pParticle.field[15][15][i] = (1.7 * Math.pow(10, -6));
+			m_pParticle.setValue(15, 15, i, (1.7 * Math.pow(10, -6)));
 		}
 
 		// Let's diffuse a little
@@ -376,7 +376,7 @@ public class BCIntegrationTests {
 			}
 
 			for (int k = 0; k < 31; k++) {
-				m_pParticle.field[15][15][k] = (1.7 * Math.pow(10, -7));
+				m_pParticle.setValue(15, 15, k, (1.7 * Math.pow(10, -7)));
 			}
 			m_pParticle.step(null);
 		}
@@ -408,7 +408,7 @@ public class BCIntegrationTests {
 	public void testNONCXCR5EXPRESSINGequalsDESENSITISED() {
 
 		for (int i = 0; i < 31; i++) {
-			m_pParticle.field[15][15][i] = 0;// 10e-30;
+			m_pParticle.setValue(15, 15, i, 0);// 10e-30;
 		}
 
 		// get rid of all CXCR5
@@ -448,7 +448,7 @@ public class BCIntegrationTests {
 
 			// chemokine diffuses faster than cells are updated
 			for (int k = 0; k < 31; k++) {
-				m_pParticle.field[15][15][k] = 0;
+				m_pParticle.setValue(15, 15, k, 0);
 			}
 			m_pParticle.step(null);
 		}
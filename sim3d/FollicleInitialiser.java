@@ -7,6 +7,7 @@ import sim.util.Bag;
 import sim.util.Double3D;
 import sim3d.cell.Lymphocyte;
 import sim3d.collisiondetection.CollisionGrid;
+import sim3d.collisiondetection.SegmentBVH;
 import sim3d.stroma.Stroma;
 import sim3d.stroma.StromaEdge;
 import sim3d.util.StromaGenerator;
@@ -43,6 +44,34 @@ public final class FollicleInitialiser {
 
 		updateNodeConnections();
 
+		// the network is finished so only the B cells register from now on
+		cgGrid.freezeStaticLayer();
+		cgGrid.setStaticSegments(buildEdgeHierarchy());
+
+	}
+
+	/**
+	 * Put every stroma edge in a bounding volume hierarchy so that the B
+	 * cells only test the edges near their path
+	 * 
+	 * @return
+	 * 			the hierarchy of stroma edges
+	 */
+	static SegmentBVH buildEdgeHierarchy() {
+		SegmentBVH bvhEdges = new SegmentBVH();
+
+		Bag stroma = SimulationEnvironment.getAllStroma();
+		for (int i = 0; i < stroma.size(); i++) {
+			if (stroma.get(i) instanceof StromaEdge) {
+				StromaEdge seEdge = (StromaEdge) stroma.get(i);
+				if (seEdge.isStatic()) {
+					bvhEdges.add(seEdge, seEdge.getPoint1(), seEdge.getPoint2());
+				}
+			}
+		}
+
+		bvhEdges.build();
+		return bvhEdges;
 	}
 
 	/**
@@ -8,6 +8,7 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import ec.util.MersenneTwisterFast;
+import sim3d.util.RandomStreams;
 
 /**
  * All the parameters for the simulation. Note: parameters in functions can be
@@ -49,6 +50,17 @@ public class Settings {
 		Node gridN = gridNL.item(0);
 		GRID_SIZE = Double.parseDouble(gridN.getTextContent());
 		
+		// optional so that older parameter files still load
+		NodeList steadyNL = paramOElement.getElementsByTagName("STEADY_STATE_STEPS");
+		if (steadyNL.getLength() > 0) {
+			STEADY_STATE_STEPS = Integer.parseInt(steadyNL.item(0).getTextContent().trim());
+		}
+		
+		NodeList parallelNL = paramOElement.getElementsByTagName("PARALLEL_MIGRATION");
+		if (parallelNL.getLength() > 0) {
+			PARALLEL_MIGRATION = Boolean.parseBoolean(parallelNL.item(0).getTextContent().trim());
+		}
+		
 	}
 
 	public static boolean calculateTopologyData =  true;
@@ -69,6 +81,12 @@ public class Settings {
 	 */
 	public static int NUM_THREADS;
 	
+	/**
+	 * Whether the lymphocytes migrate in parallel on NUM_THREADS threads, see
+	 * ParallelMigration
+	 */
+	public static boolean PARALLEL_MIGRATION = false;
+	
 
 	
 	
@@ -78,6 +96,12 @@ public class Settings {
 	 */
 	public static MersenneTwisterFast RNG;
 
+	/**
+	 * The agents' own random number streams, derived from the seed of the run
+	 * by SimulationEnvironment.start
+	 */
+	public static RandomStreams STREAMS = new RandomStreams(0);
+
 	/**
 	 * Dimensions of the simulation Note: the simulation has a 1 unit border
 	 * around the edge hence the + 2
@@ -90,6 +114,11 @@ public class Settings {
 	 * the length of an experiment, once steady state is reached
 	 */
 	public static int EXPERIMENTLENGTH;
+	
+	/*
+	 * the number of steps run before recording, to reach a steady state
+	 */
+	public static int STEADY_STATE_STEPS = 100;
 
 	/**
 	 * Size of one edge of a grid space in meters
@@ -322,6 +351,16 @@ public class Settings {
 				Node KoffN = KoffNL.item(0);
 				Koff = Double.parseDouble(KoffN.getTextContent());
 				
+				NodeList solverNL = paramODEElement.getElementsByTagName("SOLVER");
+				if (solverNL.getLength() > 0) {
+					SOLVER = INTEGRATOR.valueOf(solverNL.item(0).getTextContent().trim());
+				}
+				
+				NodeList toleranceNL = paramODEElement.getElementsByTagName("TOLERANCE");
+				if (toleranceNL.getLength() > 0) {
+					TOLERANCE = Integer.parseInt(toleranceNL.item(0).getTextContent().trim());
+				}
+				
 	
 			}
 
@@ -398,6 +437,26 @@ public class Settings {
 				return Ki;
 			}
 
+			/**
+			 * ENUM for the ways of solving the ODE: a second at a time with
+			 * ODESolver or a whole step at once with ExponentialODESolver
+			 */
+			public static enum INTEGRATOR {
+				RK4, EXPONENTIAL
+			}
+
+			/**
+			 * How the ODE is solved, see ODESolver.solveODE
+			 */
+			public static INTEGRATOR SOLVER = INTEGRATOR.RK4;
+
+			/**
+			 * Once no receptor count changes by this many in a second, the
+			 * receptors are taken to have settled for the rest of the step.
+			 * 0 always solves every second, see ODESolver.solveODE
+			 */
+			public static int TOLERANCE = 0;
+
 		}
 	}
 
@@ -632,7 +691,52 @@ public class Settings {
 			Node stromaedgeN = stromaedgeNL.item(0);
 			DECAY_CONSTANT = Double.parseDouble(stromaedgeN.getTextContent());
 			
+			// optional so that older parameter files still load
+			NodeList steadyNL = paramCXCL13Element
+					.getElementsByTagName("STEADY_STATE_INIT_CXCL13");
+			if (steadyNL.getLength() > 0) {
+				STEADY_STATE_INIT = Boolean.parseBoolean(steadyNL.item(0)
+						.getTextContent().trim());
+			}
+			
+			NodeList toleranceNL = paramCXCL13Element
+					.getElementsByTagName("STEADY_STATE_TOLERANCE_CXCL13");
+			if (toleranceNL.getLength() > 0) {
+				STEADY_STATE_TOLERANCE = Double.parseDouble(toleranceNL.item(0)
+						.getTextContent().trim());
+			}
+			
+			NodeList reequilibrateNL = paramCXCL13Element
+					.getElementsByTagName("REEQUILIBRATION_INTERVAL_CXCL13");
+			if (reequilibrateNL.getLength() > 0) {
+				REEQUILIBRATION_INTERVAL = Integer.parseInt(reequilibrateNL
+						.item(0).getTextContent().trim());
+			}
+			
+			NodeList algorithmNL = paramCXCL13Element
+					.getElementsByTagName("DIFFUSION_ALGORITHM_CXCL13");
+			if (algorithmNL.getLength() > 0) {
+				DIFFUSION_ALGORITHM = ALGORITHM.valueOf(algorithmNL.item(0)
+						.getTextContent().trim());
+			}
+
+			checkParameters();
+		}
 
+		/**
+		 * Reject combinations of the CXCL13 settings that can't run, so that
+		 * they fail when the parameters are loaded rather than part way
+		 * through starting the simulation
+		 * 
+		 * @throws IllegalArgumentException
+		 *             if the field is to start at its steady state with ADI,
+		 *             which has no stencil for the steady state solve
+		 */
+		public static void checkParameters() {
+			if (STEADY_STATE_INIT && DIFFUSION_ALGORITHM == ALGORITHM.ADI) {
+				throw new IllegalArgumentException(
+						"STEADY_STATE_INIT_CXCL13 can't be used with the ADI diffusion algorithm");
+			}
 		}
 
 		/*
@@ -666,6 +770,42 @@ public class Settings {
 		 */
 		public static double DECAY_CONSTANT;
 		
+		/**
+		 * If true the field starts at the steady state for the stromal
+		 * secretion instead of zero, so it doesn't need the warm up steps.
+		 * Not available with ADI, see checkParameters
+		 */
+		public static boolean STEADY_STATE_INIT = false;
+		
+		/**
+		 * Relative tolerance of the multigrid steady state solve
+		 */
+		public static double STEADY_STATE_TOLERANCE = 1e-8;
+		
+		/**
+		 * If greater than 0 the field is replaced every this many steps by
+		 * the steady state of the net secretion since the last solve, the
+		 * stromal secretion less the B cell uptake, see
+		 * Chemokine.reequilibrate. Only used once the field has been started
+		 * at its steady state
+		 */
+		public static int REEQUILIBRATION_INTERVAL = 0;
+		
+		/**
+		 * ENUM for the ways of diffusing the field: the Grajdeanu stencil,
+		 * the same stencil on a working copy with the longest axis innermost,
+		 * the stencil as three 1D passes, or implicit ADI solves covering a
+		 * whole agent step
+		 */
+		public static enum ALGORITHM {
+			GRAJDEANU, GRAJDEANU_REORDERED, SEPARABLE, ADI
+		}
+		
+		/**
+		 * How the field is diffused, see Chemokine.createDiffusionAlgorithm
+		 */
+		public static ALGORITHM DIFFUSION_ALGORITHM = ALGORITHM.GRAJDEANU;
+		
 		
 		/**
 		 * Speed of diffusion, used by DiffusionAlgorithm need to specify the units
@@ -10,7 +10,11 @@ import sim.field.continuous.*;
 import sim3d.cell.*;
 import sim3d.cell.cognateBC.TYPE;
 import sim3d.collisiondetection.CollisionGrid;
+import sim3d.collisiondetection.OccupancyGrid;
 import sim3d.diffusion.Chemokine;
+import sim3d.migration.ParallelMigration;
+import sim3d.util.ODESolver;
+import sim3d.util.RandomStreams;
 import sim3d.stroma.Stroma;
 import sim3d.stroma.StromaEdge;
 
@@ -90,6 +94,11 @@ public class SimulationEnvironment extends SimState {
 	 */
 	public static Chemokine CXCL13;
 
+	/**
+	 * Steps the lymphocytes when they migrate in parallel, otherwise null
+	 */
+	private ParallelMigration parallelMigration;
+
 	/*
 	 * Parameter file: XML format
 	 */
@@ -137,6 +146,16 @@ public class SimulationEnvironment extends SimState {
 	 */
 	public void finish() {
 		Chemokine.reset();
+		BC.m_ogOccupancy = null;
+
+		if (BC.m_cgGrid != null) {
+			BC.m_cgGrid.shutdown();
+		}
+
+		if (parallelMigration != null) {
+			parallelMigration.shutdown();
+			parallelMigration = null;
+		}
 	}
 
 	/**
@@ -174,6 +193,10 @@ public class SimulationEnvironment extends SimState {
 	 * @param cell the lymphocyte to schedule
 	 */
 	public void scheduleStoppableCell(Lymphocyte cell) {
+		if (parallelMigration != null) {
+			cell.setStopper(parallelMigration.add(cell));
+			return;
+		}
 		cell.setStopper(simulation.schedule.scheduleRepeating((Steppable) cell));
 
 	}
@@ -206,9 +229,18 @@ public class SimulationEnvironment extends SimState {
 	 * Sets up a simulation run and initialises the environments.
 	 */
 	public void start() {
+		// the settings may have been changed since they were loaded
+		Settings.CXCL13.checkParameters();
+
 		// start the simulation
 		super.start();
 
+		// the agents' random number streams follow from the seed
+		Settings.STREAMS = new RandomStreams(seed());
+
+		// the lymphocytes of this run keep their receptor counts together
+		Lymphocyte.m_rsReceptorStore = new ReceptorStore();
+
 		// Initialise the stromal grid
 		fdcEnvironment = new Continuous3D(Settings.FDC.DISCRETISATION, Settings.WIDTH, Settings.HEIGHT, Settings.DEPTH);
 
@@ -220,14 +252,29 @@ public class SimulationEnvironment extends SimState {
 		BC.bcEnvironment = new Continuous3D(Settings.BC.DISCRETISATION, Settings.WIDTH, Settings.HEIGHT,
 				Settings.DEPTH);
 		BC.drawEnvironment = BC.bcEnvironment;
+		BC.m_ogOccupancy = new OccupancyGrid(Settings.WIDTH, Settings.HEIGHT,
+				Settings.DEPTH, BC.OCCUPANCY_DISCRETISATION);
 
 		// initialise chemokines
 		CXCL13 = new Chemokine(schedule, Chemokine.TYPE.CXCL13, Settings.WIDTH, Settings.HEIGHT, Settings.DEPTH);
 
-		// Initialise the CollisionGrid
-		CollisionGrid cgGrid = new CollisionGrid(Settings.WIDTH, Settings.HEIGHT, Settings.DEPTH, 1);
+		// Initialise the CollisionGrid, sized for how far the B cells move
+		double dCollisionDiscretisation = CollisionGrid.chooseDiscretisation(Settings.BC.COLLISION_RADIUS,
+				Settings.BC.TRAVEL_DISTANCE());
+		CollisionGrid cgGrid = new CollisionGrid(Settings.WIDTH, Settings.HEIGHT, Settings.DEPTH,
+				dCollisionDiscretisation, Settings.NUM_THREADS);
 		schedule.scheduleRepeating(cgGrid, 3, 1);
 
+		// the lymphocytes are stepped together rather than one at a time
+		if (Settings.PARALLEL_MIGRATION) {
+			parallelMigration = new ParallelMigration(Settings.NUM_THREADS);
+			schedule.scheduleRepeating(parallelMigration);
+		}
+
+		// count the seconds of the receptor ODE saved over this run, see
+		// ODESolver.getSubStepStatistics
+		ODESolver.resetSubStepStatistics();
+
 		// initialise checkpoints
 		initialiseCheckpoints();
 
@@ -258,6 +305,35 @@ public class SimulationEnvironment extends SimState {
 		totalNumberOfEdges = totalNumberOfFDCEdges + totalNumberOfMRCEdges + totalNumberOfBRCEdges;
 	}
 
+	/**
+	 * Start CXCL13 at the steady state of the stromal secretion. The stroma
+	 * secrete the same amount each step, so one step of secretion is
+	 * recorded on an empty field and used as the source for the solve.
+	 * Uptake by the B cells is not included.
+	 * 
+	 * @return the number of iterations the solve took
+	 */
+	public int initialiseSteadyStateChemokine() {
+
+		Chemokine pCXCL13 = Chemokine.getInstance(Chemokine.TYPE.CXCL13);
+		double[] adField = pCXCL13.getM_adField();
+
+		// record a step of secretion on an empty field
+		pCXCL13.setM_adField(new double[adField.length]);
+		Bag stroma = getAllStroma();
+		for (int i = 0; i < stroma.size(); i++) {
+			if (stroma.get(i) instanceof Stroma) {
+				((Stroma) stroma.get(i)).step(this);
+			} else if (stroma.get(i) instanceof StromaEdge) {
+				((StromaEdge) stroma.get(i)).step(this);
+			}
+		}
+		double[] adSource = pCXCL13.getM_adField();
+		pCXCL13.setM_adField(adField);
+
+		return pCXCL13.initialiseSteadyState(adSource, Settings.CXCL13.STEADY_STATE_TOLERANCE);
+	}
+
 	/**
 	 * This methods initialises the checkpoints, the metric we use to quantify
 	 * scanning Currently each gridspace is set to true and thus each gridspace
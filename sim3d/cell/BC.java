@@ -38,7 +38,8 @@ public class BC extends Lymphocyte{
 	@Override
 	public void step(final SimState state)// why is this final here
 	{		
-		migrate(a1);	
+		migrate(a1);
+		recordStep();
 	}
 	
 }
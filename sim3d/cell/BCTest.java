@@ -26,7 +26,9 @@ import sim3d.collisiondetection.Collidable.CLASS;
 import sim3d.diffusion.Chemokine;
 import sim3d.stroma.Stroma;
 import sim3d.stroma.StromaEdge;
+import sim3d.util.ExponentialODESolver;
 import sim3d.util.IO;
+import sim3d.util.ODESolver;
 import sim3d.util.Vector3DHelper;
 import ec.util.MersenneTwisterFast;
 
@@ -256,6 +258,39 @@ public class BCTest {
 			
 	}
 
+	/**
+	 * Tests that after the movements change, reregisterCollisions leaves the
+	 * BC on the same grid spaces as registering the new path from scratch
+	 */
+	@Test
+	public void testReregisterCollisions() {
+
+		CollisionGrid cgGrid = new CollisionGrid(31, 31, 31, 1);
+		CollisionGrid cgExpected = new CollisionGrid(31, 31, 31, 1);
+
+		BC bc = new BC();
+		bc.setObjectLocation(new Double3D(5.5, 5.5, 5.5));
+		bc.getM_d3aMovements().add(new Double3D(2, 0, 0));
+		bc.getM_d3aMovements().add(new Double3D(0, 3, 0));
+		bc.registerCollisions(cgGrid);
+
+		// a collision cuts the second movement short and deflects it
+		bc.getM_d3aMovements().set(1, new Double3D(0, 1, 0));
+		bc.getM_d3aMovements().add(new Double3D(0, 0, 4));
+		bc.reregisterCollisions(cgGrid);
+		bc.registerCollisions(cgExpected);
+
+		for (int x = 0; x < 31; x++) {
+			for (int y = 0; y < 31; y++) {
+				for (int z = 0; z < 31; z++) {
+					Int3D i3Space = new Int3D(x, y, z);
+					assertEquals(cgExpected.getPoints(i3Space).contains(bc),
+							cgGrid.getPoints(i3Space).contains(bc));
+				}
+			}
+		}
+	}
+
 
 
 
@@ -401,6 +436,39 @@ public class BCTest {
 		assertTrue(closestPoints.size() > 0);
 	}
 
+	/**
+	 * Assert that the allocation free FindClosestPointsBetween gives the same
+	 * points as the List version
+	 */
+	@Test
+	public void testFindClosestPointsBetweenArray() {
+
+		Double3D p1 = new Double3D(1, 1, 1);
+		Double3D d1 = new Double3D(2, 0, 0);
+		Double3D p2 = new Double3D(2, -1, 1);
+		Double3D d2 = new Double3D(0, 3, 0);
+		Double3D r = p1.subtract(p2);
+		double a = Vector3DHelper.dotProduct(d1, d1);
+		double b = Vector3DHelper.dotProduct(d1, d2);
+		double c = Vector3DHelper.dotProduct(d1, r);
+		double e = Vector3DHelper.dotProduct(d2, d2);
+		double f = Vector3DHelper.dotProduct(d2, r);
+		double denom = a * e - b * b;
+
+		List<Double> closestPoints = bc.findClosestPointsBetween(0, p1, p2,
+				d1, d2, denom, 0, 0, a, b, c, e, f);
+		double[] adClosestPoints = new double[2];
+		Lymphocyte.findClosestPointsBetween(denom, 0, a, b, c, e, f,
+				adClosestPoints);
+
+		// the segments cross half way along the first and two thirds of the
+		// way along the second
+		assertEquals(0.5, adClosestPoints[0], 1e-12);
+		assertEquals(2.0 / 3, adClosestPoints[1], 1e-12);
+		assertEquals(closestPoints.get(0), adClosestPoints[0], 0);
+		assertEquals(closestPoints.get(1), adClosestPoints[1], 0);
+	}
+
 	/**
 	 * Assert that model movements adds a child to the BCs transformgroup
 	 */
@@ -479,7 +547,7 @@ public class BCTest {
 	@Test
 	public void testReceptorStepDynamic() {
 
-		m_pParticle.field[15][15][15] = (1.7 * Math.pow(10, -9));
+		m_pParticle.setValue(15, 15, 15, (1.7 * Math.pow(10, -9)));
 
 		Settings.BC.ODE.Rf = 10000;
 		Settings.BC.ODE.Ri = 10000;
@@ -509,7 +577,7 @@ public class BCTest {
 	 */
 	@Test
 	public void testReceptorStepConservation() {
-		m_pParticle.field[15][15][15] = (1.7 * Math.pow(10, -7));
+		m_pParticle.setValue(15, 15, 15, (1.7 * Math.pow(10, -7)));
 
 		Settings.BC.ODE.Rf = 15764;
 		Settings.BC.ODE.Ri = 0000;
@@ -552,7 +620,7 @@ public class BCTest {
 				bcCells[j].step(null);
 			}
 			//add more chemokine to the field
-			m_pParticle.field[15][15][15] = (1.7 * Math.pow(10, -7));
+			m_pParticle.setValue(15, 15, 15, (1.7 * Math.pow(10, -7)));
 			m_pParticle.step(null);
 		}
 
@@ -571,4 +639,76 @@ public class BCTest {
 
 	}
 
+	/**
+	 * Assert that the exponential solver gives close to the same receptors
+	 * and chemokine consumption as the Runge Kutta solver, where the cell
+	 * doesn't use up much of the ligand around it
+	 */
+	@Test
+	public void testExponentialSolverMatchesRK4() {
+
+		for (double dLigand : new double[] { 1e-18, 1e-17, 1e-16 }) {
+			int[] aiRK4 = new int[4];
+			int[] aiExponential = new int[4];
+			double dConsumedRK4 = solveReceptors(dLigand, false, aiRK4);
+			double dConsumedExponential = solveReceptors(dLigand, true,
+					aiExponential);
+
+			for (int i = 0; i < 4; i++) {
+				assertEquals(aiRK4[i], aiExponential[i], 48000 * 0.01);
+			}
+			assertEquals(dConsumedRK4, dConsumedExponential,
+					Math.abs(dConsumedRK4) * 0.05);
+		}
+	}
+
+	/**
+	 * Solve the receptor ODE of a cell in a uniform CXCL13 field for 10 steps
+	 * 
+	 * @param aiReceptors
+	 *            set to LR, Rf, Ri and Rd at the end
+	 * @return the chemokine consumed
+	 */
+	private double solveReceptors(double dLigand, boolean bExponential,
+			int[] aiReceptors) {
+
+		for (int x = 0; x < 31; x++) {
+			for (int y = 0; y < 31; y++) {
+				for (int z = 0; z < 31; z++) {
+					m_pParticle.setValue(x, y, z, dLigand);
+				}
+			}
+		}
+		double dStart = m_pParticle.calculateTotalChemokineLevels();
+
+		BC bc = new BC();
+		bc.x = 15;
+		bc.y = 15;
+		bc.z = 15;
+		bc.setM_LR(Lymphocyte.Receptor.CXCR5, 0);
+		bc.setM_Rf(Lymphocyte.Receptor.CXCR5, 48000);
+		bc.setM_Ri(Lymphocyte.Receptor.CXCR5, 0);
+		bc.setM_Rd(Lymphocyte.Receptor.CXCR5, 0);
+
+		double dKa = 1000;
+		for (int i = 0; i < 10; i++) {
+			if (bExponential) {
+				ExponentialODESolver.solveODE(dKa, Settings.BC.ODE.K_r(),
+						Settings.BC.ODE.K_i(), Settings.BC.ODE.Koff,
+						Settings.BC.ODE.Kdes, Chemokine.TYPE.CXCL13, bc);
+			} else {
+				ODESolver.solveODE(dKa, Settings.BC.ODE.K_r(),
+						Settings.BC.ODE.K_i(), Settings.BC.ODE.Koff,
+						Settings.BC.ODE.Kdes, Chemokine.TYPE.CXCL13, bc);
+			}
+		}
+
+		aiReceptors[0] = bc.getM_LR(Lymphocyte.Receptor.CXCR5);
+		aiReceptors[1] = bc.getM_Rf(Lymphocyte.Receptor.CXCR5);
+		aiReceptors[2] = bc.getM_Ri(Lymphocyte.Receptor.CXCR5);
+		aiReceptors[3] = bc.getM_Rd(Lymphocyte.Receptor.CXCR5);
+
+		return dStart - m_pParticle.calculateTotalChemokineLevels();
+	}
+
 }
@@ -3,8 +3,8 @@ package sim3d.cell;
 
 import java.awt.Color;
 import java.util.ArrayList;
-import java.util.EnumMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 
 import javax.media.j3d.Appearance;
@@ -28,11 +28,16 @@ import sim.util.Int3D;
 import sim3d.Settings;
 import sim3d.collisiondetection.Collidable;
 import sim3d.collisiondetection.CollisionGrid;
+import sim3d.collisiondetection.OccupancyGrid;
+import sim3d.collisiondetection.SegmentBVH;
 import sim3d.migration.Algorithm1;
 import sim3d.migration.MigrationAlgorithm;
 import sim3d.migration.MigratoryCell;
 import sim3d.stroma.Stroma;
 import sim3d.stroma.StromaEdge;
+import sim3d.util.MutableVector3D;
+import sim3d.util.RandomStream;
+import sim3d.util.RandomStreams;
 import sim3d.util.Vector3DHelper;
 
 public abstract class Lymphocyte extends DrawableCell3D implements Steppable, Collidable, MigratoryCell {
@@ -53,31 +58,37 @@ public abstract class Lymphocyte extends DrawableCell3D implements Steppable, Co
 	public Lymphocyte(){
 		
 		initialiseReceptors();
+
+		// the cell's own random number streams, so what it draws doesn't
+		// depend on when it is stepped
+		long lAgent = Settings.STREAMS.newAgent();
+		m_rsCrowding = Settings.STREAMS.getStream(lAgent, RandomStreams.STREAM.CROWDING);
+		m_rsTurning = Settings.STREAMS.getStream(lAgent, RandomStreams.STREAM.TURNING);
+		m_d3Face = Vector3DHelper.getRandomDirection(m_rsTurning);
 	}
 	
 	
 	/**
-	 * Initialise the receptor maps
+	 * Initialise the receptor counts
 	 */
 	public void initialiseReceptors(){
 		
-		this.getM_receptorMap().put(Receptor.CXCR5, new ArrayList<Integer>(4));
-		this.getM_receptorMap().get(Receptor.CXCR5).add(0,Settings.BC.ODE.LR());
-		this.getM_receptorMap().get(Receptor.CXCR5).add(1,Settings.BC.ODE.Rf());
-		this.getM_receptorMap().get(Receptor.CXCR5).add(2,Settings.BC.ODE.Ri());
-		this.getM_receptorMap().get(Receptor.CXCR5).add(3,0);//this is for desensitised receptors
-		
-		this.getM_receptorMap().put(Receptor.CCR7, new ArrayList<Integer>(3));
-		this.getM_receptorMap().get(Receptor.CCR7).add(0,0);
-		this.getM_receptorMap().get(Receptor.CCR7).add(1,0);
-		this.getM_receptorMap().get(Receptor.CCR7).add(2,0);
-		this.getM_receptorMap().get(Receptor.CCR7).add(3,0);
+		if (m_rsReceptors == null) {
+			m_rsReceptors = m_rsReceptorStore;
+			m_iReceptorSlot = m_rsReceptors.allocate();
+		}
+
+		setM_LR(Receptor.CXCR5, Settings.BC.ODE.LR());
+		setM_Rf(Receptor.CXCR5, Settings.BC.ODE.Rf());
+		setM_Ri(Receptor.CXCR5, Settings.BC.ODE.Ri());
+		setM_Rd(Receptor.CXCR5, 0);//this is for desensitised receptors
 		
-		this.getM_receptorMap().put(Receptor.EBI2, new ArrayList<Integer>(4));
-		this.getM_receptorMap().get(Receptor.EBI2).add(0,0);
-		this.getM_receptorMap().get(Receptor.EBI2).add(1,0);
-		this.getM_receptorMap().get(Receptor.EBI2).add(2,0);
-		this.getM_receptorMap().get(Receptor.EBI2).add(3,0);	
+		for (Receptor receptor : new Receptor[] { Receptor.CCR7, Receptor.EBI2 }) {
+			setM_LR(receptor, 0);
+			setM_Rf(receptor, 0);
+			setM_Ri(receptor, 0);
+			setM_Rd(receptor, 0);
+		}
 	}
 	
 
@@ -86,15 +97,34 @@ public abstract class Lymphocyte extends DrawableCell3D implements Steppable, Co
 	}
 	
 	/**
-	 * Gives each ENUM an array index
+	 * Where new lymphocytes keep their receptor counts, replaced at the start
+	 * of each run
 	 */
-	protected EnumMap<Receptor, List<Integer>> m_receptorMap = new EnumMap<Receptor, List<Integer>>(Receptor.class);
+	public static ReceptorStore m_rsReceptorStore = new ReceptorStore();
+
+	/**
+	 * The store holding this cell's receptor counts and its slot there
+	 */
+	private ReceptorStore m_rsReceptors = null;
+	private int m_iReceptorSlot;
 	
 	/*
 	 * 3D grid where B cells and cBs exist
 	 */
 	public static Continuous3D bcEnvironment;
 
+	/**
+	 * Counts the B cells and cBs in each grid space, kept up to date by
+	 * setObjectLocation and used for crowding. Null if not in use
+	 */
+	public static OccupancyGrid m_ogOccupancy;
+
+	/**
+	 * Size of the occupancy grid spaces; each has the same volume as a sphere
+	 * of radius 0.7, the size of a cell
+	 */
+	public static final double OCCUPANCY_DISCRETISATION = 0.7 * Math.cbrt(4 * Math.PI / 3);
+
 	/**
 	 * The collision grid that contains this element; used to register
 	 * collisions
@@ -109,6 +139,12 @@ public abstract class Lymphocyte extends DrawableCell3D implements Steppable, Co
 			Settings.FDC.STROMA_EDGE_RADIUS)
 			* (Settings.BC.COLLISION_RADIUS + Settings.FDC.STROMA_EDGE_RADIUS);
 
+	/**
+	 * How far the boxes around a movement and a stroma edge can be apart and
+	 * still collide, with a little slack for rounding
+	 */
+	static final double BC_SE_COLLIDE_BOX = Math.sqrt(BC_SE_COLLIDE_DIST_SQ) + 1e-6;
+
 	/**
 	 * The squared distance between a BC and a stromal cell at the point of
 	 * collision; precomputed to speed up calculations
@@ -133,7 +169,7 @@ public abstract class Lymphocyte extends DrawableCell3D implements Steppable, Co
 	 * 
 	 * The direction the cell is facing; used for movement
 	 */
-	private Double3D m_d3Face = Vector3DHelper.getRandomDirection();
+	private Double3D m_d3Face;
 
 	/**
 	 * DEBUG used to display collision points
@@ -151,6 +187,31 @@ public abstract class Lymphocyte extends DrawableCell3D implements Steppable, Co
 	 */
 	private HashSet<Int3D> m_i3lCollisionPoints = new HashSet<Int3D>();
 
+	/**
+	 * Scratch space for handleCollisions: the Collidables we might have hit,
+	 * what's on each grid space, the box around our path and the closest
+	 * points between a movement and an edge, then the position along the
+	 * path and the vectors between it and an edge used by collideStromaEdge
+	 */
+	private LinkedHashSet<Collidable> m_csCollidables = new LinkedHashSet<Collidable>();
+	private List<Collidable> m_clGridPoints = new ArrayList<Collidable>();
+	private double[] m_adPathBox = new double[6];
+	private double[] m_adClosestPoints = new double[2];
+	private MutableVector3D m_v3PathPoint = new MutableVector3D();
+	private MutableVector3D m_v3Separation = new MutableVector3D();
+	private MutableVector3D m_v3ToEdgeStart = new MutableVector3D();
+	private MutableVector3D m_v3ToEdgeEnd = new MutableVector3D();
+
+	/**
+	 * The points along the path as it was last registered on the collision
+	 * grid, x, y, z for each, and how many there are. m_adPath is scratch
+	 * space for the path as it is now, the two are swapped once the path
+	 * has been reregistered
+	 */
+	private double[] m_adRegisteredPath = new double[12];
+	private int m_iRegisteredPoints = 0;
+	private double[] m_adPath = new double[12];
+
 	/*
 	 * Determines the position of a BC on a stromal edge
 	 */
@@ -210,6 +271,15 @@ public abstract class Lymphocyte extends DrawableCell3D implements Steppable, Co
 	public void step(final SimState state)// why is this final here
 	{
 		migrate(a1);
+		recordStep();
+	}
+
+	/**
+	 * Anything the cell does once it has migrated this step, such as
+	 * recording data. ParallelMigration calls this one cell at a time after
+	 * the cells have migrated
+	 */
+	public void recordStep() {
 	}
 
 
@@ -247,6 +317,21 @@ public abstract class Lymphocyte extends DrawableCell3D implements Steppable, Co
 	public void removeDeadCell(Continuous3D randomSpace) {
 		this.stop();
 		randomSpace.remove(this);
+
+		if (m_ogOccupancy != null && getM_Location() != null) {
+			m_ogOccupancy.remove(getM_Location());
+		}
+	}
+
+	/**
+	 * Moves the cell on the occupancy grid as well
+	 */
+	@Override
+	public void setObjectLocation(Double3D d3Location) {
+		if (m_ogOccupancy != null) {
+			m_ogOccupancy.move(getM_Location(), d3Location);
+		}
+		super.setObjectLocation(d3Location);
 	}
 
 	/**
@@ -256,6 +341,12 @@ public abstract class Lymphocyte extends DrawableCell3D implements Steppable, Co
 
 	public boolean m_isChemotactic;
 
+	/**
+	 * The cell's random number streams for deciding whether to move into a
+	 * crowded space and for turning, see RandomStreams
+	 */
+	private RandomStream m_rsCrowding, m_rsTurning;
+
 	/**
 	 * Method to change the value of the stopper this is the stoppabkle object
 	 * so we can access its stop method stoppable can acess BC but not the other
@@ -268,6 +359,21 @@ public abstract class Lymphocyte extends DrawableCell3D implements Steppable, Co
 		this.stopper = stopper;
 	}
 
+	/**
+	 * @return one of the cell's random number streams. Use snapshot and
+	 *         restore on it to checkpoint the cell
+	 */
+	public RandomStream getStream(RandomStreams.STREAM eStream) {
+		switch (eStream) {
+		case CROWDING:
+			return m_rsCrowding;
+		case TURNING:
+			return m_rsTurning;
+		default:
+			return null;
+		}
+	}
+
 	/**
 	 * Method to stop the class where necessary
 	 */
@@ -281,19 +387,87 @@ public abstract class Lymphocyte extends DrawableCell3D implements Steppable, Co
 			return;
 		}
 
+		m_iRegisteredPoints = 0;
+		reregisterCollisions(cgGrid);
+	}
+
+	/**
+	 * Bring our path on the collision grid up to date after the movements
+	 * have changed. A collision or a bounce only changes the path from some
+	 * movement onwards, so the lines before that are left where they are,
+	 * the old lines after it are taken off and the new ones added
+	 * 
+	 * @param cgGrid
+	 * 			the collision grid
+	 */
+	protected void reregisterCollisions(CollisionGrid cgGrid) {
+		if (cgGrid == null) {
+			return;
+		}
+
+		double[] adPath = getPath(m_adPath);
+		int iPoints = getM_d3aMovements().size() + 1;
+
+		// the first point that has moved, the lines up to it are unchanged
+		int iChanged = 0;
+		int iCommon = Math.min(iPoints, m_iRegisteredPoints);
+		while (iChanged < iCommon
+				&& adPath[3 * iChanged] == m_adRegisteredPath[3 * iChanged]
+				&& adPath[3 * iChanged + 1] == m_adRegisteredPath[3 * iChanged + 1]
+				&& adPath[3 * iChanged + 2] == m_adRegisteredPath[3 * iChanged + 2]) {
+			iChanged++;
+		}
+		int iFirstLine = Math.max(0, iChanged - 1);
+
+		for (int i = iFirstLine; i < m_iRegisteredPoints - 1; i++) {
+			cgGrid.removeLineFromGrid(this, m_adRegisteredPath[3 * i],
+					m_adRegisteredPath[3 * i + 1], m_adRegisteredPath[3 * i + 2],
+					m_adRegisteredPath[3 * i + 3], m_adRegisteredPath[3 * i + 4],
+					m_adRegisteredPath[3 * i + 5], Settings.BC.COLLISION_RADIUS);
+		}
+
+		for (int i = iFirstLine; i < iPoints - 1; i++) {
+			cgGrid.addLineToGrid(this, adPath[3 * i], adPath[3 * i + 1],
+					adPath[3 * i + 2], adPath[3 * i + 3], adPath[3 * i + 4],
+					adPath[3 * i + 5], Settings.BC.COLLISION_RADIUS);
+		}
+
+		m_adPath = m_adRegisteredPath;
+		m_adRegisteredPath = adPath;
+		m_iRegisteredPoints = iPoints;
+	}
+
+	/**
+	 * The points along our path, starting from where we are now
+	 * 
+	 * @param adPath
+	 * 			where to write x, y, z for each point, replaced if it's too
+	 * 			small
+	 * @return the points
+	 */
+	private double[] getPath(double[] adPath) {
+		int iPoints = getM_d3aMovements().size() + 1;
+		if (adPath.length < 3 * iPoints) {
+			adPath = new double[6 * iPoints];
+		}
+
 		double dPosX = x;
 		double dPosY = y;
 		double dPosZ = z;
+		adPath[0] = dPosX;
+		adPath[1] = dPosY;
+		adPath[2] = dPosZ;
 
-		for (Double3D d3Movement : getM_d3aMovements()) {
-			cgGrid.addLineToGrid(this, new Double3D(dPosX, dPosY, dPosZ),
-					new Double3D(dPosX + d3Movement.x, dPosY + d3Movement.y,
-							dPosZ + d3Movement.z), Settings.BC.COLLISION_RADIUS);
-
+		for (int i = 1; i < iPoints; i++) {
+			Double3D d3Movement = getM_d3aMovements().get(i - 1);
 			dPosX += d3Movement.x;
 			dPosY += d3Movement.y;
 			dPosZ += d3Movement.z;
+			adPath[3 * i] = dPosX;
+			adPath[3 * i + 1] = dPosY;
+			adPath[3 * i + 2] = dPosZ;
 		}
+		return adPath;
 	}
 
 	/**
@@ -310,15 +484,8 @@ public abstract class Lymphocyte extends DrawableCell3D implements Steppable, Co
 			return;
 		}
 
-		// stores values uniquely in a hashset
-		HashSet<Collidable> csCollidables = new HashSet<Collidable>();
+		LinkedHashSet<Collidable> csCollidables = getCollidables(cgGrid);
 
-		// Add all the cells to the set
-		for (Int3D i3Point : getM_i3lCollisionPoints()) {
-			for (Collidable cCollidable : cgGrid.getPoints(i3Point)) {
-				csCollidables.add(cCollidable);
-			}
-		}
 		int iCollisionMovement = getM_d3aMovements().size();
 		boolean bCollision = false;
 
@@ -359,6 +526,120 @@ public abstract class Lymphocyte extends DrawableCell3D implements Steppable, Co
 		}
 	}
 
+
+	/**
+	 * Gather everything we might have collided with, in the order it was
+	 * found so the collisions are resolved the same way on every run. Once
+	 * the stroma edges are in a hierarchy they come from there, and only the
+	 * edges whose box is near our path are returned. The stromal cells still
+	 * come from the grid
+	 * 
+	 * @param cgGrid
+	 * 			the collision grid
+	 * @return
+	 * 			the Collidables, reused between calls
+	 */
+	protected LinkedHashSet<Collidable> getCollidables(CollisionGrid cgGrid) {
+		LinkedHashSet<Collidable> csCollidables = m_csCollidables;
+		csCollidables.clear();
+
+		SegmentBVH bvhEdges = cgGrid.getStaticSegments();
+		if (bvhEdges == null) {
+			for (Int3D i3Point : getM_i3lCollisionPoints()) {
+				cgGrid.getPoints(i3Point, csCollidables);
+			}
+			return csCollidables;
+		}
+
+		getPathBox(getM_d3aMovements().size(), BC_SE_COLLIDE_BOX, m_adPathBox);
+		bvhEdges.query(m_adPathBox, csCollidables);
+
+		for (Int3D i3Point : getM_i3lCollisionPoints()) {
+			m_clGridPoints.clear();
+			cgGrid.getPoints(i3Point, m_clGridPoints);
+			for (Collidable cCell : m_clGridPoints) {
+				if (cCell.getCollisionClass() != Collidable.CLASS.STROMA_EDGE) {
+					csCollidables.add(cCell);
+				}
+			}
+		}
+		return csCollidables;
+	}
+
+	/**
+	 * The box around the first iMovements movements, grown by dMargin on
+	 * every side
+	 * 
+	 * @param adBox
+	 * 			written with min x, y, z then max x, y, z
+	 */
+	void getPathBox(int iMovements, double dMargin, double[] adBox) {
+		double dPosX = x;
+		double dPosY = y;
+		double dPosZ = z;
+
+		adBox[0] = adBox[3] = dPosX;
+		adBox[1] = adBox[4] = dPosY;
+		adBox[2] = adBox[5] = dPosZ;
+
+		for (int i = 0; i < iMovements; i++) {
+			Double3D d3Movement = getM_d3aMovements().get(i);
+			dPosX += d3Movement.x;
+			dPosY += d3Movement.y;
+			dPosZ += d3Movement.z;
+
+			adBox[0] = Math.min(adBox[0], dPosX);
+			adBox[1] = Math.min(adBox[1], dPosY);
+			adBox[2] = Math.min(adBox[2], dPosZ);
+			adBox[3] = Math.max(adBox[3], dPosX);
+			adBox[4] = Math.max(adBox[4], dPosY);
+			adBox[5] = Math.max(adBox[5], dPosZ);
+		}
+
+		for (int k = 0; k < 3; k++) {
+			adBox[k] -= dMargin;
+			adBox[3 + k] += dMargin;
+		}
+	}
+
+	/**
+	 * @return false if the boxes around the segments p1 to p1 + d1 and p2 to
+	 *         p2 + d2 are more than BC_SE_COLLIDE_BOX apart along any axis, in
+	 *         which case the segments can't be close enough to collide
+	 */
+	static boolean boxesTouch(MutableVector3D p1, Double3D d1, Double3D p2,
+			Double3D d2) {
+		return intervalsTouch(p1.x, d1.x, p2.x, d2.x)
+				&& intervalsTouch(p1.y, d1.y, p2.y, d2.y)
+				&& intervalsTouch(p1.z, d1.z, p2.z, d2.z);
+	}
+
+	private static boolean intervalsTouch(double p1, double d1, double p2,
+			double d2) {
+		double dLow1 = Math.min(p1, p1 + d1), dHigh1 = Math.max(p1, p1 + d1);
+		double dLow2 = Math.min(p2, p2 + d2), dHigh2 = Math.max(p2, p2 + d2);
+		return dLow1 <= dHigh2 + BC_SE_COLLIDE_BOX
+				&& dLow2 <= dHigh1 + BC_SE_COLLIDE_BOX;
+	}
+
+	/**
+	 * @return true if the edge's box overlaps adBox
+	 */
+	static boolean edgeInBox(StromaEdge seEdge, double[] adBox) {
+		return intervalInBox(seEdge.x, seEdge.m_d3Edge.x, adBox, 0)
+				&& intervalInBox(seEdge.y, seEdge.m_d3Edge.y, adBox, 1)
+				&& intervalInBox(seEdge.z, seEdge.m_d3Edge.z, adBox, 2);
+	}
+
+	/**
+	 * @return true if p to p + d overlaps adBox along axis k
+	 */
+	private static boolean intervalInBox(double p, double d, double[] adBox,
+			int k) {
+		double dEnd = p + d;
+		return Math.max(p, dEnd) >= adBox[k]
+				&& Math.min(p, dEnd) <= adBox[3 + k];
+	}
 	
 	/**
 	 * helper method to perform the actual collision
@@ -382,9 +663,9 @@ public abstract class Lymphocyte extends DrawableCell3D implements Steppable, Co
 		}
 
 		getM_d3aCollisions().add(new Double3D(xPos, yPos, zPos));
-		// Recheck for bounces and reregister with the grid
+		// Recheck for bounces and reregister the part of the path that changed
 		handleBounce();
-		registerCollisions(cgGrid);
+		reregisterCollisions(cgGrid);
 	}
 
 	
@@ -540,9 +821,18 @@ public abstract class Lymphocyte extends DrawableCell3D implements Steppable, Co
 		// the line (remember cos gives you the x-axis
 		// we are just making the line the x-axis).
 
-		Double3D p1 = new Double3D(x, y, z);//the start point of the cells movement
+		// nothing along the path comes close enough to the edge
+		getPathBox(iCollisionMovement, BC_SE_COLLIDE_BOX, m_adPathBox);
+		if (!edgeInBox(seEdge, m_adPathBox)) {
+			return false;
+		}
+
+		// the vectors along the path are kept in this cell's scratch space
+		// so the loop doesn't allocate
+		MutableVector3D p1 = m_v3PathPoint.set(x, y, z);//the start point of the cells movement
 		Double3D p2 = seEdge.getPoint1(); //the start point of the stroma edge
-		Double3D d2 = seEdge.getPoint2().subtract(p2); //Q2 - P2
+		Double3D q2 = seEdge.getPoint2(); //the end point of the stroma edge
+		Double3D d2 = q2.subtract(p2); //Q2 - P2
 
 		for (int i = 0; i < iCollisionMovement; i++) {
 			Double3D d1 = getM_d3aMovements().get(i); //where to move relative to the current location
@@ -550,18 +840,25 @@ public abstract class Lymphocyte extends DrawableCell3D implements Steppable, Co
 			// make sure that d1 has a length
 			if (d1.length() > 0) {
 
+				// this movement doesn't come near the edge so there's no need
+				// to find the closest points
+				if (!boxesTouch(p1, d1, p2, d2)) {
+					p1.add(d1);
+					continue;
+				}
+
 				// For some pair of values for s  and t , L1 (s ) and L2 (t ) 
 				// correspond to the closest points on the lines, 
 				//  v (s , t ) describes a vector between them 
 				double s = 0;
 				double t = 0;
 
-				Double3D r = p1.subtract(p2); // p1 - p2
+				MutableVector3D r = m_v3ToEdgeStart.set(p1).subtract(p2); // p1 - p2
 				double a = Vector3DHelper.dotProduct(d1, d1); // squared length line 1																
 				double b = Vector3DHelper.dotProduct(d1, d2);
-				double c = Vector3DHelper.dotProduct(d1, r);
+				double c = r.dotProduct(d1);
 				double e = Vector3DHelper.dotProduct(d2, d2); // squared length of line 2
-				double f = Vector3DHelper.dotProduct(d2, r);
+				double f = r.dotProduct(d2);
 
 				// differing from the link, dealing with lines so dont need to
 				// account for points
@@ -571,29 +868,29 @@ public abstract class Lymphocyte extends DrawableCell3D implements Steppable, Co
 				double denom = a * e - b * b; // >= 0
 
 				// find the points on each line where the vectors are closest
-				List<Double> closestPoints = findClosestPointsBetween(i, p1,
-						p2, d1, d2, denom, s, t, a, b, c, e, f);
+				findClosestPointsBetween(denom, s, a, b, c, e, f,
+						m_adClosestPoints);
 
-	
-				s = closestPoints.get(0);
-				t = closestPoints.get(1);
+				s = m_adClosestPoints[0];
+				t = m_adClosestPoints[1];
 
 				// update the B cells T-variable as this tells us how far along
 				// the stroma the B cell is
-				this.setPositionAlongStroma(closestPoints.get(1));
+				this.setPositionAlongStroma(t);
 
 				// So c1 and c2 are the points on the two lines which are
 				// closest to
 				// one another
 				// c1 = P1 + s.d1
 				// c2 = P2 + t.d2
-				Double3D c1 = p1.add(d1.multiply(s));
-				Double3D c2 = p2.add(d2.multiply(t));
+				// and we keep c1 - c2
+				MutableVector3D d3Separation = m_v3Separation.set(p1)
+						.addScaled(d1, s)
+						.subtract(m_v3ToEdgeStart.set(p2).addScaled(d2, t));
 
 				// remember that the dot product of a vector times a vector
 				// equals its length squared
-				double length = Vector3DHelper.dotProduct(c1.subtract(c2),
-						c1.subtract(c2));
+				double length = d3Separation.dotProduct(d3Separation);
 
 				boolean bCollide = false;
 
@@ -625,21 +922,22 @@ public abstract class Lymphocyte extends DrawableCell3D implements Steppable, Co
 						// Collision Detection p. 130
 						// ab = d2, ac = point - p2, bc = point -
 						// seEdge.getPoint2()
-						Double3D ac = p1.add(d1.multiply(sNew)).subtract(p2);
-						Double3D bc = p1.add(d1.multiply(sNew)).subtract(
-								seEdge.getPoint2());
-						e = Vector3DHelper.dotProduct(ac, d2);
-
-						length = updateLength(length, ac, bc, e, f, d2);
+						MutableVector3D ac = m_v3ToEdgeStart.set(p1)
+								.addScaled(d1, sNew).subtract(p2);
+						MutableVector3D bc = m_v3ToEdgeEnd.set(p1)
+								.addScaled(d1, sNew).subtract(q2);
+						e = ac.dotProduct(d2);
+
+						length = updateLength(ac.dotProduct(ac),
+								bc.dotProduct(bc), e,
+								Vector3DHelper.dotProduct(d2, d2));
 						s = sNew;
 					}
 				}
 
 				if (s == 0) {
-					Double3D d3Vec = c1.subtract(c2);
-
 					// we're already moving away!
-					if (Vector3DHelper.dotProduct(d3Vec, d1) > 0) {
+					if (d3Separation.dotProduct(d1) > 0) {
 						bCollide = false;
 					}
 				} else if (s == 1) {
@@ -647,12 +945,12 @@ public abstract class Lymphocyte extends DrawableCell3D implements Steppable, Co
 				}
 
 				if (bCollide) {
-					updateMovementToAccountForCollision(length, d1, d2, p1, p2,
-							s, t, i);
+					updateMovementToAccountForCollision(length, d1, d2,
+							p1.toDouble3D(), p2, s, t, i);
 					return true;
 				} else {
 					// Move the BC location according to full the movement.
-					p1 = p1.add(d1);
+					p1.add(d1);
 				}
 			}
 		}
@@ -849,18 +1147,23 @@ public abstract class Lymphocyte extends DrawableCell3D implements Steppable, Co
 	 */
 	double updateLength(double length, Double3D ac, Double3D bc, double e,
 			double f, Double3D d2) {
+		return updateLength(Vector3DHelper.dotProduct(ac, ac),
+				Vector3DHelper.dotProduct(bc, bc), e,
+				Vector3DHelper.dotProduct(d2, d2));
+	}
+
+	/**
+	 * As above, given the squared lengths of ac, bc and d2
+	 */
+	static double updateLength(double dAcSq, double dBcSq, double e,
+			double f) {
 		if (e <= 0) {
-			length = Vector3DHelper.dotProduct(ac, ac);
+			return dAcSq;
+		} else if (e >= f) {
+			return dBcSq;
 		} else {
-			f = Vector3DHelper.dotProduct(d2, d2);
-
-			if (e >= f) {
-				length = Vector3DHelper.dotProduct(bc, bc);
-			} else {
-				length = Vector3DHelper.dotProduct(ac, ac) - e * e / f;
-			}
+			return dAcSq - e * e / f;
 		}
-		return length;
 	}
 
 	
@@ -906,6 +1209,24 @@ public abstract class Lymphocyte extends DrawableCell3D implements Steppable, Co
 			Double3D d1, Double3D d2, double denom, double s, double t,
 			double a, double b, double c, double e, double f) {
 
+		double[] adClosestPoints = new double[2];
+		findClosestPointsBetween(denom, s, a, b, c, e, f, adClosestPoints);
+
+		List<Double> closestPoints = new ArrayList<Double>();
+		closestPoints.add(adClosestPoints[0]);
+		closestPoints.add(adClosestPoints[1]);
+
+		return closestPoints;
+	}
+
+	/**
+	 * As above, but writes s and t into adClosestPoints so nothing is
+	 * allocated
+	 */
+	static void findClosestPointsBetween(double denom, double s, double a,
+			double b, double c, double e, double f, double[] adClosestPoints) {
+		double t;
+
 		// if segments not parallel, compute closest point on L1 to L2
 		// and clamp to segment S1. Else pick arbritrary closest point S
 		// so compute closest point and clamp to segment 1
@@ -929,11 +1250,8 @@ public abstract class Lymphocyte extends DrawableCell3D implements Steppable, Co
 			t /= e;
 		}
 
-		List<Double> closestPoints = new ArrayList<Double>();
-		closestPoints.add(s);
-		closestPoints.add(t);
-
-		return closestPoints;
+		adClosestPoints[0] = s;
+		adClosestPoints[1] = t;
 	}
 
 	/**
@@ -1370,145 +1688,50 @@ public abstract class Lymphocyte extends DrawableCell3D implements Steppable, Co
 		this.m_d3aCollisions = m_d3aCollisions;
 	}
 
-	public EnumMap<Receptor, List<Integer>> getM_receptorMap() {
-		return m_receptorMap;
+	/**
+	 * @return the store holding this cell's receptor counts
+	 */
+	public ReceptorStore getReceptorStore() {
+		return m_rsReceptors;
 	}
 
-	public void setM_receptorMap(EnumMap<Receptor, List<Integer>> m_receptorMap) {
-		this.m_receptorMap = m_receptorMap;
+	/**
+	 * @return this cell's slot in getReceptorStore
+	 */
+	public int getReceptorSlot() {
+		return m_iReceptorSlot;
 	}
-	
-	public void setM_LR(Lymphocyte.Receptor receptor, Integer value){
-		switch (receptor) {
-		case CXCR5: 
-			this.getM_receptorMap().get(Receptor.CXCR5).set(0, value);
-			break;
-		case CCR7:
-			this.getM_receptorMap().get(Receptor.CCR7).set(0, value);
-			break;
-		case EBI2:
-			this.getM_receptorMap().get(Receptor.EBI2).set(0, value);
-			break;
-		}
+
+	public void setM_LR(Lymphocyte.Receptor receptor, int value){
+		m_rsReceptors.set(receptor, ReceptorStore.LR, m_iReceptorSlot, value);
 	}
 	
-	public void setM_Rf(Lymphocyte.Receptor receptor, Integer value){
-		switch (receptor) {
-		case CXCR5: 
-			this.getM_receptorMap().get(Receptor.CXCR5).set(1, value);
-			break;
-		case CCR7:
-			this.getM_receptorMap().get(Receptor.CCR7).set(1, value);
-			break;
-		case EBI2:
-			this.getM_receptorMap().get(Receptor.EBI2).set(1, value);
-			break;
-		}
+	public void setM_Rf(Lymphocyte.Receptor receptor, int value){
+		m_rsReceptors.set(receptor, ReceptorStore.RF, m_iReceptorSlot, value);
 	}
 	
-	public void setM_Ri(Lymphocyte.Receptor receptor, Integer value){
-		switch (receptor) {
-		case CXCR5: 
-			this.getM_receptorMap().get(Receptor.CXCR5).set(2, value);
-			break;
-		case CCR7:
-			this.getM_receptorMap().get(Receptor.CCR7).set(2, value);
-			break;
-		case EBI2:
-			this.getM_receptorMap().get(Receptor.EBI2).set(2, value);
-			break;
-		}
+	public void setM_Ri(Lymphocyte.Receptor receptor, int value){
+		m_rsReceptors.set(receptor, ReceptorStore.RI, m_iReceptorSlot, value);
 	}
 	
-	public void setM_Rd(Lymphocyte.Receptor receptor, Integer value){
-		switch (receptor) {
-		case CXCR5: 
-			this.getM_receptorMap().get(Receptor.CXCR5).set(3, value);
-			break;
-		case CCR7:
-			this.getM_receptorMap().get(Receptor.CCR7).set(3, value);
-			break;
-		case EBI2:
-			this.getM_receptorMap().get(Receptor.EBI2).set(3, value);
-			break;
-		}
+	public void setM_Rd(Lymphocyte.Receptor receptor, int value){
+		m_rsReceptors.set(receptor, ReceptorStore.RD, m_iReceptorSlot, value);
 	}
 	
-	public Integer getM_LR(Lymphocyte.Receptor receptor){
-		int output;
-		switch (receptor) {
-		case CXCR5: 
-			output = m_receptorMap.get(Receptor.CXCR5).get(0);
-			break;
-		case CCR7:
-			output = m_receptorMap.get(Receptor.CCR7).get(0);
-			break;
-		case EBI2:
-			output = m_receptorMap.get(Receptor.EBI2).get(0);
-			break;
-		default:
-			output = 0;
-			break;
-		}	
-		return output;
+	public int getM_LR(Lymphocyte.Receptor receptor){
+		return m_rsReceptors.get(receptor, ReceptorStore.LR, m_iReceptorSlot);
 	}
 	
-	public Integer getM_Rf(Lymphocyte.Receptor receptor){
-		int output;
-		switch (receptor) {
-		case CXCR5: 
-			output = m_receptorMap.get(Receptor.CXCR5).get(1);
-			break;
-		case CCR7:
-			output = m_receptorMap.get(Receptor.CCR7).get(1);
-			break;
-		case EBI2:
-			output = m_receptorMap.get(Receptor.EBI2).get(1);
-			break;
-		default:
-			output = 0;
-			break;
-		}	
-		return output;
+	public int getM_Rf(Lymphocyte.Receptor receptor){
+		return m_rsReceptors.get(receptor, ReceptorStore.RF, m_iReceptorSlot);
 	}
 	
-	public Integer getM_Ri(Lymphocyte.Receptor receptor){
-		int output;
-		switch (receptor) {
-		case CXCR5: 
-			output = m_receptorMap.get(Receptor.CXCR5).get(2);
-			break;
-		case CCR7:
-			output = m_receptorMap.get(Receptor.CCR7).get(2);
-			break;
-		case EBI2:
-			output = m_receptorMap.get(Receptor.EBI2).get(2);
-			break;
-			
-		default:
-			output = 0;
-		}	
-		return output;
+	public int getM_Ri(Lymphocyte.Receptor receptor){
+		return m_rsReceptors.get(receptor, ReceptorStore.RI, m_iReceptorSlot);
 	}
 	
-	
-	public Integer getM_Rd(Lymphocyte.Receptor receptor){
-		int output;
-		switch (receptor) {
-		case CXCR5: 
-			output = m_receptorMap.get(Receptor.CXCR5).get(3);
-			break;
-		case CCR7:
-			output = m_receptorMap.get(Receptor.CCR7).get(3);
-			break;
-		case EBI2:
-			output = m_receptorMap.get(Receptor.EBI2).get(3);
-			break;
-			
-		default:
-			output = 0;
-		}	
-		return output;
+	public int getM_Rd(Lymphocyte.Receptor receptor){
+		return m_rsReceptors.get(receptor, ReceptorStore.RD, m_iReceptorSlot);
 	}
 	
 }
@@ -0,0 +1,89 @@
+package sim3d.cell;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The receptor counts of a population of lymphocytes. Each cell has a slot,
+ * and for each receptor and each state it can be in there is a column of
+ * ints indexed by slot, so reading or writing a count is a single array
+ * access and the counts of the whole population can be updated in one loop.
+ *
+ * The Lymphocyte getters and setters such as getM_LR read and write the
+ * cell's slot.
+ *
+ * @author Jason Cosgrove
+ */
+public class ReceptorStore implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The states a receptor can be in: bound to ligand and signalling, free
+	 * on the surface, internalised, and desensitised
+	 */
+	public static final int LR = 0, RF = 1, RI = 2, RD = 3;
+
+	/**
+	 * Number of states per receptor
+	 */
+	static final int STATES = 4;
+
+	/**
+	 * One column per receptor and state, see getColumn
+	 */
+	private int[][] m_aaiColumns;
+
+	/**
+	 * Number of slots handed out
+	 */
+	private int m_iSize = 0;
+
+	public ReceptorStore() {
+		m_aaiColumns = new int[Lymphocyte.Receptor.values().length * STATES][64];
+	}
+
+	/**
+	 * @return a new slot with every count 0
+	 */
+	public int allocate() {
+		if (m_iSize == m_aaiColumns[0].length) {
+			for (int i = 0; i < m_aaiColumns.length; i++) {
+				m_aaiColumns[i] = Arrays.copyOf(m_aaiColumns[i], m_iSize * 2);
+			}
+		}
+		return m_iSize++;
+	}
+
+	/**
+	 * @return the number of slots handed out
+	 */
+	public int size() {
+		return m_iSize;
+	}
+
+	/**
+	 * @return a count for the cell in iSlot
+	 */
+	public int get(Lymphocyte.Receptor receptor, int iState, int iSlot) {
+		return m_aaiColumns[receptor.ordinal() * STATES + iState][iSlot];
+	}
+
+	/**
+	 * Set a count for the cell in iSlot
+	 */
+	public void set(Lymphocyte.Receptor receptor, int iState, int iSlot,
+			int iValue) {
+		m_aaiColumns[receptor.ordinal() * STATES + iState][iSlot] = iValue;
+	}
+
+	/**
+	 * NB: the array is replaced when the store grows, so don't keep it past
+	 * the next allocate
+	 *
+	 * @return the counts of one receptor in one state, indexed by slot
+	 */
+	public int[] getColumn(Lymphocyte.Receptor receptor, int iState) {
+		return m_aaiColumns[receptor.ordinal() * STATES + iState];
+	}
+}
@@ -0,0 +1,67 @@
+package sim3d.cell;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ReceptorStoreTest {
+
+	/**
+	 * Counts must be kept per slot, receptor and state
+	 */
+	@Test
+	public void testGetSet() {
+		ReceptorStore rsStore = new ReceptorStore();
+		int iSlot1 = rsStore.allocate();
+		int iSlot2 = rsStore.allocate();
+
+		rsStore.set(Lymphocyte.Receptor.CXCR5, ReceptorStore.LR, iSlot1, 5);
+		rsStore.set(Lymphocyte.Receptor.CXCR5, ReceptorStore.RF, iSlot1, 7);
+		rsStore.set(Lymphocyte.Receptor.EBI2, ReceptorStore.LR, iSlot2, 9);
+
+		assertEquals(5, rsStore.get(Lymphocyte.Receptor.CXCR5, ReceptorStore.LR, iSlot1));
+		assertEquals(7, rsStore.get(Lymphocyte.Receptor.CXCR5, ReceptorStore.RF, iSlot1));
+		assertEquals(0, rsStore.get(Lymphocyte.Receptor.CXCR5, ReceptorStore.LR, iSlot2));
+		assertEquals(9, rsStore.get(Lymphocyte.Receptor.EBI2, ReceptorStore.LR, iSlot2));
+		assertEquals(0, rsStore.get(Lymphocyte.Receptor.EBI2, ReceptorStore.LR, iSlot1));
+
+		assertEquals(7, rsStore.getColumn(Lymphocyte.Receptor.CXCR5, ReceptorStore.RF)[iSlot1]);
+	}
+
+	/**
+	 * Growing the store must keep the counts
+	 */
+	@Test
+	public void testAllocate() {
+		ReceptorStore rsStore = new ReceptorStore();
+
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(i, rsStore.allocate());
+			rsStore.set(Lymphocyte.Receptor.CCR7, ReceptorStore.RD, i, i);
+		}
+
+		assertEquals(1000, rsStore.size());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(i, rsStore.get(Lymphocyte.Receptor.CCR7, ReceptorStore.RD, i));
+		}
+	}
+
+	/**
+	 * The lymphocyte accessors must read and write the cell's slot
+	 */
+	@Test
+	public void testLymphocyteView() {
+		BC bc1 = new BC();
+		BC bc2 = new BC();
+		assertSame(bc1.getReceptorStore(), bc2.getReceptorStore());
+		assertNotEquals(bc1.getReceptorSlot(), bc2.getReceptorSlot());
+
+		bc1.setM_Ri(Lymphocyte.Receptor.CXCR5, 42);
+		bc2.setM_Ri(Lymphocyte.Receptor.CXCR5, 3);
+
+		assertEquals(42, bc1.getM_Ri(Lymphocyte.Receptor.CXCR5));
+		assertEquals(3, bc2.getM_Ri(Lymphocyte.Receptor.CXCR5));
+		assertEquals(42, bc1.getReceptorStore().get(Lymphocyte.Receptor.CXCR5,
+				ReceptorStore.RI, bc1.getReceptorSlot()));
+	}
+}
@@ -2,12 +2,11 @@ package sim3d.cell;
 
 import java.awt.Color;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 
 import javax.media.j3d.TransformGroup;
 
 import dataLogger.Controller;
-import sim.engine.SimState;
 import sim.portrayal3d.simple.SpherePortrayal3D;
 import sim.util.Double3D;
 import sim.util.Int3D;
@@ -96,11 +95,8 @@ public class cognateBC extends BC {
 	}
 
 	@Override
-	public void step(final SimState state) {
+	public void recordStep() {
 
-		
-		
-		super.step(state);
 		// once the system has reached steady state the BC can start to record
 		// it's position
 		if (SimulationEnvironment.steadyStateReached == true) {
@@ -197,8 +193,11 @@ public class cognateBC extends BC {
 	@Override
 	public void handleCollisions(CollisionGrid cgGrid) {
 
-		// initialise the dataMap
-		initialiseDataMaps();
+		// initialise the dataMap, the Controller is shared by every cell
+		// resolving its collisions
+		synchronized (Controller.getInstance()) {
+			initialiseDataMaps();
+		}
 		
 		// don't let a b cell collide more than collisionThreshold times
 		// required to avoid getting in an infinite loop
@@ -208,15 +207,7 @@ public class cognateBC extends BC {
 			return;
 		}
 
-		// stores values uniquely in a hashset
-		HashSet<Collidable> csCollidables = new HashSet<Collidable>();
-
-		// Add all the cells to the set
-		for (Int3D i3Point : getM_i3lCollisionPoints()) {
-			for (Collidable cCollidable : cgGrid.getPoints(i3Point)) {
-				csCollidables.add(cCollidable);
-			}
-		}
+		LinkedHashSet<Collidable> csCollidables = getCollidables(cgGrid);
 
 		int iCollisionMovement = getM_d3aMovements().size();
 		boolean bCollision = false;
@@ -236,7 +227,10 @@ public class cognateBC extends BC {
 					// this guard is here as we don't want the agents to acquire
 					// antigen until controller starts recording
 					if (SimulationEnvironment.steadyStateReached == true) {
-						acquireAntigenEdge(cCell);
+						// the edge and the Controller are shared
+						synchronized (Controller.getInstance()) {
+							acquireAntigenEdge(cCell);
+						}
 					}
 				}
 				break;
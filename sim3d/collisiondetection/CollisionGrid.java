@@ -1,13 +1,25 @@
 package sim3d.collisiondetection;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import sim.engine.SimState;
 import sim.engine.Steppable;
 import sim.util.Double3D;
 import sim.util.Int3D;
-import sim3d.util.Vector3DHelper;
 
 /**
  * Class to handle collisions in the system. Has a discretised grid, and for
@@ -23,23 +35,59 @@ public class CollisionGrid implements Steppable {
 	private static final long serialVersionUID = 1L;
 
 	/**
-	 * A 3D array of lists of Collidable objects containing the objects that
-	 * will interact with that grid space for that time step
+	 * Number of grid spaces. Each grid space is referred to by a flat index,
+	 * see getCell
 	 */
-	private List<Collidable>[][][] m_clGridSpaces;
+	private int m_iCells;
 
 	/**
-	 * Keeps track of when each grid space last was updated. Allows us to only
-	 * update the grid spaces that have cells in them at each time step.
+	 * The static layer: Collidables that never move (the stroma). Each grid
+	 * space has a chain of entries, m_aiStaticHead and m_aiStaticTail point
+	 * into m_acStatic and m_aiStaticNext links the entries together. The chains
+	 * persist between time steps, and are compacted by freezeStaticLayer once
+	 * the network is built.
 	 */
-	private int[][][] m_ia3GridUpdateStep;
+	private int[] m_aiStaticHead, m_aiStaticTail, m_aiStaticCount;
+	private int[] m_aiStaticNext = new int[16];
+	private Collidable[] m_acStatic = new Collidable[16];
+	private int m_iStaticEntries = 0;
 
 	/**
-	 * List of coordinates for grid spaces which have had collisions in this
-	 * time step. Allows us to avoid having to loop though the whole grid each
-	 * time step.
+	 * Set once the stromal network is built and the static layer has been
+	 * compacted, see freezeStaticLayer
 	 */
-	private List<Int3D> m_i3lCollisionPoints = new ArrayList<Int3D>();
+	private boolean m_bStaticFrozen = false;
+
+	/**
+	 * The dynamic layer: Collidables that register their paths each time step,
+	 * in the same form as the static layer. A grid space's chain is only valid
+	 * when its stamp matches the current step, so the layer is emptied at the
+	 * end of each step without touching the grid. m_aiDynamicRefs counts how
+	 * many of a Collidable's lines reach the grid space, so a line can be
+	 * taken off again without losing the grid spaces its other lines need.
+	 */
+	private int[] m_aiDynamicHead, m_aiDynamicTail, m_aiDynamicCount;
+	private int[] m_aiDynamicStamp;
+	private int[] m_aiDynamicNext = new int[16];
+	private int[] m_aiDynamicRefs = new int[16];
+	private Collidable[] m_acDynamic = new Collidable[16];
+	private int m_iDynamicEntries = 0;
+
+	/**
+	 * Queue of grid spaces which have had collisions in this time step. Allows
+	 * us to avoid having to loop though the whole grid each time step. The
+	 * bitset marks the grid spaces currently in the queue.
+	 */
+	private int[] m_aiQueue = new int[16];
+	private int m_iQueueHead = 0, m_iQueueTail = 0;
+	private long[] m_alQueued;
+
+	/**
+	 * The coordinates of each grid space, created the first time they're
+	 * needed so the collision points handed to the Collidables aren't
+	 * reallocated every step
+	 */
+	private Int3D[] m_ai3Cells;
 
 	/**
 	 * The size of the collision grid. Larger means less memory, but more
@@ -54,78 +102,373 @@ public class CollisionGrid implements Steppable {
 
 	/**
 	 * Keeps track of the current step (used in conjunction with
-	 * m_ia3GridUpdateStep)
+	 * m_aiDynamicStamp)
 	 */
 	private int m_iCurrentStep = 0;
 
+	/**
+	 * The stroma edges in a hierarchy, set once the network has been built
+	 */
+	private SegmentBVH m_bvhStaticSegments;
+
+	/**
+	 * Number of threads used to resolve collisions
+	 */
+	private int m_iThreads;
+
+	/**
+	 * Long-lived pool that resolves the collisions, null with one thread or
+	 * once shutdown has been called
+	 */
+	private transient ExecutorService m_esPool;
+
+	/**
+	 * One task per thread, each resolving a contiguous block of
+	 * m_clResolving
+	 */
+	private transient List<ResolveTask> m_lTasks;
+
+	/**
+	 * Set while the Collidables resolve their collisions independently, see
+	 * resolveCollisions
+	 */
+	private boolean m_bResolving = false;
+
+	/**
+	 * The distinct dynamic Collidables of this step in the order they first
+	 * registered, and the set used to find them
+	 */
+	private List<Collidable> m_clResolving = new ArrayList<Collidable>();
+	private Set<Collidable> m_csSeen = Collections
+			.newSetFromMap(new IdentityHashMap<Collidable, Boolean>());
+
+	/**
+	 * How many grid spaces the Collidable being resolved on this thread has
+	 * registered since its last handleCollisions
+	 */
+	private transient ThreadLocal<int[]> m_tlRegistrations;
+
 	/**
 	 * Adds a Collidable object to a grid location. Performs checks as to
 	 * whether potential collisions exist, and notifies the relevant agents if
-	 * so. Note: we are using a ArrayList without type because it is of the
-	 * Collidable abstract type
+	 * so.
 	 * 
 	 * @param x
 	 * @param y
 	 * @param z
 	 * @param cObject
 	 */
-	@SuppressWarnings({ "unchecked", "rawtypes" })
 	void addCollisionPotential(int x, int y, int z, Collidable cObject) {
-		// Check if we need to initialise the grid space
-		if (m_clGridSpaces[x][y][z] == null) {
-			m_clGridSpaces[x][y][z] = new ArrayList();
-		}
+		int iCell = getCell(x, y, z);
 
-		// If we haven't seen this grid space on the current time step
-		if (m_ia3GridUpdateStep[x][y][z] < m_iCurrentStep) {
-			m_ia3GridUpdateStep[x][y][z] = m_iCurrentStep;
-
-			int i = 0;
-
-			// Loop through each element in the grid space and remove non-static
-			// elements; Stroma is static and therefore the only thing we can
-			// collide with
-			// therefore don't need to worry about non-static objects...
-			while (i < m_clGridSpaces[x][y][z].size()) {
-				if (!m_clGridSpaces[x][y][z].get(i).isStatic()) {
-					m_clGridSpaces[x][y][z].remove(i);
-				} else {
-					i++;
-				}
+		if (m_bResolving) {
+			// nothing shared is written while resolving. The only collision
+			// points that matter are the stroma, and those are already on the
+			// grid
+			m_tlRegistrations.get()[0]++;
+			if (m_aiStaticCount[iCell] > 0) {
+				cObject.addCollisionPoint(getCellLocation(iCell));
 			}
+			return;
 		}
 
+		// If we haven't seen this grid space on the current time step
+		touch(iCell);
+
 		// add to the list of colliding coordinates
-		if (!getM_i3lCollisionPoints().contains(new Int3D(x, y, z))) {
-			getM_i3lCollisionPoints().add(new Int3D(x, y, z));
-		}
+		queue(iCell);
 
 		// check if it's already collided
-		if (m_clGridSpaces[x][y][z].contains(cObject)) {
+		int iEntry = findDynamic(iCell, cObject);
+		if (iEntry >= 0) {
+			m_aiDynamicRefs[iEntry]++;
+			return;
+		}
+		if (containsStatic(iCell, cObject)) {
 			return;
 		}
 
 		// Add the new object to the grid space
-		m_clGridSpaces[x][y][z].add(cObject);
+		if (cObject.isStatic()) {
+			m_iStaticEntries = append(m_aiStaticHead, m_aiStaticTail,
+					m_aiStaticCount, iCell, m_iStaticEntries, cObject, true);
+		} else {
+			m_iDynamicEntries = append(m_aiDynamicHead, m_aiDynamicTail,
+					m_aiDynamicCount, iCell, m_iDynamicEntries, cObject, false);
+		}
+
+		int iCount = m_aiStaticCount[iCell] + m_aiDynamicCount[iCell];
+		Int3D i3Cell = getCellLocation(iCell);
 
 		// If there is now exactly two Collidables in this grid space
-		if (m_clGridSpaces[x][y][z].size() == 2) {
+		if (iCount == 2) {
 
 			// There's a potential collision so tell the other cell, too
-			m_clGridSpaces[x][y][z].get(0)
-					.addCollisionPoint(new Int3D(x, y, z));
-			cObject.addCollisionPoint(new Int3D(x, y, z));
+			Collidable cFirst = (m_aiStaticCount[iCell] > 0) ? m_acStatic[m_aiStaticHead[iCell]]
+					: m_acDynamic[m_aiDynamicHead[iCell]];
+			cFirst.addCollisionPoint(i3Cell);
+			cObject.addCollisionPoint(i3Cell);
 		}
 
-		else if (m_clGridSpaces[x][y][z].size() > 2) {
+		else if (iCount > 2) {
 
 			// There's a potential collision so tell the cells, too
-			for (Collidable cCollidable : m_clGridSpaces[x][y][z]) {
-				cCollidable.addCollisionPoint(new Int3D(x, y, z));
+			for (int i = m_aiStaticHead[iCell]; i >= 0; i = m_aiStaticNext[i]) {
+				m_acStatic[i].addCollisionPoint(i3Cell);
+			}
+			for (int i = m_aiDynamicHead[iCell]; i >= 0; i = m_aiDynamicNext[i]) {
+				m_acDynamic[i].addCollisionPoint(i3Cell);
+			}
+		}
+	}
+
+	/**
+	 * Take one of a Collidable's lines off a grid location. The Collidable
+	 * stays in the grid space while any of its other lines still reach it.
+	 * Only the dynamic layer is changed, the stroma is never taken off.
+	 * 
+	 * While resolving the grid isn't written to, so the Collidable keeps the
+	 * grid space, which only costs a candidate that the narrow phase turns
+	 * down. It still counts as a change so the Collidable is prompted again.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param cObject
+	 */
+	void removeCollisionPotential(int x, int y, int z, Collidable cObject) {
+		int iCell = getCell(x, y, z);
+
+		if (m_bResolving) {
+			m_tlRegistrations.get()[0]++;
+			return;
+		}
+
+		if (m_aiDynamicStamp[iCell] != m_iCurrentStep + 1) {
+			return;
+		}
+
+		int iPrevious = -1;
+		for (int i = m_aiDynamicHead[iCell]; i >= 0; i = m_aiDynamicNext[i]) {
+			if (m_acDynamic[i] != cObject) {
+				iPrevious = i;
+				continue;
+			}
+
+			if (--m_aiDynamicRefs[i] > 0) {
+				return;
+			}
+
+			// the entry itself is left where it is, it's just unlinked
+			if (iPrevious < 0) {
+				m_aiDynamicHead[iCell] = m_aiDynamicNext[i];
+			} else {
+				m_aiDynamicNext[iPrevious] = m_aiDynamicNext[i];
+			}
+			if (m_aiDynamicTail[iCell] == i) {
+				m_aiDynamicTail[iCell] = iPrevious;
 			}
+			m_aiDynamicCount[iCell]--;
+			return;
+		}
+	}
+
+	/**
+	 * The first time a grid space is seen on a time step, empty its dynamic
+	 * chain and drop anything from the static chain that is no longer static
+	 * (stroma that has been deleted)
+	 */
+	private void touch(int iCell) {
+		if (m_aiDynamicStamp[iCell] == m_iCurrentStep + 1) {
+			return;
+		}
+		m_aiDynamicStamp[iCell] = m_iCurrentStep + 1;
+		m_aiDynamicHead[iCell] = -1;
+		m_aiDynamicTail[iCell] = -1;
+		m_aiDynamicCount[iCell] = 0;
+
+		// nothing is deleted once the network is built
+		if (m_bStaticFrozen) {
+			return;
+		}
+
+		int iPrevious = -1;
+		for (int i = m_aiStaticHead[iCell]; i >= 0; i = m_aiStaticNext[i]) {
+			if (m_acStatic[i].isStatic()) {
+				iPrevious = i;
+				continue;
+			}
+			if (iPrevious < 0) {
+				m_aiStaticHead[iCell] = m_aiStaticNext[i];
+			} else {
+				m_aiStaticNext[iPrevious] = m_aiStaticNext[i];
+			}
+			if (m_aiStaticTail[iCell] == i) {
+				m_aiStaticTail[iCell] = iPrevious;
+			}
+			m_aiStaticCount[iCell]--;
 		}
 	}
 
+	/**
+	 * Compact the static layer once the stromal network has been built. Stroma
+	 * deleted while building it is dropped, and each grid space's entries are
+	 * laid out next to each other in grid space order (compressed sparse row),
+	 * so the chains are walked in order through memory. From then on grid
+	 * spaces are no longer checked for deleted stroma when they're touched,
+	 * so this needs calling again if any stroma is deleted later.
+	 * 
+	 * The queue is emptied as well, only stroma can be in it at this point
+	 * and handleCollisions does nothing for stroma.
+	 */
+	public void freezeStaticLayer() {
+		int iCapacity = Math.max(16, m_iStaticEntries);
+		Collidable[] acStatic = new Collidable[iCapacity];
+		int[] aiNext = new int[iCapacity];
+		int iEntries = 0;
+
+		for (int iCell = 0; iCell < m_iCells; iCell++) {
+			int iStart = iEntries;
+
+			for (int i = m_aiStaticHead[iCell]; i >= 0; i = m_aiStaticNext[i]) {
+				if (m_acStatic[i].isStatic()) {
+					acStatic[iEntries] = m_acStatic[i];
+					aiNext[iEntries] = iEntries + 1;
+					iEntries++;
+				}
+			}
+
+			m_aiStaticCount[iCell] = iEntries - iStart;
+			if (iEntries > iStart) {
+				aiNext[iEntries - 1] = -1;
+				m_aiStaticHead[iCell] = iStart;
+				m_aiStaticTail[iCell] = iEntries - 1;
+				// made up front so resolveCollisions never writes to the grid
+				getCellLocation(iCell);
+			} else {
+				m_aiStaticHead[iCell] = -1;
+				m_aiStaticTail[iCell] = -1;
+			}
+		}
+
+		m_acStatic = acStatic;
+		m_aiStaticNext = aiNext;
+		m_iStaticEntries = iEntries;
+		m_bStaticFrozen = true;
+
+		while (m_iQueueHead < m_iQueueTail) {
+			dequeue();
+		}
+		m_iQueueHead = 0;
+		m_iQueueTail = 0;
+	}
+
+	/**
+	 * @return true if cObject is already in the grid space's static chain
+	 */
+	private boolean containsStatic(int iCell, Collidable cObject) {
+		for (int i = m_aiStaticHead[iCell]; i >= 0; i = m_aiStaticNext[i]) {
+			if (m_acStatic[i] == cObject) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the entry for cObject in the grid space's dynamic chain, or -1
+	 */
+	private int findDynamic(int iCell, Collidable cObject) {
+		if (m_aiDynamicStamp[iCell] == m_iCurrentStep + 1) {
+			for (int i = m_aiDynamicHead[iCell]; i >= 0; i = m_aiDynamicNext[i]) {
+				if (m_acDynamic[i] == cObject) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Add an entry to the end of a grid space's chain in one of the layers,
+	 * growing the entry arrays if needed
+	 * 
+	 * @return the new number of entries in the layer
+	 */
+	private int append(int[] aiHead, int[] aiTail, int[] aiCount, int iCell,
+			int iEntries, Collidable cObject, boolean bStatic) {
+		if (bStatic && iEntries == m_acStatic.length) {
+			m_acStatic = Arrays.copyOf(m_acStatic, iEntries * 2);
+			m_aiStaticNext = Arrays.copyOf(m_aiStaticNext, iEntries * 2);
+		} else if (!bStatic && iEntries == m_acDynamic.length) {
+			m_acDynamic = Arrays.copyOf(m_acDynamic, iEntries * 2);
+			m_aiDynamicNext = Arrays.copyOf(m_aiDynamicNext, iEntries * 2);
+			m_aiDynamicRefs = Arrays.copyOf(m_aiDynamicRefs, iEntries * 2);
+		}
+		Collidable[] acEntries = bStatic ? m_acStatic : m_acDynamic;
+		int[] aiNext = bStatic ? m_aiStaticNext : m_aiDynamicNext;
+
+		acEntries[iEntries] = cObject;
+		aiNext[iEntries] = -1;
+		if (!bStatic) {
+			m_aiDynamicRefs[iEntries] = 1;
+		}
+		if (aiTail[iCell] < 0) {
+			aiHead[iCell] = iEntries;
+		} else {
+			aiNext[aiTail[iCell]] = iEntries;
+		}
+		aiTail[iCell] = iEntries;
+		aiCount[iCell]++;
+
+		return iEntries + 1;
+	}
+
+	/**
+	 * Add a grid space to the end of the queue unless it's already waiting
+	 */
+	private void queue(int iCell) {
+		long lBit = 1L << (iCell & 63);
+		if ((m_alQueued[iCell >> 6] & lBit) != 0) {
+			return;
+		}
+		m_alQueued[iCell >> 6] |= lBit;
+
+		if (m_iQueueTail == m_aiQueue.length) {
+			m_aiQueue = Arrays.copyOf(m_aiQueue, m_aiQueue.length * 2);
+		}
+		m_aiQueue[m_iQueueTail++] = iCell;
+	}
+
+	/**
+	 * Take the grid space at the front of the queue
+	 */
+	private int dequeue() {
+		int iCell = m_aiQueue[m_iQueueHead++];
+		m_alQueued[iCell >> 6] &= ~(1L << (iCell & 63));
+		return iCell;
+	}
+
+	/**
+	 * Flat index of a grid space
+	 */
+	private int getCell(int x, int y, int z) {
+		return (x * m_iHeight + y) * m_iDepth + z;
+	}
+
+	/**
+	 * The coordinates of a grid space from its flat index
+	 */
+	private Int3D getCellLocation(int iCell) {
+		Int3D i3Cell = m_ai3Cells[iCell];
+		if (i3Cell == null) {
+			i3Cell = new Int3D(iCell / (m_iHeight * m_iDepth), (iCell / m_iDepth)
+					% m_iHeight, iCell % m_iDepth);
+			m_ai3Cells[iCell] = i3Cell;
+		}
+		return i3Cell;
+	}
+
 	/**
 	 * @param iWidth
 	 *            Width of the grid
@@ -136,17 +479,245 @@ public class CollisionGrid implements Steppable {
 	 * @param dDiscretisation
 	 *            Size of each grid space
 	 */
-	@SuppressWarnings("unchecked")
 	public CollisionGrid(int iWidth, int iHeight, int iDepth,
 			double dDiscretisation) {
+		this(iWidth, iHeight, iDepth, dDiscretisation, 1);
+	}
+
+	/**
+	 * @param iWidth
+	 *            Width of the grid
+	 * @param iHeight
+	 *            Height of the grid
+	 * @param iDepth
+	 *            Depth of the grid
+	 * @param dDiscretisation
+	 *            Size of each grid space
+	 * @param numThreads
+	 *            Number of threads to resolve collisions with
+	 */
+	public CollisionGrid(int iWidth, int iHeight, int iDepth,
+			double dDiscretisation, int numThreads) {
 		m_dDiscretisation = dDiscretisation;// if set to 4 then the collision
 											// grid for a cell would be 4*4*4
 		m_iWidth = (int) Math.ceil(iWidth / dDiscretisation);
 		m_iHeight = (int) Math.ceil(iHeight / dDiscretisation);
 		m_iDepth = (int) Math.ceil(iDepth / dDiscretisation);
+		m_iCells = m_iWidth * m_iHeight * m_iDepth;
+
+		m_aiStaticHead = new int[m_iCells];
+		m_aiStaticTail = new int[m_iCells];
+		m_aiStaticCount = new int[m_iCells];
+		m_aiDynamicHead = new int[m_iCells];
+		m_aiDynamicTail = new int[m_iCells];
+		m_aiDynamicCount = new int[m_iCells];
+		m_aiDynamicStamp = new int[m_iCells];
+		Arrays.fill(m_aiStaticHead, -1);
+		Arrays.fill(m_aiStaticTail, -1);
+		Arrays.fill(m_aiDynamicHead, -1);
+		Arrays.fill(m_aiDynamicTail, -1);
+
+		m_alQueued = new long[(m_iCells + 63) / 64];
+		m_ai3Cells = new Int3D[m_iCells];
+
+		m_iThreads = Math.max(1, numThreads);
+		initialiseWorkers();
+	}
+
+	/**
+	 * Build the members that aren't serialised: the tasks, the registration
+	 * counts and, with more than one thread, the pool
+	 */
+	private void initialiseWorkers() {
+		m_lTasks = new ArrayList<ResolveTask>();
+		for (int i = 0; i < m_iThreads; i++) {
+			m_lTasks.add(new ResolveTask());
+		}
+
+		m_tlRegistrations = new ThreadLocal<int[]>() {
+			protected int[] initialValue() {
+				return new int[1];
+			}
+		};
+
+		if (m_iThreads > 1) {
+			// daemon threads so an idle pool never keeps the JVM alive
+			m_esPool = Executors.newFixedThreadPool(m_iThreads,
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "collisions");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		initialiseWorkers();
+	}
+
+	/**
+	 * Choose the size of the grid spaces from how big the lymphocytes are and
+	 * how far they move each step. A grid space spans a cell's diameter plus
+	 * half a step, so a step's path covers at most three grid spaces along
+	 * each axis. Much smaller and the paths are spread over so many grid
+	 * spaces that registering them dominates, much larger and each grid
+	 * space holds more stroma than the cells passing through can touch.
+	 * 
+	 * @param dCollisionRadius
+	 *            The radius of a lymphocyte
+	 * @param dTravelDistance
+	 *            How far a lymphocyte moves in a step
+	 * @return the size of each grid space
+	 */
+	public static double chooseDiscretisation(double dCollisionRadius,
+			double dTravelDistance) {
+		return 2 * dCollisionRadius + dTravelDistance / 2;
+	}
+
+	/**
+	 * @return the size of each grid space
+	 */
+	public double getDiscretisation() {
+		return m_dDiscretisation;
+	}
+
+	/**
+	 * How full the grid spaces are, to help choose the discretisation for a
+	 * follicle. The dynamic layer is only counted for the current step, so
+	 * it's empty once the grid has stepped.
+	 */
+	public static class FillStatistics {
+
+		private double m_dDiscretisation;
+		private int m_iGridSpaces;
+		private int m_iStaticSpaces, m_iStaticEntries, m_iMaxStatic;
+		private int m_iDynamicSpaces, m_iDynamicEntries, m_iMaxDynamic;
+
+		/**
+		 * @return the size of each grid space
+		 */
+		public double getDiscretisation() {
+			return m_dDiscretisation;
+		}
+
+		/**
+		 * @return the number of grid spaces
+		 */
+		public int getGridSpaces() {
+			return m_iGridSpaces;
+		}
+
+		/**
+		 * @return the number of grid spaces holding any stroma
+		 */
+		public int getStaticSpaces() {
+			return m_iStaticSpaces;
+		}
 
-		m_clGridSpaces = new ArrayList[m_iWidth][m_iHeight][m_iDepth];
-		m_ia3GridUpdateStep = new int[m_iWidth][m_iHeight][m_iDepth];
+		/**
+		 * @return the number of stroma entries over all grid spaces
+		 */
+		public int getStaticEntries() {
+			return m_iStaticEntries;
+		}
+
+		/**
+		 * @return the most stroma in one grid space
+		 */
+		public int getMaxStatic() {
+			return m_iMaxStatic;
+		}
+
+		/**
+		 * @return the number of grid spaces registered this step
+		 */
+		public int getDynamicSpaces() {
+			return m_iDynamicSpaces;
+		}
+
+		/**
+		 * @return the number of entries registered this step
+		 */
+		public int getDynamicEntries() {
+			return m_iDynamicEntries;
+		}
+
+		/**
+		 * @return the most Collidables registered in one grid space this step
+		 */
+		public int getMaxDynamic() {
+			return m_iMaxDynamic;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("discretisation %.3f, %d grid spaces, "
+					+ "stroma in %d (%.2f each, at most %d), "
+					+ "this step %d (%.2f each, at most %d)",
+					m_dDiscretisation, m_iGridSpaces, m_iStaticSpaces,
+					(double) m_iStaticEntries / Math.max(1, m_iStaticSpaces),
+					m_iMaxStatic, m_iDynamicSpaces, (double) m_iDynamicEntries
+							/ Math.max(1, m_iDynamicSpaces), m_iMaxDynamic);
+		}
+	}
+
+	/**
+	 * @return how full the grid spaces are
+	 */
+	public FillStatistics getFillStatistics() {
+		FillStatistics fsStats = new FillStatistics();
+		fsStats.m_dDiscretisation = m_dDiscretisation;
+		fsStats.m_iGridSpaces = m_iCells;
+
+		for (int iCell = 0; iCell < m_iCells; iCell++) {
+			int iStatic = m_aiStaticCount[iCell];
+			if (iStatic > 0) {
+				fsStats.m_iStaticSpaces++;
+				fsStats.m_iStaticEntries += iStatic;
+				fsStats.m_iMaxStatic = Math.max(fsStats.m_iMaxStatic, iStatic);
+			}
+
+			int iDynamic = (m_aiDynamicStamp[iCell] == m_iCurrentStep + 1) ? m_aiDynamicCount[iCell]
+					: 0;
+			if (iDynamic > 0) {
+				fsStats.m_iDynamicSpaces++;
+				fsStats.m_iDynamicEntries += iDynamic;
+				fsStats.m_iMaxDynamic = Math.max(fsStats.m_iMaxDynamic,
+						iDynamic);
+			}
+		}
+		return fsStats;
+	}
+
+	/**
+	 * @return the hierarchy of static segments, or null if there isn't one
+	 */
+	public SegmentBVH getStaticSegments() {
+		return m_bvhStaticSegments;
+	}
+
+	/**
+	 * Set the hierarchy the lymphocytes use to find the static segments near
+	 * their path. It must hold every static segment on the grid
+	 */
+	public void setStaticSegments(SegmentBVH bvhStaticSegments) {
+		m_bvhStaticSegments = bvhStaticSegments;
+	}
+
+	/**
+	 * Stop the worker pool. Must be called once the grid is no longer used;
+	 * if it is stepped again the collisions are resolved on the calling
+	 * thread
+	 */
+	public void shutdown() {
+		if (m_esPool != null) {
+			m_esPool.shutdown();
+			m_esPool = null;
+		}
 	}
 
 	/**
@@ -157,18 +728,43 @@ public class CollisionGrid implements Steppable {
 	 * 
 	 * @param i3Loc
 	 *            Point in grid to query
-	 * @return The Collidables registered at that point
+	 * @return A new list of the Collidables registered at that point
 	 */
 	public List<Collidable> getPoints(Int3D i3Loc) {
-		return m_clGridSpaces[i3Loc.x][i3Loc.y][i3Loc.z];
+		List<Collidable> clPoints = new ArrayList<Collidable>();
+		getPoints(i3Loc, clPoints);
+		return clPoints;
+	}
+
+	/**
+	 * Add the collidables at a specified point to a collection, static ones
+	 * first, without allocating
+	 * 
+	 * @param i3Loc
+	 *            Point in grid to query
+	 * @param ccTarget
+	 *            The collection to add them to
+	 */
+	public void getPoints(Int3D i3Loc, Collection<Collidable> ccTarget) {
+		int iCell = getCell(i3Loc.x, i3Loc.y, i3Loc.z);
+
+		for (int i = m_aiStaticHead[iCell]; i >= 0; i = m_aiStaticNext[i]) {
+			ccTarget.add(m_acStatic[i]);
+		}
+		if (m_aiDynamicStamp[iCell] == m_iCurrentStep + 1) {
+			for (int i = m_aiDynamicHead[iCell]; i >= 0; i = m_aiDynamicNext[i]) {
+				ccTarget.add(m_acDynamic[i]);
+			}
+		}
 	}
 
 	/**
 	 * Performs a collision detection test between a grid space and a sphere
 	 * 
-	 * calculate the euclidean distance between the center of the box and the
-	 * sphere squared in each axis The sphere intersects the gridspace if the
-	 * summed distance is less than the radius of the square
+	 * For each axis the sphere's centre is outside the grid space on, add
+	 * the squared distance to the nearest face of the grid space. The sphere
+	 * intersects the grid space if the sum, the squared distance from the
+	 * centre to the grid space, is less than the squared radius
 	 * 
 	 * 
 	 * @param dSphereX
@@ -190,37 +786,97 @@ public class CollisionGrid implements Steppable {
 	public boolean BoxSphereIntersect(double dSphereX, double dSphereY,
 			double dSphereZ, double dRadiusSquare, int iBoxX, int iBoxY,
 			int iBoxZ) {
-		double dSum = 0;
+		return boxDistanceSquared(dSphereX, dSphereY, dSphereZ, iBoxX, iBoxY,
+				iBoxZ) < dRadiusSquare;
+	}
 
-		// Basically, we do Pythagoras in 3D, but only if for each dimension,
-		// we're outside the box (otherwise distance will be 0)
-		if (dSphereX < iBoxX)// if box further along the x-axis than sphere
-		{
-			dSum += (dSphereX - iBoxX) * (dSphereX - iBoxX); // add squared
-																// distance to
-																// dSum
+	/**
+	 * @return the squared distance from dPos to the grid space iBox to iBox + 1
+	 *         along one axis, 0 if it's inside
+	 */
+	private static double axisDistanceSquared(double dPos, int iBox) {
+		double dOutside = Math.max(iBox - dPos, 0) + Math.max(dPos - (iBox + 1), 0);
+		return dOutside * dOutside;
+	}
+
+	/**
+	 * The squared distance between the segment p to p + d and the grid space
+	 * with its lowest corner at iBoxX, iBoxY, iBoxZ, all in grid spaces.
+	 * 
+	 * Along the segment the squared distance is convex, and its slope is
+	 * linear except where the segment crosses the plane of a face. So the
+	 * smallest distance is at an end, or where the slope is zero, which is
+	 * found exactly by narrowing down to the two crossings either side of it
+	 * and solving the straight line between them.
+	 */
+	static double segmentBoxDistanceSquared(double dPX, double dPY,
+			double dPZ, double dDX, double dDY, double dDZ, int iBoxX,
+			int iBoxY, int iBoxZ) {
+		double dLowSlope = slope(dPX, dPY, dPZ, dDX, dDY, dDZ, iBoxX, iBoxY,
+				iBoxZ, 0);
+		if (dLowSlope >= 0) {
+			return boxDistanceSquared(dPX, dPY, dPZ, iBoxX, iBoxY, iBoxZ);
+		}
+		double dHighSlope = slope(dPX, dPY, dPZ, dDX, dDY, dDZ, iBoxX, iBoxY,
+				iBoxZ, 1);
+		if (dHighSlope <= 0) {
+			return boxDistanceSquared(dPX + dDX, dPY + dDY, dPZ + dDZ, iBoxX,
+					iBoxY, iBoxZ);
 		}
 
-		// if sphere further along the x-axis than the width of box (add 1
-		// because the width of the box is 1
+		// the slope goes from negative to positive, narrow down to where
+		double dLow = 0, dHigh = 1;
+		for (int iFace = 0; iFace < 6; iFace++) {
+			int iAxis = iFace >> 1;
+			double dP = (iAxis == 0) ? dPX : (iAxis == 1) ? dPY : dPZ;
+			double dD = (iAxis == 0) ? dDX : (iAxis == 1) ? dDY : dDZ;
+			int iBox = (iAxis == 0) ? iBoxX : (iAxis == 1) ? iBoxY : iBoxZ;
+			if (dD == 0) {
+				continue;
+			}
 
-		else if (dSphereX > iBoxX + 1) {
-			dSum += (dSphereX - iBoxX + 1) * (dSphereX - iBoxX + 1);
+			double dT = (iBox + (iFace & 1) - dP) / dD;
+			if (dT > dLow && dT < dHigh) {
+				double dSlope = slope(dPX, dPY, dPZ, dDX, dDY, dDZ, iBoxX,
+						iBoxY, iBoxZ, dT);
+				if (dSlope < 0) {
+					dLow = dT;
+					dLowSlope = dSlope;
+				} else {
+					dHigh = dT;
+					dHighSlope = dSlope;
+				}
+			}
 		}
 
-		if (dSphereY < iBoxY) {
-			dSum += (dSphereY - iBoxY) * (dSphereY - iBoxY);
-		} else if (dSphereY > iBoxY + 1) {
-			dSum += (dSphereY - iBoxY + 1) * (dSphereY - iBoxY + 1);
-		}
+		double dT = dLow - dLowSlope * (dHigh - dLow)
+				/ (dHighSlope - dLowSlope);
+		return boxDistanceSquared(dPX + dT * dDX, dPY + dT * dDY, dPZ + dT
+				* dDZ, iBoxX, iBoxY, iBoxZ);
+	}
 
-		if (dSphereZ < iBoxZ) {
-			dSum += (dSphereZ - iBoxZ) * (dSphereZ - iBoxZ);
-		} else if (dSphereZ > iBoxZ + 1) {
-			dSum += (dSphereZ - iBoxZ + 1) * (dSphereZ - iBoxZ + 1);
-		}
+	/**
+	 * Half the slope of the squared distance from p + t d to the grid space
+	 */
+	private static double slope(double dPX, double dPY, double dPZ,
+			double dDX, double dDY, double dDZ, int iBoxX, int iBoxY,
+			int iBoxZ, double dT) {
+		return dDX * outside(dPX + dT * dDX, iBoxX) + dDY
+				* outside(dPY + dT * dDY, iBoxY) + dDZ
+				* outside(dPZ + dT * dDZ, iBoxZ);
+	}
+
+	/**
+	 * @return how far dPos is outside iBox to iBox + 1, negative below it
+	 */
+	private static double outside(double dPos, int iBox) {
+		return Math.min(dPos - iBox, 0) + Math.max(dPos - (iBox + 1), 0);
+	}
 
-		return dSum * dSum < dRadiusSquare;
+	private static double boxDistanceSquared(double dX, double dY,
+			double dZ, int iBoxX, int iBoxY, int iBoxZ) {
+		return axisDistanceSquared(dX, iBoxX) + axisDistanceSquared(dY, iBoxY)
+				+ axisDistanceSquared(dZ, iBoxZ);
 	}
 
 	/**
@@ -278,7 +934,13 @@ public class CollisionGrid implements Steppable {
 	}
 
 	/**
-	 * Add a line (cylinder) to the collision grid
+	 * Add a line (cylinder) to the collision grid. Every grid space within
+	 * dRadius of the line is added, and nothing else.
+	 * 
+	 * The line is walked one slab of grid spaces at a time along x. Within a
+	 * slab only the part of the line that can reach the slab is looked at,
+	 * which narrows down the rows along y, and again the columns along z, so
+	 * only the grid spaces around the line are tested.
 	 * 
 	 * @param cObject
 	 *            The Collidable to add to the grid
@@ -291,154 +953,332 @@ public class CollisionGrid implements Steppable {
 	 */
 	public void addLineToGrid(Collidable cObject, Double3D d3Point1,
 			Double3D d3Point2, double dRadius) {
+		rasteriseLine(cObject, d3Point1.x, d3Point1.y, d3Point1.z, d3Point2.x,
+				d3Point2.y, d3Point2.z, dRadius, true);
+	}
+
+	/**
+	 * Add a line (cylinder) to the collision grid, as addLineToGrid but
+	 * without needing the end points as Double3Ds
+	 */
+	public void addLineToGrid(Collidable cObject, double dX1, double dY1,
+			double dZ1, double dX2, double dY2, double dZ2, double dRadius) {
+		rasteriseLine(cObject, dX1, dY1, dZ1, dX2, dY2, dZ2, dRadius, true);
+	}
+
+	/**
+	 * Take a line that was added with addLineToGrid off the collision grid
+	 * again. The end points and radius must be exactly those it was added
+	 * with, so the same grid spaces are visited. Grid spaces the Collidable's
+	 * other lines reach are kept.
+	 */
+	public void removeLineFromGrid(Collidable cObject, double dX1, double dY1,
+			double dZ1, double dX2, double dY2, double dZ2, double dRadius) {
+		// nothing would be taken off, see removeCollisionPotential
+		if (m_bResolving) {
+			m_tlRegistrations.get()[0]++;
+			return;
+		}
+
+		rasteriseLine(cObject, dX1, dY1, dZ1, dX2, dY2, dZ2, dRadius, false);
+	}
+
+	/**
+	 * Visit every grid space within dRadius of the line, adding cObject to it
+	 * or taking it off
+	 */
+	private void rasteriseLine(Collidable cObject, double dX1, double dY1,
+			double dZ1, double dX2, double dY2, double dZ2, double dRadius,
+			boolean bAdd) {
 		// Convert the coordinates to our discretised coordinates
 		// eg if point was (10,10,5) and discretisation was 3
-		// then new values would be (2,2,1) cos we divide and floor
-		// so we shrink the grid by a factor of 3
-		Double3D d3DiscretisedPoint1 = new Double3D(d3Point1.x
-				/ m_dDiscretisation, d3Point1.y / m_dDiscretisation, d3Point1.z
-				/ m_dDiscretisation);
-		Double3D d3DiscretisedPoint2 = new Double3D(d3Point2.x
-				/ m_dDiscretisation, d3Point2.y / m_dDiscretisation, d3Point2.z
-				/ m_dDiscretisation);
+		// then new values would be (3.3,3.3,1.7) so we shrink the grid by a
+		// factor of 3
+		double dPX = dX1 / m_dDiscretisation;
+		double dPY = dY1 / m_dDiscretisation;
+		double dPZ = dZ1 / m_dDiscretisation;
+		double dDX = dX2 / m_dDiscretisation - dPX;
+		double dDY = dY2 / m_dDiscretisation - dPY;
+		double dDZ = dZ2 / m_dDiscretisation - dPZ;
 
 		double dDiscretisedRadius = dRadius / m_dDiscretisation;
+		double dRadiusSquare = dDiscretisedRadius * dDiscretisedRadius;
+		double dLengthSquare = dDX * dDX + dDY * dDY + dDZ * dDZ;
 
-		// this will be used a lot - pre compute for speed
-		// Add 0.866 as this is approximately the radius of a cube
-		// this won't detect collisions in the corners of the grid spaces,
-		// but it's much more efficient!
-		double dRadiusSquare = (0.866 + dDiscretisedRadius)
-				* (0.5 + dDiscretisedRadius);
+		int iXLow = Math.max(0, (int) Math.floor(Math.min(dPX, dPX + dDX)
+				- dDiscretisedRadius));
+		int iXHigh = Math.min(m_iWidth - 1, (int) Math.floor(Math.max(dPX,
+				dPX + dDX) + dDiscretisedRadius));
 
-		// Calculate the grid space coordinate bounds for each dimension
-		int iXLow, iXHigh, iYLow, iYHigh, iZLow, iZHigh;
-
-		// take the smallest x as lower bound, highest x as upper bound in each
-		// axis
-		// this is the space in which we will iterate to see in which points the
-		// cylinder is
-		// interacting
-		if (d3DiscretisedPoint1.x < d3DiscretisedPoint2.x) {
-			iXLow = (int) Math.max(0,
-					(d3DiscretisedPoint1.x - dDiscretisedRadius));
-			iXHigh = (int) Math.min(m_iWidth - 1,
-					(d3DiscretisedPoint2.x + dDiscretisedRadius));
-		} else {
-			iXLow = (int) Math.max(0,
-					(d3DiscretisedPoint2.x - dDiscretisedRadius));
-			iXHigh = (int) Math.min(m_iWidth - 1,
-					(d3DiscretisedPoint1.x + dDiscretisedRadius));
-		}
+		for (int x = iXLow; x <= iXHigh; x++) {
+			// the part of the line that can reach this slab
+			double dXLow = x - dDiscretisedRadius, dXHigh = x + 1
+					+ dDiscretisedRadius;
+			double dXT0 = Math.max(0, enter(dPX, dDX, dXLow, dXHigh));
+			double dXT1 = Math.min(1, leave(dPX, dDX, dXLow, dXHigh));
+			if (dXT0 > dXT1) {
+				continue;
+			}
 
-		if (d3DiscretisedPoint1.y < d3DiscretisedPoint2.y) {
-			iYLow = (int) Math.max(0,
-					(d3DiscretisedPoint1.y - dDiscretisedRadius));
-			iYHigh = (int) Math.min(m_iHeight - 1,
-					(d3DiscretisedPoint2.y + dDiscretisedRadius));
-		} else {
-			iYLow = (int) Math.max(0,
-					(d3DiscretisedPoint2.y - dDiscretisedRadius));
-			iYHigh = (int) Math.min(m_iHeight - 1,
-					(d3DiscretisedPoint1.y + dDiscretisedRadius));
-		}
+			int iYLow = Math.max(0, (int) Math.floor(Math.min(dPY + dXT0
+					* dDY, dPY + dXT1 * dDY)
+					- dDiscretisedRadius));
+			int iYHigh = Math.min(m_iHeight - 1, (int) Math.floor(Math.max(
+					dPY + dXT0 * dDY, dPY + dXT1 * dDY)
+					+ dDiscretisedRadius));
 
-		if (d3DiscretisedPoint1.z < d3DiscretisedPoint2.z) {
-			iZLow = (int) Math.max(0,
-					(d3DiscretisedPoint1.z - dDiscretisedRadius));
-			iZHigh = (int) Math.min(m_iDepth - 1,
-					(d3DiscretisedPoint2.z + dDiscretisedRadius));
-		} else {
-			iZLow = (int) Math.max(0,
-					(d3DiscretisedPoint2.z - dDiscretisedRadius));
-			iZHigh = (int) Math.min(m_iDepth - 1,
-					(d3DiscretisedPoint1.z + dDiscretisedRadius));
-		}
-
-		for (int x = iXLow; x <= iXHigh; x++) {
 			for (int y = iYLow; y <= iYHigh; y++) {
+				// and the part of that which can reach this row
+				double dYLow = y - dDiscretisedRadius, dYHigh = y + 1
+						+ dDiscretisedRadius;
+				double dT0 = Math.max(dXT0, enter(dPY, dDY, dYLow, dYHigh));
+				double dT1 = Math.min(dXT1, leave(dPY, dDY, dYLow, dYHigh));
+				if (dT0 > dT1) {
+					continue;
+				}
+
+				int iZLow = Math.max(0, (int) Math.floor(Math.min(dPZ + dT0
+						* dDZ, dPZ + dT1 * dDZ)
+						- dDiscretisedRadius));
+				int iZHigh = Math.min(m_iDepth - 1, (int) Math.floor(Math.max(
+						dPZ + dT0 * dDZ, dPZ + dT1 * dDZ)
+						+ dDiscretisedRadius));
+
 				for (int z = iZLow; z <= iZHigh; z++) {
-					// Real-Time Collision Detection, Christer Ericson
-					// https://q3k.org/gentoomen/Game%20Development/Programming/Real-Time%20Collision%20Detection.pdf
-					// p130
-
-					// A (point1) to B (point2)
-					Double3D ab = d3DiscretisedPoint2
-							.subtract(d3DiscretisedPoint1);
-
-					// add 0.5 so we're using the centre of the square
-					// A to C (GridSpace)
-					Double3D ac = new Double3D(x + 0.5 - d3DiscretisedPoint1.x,
-							y + 0.5 - d3DiscretisedPoint1.y, z + 0.5
-									- d3DiscretisedPoint1.z);
-
-					double length = 0;
-					double e = Vector3DHelper.dotProduct(ac, ab);
-
-					// If the grid space is the opposite direction of the line
-					// we just use the distance of AC
-					if (e <= 0) {
-						length = Vector3DHelper.dotProduct(ac, ac);
-					} else {
-						double f = Vector3DHelper.dotProduct(ab, ab);
-
-						// the opposite of the previous check - if the grid
-						// space is past the line we just use the distance of BC
-						if (e >= f) {
-							Double3D bc = new Double3D(x + 0.5
-									- d3DiscretisedPoint2.x, y + 0.5
-									- d3DiscretisedPoint2.y, z + 0.5
-									- d3DiscretisedPoint2.z);
-
-							length = Vector3DHelper.dotProduct(bc, bc);
-						} else {
-							// explained in the linked book!
-							length = Vector3DHelper.dotProduct(ac, ac) - e * e
-									/ f;
-						}
+					// If the distance is within the radius then add to the
+					// grid
+					if (!segmentTouchesBox(dPX, dPY, dPZ, dDX, dDY, dDZ,
+							dLengthSquare, dRadiusSquare, x, y, z)) {
+						continue;
 					}
-
-					// If the length is within the radius then add to the grid
-					if (length <= dRadiusSquare) {
+					if (bAdd) {
 						addCollisionPotential(x, y, z, cObject);
+					} else {
+						removeCollisionPotential(x, y, z, cObject);
 					}
 				}
 			}
 		}
 	}
 
+	/**
+	 * Whether the segment p to p + d comes within the radius of the grid
+	 * space at x, y, z. Most grid spaces are settled from the point on the
+	 * segment closest to the centre of the grid space, q, before falling
+	 * back on the exact distance:
+	 * 
+	 * - if q is within the radius of the grid space, so is the segment
+	 * 
+	 * - the whole segment is on the far side of the plane through q facing
+	 * the centre, so if the grid space is further than the radius from that
+	 * plane, so is the segment
+	 * 
+	 * Real-Time Collision Detection, Christer Ericson
+	 * https://q3k.org/gentoomen/Game%20Development/Programming/Real-Time%20Collision%20Detection.pdf
+	 * p130
+	 */
+	static boolean segmentTouchesBox(double dPX, double dPY, double dPZ,
+			double dDX, double dDY, double dDZ, double dLengthSquare,
+			double dRadiusSquare, int x, int y, int z) {
+		// A to C (the centre of the grid space)
+		double dACX = x + 0.5 - dPX, dACY = y + 0.5 - dPY, dACZ = z + 0.5 - dPZ;
+		double dT = (dLengthSquare > 0) ? Math.max(0, Math.min(1, (dACX
+				* dDX + dACY * dDY + dACZ * dDZ)
+				/ dLengthSquare)) : 0;
+
+		// from the centre to q
+		double dVX = dT * dDX - dACX, dVY = dT * dDY - dACY, dVZ = dT * dDZ
+				- dACZ;
+		double dV = dVX * dVX + dVY * dVY + dVZ * dVZ;
+
+		// the grid space holds the ball of radius 0.5 round its centre
+		double dReach = Math.sqrt(dRadiusSquare) + 0.5;
+		if (dV <= dReach * dReach) {
+			return true;
+		}
+
+		if (boxDistanceSquared(dVX + x + 0.5, dVY + y + 0.5, dVZ + z + 0.5,
+				x, y, z) <= dRadiusSquare) {
+			return true;
+		}
+
+		// the grid space reaches half the sum of the components of v (over
+		// its length) towards the plane
+		double dGap = dV - 0.5 * (Math.abs(dVX) + Math.abs(dVY) + Math
+				.abs(dVZ));
+		if (dGap > 0 && dGap * dGap > dRadiusSquare * dV) {
+			return false;
+		}
+
+		return segmentBoxDistanceSquared(dPX, dPY, dPZ, dDX, dDY, dDZ, x, y,
+				z) <= dRadiusSquare;
+	}
+
+	/**
+	 * The t at which p + t d comes between dLow and dHigh. If the line runs
+	 * alongside the slab this is -infinity when it's inside and +infinity
+	 * when it's not
+	 */
+	private static double enter(double dP, double dD, double dLow,
+			double dHigh) {
+		if (dD == 0) {
+			return (dP >= dLow && dP <= dHigh) ? Double.NEGATIVE_INFINITY
+					: Double.POSITIVE_INFINITY;
+		}
+		return ((dD > 0) ? dLow - dP : dHigh - dP) / dD;
+	}
+
+	/**
+	 * The t at which p + t d leaves the slab between dLow and dHigh, see
+	 * enter
+	 */
+	private static double leave(double dP, double dD, double dLow,
+			double dHigh) {
+		if (dD == 0) {
+			return (dP >= dLow && dP <= dHigh) ? Double.POSITIVE_INFINITY
+					: Double.NEGATIVE_INFINITY;
+		}
+		return ((dD > 0) ? dHigh - dP : dLow - dP) / dD;
+	}
+
 	/**
 	 * Prompts the cells to handle the collisions. Repeats until no more
 	 * collisions have been registered.
 	 */
 	@Override
 	public void step(SimState state) {
+		if (m_bStaticFrozen) {
+			resolveCollisions();
+		}
+
 		// while we still have points to check
-		while (getM_i3lCollisionPoints().size() > 0) {
-			Int3D i3CollisionPoint = getM_i3lCollisionPoints().get(0);
-			getM_i3lCollisionPoints().remove(0);
+		while (m_iQueueHead < m_iQueueTail) {
+			int iCell = dequeue();
 
-			// List through all the points at this location
+			// Only the Collidables in the grid space now are prompted, anything
+			// that registers here while we do this queues it up again.
 			// Hopefully most will just immediately return!
-			List<Collidable> cPoints = getPoints(i3CollisionPoint);
+			int iMax = m_aiStaticCount[iCell];
+			for (int i = m_aiStaticHead[iCell], j = 0; j < iMax; i = m_aiStaticNext[i], j++) {
+				m_acStatic[i].handleCollisions(this);
+			}
 
-			int iMax = cPoints.size();
-			for (int i = 0; i < iMax; i++) {
+			iMax = (m_aiDynamicStamp[iCell] == m_iCurrentStep + 1) ? m_aiDynamicCount[iCell]
+					: 0;
+			for (int i = m_aiDynamicHead[iCell], j = 0; j < iMax; i = m_aiDynamicNext[i], j++) {
 				// Note: this command can get this location reregistered! (in
 				// fact it's likely if a collision occurs)
-				cPoints.get(i).handleCollisions(this);
+				m_acDynamic[i].handleCollisions(this);
 			}
 		}
 
-		getM_i3lCollisionPoints().clear();
+		m_iQueueHead = 0;
+		m_iQueueTail = 0;
+
+		// let go of this step's cells, the stamps take care of the grid
+		Arrays.fill(m_acDynamic, 0, m_iDynamicEntries, null);
+		m_iDynamicEntries = 0;
 		m_iCurrentStep++;
 	}
 
+	/**
+	 * Once the stroma is frozen, the only collisions that change anything are
+	 * between a lymphocyte and the stroma, so each lymphocyte can resolve its
+	 * own collisions without waiting for the queue. Each Collidable is
+	 * prompted to handle its collisions until it stops registering new grid
+	 * spaces, which is when the queue would have stopped prompting it.
+	 * 
+	 * While this runs the grid is read only, so the Collidables are shared
+	 * out across the pool in contiguous blocks. The results don't depend on
+	 * the number of threads as no Collidable sees another's changes.
+	 */
+	private void resolveCollisions() {
+		m_clResolving.clear();
+		m_csSeen.clear();
+		for (int i = 0; i < m_iDynamicEntries; i++) {
+			if (m_csSeen.add(m_acDynamic[i])) {
+				m_clResolving.add(m_acDynamic[i]);
+			}
+		}
+
+		int iCount = m_clResolving.size();
+		for (int i = 0; i < m_iThreads; i++) {
+			m_lTasks.get(i).update(i * iCount / m_iThreads, (i + 1) * iCount
+					/ m_iThreads);
+		}
+
+		m_bResolving = true;
+		try {
+			if (m_esPool == null) {
+				for (ResolveTask rtTask : m_lTasks) {
+					rtTask.call();
+				}
+			} else {
+				// blocks until every block has been resolved
+				for (Future<Object> fResult : m_esPool.invokeAll(m_lTasks)) {
+					fResult.get();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			m_bResolving = false;
+		}
+
+		// nothing is left for the queue to do
+		while (m_iQueueHead < m_iQueueTail) {
+			dequeue();
+		}
+	}
+
+	class ResolveTask implements Callable<Object> {
+
+		private int m_iFrom, m_iTo;
+
+		public void update(int iFrom, int iTo) {
+			m_iFrom = iFrom;
+			m_iTo = iTo;
+		}
+
+		public Object call() {
+			int[] aiRegistrations = m_tlRegistrations.get();
+
+			for (int i = m_iFrom; i < m_iTo; i++) {
+				Collidable cObject = m_clResolving.get(i);
+				do {
+					aiRegistrations[0] = 0;
+					cObject.handleCollisions(CollisionGrid.this);
+				} while (aiRegistrations[0] > 0);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * @return a copy of the queue of grid spaces waiting to be handled
+	 */
 	public List<Int3D> getM_i3lCollisionPoints() {
-		return m_i3lCollisionPoints;
+		List<Int3D> i3lPoints = new ArrayList<Int3D>();
+		for (int i = m_iQueueHead; i < m_iQueueTail; i++) {
+			i3lPoints.add(getCellLocation(m_aiQueue[i]));
+		}
+		return i3lPoints;
 	}
 
+	/**
+	 * Replace the queue of grid spaces waiting to be handled
+	 */
 	public void setM_i3lCollisionPoints(List<Int3D> m_i3lCollisionPoints) {
-		this.m_i3lCollisionPoints = m_i3lCollisionPoints;
+		while (m_iQueueHead < m_iQueueTail) {
+			dequeue();
+		}
+		m_iQueueHead = 0;
+		m_iQueueTail = 0;
+
+		for (Int3D i3Point : m_i3lCollisionPoints) {
+			queue(getCell(i3Point.x, i3Point.y, i3Point.z));
+		}
 	}
 }
@@ -2,8 +2,16 @@ package sim3d.collisiondetection;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
 
 import org.junit.After;
 import org.junit.BeforeClass;
@@ -71,6 +79,215 @@ public class CollisionGridTest {
 		
 	}
 
+	/**
+	 * Test that boxsphereintersect measures to the far faces of the
+	 * grid space and compares squared distances
+	 */
+	@Test
+	public void testBoxSphereIntersectFarFaces() {
+		CollisionGrid cgGrid = new CollisionGrid(31, 31, 31, 1);
+		// the nearest face is 0.5 away along x
+		assertEquals(true, cgGrid.BoxSphereIntersect(6.5, 5.5, 5.5, 0.36, 5, 5, 5));
+		assertEquals(false, cgGrid.BoxSphereIntersect(6.5, 5.5, 5.5, 0.16, 5, 5, 5));
+		// 0.5 away along each axis, 0.75 squared
+		assertEquals(true, cgGrid.BoxSphereIntersect(6.5, 6.5, 6.5, 0.8, 5, 5, 5));
+		assertEquals(false, cgGrid.BoxSphereIntersect(6.5, 6.5, 6.5, 0.7, 5, 5, 5));
+	}
+
+	/**
+	 * Test that addSphereToGrid adds exactly the grid spaces the sphere
+	 * overlaps
+	 */
+	@Test
+	public void testAddSphereToGridExact() {
+		Random rand = new Random(5);
+
+		for (int iTrial = 0; iTrial < 100; iTrial++) {
+			CollisionGrid cgGrid = new CollisionGrid(12, 12, 12, 1);
+			double[] adCentre = { 1 + rand.nextDouble() * 10,
+					1 + rand.nextDouble() * 10, 1 + rand.nextDouble() * 10 };
+			double dRadius = 0.1 + rand.nextDouble() * 1.5;
+
+			cgGrid.addSphereToGrid(new BC(), new Double3D(adCentre[0],
+					adCentre[1], adCentre[2]), dRadius);
+			Set<Int3D> i3sAdded = new HashSet<Int3D>(
+					cgGrid.getM_i3lCollisionPoints());
+
+			for (int x = 0; x < 12; x++) {
+				for (int y = 0; y < 12; y++) {
+					for (int z = 0; z < 12; z++) {
+						double dDist = Math.sqrt(boxDistanceSquared(adCentre,
+								new int[] { x, y, z }));
+						if (dDist < dRadius - 1e-9) {
+							assertTrue(i3sAdded.contains(new Int3D(x, y, z)));
+						} else if (dDist > dRadius + 1e-9) {
+							assertFalse(i3sAdded.contains(new Int3D(x, y, z)));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test that addLineToGrid adds every grid space within the radius of the
+	 * line and none that are further away, by sampling along the line
+	 */
+	@Test
+	public void testAddLineToGridExact() {
+		Random rand = new Random(11);
+		int iSamples = 500;
+
+		for (int iTrial = 0; iTrial < 60; iTrial++) {
+			CollisionGrid cgGrid = new CollisionGrid(12, 12, 12, 1);
+			double[] adStart = new double[3], adDelta = new double[3];
+			for (int k = 0; k < 3; k++) {
+				adStart[k] = 1 + rand.nextDouble() * 10;
+				// some of the lines run along an axis
+				adDelta[k] = (iTrial % 4 == k) ? 0 : rand.nextGaussian() * 3;
+			}
+			double dRadius = 0.05 + rand.nextDouble();
+
+			cgGrid.addLineToGrid(new BC(), new Double3D(adStart[0],
+					adStart[1], adStart[2]), new Double3D(adStart[0]
+					+ adDelta[0], adStart[1] + adDelta[1], adStart[2]
+					+ adDelta[2]), dRadius);
+			Set<Int3D> i3sAdded = new HashSet<Int3D>(
+					cgGrid.getM_i3lCollisionPoints());
+
+			double dLength = Math.sqrt(adDelta[0] * adDelta[0] + adDelta[1]
+					* adDelta[1] + adDelta[2] * adDelta[2]);
+			double dTolerance = dLength / iSamples + 1e-9;
+
+			for (int x = 0; x < 12; x++) {
+				for (int y = 0; y < 12; y++) {
+					for (int z = 0; z < 12; z++) {
+						// sampling can only overestimate the distance
+						double dDist = Double.MAX_VALUE;
+						for (int i = 0; i <= iSamples; i++) {
+							double dT = (double) i / iSamples;
+							double[] adPoint = { adStart[0] + dT * adDelta[0],
+									adStart[1] + dT * adDelta[1],
+									adStart[2] + dT * adDelta[2] };
+							dDist = Math.min(dDist, boxDistanceSquared(
+									adPoint, new int[] { x, y, z }));
+						}
+						dDist = Math.sqrt(dDist);
+
+						Int3D i3Space = new Int3D(x, y, z);
+						if (dDist <= dRadius) {
+							assertTrue(i3sAdded.contains(i3Space));
+						} else if (dDist > dRadius + dTolerance) {
+							assertFalse(i3sAdded.contains(i3Space));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test that taking a line off the grid only drops the grid spaces that
+	 * none of the Collidable's other lines reach
+	 */
+	@Test
+	public void testRemoveLineFromGrid() {
+		CollisionGrid cgGrid = new CollisionGrid(10, 10, 10, 1);
+		CollisionGrid cgExpected = new CollisionGrid(10, 10, 10, 1);
+		BC bc = new BC();
+
+		cgGrid.addLineToGrid(bc, 1.5, 1.5, 1.5, 6.5, 2.5, 1.5, 0.35);
+		cgGrid.addLineToGrid(bc, 6.5, 2.5, 1.5, 6.5, 7.5, 2.5, 0.35);
+		cgExpected.addLineToGrid(bc, 6.5, 2.5, 1.5, 6.5, 7.5, 2.5, 0.35);
+
+		cgGrid.removeLineFromGrid(bc, 1.5, 1.5, 1.5, 6.5, 2.5, 1.5, 0.35);
+
+		for (int x = 0; x < 10; x++) {
+			for (int y = 0; y < 10; y++) {
+				for (int z = 0; z < 10; z++) {
+					Int3D i3Space = new Int3D(x, y, z);
+					assertEquals(cgExpected.getPoints(i3Space).contains(bc),
+							cgGrid.getPoints(i3Space).contains(bc));
+				}
+			}
+		}
+
+		cgGrid.removeLineFromGrid(bc, 6.5, 2.5, 1.5, 6.5, 7.5, 2.5, 0.35);
+		for (int x = 0; x < 10; x++) {
+			for (int y = 0; y < 10; y++) {
+				for (int z = 0; z < 10; z++) {
+					assertTrue(cgGrid.getPoints(new Int3D(x, y, z)).isEmpty());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test that a step's path, cell included, spans at most three grid
+	 * spaces along an axis at the chosen discretisation
+	 */
+	@Test
+	public void testChooseDiscretisation() {
+		assertEquals(1.05, CollisionGrid.chooseDiscretisation(0.35, 0.7), 1e-12);
+
+		double[][] adCases = { { 0.35, 0.7 }, { 0.35, 0 }, { 0.2, 3 },
+				{ 1, 0.5 } };
+		for (double[] adCase : adCases) {
+			double dDiscretisation = CollisionGrid.chooseDiscretisation(
+					adCase[0], adCase[1]);
+			assertTrue(dDiscretisation > 0);
+			assertTrue(2 * adCase[0] + adCase[1] <= 2 * dDiscretisation);
+		}
+	}
+
+	/**
+	 * Test that the fill statistics count the stroma and this step's
+	 * registrations, and that the registrations are forgotten once the grid
+	 * has stepped
+	 */
+	@Test
+	public void testGetFillStatistics() {
+		CollisionGrid cgGrid = new CollisionGrid(10, 10, 10, 2);
+		Double3D loc1 = new Double3D(0, 0, 0);
+		StromaEdge se1 = new StromaEdge(loc1, loc1, StromaEdge.TYPE.FDC_edge);
+		StromaEdge se2 = new StromaEdge(loc1, loc1, StromaEdge.TYPE.FDC_edge);
+		BC bc = new BC();
+
+		cgGrid.addCollisionPotential(1, 1, 1, se1);
+		cgGrid.addCollisionPotential(1, 1, 1, se2);
+		cgGrid.addCollisionPotential(3, 1, 1, se2);
+		cgGrid.addCollisionPotential(1, 1, 1, bc);
+		cgGrid.addCollisionPotential(2, 1, 1, bc);
+
+		CollisionGrid.FillStatistics fsStats = cgGrid.getFillStatistics();
+		assertEquals(2, fsStats.getDiscretisation(), 0);
+		assertEquals(125, fsStats.getGridSpaces());
+		assertEquals(2, fsStats.getStaticSpaces());
+		assertEquals(3, fsStats.getStaticEntries());
+		assertEquals(2, fsStats.getMaxStatic());
+		assertEquals(2, fsStats.getDynamicSpaces());
+		assertEquals(2, fsStats.getDynamicEntries());
+		assertEquals(1, fsStats.getMaxDynamic());
+
+		cgGrid.step(null);
+		fsStats = cgGrid.getFillStatistics();
+		assertEquals(3, fsStats.getStaticEntries());
+		assertEquals(0, fsStats.getDynamicEntries());
+	}
+
+	/**
+	 * The squared distance from a point to the unit grid space at aiBox
+	 */
+	private static double boxDistanceSquared(double[] adPoint, int[] aiBox) {
+		double dSum = 0;
+		for (int k = 0; k < 3; k++) {
+			double dOutside = Math.max(0, Math.max(aiBox[k] - adPoint[k],
+					adPoint[k] - aiBox[k] - 1));
+			dSum += dOutside * dOutside;
+		}
+		return dSum;
+	}
+
 	/**
 	 * Test that addSphereToGrid adds a BC to the collision
 	 * grid
@@ -103,6 +320,235 @@ public class CollisionGridTest {
 	}
 	
 	
+	/**
+	 * Test that static collidables stay on the grid between steps, the
+	 * dynamic ones are cleared each step, and stroma that is no longer
+	 * static is dropped
+	 */
+	@Test
+	public void testStaticAndDynamicLayers() {
+		CollisionGrid cgGrid = new CollisionGrid(31, 31, 31, 1);
+		Double3D loc1 = new Double3D(0, 0, 0);
+		Double3D loc2 = new Double3D(1, 1, 1);
+		StromaEdge se = new StromaEdge(loc1, loc2, StromaEdge.TYPE.FDC_edge);
+		StromaEdge seDeleted = new StromaEdge(loc1, loc2, StromaEdge.TYPE.FDC_edge);
+		BC bc = new BC();
+		Int3D loc = new Int3D(1, 1, 1);
+
+		cgGrid.addCollisionPotential(1, 1, 1, se);
+		cgGrid.addCollisionPotential(1, 1, 1, seDeleted);
+		cgGrid.addCollisionPotential(1, 1, 1, bc);
+		cgGrid.addCollisionPotential(1, 1, 1, bc);
+		assertEquals(3, cgGrid.getPoints(loc).size());
+		assertEquals(1, cgGrid.getM_i3lCollisionPoints().size());
+
+		cgGrid.step(null);
+		assertTrue(cgGrid.getM_i3lCollisionPoints().isEmpty());
+
+		seDeleted.setM_isStatic(false);
+		cgGrid.addCollisionPotential(1, 1, 1, bc);
+		List<Collidable> clPoints = cgGrid.getPoints(loc);
+		assertEquals(2, clPoints.size());
+		assertSame(se, clPoints.get(0));
+		assertSame(bc, clPoints.get(1));
+	}
+
+	/**
+	 * Test that freezing the static layer keeps the stroma in order, drops
+	 * deleted stroma and leaves the grid ready for the B cells
+	 */
+	@Test
+	public void testFreezeStaticLayer() {
+		CollisionGrid cgGrid = new CollisionGrid(31, 31, 31, 1);
+		Double3D loc1 = new Double3D(0, 0, 0);
+		Double3D loc2 = new Double3D(1, 1, 1);
+		StromaEdge se1 = new StromaEdge(loc1, loc2, StromaEdge.TYPE.FDC_edge);
+		StromaEdge se2 = new StromaEdge(loc1, loc2, StromaEdge.TYPE.FDC_edge);
+		StromaEdge seDeleted = new StromaEdge(loc1, loc2, StromaEdge.TYPE.FDC_edge);
+		BC bc = new BC();
+		Int3D loc = new Int3D(2, 2, 2);
+
+		cgGrid.addCollisionPotential(2, 2, 2, se1);
+		cgGrid.addCollisionPotential(3, 3, 3, se2);
+		cgGrid.addCollisionPotential(2, 2, 2, seDeleted);
+		cgGrid.addCollisionPotential(2, 2, 2, se2);
+		seDeleted.setM_isStatic(false);
+
+		cgGrid.freezeStaticLayer();
+		assertTrue(cgGrid.getM_i3lCollisionPoints().isEmpty());
+
+		List<Collidable> clPoints = cgGrid.getPoints(loc);
+		assertEquals(2, clPoints.size());
+		assertSame(se1, clPoints.get(0));
+		assertSame(se2, clPoints.get(1));
+		assertTrue(cgGrid.getPoints(new Int3D(3, 3, 3)).contains(se2));
+
+		cgGrid.addCollisionPotential(2, 2, 2, bc);
+		assertEquals(3, cgGrid.getPoints(loc).size());
+		assertTrue(cgGrid.getM_i3lCollisionPoints().contains(loc));
+	}
+
+	/**
+	 * Test that resolving the collisions on the frozen grid gives the same
+	 * result as the queue, whatever the number of threads
+	 */
+	@Test
+	public void testResolveCollisions() {
+		List<List<Int3D>> lExpected = resolveWalkers(1, false);
+
+		assertEquals(lExpected, resolveWalkers(1, true));
+		assertEquals(lExpected, resolveWalkers(4, true));
+	}
+
+	/**
+	 * Test that once the pool has been shut down, or the grid has been
+	 * copied by serialisation, every walker is still resolved
+	 */
+	@Test
+	public void testResolveCollisionsWithoutPool() throws Exception {
+		List<List<Int3D>> lExpected = resolveWalkers(1, true);
+
+		assertEquals(lExpected, resolveWalkers(4, true, true, false));
+		assertEquals(lExpected, resolveWalkers(4, true, false, true));
+		assertEquals(lExpected, resolveWalkers(1, true, false, true));
+	}
+
+	private List<List<Int3D>> resolveWalkers(int iThreads, boolean bFreeze) {
+		try {
+			return resolveWalkers(iThreads, bFreeze, false, false);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Put a row of stroma in front of each walker with a gap at a different
+	 * place, step the grid and return where each walker went
+	 * 
+	 * @param bShutdown
+	 *            shut the pool down before stepping
+	 * @param bCopy
+	 *            step a serialised copy of the grid and walkers
+	 */
+	@SuppressWarnings("unchecked")
+	private List<List<Int3D>> resolveWalkers(int iThreads, boolean bFreeze,
+			boolean bShutdown, boolean bCopy) throws Exception {
+		CollisionGrid cgGrid = new CollisionGrid(31, 31, 5, 1, iThreads);
+
+		for (int y = 0; y < 30; y++) {
+			Wall wWall = new Wall();
+			for (int x = 0; x < 30; x++) {
+				if (x != y) {
+					cgGrid.addCollisionPotential(x, y, 2, wWall);
+				}
+			}
+		}
+		if (bFreeze) {
+			cgGrid.freezeStaticLayer();
+		}
+
+		List<Walker> lWalkers = new ArrayList<Walker>();
+		for (int y = 0; y < 30; y++) {
+			Walker wWalker = new Walker(y);
+			wWalker.registerCollisions(cgGrid);
+			lWalkers.add(wWalker);
+		}
+
+		if (bShutdown) {
+			cgGrid.shutdown();
+		}
+		if (bCopy) {
+			ByteArrayOutputStream baosBytes = new ByteArrayOutputStream();
+			ObjectOutputStream oosOut = new ObjectOutputStream(baosBytes);
+			oosOut.writeObject(cgGrid);
+			oosOut.writeObject(lWalkers);
+			oosOut.close();
+			cgGrid.shutdown();
+
+			ObjectInputStream oisIn = new ObjectInputStream(
+					new ByteArrayInputStream(baosBytes.toByteArray()));
+			cgGrid = (CollisionGrid) oisIn.readObject();
+			lWalkers = (List<Walker>) oisIn.readObject();
+		}
+
+		cgGrid.step(null);
+		cgGrid.shutdown();
+
+		List<List<Int3D>> lPaths = new ArrayList<List<Int3D>>();
+		for (Walker wWalker : lWalkers) {
+			lPaths.add(wWalker.m_i3lPath);
+		}
+		return lPaths;
+	}
+
+	/**
+	 * Static collidable standing in for the stroma
+	 */
+	private static class Wall implements Collidable, Serializable {
+		private static final long serialVersionUID = 1L;
+
+		public boolean isStatic() {
+			return true;
+		}
+
+		public void addCollisionPoint(Int3D i3Point) {
+		}
+
+		public void registerCollisions(CollisionGrid cgGrid) {
+		}
+
+		public void handleCollisions(CollisionGrid cgGrid) {
+		}
+
+		public CLASS getCollisionClass() {
+			return CLASS.STROMA_EDGE;
+		}
+	}
+
+	/**
+	 * Moves one grid space along x each time it hits stroma
+	 */
+	private static class Walker implements Collidable, Serializable {
+		private static final long serialVersionUID = 1L;
+		private int m_iX = 0, m_iY;
+		private Set<Int3D> m_i3sPoints = new HashSet<Int3D>();
+		private List<Int3D> m_i3lPath = new ArrayList<Int3D>();
+
+		Walker(int iY) {
+			m_iY = iY;
+		}
+
+		public boolean isStatic() {
+			return false;
+		}
+
+		public void addCollisionPoint(Int3D i3Point) {
+			m_i3sPoints.add(i3Point);
+		}
+
+		public void registerCollisions(CollisionGrid cgGrid) {
+			m_i3sPoints.clear();
+			m_i3lPath.add(new Int3D(m_iX, m_iY, 2));
+			cgGrid.addCollisionPotential(m_iX, m_iY, 2, this);
+		}
+
+		public void handleCollisions(CollisionGrid cgGrid) {
+			for (Int3D i3Point : m_i3sPoints) {
+				for (Collidable cCell : cgGrid.getPoints(i3Point)) {
+					if (cCell.isStatic() && m_iX < 30) {
+						m_iX++;
+						registerCollisions(cgGrid);
+						return;
+					}
+				}
+			}
+		}
+
+		public CLASS getCollisionClass() {
+			return CLASS.LYMPHOCYTE;
+		}
+	}
+
 	/**
 	 * Assert that setCollisionPoints adds points to the 
 	 * collision points int3D list
@@ -0,0 +1,99 @@
+package sim3d.collisiondetection;
+
+import sim.util.Double3D;
+
+/**
+ * Counts how many cells are in each grid space. The counts are kept up to
+ * date as the cells move, so the number of cells around a location is a
+ * single array read rather than a neighbourhood search.
+ *
+ * Locations outside the grid are counted in the nearest grid space on the
+ * edge.
+ *
+ * @author Jason Cosgrove
+ */
+public class OccupancyGrid {
+
+	/**
+	 * Number of cells in each grid space, indexed as in getCell
+	 */
+	private int[] m_aiCounts;
+
+	/**
+	 * Dimensions of the grid in grid spaces
+	 */
+	private int m_iWidth, m_iHeight, m_iDepth;
+
+	/**
+	 * Size of each grid space
+	 */
+	private double m_dDiscretisation;
+
+	/**
+	 * @param dWidth
+	 *            Width of the space
+	 * @param dHeight
+	 *            Height of the space
+	 * @param dDepth
+	 *            Depth of the space
+	 * @param dDiscretisation
+	 *            Size of each grid space
+	 */
+	public OccupancyGrid(double dWidth, double dHeight, double dDepth,
+			double dDiscretisation) {
+		m_dDiscretisation = dDiscretisation;
+		m_iWidth = Math.max(1, (int) Math.ceil(dWidth / dDiscretisation));
+		m_iHeight = Math.max(1, (int) Math.ceil(dHeight / dDiscretisation));
+		m_iDepth = Math.max(1, (int) Math.ceil(dDepth / dDiscretisation));
+
+		m_aiCounts = new int[m_iWidth * m_iHeight * m_iDepth];
+	}
+
+	/**
+	 * A cell has arrived at d3Location
+	 */
+	public void add(Double3D d3Location) {
+		m_aiCounts[getCell(d3Location.x, d3Location.y, d3Location.z)]++;
+	}
+
+	/**
+	 * A cell has left d3Location
+	 */
+	public void remove(Double3D d3Location) {
+		m_aiCounts[getCell(d3Location.x, d3Location.y, d3Location.z)]--;
+	}
+
+	/**
+	 * A cell has moved, d3From is null if it wasn't on the grid before
+	 */
+	public void move(Double3D d3From, Double3D d3To) {
+		if (d3From != null) {
+			remove(d3From);
+		}
+		add(d3To);
+	}
+
+	/**
+	 * @return the number of cells in the grid space containing x, y, z
+	 */
+	public int getCount(double x, double y, double z) {
+		return m_aiCounts[getCell(x, y, z)];
+	}
+
+	/**
+	 * @return the size of each grid space
+	 */
+	public double getDiscretisation() {
+		return m_dDiscretisation;
+	}
+
+	private int getCell(double x, double y, double z) {
+		return (clamp(x, m_iWidth) * m_iHeight + clamp(y, m_iHeight))
+				* m_iDepth + clamp(z, m_iDepth);
+	}
+
+	private int clamp(double dPos, int iSize) {
+		int i = (int) Math.floor(dPos / m_dDiscretisation);
+		return Math.max(0, Math.min(iSize - 1, i));
+	}
+}
@@ -0,0 +1,43 @@
+package sim3d.collisiondetection;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import sim.util.Double3D;
+
+public class OccupancyGridTest {
+
+	/**
+	 * Test that the counts follow cells as they are added, moved and removed
+	 */
+	@Test
+	public void testMove() {
+		OccupancyGrid ogGrid = new OccupancyGrid(10, 10, 5, 1);
+		Double3D d3Start = new Double3D(2.5, 3.5, 1.5);
+		Double3D d3End = new Double3D(2.9, 4.1, 1.5);
+
+		ogGrid.move(null, d3Start);
+		ogGrid.add(d3Start);
+		assertEquals(2, ogGrid.getCount(2.1, 3.9, 1.2));
+
+		ogGrid.move(d3Start, d3End);
+		assertEquals(1, ogGrid.getCount(2.5, 3.5, 1.5));
+		assertEquals(1, ogGrid.getCount(2.5, 4.5, 1.5));
+
+		ogGrid.remove(d3End);
+		assertEquals(0, ogGrid.getCount(2.5, 4.5, 1.5));
+	}
+
+	/**
+	 * Test that locations off the grid are counted on the nearest edge
+	 */
+	@Test
+	public void testOutOfBounds() {
+		OccupancyGrid ogGrid = new OccupancyGrid(10, 10, 5, 2);
+
+		ogGrid.add(new Double3D(-1, 11, 5));
+		assertEquals(1, ogGrid.getCount(0, 9.5, 4.5));
+		assertEquals(0, ogGrid.getCount(0, 7.5, 4.5));
+	}
+}
@@ -0,0 +1,274 @@
+package sim3d.collisiondetection;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+import sim.util.Double3D;
+
+/**
+ * A bounding volume hierarchy over line segments that don't move, i.e. the
+ * stroma edges once the network has been built. Each node holds the axis
+ * aligned box around its segments, so a query only opens the nodes that
+ * overlap the box it's given and the cost depends on how many segments are
+ * nearby, not on how crowded the grid spaces are.
+ *
+ * The tree is stored in flat arrays and queries don't write to it, so it can
+ * be queried from several threads at once.
+ *
+ * @author Jason Cosgrove
+ */
+public class SegmentBVH implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Most segments held in one leaf
+	 */
+	private static final int LEAF_SIZE = 4;
+
+	/**
+	 * The Collidables and the ends of their segments as they were added
+	 */
+	private List<Collidable> m_clObjects = new ArrayList<Collidable>();
+	private double[] m_adEnds = new double[6 * 16];
+
+	/**
+	 * The box of each node as min x, y, z then max x, y, z
+	 */
+	private double[] m_adBounds;
+
+	/**
+	 * For an inner node the index of its second child (the first one always
+	 * follows it), for a leaf -1
+	 */
+	private int[] m_aiSecond;
+
+	/**
+	 * For a leaf, where its segments start in m_aiItems and how many there are
+	 */
+	private int[] m_aiStart, m_aiCount;
+
+	/**
+	 * Segment indices in leaf order
+	 */
+	private int[] m_aiItems;
+
+	private int m_iNodes = 0;
+
+	/**
+	 * Deepest node, used to size the query stacks
+	 */
+	private int m_iDepth = 0;
+
+	/**
+	 * Stack for the traversal, one per thread
+	 */
+	private transient ThreadLocal<int[]> m_tlStack = createStacks();
+
+	private ThreadLocal<int[]> createStacks() {
+		return new ThreadLocal<int[]>() {
+			protected int[] initialValue() {
+				return new int[m_iDepth + 2];
+			}
+		};
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		m_tlStack = createStacks();
+	}
+
+	/**
+	 * Add a segment. Must be called before build
+	 */
+	public void add(Collidable cObject, Double3D d3Point1, Double3D d3Point2) {
+		int i = m_clObjects.size();
+		if (6 * (i + 1) > m_adEnds.length) {
+			m_adEnds = Arrays.copyOf(m_adEnds, m_adEnds.length * 2);
+		}
+
+		m_adEnds[6 * i] = d3Point1.x;
+		m_adEnds[6 * i + 1] = d3Point1.y;
+		m_adEnds[6 * i + 2] = d3Point1.z;
+		m_adEnds[6 * i + 3] = d3Point2.x;
+		m_adEnds[6 * i + 4] = d3Point2.y;
+		m_adEnds[6 * i + 5] = d3Point2.z;
+		m_clObjects.add(cObject);
+	}
+
+	/**
+	 * @return the number of segments
+	 */
+	public int size() {
+		return m_clObjects.size();
+	}
+
+	/**
+	 * Build the tree over every segment added so far
+	 */
+	public void build() {
+		int iSegments = m_clObjects.size();
+
+		// a binary tree with at most one segment per leaf has under 2n nodes
+		int iMaxNodes = Math.max(1, 2 * iSegments);
+		m_adBounds = new double[6 * iMaxNodes];
+		m_aiSecond = new int[iMaxNodes];
+		m_aiStart = new int[iMaxNodes];
+		m_aiCount = new int[iMaxNodes];
+
+		Integer[] aiOrder = new Integer[iSegments];
+		for (int i = 0; i < iSegments; i++) {
+			aiOrder[i] = i;
+		}
+
+		m_iNodes = 0;
+		m_iDepth = 0;
+		buildNode(aiOrder, 0, iSegments, 0);
+
+		m_aiItems = new int[iSegments];
+		for (int i = 0; i < iSegments; i++) {
+			m_aiItems[i] = aiOrder[i];
+		}
+	}
+
+	/**
+	 * Make the node for aiOrder[iFrom] to aiOrder[iTo - 1], splitting at the
+	 * median along the axis its midpoints are most spread out on
+	 *
+	 * @return the index of the node
+	 */
+	private int buildNode(Integer[] aiOrder, int iFrom, int iTo, int iDepth) {
+		int iNode = m_iNodes++;
+		m_iDepth = Math.max(m_iDepth, iDepth);
+
+		double[] adMid = { Double.MAX_VALUE, Double.MAX_VALUE,
+				Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE,
+				-Double.MAX_VALUE };
+		for (int k = 0; k < 3; k++) {
+			m_adBounds[6 * iNode + k] = Double.MAX_VALUE;
+			m_adBounds[6 * iNode + 3 + k] = -Double.MAX_VALUE;
+		}
+
+		for (int i = iFrom; i < iTo; i++) {
+			int iSegment = aiOrder[i];
+			for (int k = 0; k < 3; k++) {
+				double d1 = m_adEnds[6 * iSegment + k];
+				double d2 = m_adEnds[6 * iSegment + 3 + k];
+				m_adBounds[6 * iNode + k] = Math.min(m_adBounds[6 * iNode + k],
+						Math.min(d1, d2));
+				m_adBounds[6 * iNode + 3 + k] = Math.max(
+						m_adBounds[6 * iNode + 3 + k], Math.max(d1, d2));
+				adMid[k] = Math.min(adMid[k], d1 + d2);
+				adMid[3 + k] = Math.max(adMid[3 + k], d1 + d2);
+			}
+		}
+
+		if (iTo - iFrom <= LEAF_SIZE) {
+			m_aiSecond[iNode] = -1;
+			m_aiStart[iNode] = iFrom;
+			m_aiCount[iNode] = iTo - iFrom;
+			return iNode;
+		}
+
+		int iAxis = 0;
+		for (int k = 1; k < 3; k++) {
+			if (adMid[3 + k] - adMid[k] > adMid[3 + iAxis] - adMid[iAxis]) {
+				iAxis = k;
+			}
+		}
+
+		// ties are broken by the order the segments were added so the tree
+		// is always the same
+		final int iSortAxis = iAxis;
+		Arrays.sort(aiOrder, iFrom, iTo, new Comparator<Integer>() {
+			public int compare(Integer i1, Integer i2) {
+				double d1 = m_adEnds[6 * i1 + iSortAxis]
+						+ m_adEnds[6 * i1 + 3 + iSortAxis];
+				double d2 = m_adEnds[6 * i2 + iSortAxis]
+						+ m_adEnds[6 * i2 + 3 + iSortAxis];
+				if (d1 != d2) {
+					return (d1 < d2) ? -1 : 1;
+				}
+				return i1.compareTo(i2);
+			}
+		});
+
+		int iMid = (iFrom + iTo) / 2;
+		buildNode(aiOrder, iFrom, iMid, iDepth + 1);
+		m_aiSecond[iNode] = buildNode(aiOrder, iMid, iTo, iDepth + 1);
+		return iNode;
+	}
+
+	/**
+	 * Add every Collidable whose segment's box overlaps the given box
+	 *
+	 * @param adBox
+	 *            min x, y, z then max x, y, z
+	 * @param cResults
+	 *            where to add the Collidables
+	 */
+	public void query(double[] adBox, Collection<Collidable> cResults) {
+		if (m_iNodes == 0 || m_aiItems.length == 0) {
+			return;
+		}
+
+		int[] aiStack = m_tlStack.get();
+		if (aiStack.length < m_iDepth + 2) {
+			aiStack = new int[m_iDepth + 2];
+			m_tlStack.set(aiStack);
+		}
+
+		int iTop = 0;
+		aiStack[iTop++] = 0;
+
+		while (iTop > 0) {
+			int iNode = aiStack[--iTop];
+			if (!overlaps(m_adBounds, 6 * iNode, adBox)) {
+				continue;
+			}
+
+			if (m_aiSecond[iNode] < 0) {
+				int iEnd = m_aiStart[iNode] + m_aiCount[iNode];
+				for (int i = m_aiStart[iNode]; i < iEnd; i++) {
+					int iSegment = m_aiItems[i];
+					if (segmentOverlaps(iSegment, adBox)) {
+						cResults.add(m_clObjects.get(iSegment));
+					}
+				}
+			} else {
+				// the first child is opened first
+				aiStack[iTop++] = m_aiSecond[iNode];
+				aiStack[iTop++] = iNode + 1;
+			}
+		}
+	}
+
+	private boolean segmentOverlaps(int iSegment, double[] adBox) {
+		for (int k = 0; k < 3; k++) {
+			double d1 = m_adEnds[6 * iSegment + k];
+			double d2 = m_adEnds[6 * iSegment + 3 + k];
+			if (Math.max(d1, d2) < adBox[k] || Math.min(d1, d2) > adBox[3 + k]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean overlaps(double[] adBounds, int iOffset,
+			double[] adBox) {
+		for (int k = 0; k < 3; k++) {
+			if (adBounds[iOffset + 3 + k] < adBox[k]
+					|| adBounds[iOffset + k] > adBox[3 + k]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,172 @@
+package sim3d.collisiondetection;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import sim.util.Double3D;
+import sim.util.Int3D;
+import sim3d.stroma.StromaEdge;
+
+public class SegmentBVHTest {
+
+	/**
+	 * Test that a query returns exactly the segments whose box overlaps the
+	 * query box, each of them once
+	 */
+	@Test
+	public void testQuery() {
+		Random rand = new Random(3);
+		SegmentBVH bvhEdges = new SegmentBVH();
+		List<StromaEdge> lEdges = new ArrayList<StromaEdge>();
+
+		for (int i = 0; i < 200; i++) {
+			Double3D d3Point1 = new Double3D(rand.nextDouble() * 50,
+					rand.nextDouble() * 50, rand.nextDouble() * 10);
+			Double3D d3Point2 = d3Point1.add(new Double3D(
+					rand.nextGaussian() * 3, rand.nextGaussian() * 3,
+					rand.nextGaussian()));
+			StromaEdge se = new StromaEdge(d3Point1, d3Point2,
+					StromaEdge.TYPE.FDC_edge);
+			bvhEdges.add(se, d3Point1, d3Point2);
+			lEdges.add(se);
+		}
+		bvhEdges.build();
+		assertEquals(200, bvhEdges.size());
+
+		for (int iQuery = 0; iQuery < 50; iQuery++) {
+			double[] adBox = new double[6];
+			for (int k = 0; k < 3; k++) {
+				adBox[k] = rand.nextDouble() * 50 - 2;
+				adBox[3 + k] = adBox[k] + rand.nextDouble() * 4;
+			}
+
+			List<Collidable> clResults = new ArrayList<Collidable>();
+			bvhEdges.query(adBox, clResults);
+
+			Set<Collidable> csExpected = new HashSet<Collidable>();
+			for (StromaEdge se : lEdges) {
+				if (overlaps(se.getPoint1(), se.getPoint2(), adBox)) {
+					csExpected.add(se);
+				}
+			}
+
+			assertEquals(csExpected.size(), clResults.size());
+			assertEquals(csExpected, new HashSet<Collidable>(clResults));
+		}
+	}
+
+	/**
+	 * Test that a serialised copy answers queries the same way, so the
+	 * collision grid holding it can be checkpointed
+	 */
+	@Test
+	public void testSerialise() throws Exception {
+		Random rand = new Random(5);
+		SegmentBVH bvhEdges = new SegmentBVH();
+
+		for (int i = 0; i < 100; i++) {
+			Double3D d3Point1 = new Double3D(rand.nextDouble() * 50,
+					rand.nextDouble() * 50, rand.nextDouble() * 10);
+			Double3D d3Point2 = d3Point1.add(new Double3D(
+					rand.nextGaussian() * 3, rand.nextGaussian() * 3,
+					rand.nextGaussian()));
+			bvhEdges.add(new Segment(i), d3Point1, d3Point2);
+		}
+		bvhEdges.build();
+
+		ByteArrayOutputStream baosBytes = new ByteArrayOutputStream();
+		ObjectOutputStream oosOut = new ObjectOutputStream(baosBytes);
+		oosOut.writeObject(bvhEdges);
+		oosOut.close();
+		SegmentBVH bvhCopy = (SegmentBVH) new ObjectInputStream(
+				new ByteArrayInputStream(baosBytes.toByteArray())).readObject();
+
+		assertEquals(bvhEdges.size(), bvhCopy.size());
+		for (int iQuery = 0; iQuery < 50; iQuery++) {
+			double[] adBox = new double[6];
+			for (int k = 0; k < 3; k++) {
+				adBox[k] = rand.nextDouble() * 50 - 2;
+				adBox[3 + k] = adBox[k] + rand.nextDouble() * 4;
+			}
+
+			List<Collidable> clExpected = new ArrayList<Collidable>();
+			List<Collidable> clResults = new ArrayList<Collidable>();
+			bvhEdges.query(adBox, clExpected);
+			bvhCopy.query(adBox, clResults);
+
+			assertEquals(clExpected.size(), clResults.size());
+			for (int i = 0; i < clExpected.size(); i++) {
+				assertEquals(((Segment) clExpected.get(i)).m_iId,
+						((Segment) clResults.get(i)).m_iId);
+			}
+		}
+	}
+
+	/**
+	 * A serialisable stand in for a stroma edge
+	 */
+	private static class Segment implements Collidable, Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private int m_iId;
+
+		Segment(int iId) {
+			m_iId = iId;
+		}
+
+		public boolean isStatic() {
+			return true;
+		}
+
+		public void addCollisionPoint(Int3D i3Point) {
+		}
+
+		public void registerCollisions(CollisionGrid cgGrid) {
+		}
+
+		public void handleCollisions(CollisionGrid cgGrid) {
+		}
+
+		public CLASS getCollisionClass() {
+			return CLASS.STROMA_EDGE;
+		}
+	}
+
+	/**
+	 * Test that an empty hierarchy returns nothing
+	 */
+	@Test
+	public void testEmpty() {
+		SegmentBVH bvhEdges = new SegmentBVH();
+		bvhEdges.build();
+
+		List<Collidable> clResults = new ArrayList<Collidable>();
+		bvhEdges.query(new double[] { 0, 0, 0, 10, 10, 10 }, clResults);
+		assertTrue(clResults.isEmpty());
+	}
+
+	private static boolean overlaps(Double3D d3Point1, Double3D d3Point2,
+			double[] adBox) {
+		double[] ad1 = { d3Point1.x, d3Point1.y, d3Point1.z };
+		double[] ad2 = { d3Point2.x, d3Point2.y, d3Point2.z };
+		for (int k = 0; k < 3; k++) {
+			if (Math.max(ad1[k], ad2[k]) < adBox[k]
+					|| Math.min(ad1[k], ad2[k]) > adBox[3 + k]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
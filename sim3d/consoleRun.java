@@ -51,6 +51,11 @@ public class consoleRun {
 		// start the simulation
 		long steps = 0;
 		SimulationEnvironment.simulation.start();
+		
+		// solve for the chemokine steady state instead of diffusing up to it
+		if (Settings.CXCL13.STEADY_STATE_INIT) {
+			SimulationEnvironment.simulation.initialiseSteadyStateChemokine();
+		}
 		System.out.println("FollicleSim v1.0 - Console Version");
 		System.out.println("\nAuthor: Jason Cosgrove, York Computational Immunology Lab");
 
@@ -59,8 +64,8 @@ public class consoleRun {
 			steps = SimulationEnvironment.simulation.schedule.getSteps();
 			System.out.println("Steps: " + steps);
 
-			// run the simulation for 100 steps prior to recording data for an experiment
-			if (steps == 100) {
+			// run the simulation for STEADY_STATE_STEPS steps prior to recording data for an experiment
+			if (steps == Settings.STEADY_STATE_STEPS) {
 
 				// update the steadyState guard to begin recording data
 				SimulationEnvironment.steadyStateReached = true;
@@ -8,12 +8,21 @@ import sim.engine.Steppable;
 import sim.field.grid.DoubleGrid2D;
 import sim.field.grid.DoubleGrid3D;
 import sim3d.Settings;
+import sim3d.diffusion.algorithms.ADI;
 import sim3d.diffusion.algorithms.DiffusionAlgorithmMultiThread;
+import sim3d.diffusion.algorithms.Grajdeanu;
+import sim3d.diffusion.algorithms.GrajdeanuReordered;
 
 /**
  * Same as Particle but accounts for Moles not absoloute molecules is just an
  * object of type doubleGrid3D
  * 
+ * The concentrations are held in one contiguous array, m_adField, indexed
+ * with getIndex so the hot loops walk memory in order. The inherited
+ * DoubleGrid3D field isn't kept: it is null until syncGrid copies the
+ * current concentrations into it, so the inherited accessors fail rather
+ * than read a stale copy, and the field isn't held twice.
+ * 
  * @author Jason Cosgrove, Simon Jarrett
  */
 public class Chemokine extends DoubleGrid3D implements Steppable {
@@ -49,6 +58,11 @@ public class Chemokine extends DoubleGrid3D implements Steppable {
 	public static Chemokine[] ms_pParticles = new Chemokine[4];
 
 	private static final long serialVersionUID = 1;
+
+	/**
+	 * How many implicit solves the ADI algorithm splits an agent step into
+	 */
+	private static final int ADI_SOLVES = 2;
 	
 	/**
 	 * Add or remove chemokine from a grid space
@@ -95,6 +109,48 @@ public class Chemokine extends DoubleGrid3D implements Steppable {
 		return pTarget.getArea(x, y, z);
 	}
 
+	/**
+	 * Gets the amount of particle in the six grid spaces sharing a face with
+	 * the given position, without allocating
+	 *
+	 * @param ParticleType
+	 *            The ENUM for the type of particle
+	 * @param x
+	 *            X position on the grid
+	 * @param y
+	 *            Y position on the grid
+	 * @param z
+	 *            Z position on the grid
+	 * @param adFaces
+	 *            Array of at least 6 to write {x+, x-, y+, y-, z+, z-} into
+	 * @return adFaces
+	 */
+	public static double[] getFaces(TYPE ParticleType, int x, int y, int z,
+			double[] adFaces) {
+		int index = ms_emTypeMap.get(ParticleType);
+		final Chemokine pTarget = ms_pParticles[index];
+
+		return pTarget.getFaces(x, y, z, adFaces);
+	}
+
+	/**
+	 * One face buffer per thread so agents stepping in parallel don't share
+	 * scratch space
+	 */
+	private static final ThreadLocal<double[]> ms_adFaceBuffer = new ThreadLocal<double[]>() {
+		protected double[] initialValue() {
+			return new double[6];
+		}
+	};
+
+	/**
+	 * Accessor for this thread's face buffer. Its contents are only valid
+	 * until the next time the same thread fills it
+	 */
+	public static double[] getFaceBuffer() {
+		return ms_adFaceBuffer.get();
+	}
+
 	/**
 	 * Accessor for m_iDisplayLevel
 	 */
@@ -117,6 +173,12 @@ public class Chemokine extends DoubleGrid3D implements Steppable {
 	 * Resets all particle to their initial state
 	 */
 	public static void reset() {
+		// stop the diffusion worker pools before dropping the instances
+		for (Chemokine pParticle : ms_pParticles) {
+			if (pParticle != null && pParticle.getM_daDiffusionAlgorithm() != null) {
+				pParticle.getM_daDiffusionAlgorithm().shutdown();
+			}
+		}
 		ms_pParticles = new Chemokine[4];
 		ms_emTypeMap = new EnumMap<TYPE, Integer>(TYPE.class);
 	}
@@ -157,6 +219,43 @@ public class Chemokine extends DoubleGrid3D implements Steppable {
 	 */
 	public DoubleGrid2D m_ig2Display;
 
+	/**
+	 * The concentration in each grid space, flattened so that z varies
+	 * fastest, then y, then x. See getIndex
+	 */
+	private double[] m_adField;
+
+	/**
+	 * If true adaptiveDiffusion uses the fused diffuse, boundary and decay
+	 * kernel rather than calling diffuse and decay separately
+	 */
+	private boolean m_bFusedKernel = false;
+
+	/**
+	 * Running total of the field, kept by the fused kernel. Only valid while
+	 * m_bTotalValid is true
+	 */
+	private double m_dTotal;
+
+	/**
+	 * Whether m_dTotal matches the field. Anything that writes to the field
+	 * through this class clears it
+	 */
+	private boolean m_bTotalValid = false;
+
+	/**
+	 * The net amount added to each grid space since the field was last
+	 * solved to a steady state, stromal secretion less B cell uptake, for
+	 * re-equilibrating it. null unless initialiseSteadyState has been called
+	 * with REEQUILIBRATION_INTERVAL set
+	 */
+	private double[] m_adAddedSinceSolve;
+
+	/**
+	 * How many steps m_adAddedSinceSolve covers
+	 */
+	private int m_iStepsSinceSolve;
+
 	/**
 	 * The DiffusionAlgorithm to use
 	 */
@@ -204,7 +303,11 @@ public class Chemokine extends DoubleGrid3D implements Steppable {
 			int iHeight, int iDepth) {
 		super(iWidth, iHeight, iDepth);
 
+		// the concentrations live in m_adField, see syncGrid
+		field = null;
+
 		m_ig2Display = new DoubleGrid2D(iWidth, iHeight);
+		m_adField = new double[iWidth * iHeight * iDepth];
 
 		// Register this in the EnumMap
 		ms_emTypeMap.put(pType, ms_emTypeMap.size());
@@ -224,8 +327,8 @@ public class Chemokine extends DoubleGrid3D implements Steppable {
 			
 		}
 
-		setM_daDiffusionAlgorithm(new sim3d.diffusion.algorithms.Grajdeanu(
-				diffusionconstant, iWidth, iHeight, iDepth,Settings.NUM_THREADS,m_diffusionTimestep));
+		setM_daDiffusionAlgorithm(createDiffusionAlgorithm(diffusionconstant,
+				iWidth, iHeight, iDepth));
 
 		// setup up stepping
 		ms_pParticles[ms_emTypeMap.get(pType)] = this;
@@ -235,6 +338,38 @@ public class Chemokine extends DoubleGrid3D implements Steppable {
 		
 	}
 	
+	/**
+	 * Build the diffusion algorithm chosen by
+	 * Settings.CXCL13.DIFFUSION_ALGORITHM. ADI isn't limited by the grid size
+	 * so it covers a whole agent step in ADI_SOLVES solves; the others take
+	 * the Settings timestep
+	 * 
+	 * @param dDiffusionCoefficient
+	 *            Speed of diffusion
+	 * @return the algorithm for this grid
+	 */
+	private DiffusionAlgorithmMultiThread createDiffusionAlgorithm(
+			double dDiffusionCoefficient, int iWidth, int iHeight, int iDepth) {
+
+		switch (Settings.CXCL13.DIFFUSION_ALGORITHM) {
+		case GRAJDEANU_REORDERED:
+			return new GrajdeanuReordered(dDiffusionCoefficient, iWidth,
+					iHeight, iDepth, Settings.NUM_THREADS, m_diffusionTimestep);
+		case SEPARABLE:
+			Grajdeanu daSeparable = new Grajdeanu(dDiffusionCoefficient,
+					iWidth, iHeight, iDepth, Settings.NUM_THREADS,
+					m_diffusionTimestep);
+			daSeparable.setSeparable(true);
+			return daSeparable;
+		case ADI:
+			return new ADI(dDiffusionCoefficient, iWidth, iHeight, iDepth,
+					Settings.NUM_THREADS, 60, ADI_SOLVES);
+		default:
+			return new Grajdeanu(dDiffusionCoefficient, iWidth, iHeight,
+					iDepth, Settings.NUM_THREADS, m_diffusionTimestep);
+		}
+	}
+
 	/**
 	 * Add or remove chemokine from a grid space
 	 * 
@@ -249,9 +384,35 @@ public class Chemokine extends DoubleGrid3D implements Steppable {
 	 */
 	public void add(int x, int y, int z, double amount) {
 
-		field[x % m_iWidth][y % m_iHeight][z % m_iDepth] = Math.max(0, field[x
-				% m_iWidth][y % m_iHeight][z % m_iDepth]
-				+ amount);
+		addAtIndex(getWrappedIndex(x, y, z), amount);
+	}
+
+	/**
+	 * Add or remove chemokine from a grid space, as add does
+	 * 
+	 * @param iIndex
+	 *            the grid space, see getWrappedIndex
+	 * @param amount
+	 *            Positive or negative absolute change in particle amount
+	 */
+	public void addAtIndex(int iIndex, double amount) {
+
+		double dBefore = m_adField[iIndex];
+		m_adField[iIndex] = Math.max(0, dBefore + amount);
+		m_bTotalValid = false;
+
+		// what was actually added, so uptake from an empty space counts as 0
+		if (m_adAddedSinceSolve != null) {
+			m_adAddedSinceSolve[iIndex] += m_adField[iIndex] - dBefore;
+		}
+	}
+
+	/**
+	 * @return the index of the grid space add changes, which wraps x, y and z
+	 *         past the far edges back round to 0
+	 */
+	public int getWrappedIndex(int x, int y, int z) {
+		return getIndex(x % m_iWidth, y % m_iHeight, z % m_iDepth);
 	}
 
 	/**
@@ -262,15 +423,18 @@ public class Chemokine extends DoubleGrid3D implements Steppable {
 		// determine how much is left after decay per timestep
 		// done it this way as it is easier to caompare
 		// to experimental data
-		double amountLeft = 1 - this.m_decayrate;
-		//
-		for (int x = 0; x < m_iWidth; x++) {
-			for (int y = 0; y < m_iHeight; y++) {
-				for (int z = 0; z < m_iDepth; z++) {
-					field[x][y][z] = (field[x][y][z] * amountLeft);
-				}
-			}
+		decay(1 - this.m_decayrate);
+	}
+
+	/**
+	 * Decay the chemokine, leaving amountLeft of it
+	 */
+	public void decay(double amountLeft) {
+
+		for (int i = 0; i < m_adField.length; i++) {
+			m_adField[i] = (m_adField[i] * amountLeft);
 		}
+		m_bTotalValid = false;
 	}
 
 	/**
@@ -305,7 +469,7 @@ public class Chemokine extends DoubleGrid3D implements Steppable {
 						continue;
 					}
 
-					aiReturn[r][s][t] = field[x + r - 1][y + s - 1][z + t - 1];
+					aiReturn[r][s][t] = m_adField[getIndex(x + r - 1, y + s - 1, z + t - 1)];
 				}
 			}
 		}
@@ -313,6 +477,54 @@ public class Chemokine extends DoubleGrid3D implements Steppable {
 		return aiReturn;
 	}
 
+	/**
+	 * Gets the amount of particle in the six grid spaces sharing a face with
+	 * the given position. Faces outside the grid read as zero, as in getArea
+	 *
+	 * @param x
+	 *            X position on the grid
+	 * @param y
+	 *            Y position on the grid
+	 * @param z
+	 *            Z position on the grid
+	 * @param adFaces
+	 *            Array of at least 6 to write {x+, x-, y+, y-, z+, z-} into
+	 * @return adFaces
+	 */
+	public double[] getFaces(int x, int y, int z, double[] adFaces) {
+		int iIndex = getIndex(x, y, z);
+		int iStrideX = m_iHeight * m_iDepth;
+
+		adFaces[0] = (x + 1 < m_iWidth) ? m_adField[iIndex + iStrideX] : 0;
+		adFaces[1] = (x > 0) ? m_adField[iIndex - iStrideX] : 0;
+		adFaces[2] = (y + 1 < m_iHeight) ? m_adField[iIndex + m_iDepth] : 0;
+		adFaces[3] = (y > 0) ? m_adField[iIndex - m_iDepth] : 0;
+		adFaces[4] = (z + 1 < m_iDepth) ? m_adField[iIndex + 1] : 0;
+		adFaces[5] = (z > 0) ? m_adField[iIndex - 1] : 0;
+
+		return adFaces;
+	}
+
+	/**
+	 * The indices of the grid spaces getFaces reads, so a caller can read them
+	 * straight from getM_adField
+	 *
+	 * @param aiFaces
+	 *            Array to write {x+, x-, y+, y-, z+, z-} into from iOffset,
+	 *            with -1 for a face off the grid
+	 */
+	public void getFaceIndices(int x, int y, int z, int[] aiFaces, int iOffset) {
+		int iIndex = getIndex(x, y, z);
+		int iStrideX = m_iHeight * m_iDepth;
+
+		aiFaces[iOffset] = (x + 1 < m_iWidth) ? iIndex + iStrideX : -1;
+		aiFaces[iOffset + 1] = (x > 0) ? iIndex - iStrideX : -1;
+		aiFaces[iOffset + 2] = (y + 1 < m_iHeight) ? iIndex + m_iDepth : -1;
+		aiFaces[iOffset + 3] = (y > 0) ? iIndex - m_iDepth : -1;
+		aiFaces[iOffset + 4] = (z + 1 < m_iDepth) ? iIndex + 1 : -1;
+		aiFaces[iOffset + 5] = (z > 0) ? iIndex - 1 : -1;
+	}
+
 	/**
 	 * Scale the amount of chemokine in a grid space. NB: does not check if this
 	 * value is positive
@@ -327,9 +539,9 @@ public class Chemokine extends DoubleGrid3D implements Steppable {
 	 *            The coefficient of multiplication
 	 */
 	public void scale(int x, int y, int z, double factor) {
-		field[x % m_iWidth][y % m_iHeight][z % m_iDepth] = (int) (0.5 + field[x
-				% m_iWidth][y % m_iHeight][z % m_iDepth]
-				* factor);
+		int index = getIndex(x % m_iWidth, y % m_iHeight, z % m_iDepth);
+		m_adField[index] = (int) (0.5 + m_adField[index] * factor);
+		m_bTotalValid = false;
 	}
 
 	
@@ -347,6 +559,14 @@ public class Chemokine extends DoubleGrid3D implements Steppable {
 	public void step(final SimState state) {
 
 		adaptiveDiffusion();
+		
+		// periodically jump to the steady state of what has been added and
+		// taken up since the last solve
+		if (m_adAddedSinceSolve != null
+				&& ++m_iStepsSinceSolve >= Settings.CXCL13.REEQUILIBRATION_INTERVAL) {
+			reequilibrate(Settings.CXCL13.STEADY_STATE_TOLERANCE);
+		}
+		
 		updateDisplay();
 		
 		//increment the steps counter- required for adaptive diffusion...
@@ -374,7 +594,7 @@ public class Chemokine extends DoubleGrid3D implements Steppable {
 		for (int x = 10; x < 30; x++) {
 			for (int y = 10; y < 30; y++) {
 		
-				chemokinefield[x-10][y-10] = this.field[x][y][m_iDepth/2];
+				chemokinefield[x-10][y-10] = m_adField[getIndex(x, y, m_iDepth/2)];
 				
 			}
 		}
@@ -402,16 +622,15 @@ public class Chemokine extends DoubleGrid3D implements Steppable {
 	 */
 	public double calculateTotalChemokineLevels() {
 
-	
+		// the fused kernel already summed the field on its way through
+		if (m_bTotalValid) {
+			return m_dTotal;
+		}
 		
 		double totalChemokineValue = 0;
 
-		for (int x = 0; x < m_iWidth; x++) {
-			for (int y = 0; y < m_iHeight; y++) {
-				for (int z = 0; z < m_iDepth; z++) {
-					totalChemokineValue += this.field[x][y][z];
-				}
-			}
+		for (int i = 0; i < m_adField.length; i++) {
+			totalChemokineValue += m_adField[i];
 		}
 		return totalChemokineValue;
 	}
@@ -427,19 +646,133 @@ public class Chemokine extends DoubleGrid3D implements Steppable {
 		
 		long simTime = stepsCounter;
 		
+		double dTimestep = getCallTimestep();
+		double amountLeft = getAmountLeftPerCall();
+		
 		//adaptively step time for diffusion....
 		while (getM_diffTime() < (simTime+ 1)) {	
-			getM_daDiffusionAlgorithm().diffuse(this);
+			
+			if (m_bFusedKernel) {
+				m_dTotal = getM_daDiffusionAlgorithm().diffuseAndDecay(this, amountLeft);
+				m_bTotalValid = true;
+			} else {
+				getM_daDiffusionAlgorithm().diffuse(this);
+			}
 
 			//number of steps taken per second, if fast diffusion then the timestep is small
 			// if slow then timestep is large, we divide by 60 because the diffusion coefficient
 			// in seconds.
-			setM_diffTime(getM_diffTime() + m_diffusionTimestep/60); 
-			decay();	
+			setM_diffTime(getM_diffTime() + dTimestep/60); 
+			
+			if (!m_bFusedKernel) {
+				decay(amountLeft);
+			}
 		}
 	}
 	
 	
+	/**
+	 * Start the field at its steady state for a constant source, rather than
+	 * stepping it there from zero. The source is what gets secreted in one
+	 * agent step; it is spread evenly over the diffusion steps that make up
+	 * an agent step.
+	 * 
+	 * If REEQUILIBRATION_INTERVAL is set, this also starts recording what is
+	 * added to the field for reequilibrate
+	 * 
+	 * @param adSource
+	 *            The amount secreted into each grid space per agent step,
+	 *            indexed as in getIndex
+	 * @param dTolerance
+	 *            Relative tolerance of the solve
+	 * @return the number of iterations taken
+	 */
+	public int initialiseSteadyState(double[] adSource, double dTolerance) {
+
+		int iIterations = solveSteadyState(adSource, dTolerance);
+
+		if (Settings.CXCL13.REEQUILIBRATION_INTERVAL > 0) {
+			m_adAddedSinceSolve = new double[m_adField.length];
+			m_iStepsSinceSolve = 0;
+		}
+		return iIterations;
+	}
+
+	/**
+	 * Replace the field with the steady state of the mean net source since
+	 * the last solve: the stromal secretion less what the B cells took up.
+	 * The uptake depends on the field, so this is the quasi-steady gradient
+	 * for the current cell positions rather than an exact solution, and any
+	 * grid space where the uptake outstrips what diffuses in is emptied.
+	 * 
+	 * The solve starts from the current field, which only saves iterations:
+	 * the result doesn't depend on it
+	 * 
+	 * @param dTolerance
+	 *            Relative tolerance of the solve
+	 * @return the number of iterations taken
+	 */
+	public int reequilibrate(double dTolerance) {
+
+		double[] adSource = m_adAddedSinceSolve;
+		for (int i = 0; i < adSource.length; i++) {
+			adSource[i] /= m_iStepsSinceSolve;
+		}
+
+		int iIterations = solveSteadyState(adSource, dTolerance);
+
+		for (int i = 0; i < m_adField.length; i++) {
+			m_adField[i] = Math.max(0, m_adField[i]);
+		}
+
+		m_adAddedSinceSolve = new double[m_adField.length];
+		m_iStepsSinceSolve = 0;
+		return iIterations;
+	}
+
+	/**
+	 * Solve for the steady state of adSource, see initialiseSteadyState
+	 */
+	private int solveSteadyState(double[] adSource, double dTolerance) {
+
+		// the number of diffusion steps per agent step, see adaptiveDiffusion
+		double dStepsPerAgentStep = 60 / getCallTimestep();
+
+		double[] adStepSource = new double[adSource.length];
+		for (int i = 0; i < adSource.length; i++) {
+			adStepSource[i] = adSource[i] / dStepsPerAgentStep;
+		}
+
+		m_bTotalValid = false;
+
+		return getM_daDiffusionAlgorithm().solveSteadyState(this,
+				adStepSource, getAmountLeftPerCall(), dTolerance, 1000);
+	}
+
+	/**
+	 * @return how many seconds one call to the diffusion algorithm covers.
+	 *         This may be more than the Settings timestep, e.g. for an
+	 *         implicit solver
+	 */
+	private double getCallTimestep() {
+
+		if (getM_daDiffusionAlgorithm().getDiffusionTimestep() > 0) {
+			return getM_daDiffusionAlgorithm().getDiffusionTimestep();
+		}
+		return m_diffusionTimestep;
+	}
+
+	/**
+	 * @return the fraction of chemokine left after the decay that goes with
+	 *         one call to the diffusion algorithm. The decay rate is per
+	 *         Settings timestep, so it is scaled to the time the call covers
+	 */
+	double getAmountLeftPerCall() {
+
+		return Math.pow(1 - m_decayrate, getCallTimestep()
+				/ m_diffusionTimestep);
+	}
+
 	/**
 	 * Updates the 2D display
 	 */
@@ -448,18 +781,87 @@ public class Chemokine extends DoubleGrid3D implements Steppable {
 		for (int x = 0; x < m_iWidth; x++) {
 			for (int y = 0; y < m_iHeight; y++) {
 
-				m_ig2Display.set(x, y, field[x][y][m_iDisplayLevel]);
+				m_ig2Display.set(x, y, m_adField[getIndex(x, y, m_iDisplayLevel)]);
 
 			}
 		}
 	}
 	
 	
+	/**
+	 * Copies the flat field into the inherited DoubleGrid3D field so code
+	 * that expects the nested array (e.g. 3D portrayals) sees the current
+	 * concentrations. The nested array is allocated on the first call, so
+	 * only call this where something consumes it, and call it again each
+	 * time it needs to be current. Writes to the nested array are not copied
+	 * back
+	 */
+	public void syncGrid() {
+		if (field == null) {
+			field = new double[m_iWidth][m_iHeight][m_iDepth];
+		}
+		for (int x = 0; x < m_iWidth; x++) {
+			for (int y = 0; y < m_iHeight; y++) {
+				System.arraycopy(m_adField, getIndex(x, y, 0), field[x][y], 0, m_iDepth);
+			}
+		}
+	}
+
+	/**
+	 * Position of a grid space in the flat field
+	 * 
+	 * @param x
+	 *            X position on the grid
+	 * @param y
+	 *            Y position on the grid
+	 * @param z
+	 *            Z position on the grid
+	 * @return the index into m_adField
+	 */
+	public int getIndex(int x, int y, int z) {
+		return (x * m_iHeight + y) * m_iDepth + z;
+	}
 
 	/*
 	 * Getters and setters for the class
 	 */
 
+	/**
+	 * Amount of chemokine in a single grid space
+	 */
+	public double getValue(int x, int y, int z) {
+		return m_adField[getIndex(x, y, z)];
+	}
+
+	/**
+	 * Set the amount of chemokine in a single grid space
+	 */
+	public void setValue(int x, int y, int z, double value) {
+		m_adField[getIndex(x, y, z)] = value;
+		m_bTotalValid = false;
+	}
+
+	/**
+	 * NB: writing to the returned array directly will not update the running
+	 * total used by calculateTotalChemokineLevels
+	 */
+	public double[] getM_adField() {
+		return m_adField;
+	}
+
+	public void setM_adField(double[] m_adField) {
+		this.m_adField = m_adField;
+		m_bTotalValid = false;
+	}
+
+	public boolean isM_bFusedKernel() {
+		return m_bFusedKernel;
+	}
+
+	public void setM_bFusedKernel(boolean m_bFusedKernel) {
+		this.m_bFusedKernel = m_bFusedKernel;
+	}
+
 	public double getM_diffTime() {
 		return m_diffTime;
 	}
@@ -473,6 +875,10 @@ public class Chemokine extends DoubleGrid3D implements Steppable {
 	}
 
 	public void setM_daDiffusionAlgorithm(DiffusionAlgorithmMultiThread m_daDiffusionAlgorithm) {
+		// release the worker pool of the algorithm we are replacing
+		if (this.m_daDiffusionAlgorithm != null && this.m_daDiffusionAlgorithm != m_daDiffusionAlgorithm) {
+			this.m_daDiffusionAlgorithm.shutdown();
+		}
 		this.m_daDiffusionAlgorithm = m_daDiffusionAlgorithm;
 	}
 
@@ -8,6 +8,10 @@ import org.junit.Test;
 import sim.engine.Schedule;
 import sim3d.Settings;
 import sim3d.SimulationEnvironment;
+import sim3d.diffusion.algorithms.ADI;
+import sim3d.diffusion.algorithms.DiffusionAlgorithmMultiThread;
+import sim3d.diffusion.algorithms.Grajdeanu;
+import sim3d.diffusion.algorithms.GrajdeanuReordered;
 
 public class ChemokineTest {
 
@@ -39,7 +43,7 @@ public class ChemokineTest {
 		Chemokine.setDisplayLevel(2);
 		assertEquals(Chemokine.m_iDisplayLevel, 2);
 		
-		m_pParticlemoles.field[20][20][2] = 100;
+		m_pParticlemoles.setValue(20, 20, 2, 100);
 		m_pParticlemoles.updateDisplay();
 	
 		assertTrue(m_pParticlemoles.m_ig2Display.get(20, 20) > 0);
@@ -56,7 +60,7 @@ public class ChemokineTest {
 		Schedule schedule = new Schedule();
 		Chemokine m_pParticlemoles = new Chemokine(schedule,
 				Chemokine.TYPE.CXCL13, 41, 41, 41);
-		m_pParticlemoles.field[20][20][1] = 100.0;
+		m_pParticlemoles.setValue(20, 20, 1, 100.0);
 
 		double test = m_pParticlemoles.calculateTotalChemokineLevels();
 		assertEquals(100, test, 0.1);
@@ -72,11 +76,11 @@ public class ChemokineTest {
 		Chemokine m_pParticlemoles = new Chemokine(schedule,
 				Chemokine.TYPE.CXCL13, 41, 41, 41);
 
-		m_pParticlemoles.field[1][1][1] = 100.0;
+		m_pParticlemoles.setValue(1, 1, 1, 100.0);
 
 		Chemokine.scale(Chemokine.TYPE.CXCL13, 1, 1, 1, 2.0);
 
-		assertEquals(m_pParticlemoles.field[1][1][1], 200, 0.1);
+		assertEquals(m_pParticlemoles.getValue(1, 1, 1), 200, 0.1);
 	}
 
 	/**
@@ -94,10 +98,321 @@ public class ChemokineTest {
 		assertEquals(aiReturn[1][1][1], 0, 0.1);
 
 		// check that with chemokine it returns correct amount
-		m_pParticlemoles.field[1][1][1] = 100.0;
+		m_pParticlemoles.setValue(1, 1, 1, 100.0);
 		double[][][] aiReturn2 = m_pParticlemoles.getArea(1, 1, 1);
 		assertEquals(aiReturn2[1][1][1], 100, 0.1);
 
 	}
 
+	/**
+	 * test that the face values match the faces of getArea, including at the
+	 * edge of the grid
+	 */
+	@Test
+	public void testGetFaces() {
+
+		Schedule schedule = new Schedule();
+		Chemokine m_pParticlemoles = new Chemokine(schedule,
+				Chemokine.TYPE.CXCL13, 7, 5, 3);
+
+		for (int x = 0; x < 7; x++) {
+			for (int y = 0; y < 5; y++) {
+				for (int z = 0; z < 3; z++) {
+					m_pParticlemoles.setValue(x, y, z, 100 * x + 10 * y + z + 1);
+				}
+			}
+		}
+
+		double[] adFaces = new double[6];
+		int[][] aiPositions = { { 3, 2, 1 }, { 0, 0, 0 }, { 6, 4, 2 } };
+
+		for (int[] aiPos : aiPositions) {
+			double[][][] ia3Concs = m_pParticlemoles.getArea(aiPos[0],
+					aiPos[1], aiPos[2]);
+			assertSame(adFaces, m_pParticlemoles.getFaces(aiPos[0], aiPos[1],
+					aiPos[2], adFaces));
+
+			assertEquals(ia3Concs[2][1][1], adFaces[0], 0);
+			assertEquals(ia3Concs[0][1][1], adFaces[1], 0);
+			assertEquals(ia3Concs[1][2][1], adFaces[2], 0);
+			assertEquals(ia3Concs[1][0][1], adFaces[3], 0);
+			assertEquals(ia3Concs[1][1][2], adFaces[4], 0);
+			assertEquals(ia3Concs[1][1][0], adFaces[5], 0);
+		}
+	}
+
+	/**
+	 * test that the DoubleGrid3D view matches the flat field once synced
+	 */
+	@Test
+	public void testSyncGrid() {
+
+		Schedule schedule = new Schedule();
+		Chemokine m_pParticlemoles = new Chemokine(schedule,
+				Chemokine.TYPE.CXCL13, 7, 5, 3);
+
+		// the nested array isn't kept until something asks for it
+		assertNull(m_pParticlemoles.field);
+
+		m_pParticlemoles.setValue(6, 4, 2, 10.0);
+		m_pParticlemoles.setValue(3, 2, 1, 20.0);
+		m_pParticlemoles.syncGrid();
+
+		assertEquals(m_pParticlemoles.field[6][4][2], 10, 0.0);
+		assertEquals(m_pParticlemoles.field[3][2][1], 20, 0.0);
+		assertEquals(m_pParticlemoles.getM_adField()[m_pParticlemoles
+				.getIndex(3, 2, 1)], 20, 0.0);
+
+		// and it is brought up to date by syncing again
+		m_pParticlemoles.setValue(6, 4, 2, 30.0);
+		m_pParticlemoles.syncGrid();
+		assertEquals(m_pParticlemoles.field[6][4][2], 30, 0.0);
+	}
+
+	/**
+	 * test that the fused diffuse, boundary and decay kernel gives the same
+	 * field and total as the separate passes
+	 */
+	@Test
+	public void testFusedKernel() {
+
+		Settings.CXCL13.DIFFUSION_COEFFICIENT = 1.6e-12;
+		Settings.GRID_SIZE = 0.00001;
+		Settings.CXCL13.DIFFUSION_TIMESTEP = (Math.pow(Settings.GRID_SIZE, 2) / (10 * Settings.CXCL13.DIFFUSION_COEFFICIENT));
+		Settings.CXCL13.DECAY_CONSTANT = 0.035;
+
+		Schedule schedule = new Schedule();
+		Chemokine pSeparate = new Chemokine(schedule,
+				Chemokine.TYPE.CXCL13, 15, 12, 9);
+		Chemokine pFused = new Chemokine(schedule,
+				Chemokine.TYPE.CXCL13, 15, 12, 9);
+		pFused.setM_bFusedKernel(true);
+
+		java.util.Random rand = new java.util.Random(7);
+		for (int x = 0; x < 15; x++) {
+			for (int y = 0; y < 12; y++) {
+				for (int z = 0; z < 9; z++) {
+					double dValue = rand.nextDouble() * 100;
+					pSeparate.setValue(x, y, z, dValue);
+					pFused.setValue(x, y, z, dValue);
+				}
+			}
+		}
+
+		for (int i = 0; i < 3; i++) {
+			pSeparate.step(null);
+			pFused.step(null);
+		}
+
+		for (int x = 0; x < 15; x++) {
+			for (int y = 0; y < 12; y++) {
+				for (int z = 0; z < 9; z++) {
+					assertEquals(pSeparate.getValue(x, y, z),
+							pFused.getValue(x, y, z), 0);
+				}
+			}
+		}
+
+		double dTotal = pSeparate.calculateTotalChemokineLevels();
+		assertTrue(dTotal > 0);
+		assertEquals(dTotal, pFused.calculateTotalChemokineLevels(), dTotal * 1e-12);
+	}
+
+	/**
+	 * test that the steady state is a fixed point of a diffusion step when
+	 * the source is spread evenly over the diffusion steps
+	 */
+	@Test
+	public void testInitialiseSteadyState() {
+
+		Settings.CXCL13.DIFFUSION_COEFFICIENT = 1.6e-12;
+		Settings.GRID_SIZE = 0.00001;
+		Settings.CXCL13.DIFFUSION_TIMESTEP = (Math.pow(Settings.GRID_SIZE, 2) / (10 * Settings.CXCL13.DIFFUSION_COEFFICIENT));
+		Settings.CXCL13.DECAY_CONSTANT = 0.035;
+
+		Schedule schedule = new Schedule();
+		Chemokine m_pParticlemoles = new Chemokine(schedule,
+				Chemokine.TYPE.CXCL13, 15, 15, 8);
+
+		double[] adSource = new double[15 * 15 * 8];
+		adSource[m_pParticlemoles.getIndex(7, 7, 4)] = 10;
+		adSource[m_pParticlemoles.getIndex(3, 11, 2)] = 5;
+		adSource[m_pParticlemoles.getIndex(1, 5, 1)] = 5;
+
+		int iIterations = m_pParticlemoles.initialiseSteadyState(adSource, 1e-12);
+		// the multigrid preconditioner should need few iterations
+		assertTrue(iIterations > 0 && iIterations < 30);
+
+		double dStepSource = 20 / (60 / Settings.CXCL13.DIFFUSION_TIMESTEP);
+		double dAmountLeft = 1 - Settings.CXCL13.DECAY_CONSTANT;
+
+		// a step of secretion, diffusion and decay comes back to the same
+		// field
+		double[] adSteady = m_pParticlemoles.getM_adField().clone();
+		for (int i = 0; i < adSource.length; i++) {
+			m_pParticlemoles.getM_adField()[i] += adSource[i] * dStepSource / 20;
+		}
+		m_pParticlemoles.getM_daDiffusionAlgorithm().diffuse(m_pParticlemoles);
+		m_pParticlemoles.decay();
+
+		for (int i = 0; i < adSteady.length; i++) {
+			assertEquals(adSteady[i], m_pParticlemoles.getM_adField()[i], 1e-9);
+		}
+
+		// total = a(total + s) at steady state
+		assertEquals(dAmountLeft * dStepSource / (1 - dAmountLeft),
+				m_pParticlemoles.calculateTotalChemokineLevels(), 1e-9);
+	}
+
+	/**
+	 * test that re-equilibrating solves for the secretion less the uptake
+	 * since the last solve, rather than going back to the steady state of the
+	 * secretion alone
+	 */
+	@Test
+	public void testReequilibrate() {
+
+		Settings.CXCL13.DIFFUSION_COEFFICIENT = 1.6e-12;
+		Settings.GRID_SIZE = 0.00001;
+		Settings.CXCL13.DIFFUSION_TIMESTEP = (Math.pow(Settings.GRID_SIZE, 2) / (10 * Settings.CXCL13.DIFFUSION_COEFFICIENT));
+		Settings.CXCL13.DECAY_CONSTANT = 0.035;
+
+		Schedule schedule = new Schedule();
+		Chemokine pCXCL13 = new Chemokine(schedule, Chemokine.TYPE.CXCL13,
+				15, 15, 8);
+		Chemokine pExpected = new Chemokine(schedule, Chemokine.TYPE.CXCL13,
+				15, 15, 8);
+
+		double[] adSource = new double[15 * 15 * 8];
+		adSource[pCXCL13.getIndex(7, 7, 4)] = 10;
+		adSource[pCXCL13.getIndex(3, 11, 2)] = 5;
+
+		double[] adSecretionOnly;
+		double dTotalUptake = 0;
+		try {
+			Settings.CXCL13.REEQUILIBRATION_INTERVAL = 2;
+			pCXCL13.initialiseSteadyState(adSource, 1e-12);
+			adSecretionOnly = pCXCL13.getM_adField().clone();
+
+			// two steps of secretion with some taken up next to the source
+			for (int iStep = 0; iStep < 2; iStep++) {
+				pCXCL13.add(7, 7, 4, 10);
+				pCXCL13.add(3, 11, 2, 5);
+				double dUptake = pCXCL13.getValue(8, 7, 4) * 0.2;
+				dTotalUptake += dUptake;
+				pCXCL13.add(8, 7, 4, -dUptake);
+				pCXCL13.step(null);
+			}
+		} finally {
+			Settings.CXCL13.REEQUILIBRATION_INTERVAL = 0;
+		}
+
+		double[] adNetSource = adSource.clone();
+		adNetSource[pCXCL13.getIndex(8, 7, 4)] = -dTotalUptake / 2;
+		pExpected.initialiseSteadyState(adNetSource, 1e-12);
+
+		double dDifference = 0;
+		for (int i = 0; i < adSource.length; i++) {
+			assertEquals(pExpected.getM_adField()[i],
+					pCXCL13.getM_adField()[i], 1e-8);
+			dDifference = Math.max(dDifference,
+					Math.abs(adSecretionOnly[i] - pCXCL13.getM_adField()[i]));
+		}
+		assertTrue(dDifference > 1e-3);
+	}
+
+	/**
+	 * test that the steady state uses the same decay as adaptiveDiffusion when
+	 * one call to the algorithm covers more than the Settings timestep
+	 */
+	@Test
+	public void testInitialiseSteadyStateLongerCall() {
+
+		Settings.CXCL13.DIFFUSION_COEFFICIENT = 1.6e-12;
+		Settings.GRID_SIZE = 0.00001;
+		Settings.CXCL13.DIFFUSION_TIMESTEP = (Math.pow(Settings.GRID_SIZE, 2) / (10 * Settings.CXCL13.DIFFUSION_COEFFICIENT));
+		Settings.CXCL13.DECAY_CONSTANT = 0.035;
+
+		Schedule schedule = new Schedule();
+		Chemokine m_pParticlemoles = new Chemokine(schedule,
+				Chemokine.TYPE.CXCL13, 15, 15, 8);
+		m_pParticlemoles.setDiffusionAlgorithm(new Grajdeanu(
+				Settings.CXCL13.DIFFUSION_COEFFICIENT, 15, 15, 8, 1,
+				2 * Settings.CXCL13.DIFFUSION_TIMESTEP));
+
+		double[] adSource = new double[15 * 15 * 8];
+		adSource[m_pParticlemoles.getIndex(7, 7, 4)] = 10;
+		adSource[m_pParticlemoles.getIndex(3, 11, 2)] = 5;
+
+		m_pParticlemoles.initialiseSteadyState(adSource, 1e-12);
+
+		// each call covers two Settings timesteps, so decays twice
+		double dAmountLeft = Math.pow(1 - Settings.CXCL13.DECAY_CONSTANT, 2);
+		assertEquals(dAmountLeft, m_pParticlemoles.getAmountLeftPerCall(), 1e-15);
+		double dStepsPerAgentStep = 60 / (2 * Settings.CXCL13.DIFFUSION_TIMESTEP);
+
+		double[] adSteady = m_pParticlemoles.getM_adField().clone();
+		for (int i = 0; i < adSource.length; i++) {
+			m_pParticlemoles.getM_adField()[i] += adSource[i] / dStepsPerAgentStep;
+		}
+		m_pParticlemoles.getM_daDiffusionAlgorithm().diffuse(m_pParticlemoles);
+		m_pParticlemoles.decay(dAmountLeft);
+
+		for (int i = 0; i < adSteady.length; i++) {
+			assertEquals(adSteady[i], m_pParticlemoles.getM_adField()[i], 1e-9);
+		}
+	}
+
+	/**
+	 * test that starting at the steady state with ADI, which can't solve for
+	 * it, is rejected by the settings check
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testSteadyStateRejectsADI() {
+		try {
+			Settings.CXCL13.STEADY_STATE_INIT = true;
+			Settings.CXCL13.DIFFUSION_ALGORITHM = Settings.CXCL13.ALGORITHM.ADI;
+			Settings.CXCL13.checkParameters();
+		} finally {
+			Settings.CXCL13.STEADY_STATE_INIT = false;
+			Settings.CXCL13.DIFFUSION_ALGORITHM = Settings.CXCL13.ALGORITHM.GRAJDEANU;
+		}
+	}
+
+	/**
+	 * test that DIFFUSION_ALGORITHM picks the algorithm each grid is built
+	 * with
+	 */
+	@Test
+	public void testDiffusionAlgorithmSetting() {
+		Schedule schedule = new Schedule();
+
+		try {
+			Settings.CXCL13.DIFFUSION_ALGORITHM = Settings.CXCL13.ALGORITHM.GRAJDEANU_REORDERED;
+			assertTrue(new Chemokine(schedule, Chemokine.TYPE.CXCL13, 11, 11,
+					11).getM_daDiffusionAlgorithm() instanceof GrajdeanuReordered);
+
+			Settings.CXCL13.DIFFUSION_ALGORITHM = Settings.CXCL13.ALGORITHM.SEPARABLE;
+			DiffusionAlgorithmMultiThread daSeparable = new Chemokine(schedule,
+					Chemokine.TYPE.CXCL13, 11, 11, 11)
+					.getM_daDiffusionAlgorithm();
+			assertTrue(daSeparable instanceof Grajdeanu);
+			assertTrue(daSeparable.isSeparable());
+
+			// ADI covers a whole agent step per call
+			Settings.CXCL13.DIFFUSION_ALGORITHM = Settings.CXCL13.ALGORITHM.ADI;
+			DiffusionAlgorithmMultiThread daADI = new Chemokine(schedule,
+					Chemokine.TYPE.CXCL13, 11, 11, 11)
+					.getM_daDiffusionAlgorithm();
+			assertTrue(daADI instanceof ADI);
+			assertEquals(60, daADI.getDiffusionTimestep(), 0);
+		} finally {
+			Settings.CXCL13.DIFFUSION_ALGORITHM = Settings.CXCL13.ALGORITHM.GRAJDEANU;
+		}
+
+		DiffusionAlgorithmMultiThread daDefault = new Chemokine(schedule,
+				Chemokine.TYPE.CXCL13, 11, 11, 11).getM_daDiffusionAlgorithm();
+		assertEquals(Grajdeanu.class, daDefault.getClass());
+		assertFalse(daDefault.isSeparable());
+	}
 }
@@ -0,0 +1,236 @@
+package sim3d.diffusion.algorithms;
+
+import java.io.Serializable;
+
+import sim3d.Settings;
+import sim3d.diffusion.Chemokine;
+
+/**
+ * Implicit diffusion using alternating direction splitting (the locally one
+ * dimensional form of ADI). Each solve takes a backward Euler step along x,
+ * then y, then z, and each of those is a set of independent tridiagonal
+ * systems solved with the Thomas algorithm.
+ *
+ * Backward Euler is unconditionally stable and keeps the field positive, so
+ * unlike Grajdeanu the timestep isn't limited by the grid size and one or two
+ * solves can cover a whole agent step. The interior grid spaces have zero
+ * flux boundaries, so the border is kept empty and chemokine is conserved.
+ *
+ * @author Jason Cosgrove
+ */
+public class ADI extends DiffusionAlgorithmMultiThread implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Modes for the DiffuseThreads, one for each axis
+	 */
+	private static final int SOLVE_X = 10, SOLVE_Y = 11, SOLVE_Z = 12;
+
+	/**
+	 * Number of solves per call to diffuse
+	 */
+	private int m_iSolves;
+
+	/**
+	 * D dt / h^2 for a single solve
+	 */
+	private double m_dR;
+
+	/**
+	 * The Thomas algorithm factors for each axis, indexed by the position
+	 * along the axis. They only depend on m_dR and the size of the grid so
+	 * they are worked out once
+	 */
+	private double[][] m_adDenominators, m_adUpper;
+
+	/**
+	 * Constructor
+	 *
+	 * @param dDiffusionCoefficient
+	 *            The diffusion coefficient in m^2/s
+	 * @param iWidth
+	 *            Width of the space
+	 * @param iHeight
+	 *            Height of the space
+	 * @param iDepth
+	 *            Depth of the space
+	 * @param numThreads
+	 *            Number of threads to use
+	 * @param dTimestep
+	 *            How many seconds one call to diffuse covers
+	 * @param iSolves
+	 *            How many solves to split the timestep into
+	 */
+	public ADI(double dDiffusionCoefficient, int iWidth, int iHeight,
+			int iDepth, int numThreads, double dTimestep, int iSolves) {
+		super(iWidth, iHeight, iDepth, numThreads);
+
+		m_dDiffusionTimestep = dTimestep;
+		m_iSolves = iSolves;
+		m_dR = dDiffusionCoefficient * (dTimestep / iSolves)
+				/ Math.pow(Settings.GRID_SIZE, 2);
+
+		int[] aiSizes = { iWidth, iHeight, iDepth };
+		m_adDenominators = new double[3][];
+		m_adUpper = new double[3][];
+
+		for (int iAxis = 0; iAxis < 3; iAxis++) {
+			factorise(iAxis, aiSizes[iAxis]);
+		}
+	}
+
+	/**
+	 * Forward elimination of the matrix (1 - r L) for a line of interior
+	 * grid spaces 1 to iSize - 2, where L is the 1D Laplacian with zero flux
+	 * at both ends. Only the right hand side changes between lines.
+	 */
+	private void factorise(int iAxis, int iSize) {
+		double[] adDenominators = new double[iSize];
+		double[] adUpper = new double[iSize];
+
+		int iLast = iSize - 2;
+		for (int p = 1; p <= iLast; p++) {
+			// the end spaces only have one neighbour to exchange with
+			double dDiagonal = 1 + m_dR * (((p > 1) ? 1 : 0) + ((p < iLast) ? 1 : 0));
+
+			if (p > 1) {
+				dDiagonal -= m_dR * adUpper[p - 1];
+			}
+			adDenominators[p] = dDiagonal;
+			adUpper[p] = m_dR / dDiagonal;
+		}
+
+		m_adDenominators[iAxis] = adDenominators;
+		m_adUpper[iAxis] = adUpper;
+	}
+
+	/**
+	 * Solve the whole timestep. Anything in the border is bounced back in
+	 * first as the solves only cover the interior
+	 */
+	public void diffuse(Chemokine pSpace) {
+		enforceBoundaryCondition(pSpace);
+
+		for (int i = 0; i < m_iSolves; i++) {
+			// x into the field, y back into the snapshot which is no longer
+			// needed, then z into the field
+			double[] adSnapshot = swapBuffers(pSpace);
+			double[] adField = pSpace.getM_adField();
+
+			runSlabs(SOLVE_X, adField, adSnapshot, 1);
+			runSlabs(SOLVE_Y, adSnapshot, adField, 1);
+			runSlabs(SOLVE_Z, adField, adSnapshot, 1);
+		}
+	}
+
+	/**
+	 * The solves can't absorb the decay so it is applied afterwards
+	 */
+	public double diffuseAndDecay(Chemokine pSpace, double dAmountLeft) {
+		diffuse(pSpace);
+		return decayAndSum(pSpace, dAmountLeft);
+	}
+
+	protected double runSlab(int iMode, double[] adTarget,
+			double[] adConcentrations, double dAmountLeft, int iStartX,
+			int iEndX) {
+		switch (iMode) {
+		case SOLVE_X:
+			// the lines run along x so the slab is shared out by y instead
+			solveLoop(adTarget, adConcentrations, 0, iStartX * m_iHeight
+					/ m_iWidth, iEndX * m_iHeight / m_iWidth);
+			return 0;
+		case SOLVE_Y:
+			solveLoop(adTarget, adConcentrations, 1, iStartX, iEndX);
+			return 0;
+		case SOLVE_Z:
+			solveLoop(adTarget, adConcentrations, 2, iStartX, iEndX);
+			return 0;
+		default:
+			return super.runSlab(iMode, adTarget, adConcentrations,
+					dAmountLeft, iStartX, iEndX);
+		}
+	}
+
+	/**
+	 * Solve every line along one axis whose first other coordinate (y for
+	 * the x axis, x otherwise) is in iFrom &lt;= . &lt; iTo
+	 *
+	 * @param adTarget
+	 *            The field being written
+	 * @param adSource
+	 *            The right hand side
+	 * @param iAxis
+	 *            0, 1 or 2 for x, y or z
+	 */
+	private void solveLoop(double[] adTarget, double[] adSource, int iAxis,
+			int iFrom, int iTo) {
+		int iStrideX = m_iHeight * m_iDepth;
+
+		if (iAxis == 0) {
+			for (int y = iFrom; y < iTo; y++) {
+				for (int z = 0; z < m_iDepth; z++) {
+					boolean bBorder = y == 0 || y == m_iHeight - 1 || z == 0
+							|| z == m_iDepth - 1;
+					solveLine(adTarget, adSource, y * m_iDepth + z, iStrideX,
+							m_iWidth, iAxis, bBorder);
+				}
+			}
+		} else if (iAxis == 1) {
+			for (int x = iFrom; x < iTo; x++) {
+				for (int z = 0; z < m_iDepth; z++) {
+					boolean bBorder = x == 0 || x == m_iWidth - 1 || z == 0
+							|| z == m_iDepth - 1;
+					solveLine(adTarget, adSource, x * iStrideX + z, m_iDepth,
+							m_iHeight, iAxis, bBorder);
+				}
+			}
+		} else {
+			for (int x = iFrom; x < iTo; x++) {
+				for (int y = 0; y < m_iHeight; y++) {
+					boolean bBorder = x == 0 || x == m_iWidth - 1 || y == 0
+							|| y == m_iHeight - 1;
+					solveLine(adTarget, adSource, x * iStrideX + y * m_iDepth,
+							1, m_iDepth, iAxis, bBorder);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Thomas algorithm for one line of the grid. Lines on the border, and the
+	 * two border spaces at the ends of each line, are copied across unchanged
+	 */
+	private void solveLine(double[] adTarget, double[] adSource, int iBase,
+			int iStride, int iSize, int iAxis, boolean bBorder) {
+		if (bBorder || iSize < 3) {
+			for (int p = 0, i = iBase; p < iSize; p++, i += iStride) {
+				adTarget[i] = adSource[i];
+			}
+			return;
+		}
+
+		double[] adDenominators = m_adDenominators[iAxis];
+		double[] adUpper = m_adUpper[iAxis];
+		int iLast = iSize - 2;
+
+		adTarget[iBase] = adSource[iBase];
+		adTarget[iBase + (iSize - 1) * iStride] = adSource[iBase
+				+ (iSize - 1) * iStride];
+
+		// forward sweep
+		int i = iBase + iStride;
+		double dPrevious = 0;
+		for (int p = 1; p <= iLast; p++, i += iStride) {
+			dPrevious = (adSource[i] + m_dR * dPrevious) / adDenominators[p];
+			adTarget[i] = dPrevious;
+		}
+
+		// back substitution
+		i -= 2 * iStride;
+		for (int p = iLast - 1; p >= 1; p--, i -= iStride) {
+			adTarget[i] += adUpper[p] * adTarget[i + iStride];
+		}
+	}
+}
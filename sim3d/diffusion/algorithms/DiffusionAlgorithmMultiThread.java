@@ -2,9 +2,12 @@ package sim3d.diffusion.algorithms;
 
 import sim3d.diffusion.Chemokine;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
 
 
 
@@ -26,7 +29,26 @@ public class DiffusionAlgorithmMultiThread
 	 * neighbourhood, usually proportional to the distance to the neighbour
 	 */
 	protected double[][][]	m_adDiffusionCoefficients;
+	
+	/**
+	 * The 1D kernel {-1, 0, +1} whose product along x, y and z gives
+	 * m_adDiffusionCoefficients. Only set by algorithms whose neighbourhood
+	 * is separable, null otherwise
+	 */
+	protected double[]		m_adSeparableCoefficients;
+	
+	/**
+	 * If true diffuse runs three 1D passes using m_adSeparableCoefficients
+	 * instead of the 27 point stencil
+	 */
+	private boolean			m_bSeparable = false;
 							
+	/**
+	 * How many seconds a single call to diffuse moves the field forward. 0 if
+	 * the algorithm leaves it to the Chemokine
+	 */
+	protected double		m_dDiffusionTimestep = 0;
+	
 	/**
 	 * The height, width, and depth of the space being diffused in
 	 */
@@ -44,6 +66,29 @@ public class DiffusionAlgorithmMultiThread
 	 */
 	private DiffuseThread m_atThreads[];
 	
+	/**
+	 * m_atThreads as a list so it can be handed straight to the pool
+	 */
+	private List<DiffuseThread> m_lTasks;
+	
+	/**
+	 * Long-lived pool that runs the DiffuseThreads; created once so we don't
+	 * pay for thread creation on every diffusion step
+	 */
+	private ExecutorService m_esPool;
+	
+	/**
+	 * What the DiffuseThreads should run on each slab
+	 */
+	protected static final int STENCIL = 0, FUSED = 1, PASS_X = 2, PASS_Y = 3, PASS_Z = 4, CONVOLVE = 5;
+	
+	/**
+	 * The spare half of the ping-pong buffer. Each step the chemokine field and
+	 * this buffer swap places, so the previous field becomes the read-only
+	 * snapshot and nothing needs to be allocated
+	 */
+	private double[] m_adBuffer;
+	
 	/**
 	 * Constructor. Sets member variables
 	 * 
@@ -62,19 +107,42 @@ public class DiffusionAlgorithmMultiThread
 		
 		m_iThreads =numThreads;
 		
+		m_adBuffer = new double[iWidth * iHeight * iDepth];
+		
 		if ( m_iThreads > 1 )
 		{
+			// every column of the grid is gathered, including the borders, so
+			// the slabs cover 0 to iWidth
 			m_atThreads = new DiffuseThread[m_iThreads];
 			for ( int i = 0; i < m_iThreads; i++ )
 			{
-				int endX = 1+(i+1)*((iWidth-1)/m_iThreads);
-				if ( i == m_iThreads-1 )
+				m_atThreads[i] = new DiffuseThread(i*iWidth/m_iThreads, (i+1)*iWidth/m_iThreads);
+			}
+			m_lTasks = Arrays.asList(m_atThreads);
+			
+			// daemon threads so an idle pool never keeps the JVM alive
+			m_esPool = Executors.newFixedThreadPool(m_iThreads, new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
 				{
-					endX = iWidth-1;
+					Thread t = new Thread(r, "diffusion");
+					t.setDaemon(true);
+					return t;
 				}
-				
-				m_atThreads[i] = new DiffuseThread(1+i*((iWidth-1)/m_iThreads),1,1, endX, iHeight-1, iDepth-1);
-			}
+			});
+		}
+	}
+	
+	/**
+	 * Stop the worker pool. Must be called once the algorithm is no longer
+	 * used by a Chemokine
+	 */
+	public void shutdown()
+	{
+		if ( m_esPool != null )
+		{
+			m_esPool.shutdown();
+			m_esPool = null;
 		}
 	}
 	
@@ -88,223 +156,782 @@ public class DiffusionAlgorithmMultiThread
 	 */
 	public void diffuse( Chemokine pSpace )
 	{
-		// A temporary variable containing the previous value of pSpace.field
-		double[][][] ia3Concentrations = new double[m_iWidth][m_iHeight][m_iDepth];
+		if ( m_bSeparable )
+		{
+			diffuseSeparable(pSpace);
+			return;
+		}
+		
+		// The previous values of the field
+		double[] adConcentrations = swapBuffers(pSpace);
+		
+		runSlabs(STENCIL, pSpace.getM_adField(), adConcentrations, 1);
+
+		enforceBoundaryCondition(pSpace);
+	}
+	
+	/**
+	 * Fused alternative to calling diffuse followed by Chemokine.decay. The
+	 * stencil, the reflecting boundary and the decay are applied in a single
+	 * pass over the grid, giving the same values as the separate passes.
+	 * 
+	 * @param pSpace
+	 *            The Particle object to visit
+	 * @param dAmountLeft
+	 *            The fraction of chemokine left after decay
+	 * @return the total amount of chemokine left on the grid
+	 */
+	public double diffuseAndDecay( Chemokine pSpace, double dAmountLeft )
+	{
+		if ( m_bSeparable )
+		{
+			// the passes can't absorb the decay, so it is done on the way
+			// through the total instead
+			diffuseSeparable(pSpace);
+			return decayAndSum(pSpace, dAmountLeft);
+		}
+		
+		double[] adConcentrations = swapBuffers(pSpace);
+		
+		return runSlabs(FUSED, pSpace.getM_adField(), adConcentrations, dAmountLeft);
+	}
+	
+	/**
+	 * Apply the decay to the field and total it in one pass, for algorithms
+	 * that can't fold the decay into their own loops
+	 * 
+	 * @param pSpace
+	 *            The Particle object to visit
+	 * @param dAmountLeft
+	 *            The fraction of chemokine left after decay
+	 * @return the total amount of chemokine left on the grid
+	 */
+	protected double decayAndSum( Chemokine pSpace, double dAmountLeft )
+	{
+		double[] adField = pSpace.getM_adField();
+		double dTotal = 0;
+		for ( int i = 0; i < adField.length; i++ )
+		{
+			adField[i] *= dAmountLeft;
+			dTotal += adField[i];
+		}
+		return dTotal;
+	}
+	
+	/**
+	 * Separable form of the stencil. As the coefficients sum to one, the
+	 * gather stencil on an interior grid space is just the convolution of the
+	 * field with m_adDiffusionCoefficients, which factors into three 3-tap
+	 * passes, 9 multiply-adds per grid space instead of 27.
+	 * 
+	 * Border grid spaces never diffuse outwards, which is the same as the
+	 * convolution as long as they are empty. So anything in the border is
+	 * bounced back in before the passes rather than after; the amount of
+	 * chemokine is conserved either way.
+	 * 
+	 * @param pSpace
+	 *            The Particle object to visit
+	 */
+	protected void diffuseSeparable( Chemokine pSpace )
+	{
+		enforceBoundaryCondition(pSpace);
+		
+		// x pass from the snapshot into the field, y pass back into the
+		// snapshot which is no longer needed, then z pass into the field
+		double[] adSnapshot = swapBuffers(pSpace);
+		double[] adField = pSpace.getM_adField();
+		
+		runSlabs(PASS_X, adField, adSnapshot, 1);
+		runSlabs(PASS_Y, adSnapshot, adField, 1);
+		runSlabs(PASS_Z, adField, adSnapshot, 1);
+		
+		enforceBoundaryCondition(pSpace);
+	}
+	
+	/**
+	 * Run one of the loops over the whole grid, split into x slabs if we have
+	 * more than one thread
+	 * 
+	 * @return the total on the grid if iMode is FUSED, otherwise 0
+	 */
+	protected double runSlabs( int iMode, double[] adTarget, double[] adConcentrations, double dAmountLeft )
+	{
+		if ( m_iThreads > 1 )
+		{
+			for ( int i = 0; i < m_iThreads; i++ )
+			{
+				m_atThreads[i].update(iMode, adTarget, adConcentrations, dAmountLeft);
+			}
+			try {
+				// blocks until every slab has been diffused
+				m_esPool.invokeAll(m_lTasks);
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			
+			// sum in slab order so the total doesn't depend on scheduling
+			double dTotal = 0;
+			for ( int i = 0; i < m_iThreads; i++ )
+			{
+				dTotal += m_atThreads[i].m_dTotal;
+			}
+			return dTotal;
+		}
 		
-		// Copy the contents of field over
-		// Note: we can't use clone() or just set the variable because of the
-		// fact that Java uses pointers
-		// too much so they would both still reference the same variable.
+		return runSlab(iMode, adTarget, adConcentrations, dAmountLeft, 0, m_iWidth);
+	}
+	
+	/**
+	 * Run one of the loops over the slab iStartX &lt;= x &lt; iEndX. Subclasses
+	 * can add their own modes and pass the rest on to this
+	 * 
+	 * @return the total in the slab if iMode is FUSED, otherwise 0
+	 */
+	protected double runSlab( int iMode, double[] adTarget, double[] adConcentrations, double dAmountLeft, int iStartX, int iEndX )
+	{
+		switch ( iMode )
+		{
+			case FUSED:
+				return fusedLoop(adTarget, adConcentrations, dAmountLeft, iStartX, iEndX);
+			case PASS_X:
+				convolveLoop(adTarget, adConcentrations, 0, iStartX, iEndX);
+				return 0;
+			case PASS_Y:
+				convolveLoop(adTarget, adConcentrations, 1, iStartX, iEndX);
+				return 0;
+			case PASS_Z:
+				convolveLoop(adTarget, adConcentrations, 2, iStartX, iEndX);
+				return 0;
+			case CONVOLVE:
+				linearLoop(adTarget, adConcentrations, iStartX, iEndX);
+				return 0;
+			default:
+				diffuseLoop(adTarget, adConcentrations, iStartX, iEndX);
+				return 0;
+		}
+	}
+	
+	/**
+	 * Switch between the 27 point stencil and three 1D passes
+	 * 
+	 * @param bSeparable
+	 *            true to use the 1D passes
+	 */
+	public void setSeparable( boolean bSeparable )
+	{
+		if ( bSeparable && m_adSeparableCoefficients == null )
+		{
+			throw new IllegalStateException("The diffusion coefficients of this algorithm are not separable");
+		}
+		m_bSeparable = bSeparable;
+	}
+	
+	public boolean isSeparable()
+	{
+		return m_bSeparable;
+	}
+	
+	public double getDiffusionTimestep()
+	{
+		return m_dDiffusionTimestep;
+	}
+	
+	/**
+	 * Solve for the steady state of the field when adSource is added before
+	 * every diffusion step, i.e. the field u with u = F(u + s) where F is one
+	 * step of diffusion, boundary and decay.
+	 * 
+	 * While the border is empty F is linear on the interior: the convolution
+	 * of the field with m_adDiffusionCoefficients, bounced back in and decayed.
+	 * Bouncing back in is a reflection so F is symmetric, and its eigenvalues
+	 * are at most dAmountLeft in size, so (I - F)u = F(s) is positive definite
+	 * and is solved with conjugate gradients starting from the current field,
+	 * preconditioned with a multigrid V-cycle so the number of iterations
+	 * stays small as the grid grows.
+	 * 
+	 * @param pSpace
+	 *            The Particle object to solve for, its field is replaced
+	 * @param adSource
+	 *            The amount added to each grid space before each step
+	 * @param dAmountLeft
+	 *            The fraction of chemokine left after decay
+	 * @param dTolerance
+	 *            Stop once the residual is this fraction of F(s)
+	 * @param iMaxIterations
+	 *            Stop after this many iterations regardless
+	 * @return the number of iterations taken
+	 */
+	public int solveSteadyState( Chemokine pSpace, double[] adSource, double dAmountLeft, double dTolerance, int iMaxIterations )
+	{
+		if ( m_adDiffusionCoefficients == null )
+		{
+			throw new IllegalStateException("The steady state needs the diffusion coefficients of the stencil");
+		}
+		
+		int iLength = adSource.length;
+		
+		// start from the current field, which needs an empty border
+		enforceBoundaryCondition(pSpace);
+		double[] adX = pSpace.getM_adField();
+		
+		double[] adResidual = new double[iLength];
+		double[] adDirection = new double[iLength];
+		double[] adProduct = new double[iLength];
+		double[] adPreconditioned = new double[iLength];
+		
+		Multigrid mgPreconditioner = new Multigrid(m_iWidth, m_iHeight, m_iDepth, getVariance(), dAmountLeft);
+		
+		// b = F(s). Border spaces don't diffuse outwards, so only the interior
+		// of the source is convolved and the border is just bounced in. This
+		// is exact for sources in the interior, a source on the border also
+		// changes what its neighbours lose to it. The direction is free to
+		// use as scratch until r is known
+		int iIndex = 0;
 		for ( int x = 0; x < m_iWidth; x++ )
 		{
 			for ( int y = 0; y < m_iHeight; y++ )
 			{
-				for ( int z = 0; z < m_iDepth; z++ )
+				for ( int z = 0; z < m_iDepth; z++, iIndex++ )
 				{
-					ia3Concentrations[x][y][z] = pSpace.field[x][y][z];
+					boolean bBorder = x == 0 || x == m_iWidth - 1 || y == 0 || y == m_iHeight - 1
+							|| z == 0 || z == m_iDepth - 1;
+					adDirection[iIndex] = bBorder ? 0 : adSource[iIndex];
 				}
 			}
 		}
+		double[] adB = new double[iLength];
+		runSlabs(CONVOLVE, adB, adDirection, 1);
+		for ( int i = 0; i < iLength; i++ )
+		{
+			adB[i] = (adB[i] + adSource[i] - adDirection[i]) * dAmountLeft;
+		}
+		enforceBoundaryCondition(adB);
 		
-		// Precalculate these values for the edge checks inside the for loops
-		// so we don't have to keep recalculating them
-		if ( m_iThreads > 1 )
+		// r = b - (x - F(x))
+		applyStep(adProduct, adX, dAmountLeft);
+		for ( int i = 0; i < iLength; i++ )
 		{
-			ExecutorService es = Executors.newCachedThreadPool();
-			for ( int i = 0; i < m_iThreads; i++ )
+			adResidual[i] = adB[i] - adX[i] + adProduct[i];
+		}
+		
+		// z = M r, p = z
+		mgPreconditioner.vCycle(adPreconditioned, adResidual);
+		System.arraycopy(adPreconditioned, 0, adDirection, 0, iLength);
+		
+		double dTarget = dTolerance * dTolerance * dot(adB, adB);
+		double dResidual = dot(adResidual, adResidual);
+		double dRZ = dot(adResidual, adPreconditioned);
+		
+		int iIteration = 0;
+		while ( iIteration < iMaxIterations && dResidual > dTarget )
+		{
+			// Ap = p - F(p)
+			applyStep(adProduct, adDirection, dAmountLeft);
+			for ( int i = 0; i < iLength; i++ )
 			{
-				m_atThreads[i].update(pSpace, ia3Concentrations, m_adDiffusionCoefficients);
-
-				es.execute( m_atThreads[i] );
+				adProduct[i] = adDirection[i] - adProduct[i];
 			}
-			es.shutdown();
-			try {
-				es.awaitTermination(1, TimeUnit.MINUTES);
+			
+			double dAlpha = dRZ / dot(adDirection, adProduct);
+			for ( int i = 0; i < iLength; i++ )
+			{
+				adX[i] += dAlpha * adDirection[i];
+				adResidual[i] -= dAlpha * adProduct[i];
 			}
-			catch(InterruptedException e)
+			dResidual = dot(adResidual, adResidual);
+			
+			mgPreconditioner.vCycle(adPreconditioned, adResidual);
+			double dNewRZ = dot(adResidual, adPreconditioned);
+			double dBeta = dNewRZ / dRZ;
+			for ( int i = 0; i < iLength; i++ )
 			{
+				adDirection[i] = adPreconditioned[i] + dBeta * adDirection[i];
 			}
+			
+			dRZ = dNewRZ;
+			iIteration++;
 		}
-		else
+		
+		// round off can leave tiny negative values where there is no chemokine
+		for ( int i = 0; i < iLength; i++ )
 		{
-			// Loop through the grid spaces ignoring borders for now
-			diffuseLoop(pSpace, ia3Concentrations, 1,1,1, m_iWidth-1, m_iHeight-1, m_iDepth-1);
+			adX[i] = Math.max(0, adX[i]);
 		}
-
-			enforceBoundaryCondition(pSpace);
+		
+		return iIteration;
+	}
+	
+	/**
+	 * The second moment of m_adDiffusionCoefficients along each axis, in grid
+	 * spaces squared. One diffusion step is roughly the field plus half of
+	 * this times its second derivative along each axis
+	 */
+	protected double[] getVariance()
+	{
+		double[] adVariance = new double[3];
+		
+		for ( int r = -1; r < 2; r++ )
+		{
+			for ( int s = -1; s < 2; s++ )
+			{
+				for ( int t = -1; t < 2; t++ )
+				{
+					double dCoefficient = m_adDiffusionCoefficients[r + 1][s + 1][t + 1];
+					adVariance[0] += dCoefficient * r * r;
+					adVariance[1] += dCoefficient * s * s;
+					adVariance[2] += dCoefficient * t * t;
+				}
+			}
+		}
+		
+		return adVariance;
+	}
+	
+	/**
+	 * The linear form of one diffusion step with decay, for fields with an
+	 * empty border. adTarget = dAmountLeft * bounce(convolve(adSource))
+	 */
+	protected void applyStep( double[] adTarget, double[] adSource, double dAmountLeft )
+	{
+		runSlabs(CONVOLVE, adTarget, adSource, 1);
+		enforceBoundaryCondition(adTarget);
+		
+		for ( int i = 0; i < adTarget.length; i++ )
+		{
+			adTarget[i] *= dAmountLeft;
+		}
+	}
+	
+	private static double dot( double[] adA, double[] adB )
+	{
+		double dSum = 0;
+		for ( int i = 0; i < adA.length; i++ )
+		{
+			dSum += adA[i] * adB[i];
+		}
+		return dSum;
+	}
+	
+	/**
+	 * Swap the flat field of pSpace with the spare buffer. The old field is
+	 * returned to be used as the snapshot and becomes the spare buffer for the
+	 * next step. No copy is needed as diffuseLoop writes every grid space of
+	 * the new field.
+	 * 
+	 * @param pSpace
+	 *            The Particle object being diffused
+	 * @return the previous contents of the field
+	 */
+	protected double[] swapBuffers( Chemokine pSpace )
+	{
+		double[] adSnapshot = pSpace.getM_adField();
+		
+		pSpace.setM_adField(m_adBuffer);
+		m_adBuffer = adSnapshot;
+		
+		return adSnapshot;
 	}
 	
 	/**
 	 * Enforce the boundary condition so all of the chemokine will bounce back in...
+	 * Everything in a border grid space is moved to the nearest interior grid
+	 * space
+	 * 
 	 * @param pSpace
 	 * 
 	 */
-	private void enforceBoundaryCondition(Chemokine pSpace){
+	protected void enforceBoundaryCondition(Chemokine pSpace){
+		
+		enforceBoundaryCondition(pSpace.getM_adField());
+	}
+	
+	/**
+	 * Enforce the boundary condition on a flat field
+	 * 
+	 * @param adField
+	 *            The field, indexed as in Chemokine.getIndex
+	 */
+	protected void enforceBoundaryCondition(double[] adField){
+		
+		int iMaxX = m_iWidth - 1, iMaxY = m_iHeight - 1, iMaxZ = m_iDepth - 1;
 		
-		// you want to iterate through 1 to gridwidth,height depth -1 so we
-		// precalculate for efficiency
-		int iWidth = m_iWidth - 1;
-		int iHeight = m_iHeight - 1 ; 
-		int iDepth = m_iDepth - 1;
-
-		// Now enforce the boundary condition
-		int xEdge = -1, yEdge = -1, zEdge = -1;
-
 		for (int x = 0; x < m_iWidth; x++) {
-			// Check if this is on the x edge
-			// So this will be calculated m_iWidth times in total
-			if (x == 0) {
-				xEdge = 1;
-			} else if (x == iWidth) {
-				xEdge = m_iWidth - 2;
-			}
-
+			boolean bXEdge = (x == 0 || x == iMaxX);
+			// the interior x coordinate to bounce back to
+			int xIn = (x == 0) ? 1 : (x == iMaxX) ? m_iWidth - 2 : x;
+			
 			for (int y = 0; y < m_iHeight; y++) {
-				// Check if this is on the y edge
-				// So this will be calculated m_iWidth*m_iHeight times in total
-				if (y == 0) {
-					yEdge = 1;
-				} else if (y == iHeight) {
-					yEdge = m_iHeight - 2;
-				}
+				boolean bXYEdge = bXEdge || y == 0 || y == iMaxY;
+				int yIn = (y == 0) ? 1 : (y == iMaxY) ? m_iHeight - 2 : y;
+				
+				int iRow = (x * m_iHeight + y) * m_iDepth;
+				int iRowIn = (xIn * m_iHeight + yIn) * m_iDepth;
+				
 				for (int z = 0; z < m_iDepth; z++) {
-					// Check if this is on the z edge
-					// and this will be calculated m_iWidth*m_iHeight*m_iDepth
-					// times in total
-					if (z == 0) {
-						zEdge = 1;
-					} else if (z == iDepth) {
-						zEdge = m_iDepth - 2;
-					}
-
-					if (xEdge != -1 || yEdge != -1 || zEdge != -1) {
-						// bounce it all back in
-						// chooses the x coordinate, then the y and so on
-						// if the edge is -1 return x, else return xEdge
-						
-						pSpace.field[(xEdge == -1) ? x : xEdge] 
-						[(yEdge == -1) ? y : yEdge] 
-						[(zEdge == -1) ? z : zEdge]
-						+= pSpace.field[x][y][z];
-						
-						// the actual boundary is zero but we are only
-						// interested in boundary -1 in each axis
-						// gives you a buffer zone
-						pSpace.field[x][y][z] = 0;
-
-					} else if (xEdge == -1 && yEdge == -1) {
-						// this will be z = 0 and we skip to the end to save
-						// time
-						z = m_iDepth - 2;
+					if (!bXYEdge && z > 0 && z < iMaxZ) {
+						// only the two z edges are on the border here so we
+						// skip to the end to save time
+						z = iMaxZ - 1;
+						continue;
 					}
-
-					zEdge = -1;
+					
+					int zIn = (z == 0) ? 1 : (z == iMaxZ) ? m_iDepth - 2 : z;
+					
+					// bounce it all back in
+					adField[iRowIn + zIn] += adField[iRow + z];
+					
+					// the actual boundary is zero but we are only
+					// interested in boundary -1 in each axis
+					// gives you a buffer zone
+					adField[iRow + z] = 0;
 				}
-
-				yEdge = -1;
 			}
-
-			xEdge = -1;
 		}
+	}
+	
+	class DiffuseThread implements Callable<Object> {
+		
+		private int m_iStartX, m_iEndX;
+		private double[] m_adConcentrations;
+		private double[] m_adTarget;
+		private int m_iMode;
+		private double m_dAmountLeft;
+		
+		/**
+		 * The total of this slab after a fused step
+		 */
+		private double m_dTotal;
 		
+		public DiffuseThread(int iStartX, int iEndX)
+		{
+			m_iStartX = iStartX;
+			m_iEndX = iEndX;
+		}
+		
+		public void update(int iMode, double[] adTarget, double[] adConcentrations, double dAmountLeft)
+		{
+			m_iMode = iMode;
+			m_adTarget = adTarget;
+			m_adConcentrations = adConcentrations;
+			m_dAmountLeft = dAmountLeft;
+		}
 		
+		public Object call()
+		{
+			m_dTotal = runSlab(m_iMode, m_adTarget, m_adConcentrations, m_dAmountLeft, m_iStartX, m_iEndX);
+			return null;
+		}
 	}
 	
-	class DiffuseThread extends Thread {
+	
+	/**
+	 * One 3-tap pass of the separable stencil along one axis, over the slab
+	 * iStartX &lt;= x &lt; iEndX.
+	 * Anything past the edge of the grid is treated as empty.
+	 * 
+	 * @param adTarget
+	 *            The field being written, every space in the slab is set
+	 * @param adSource
+	 *            The field being read
+	 * @param iAxis
+	 *            0, 1 or 2 for x, y or z
+	 * @param iStartX
+	 *            First x column of the slab
+	 * @param iEndX
+	 *            One past the last x column of the slab
+	 */
+	public void convolveLoop(double[] adTarget, double[] adSource, int iAxis, int iStartX, int iEndX)
+	{
+		double dLow = m_adSeparableCoefficients[0];
+		double dCentre = m_adSeparableCoefficients[1];
+		double dHigh = m_adSeparableCoefficients[2];
+		
+		// distance between neighbours along the axis in the flat array, and
+		// the size of the grid along it
+		int iStride = (iAxis == 0) ? m_iHeight * m_iDepth : (iAxis == 1) ? m_iDepth : 1;
+		int iSize = (iAxis == 0) ? m_iWidth : (iAxis == 1) ? m_iHeight : m_iDepth;
 		
-		private int m_iStartX, m_iStartY, m_iStartZ, m_iWidth, m_iHeight, m_iDepth;
-		private double[][][] m_ia3Concentrations;
-		private Chemokine m_pSpace;
-		private double[][][]	m_adDiffusionCoefficients;
+		int i = iStartX * m_iHeight * m_iDepth;
 		
-		public DiffuseThread(int iStartX, int iStartY, int iStartZ, int iWidth, int iHeight, int iDepth)
+		for ( int x = iStartX; x < iEndX; x++ )
 		{
-			m_iStartX = iStartX;
-			m_iStartY = iStartY;
-			m_iStartZ = iStartZ;
-			m_iWidth = iWidth;
-			m_iHeight = iHeight;
-			m_iDepth = iDepth;
+			for ( int y = 0; y < m_iHeight; y++ )
+			{
+				for ( int z = 0; z < m_iDepth; z++, i++ )
+				{
+					int p = (iAxis == 0) ? x : (iAxis == 1) ? y : z;
+					
+					double dNew = dCentre * adSource[i];
+					if ( p > 0 )
+					{
+						dNew += dLow * adSource[i - iStride];
+					}
+					if ( p < iSize - 1 )
+					{
+						dNew += dHigh * adSource[i + iStride];
+					}
+					adTarget[i] = dNew;
+				}
+			}
 		}
+	}
+	
+	/**
+	 * Apply the stencil to every grid space in the slab
+	 * iStartX &lt;= x &lt; iEndX. Each grid space is written exactly once, so
+	 * slabs can run in any order on any number of threads and give
+	 * bit-identical results.
+	 * 
+	 * The fields are flat, indexed as in Chemokine.getIndex
+	 * 
+	 * @param adTarget
+	 *            The field being written, every space in the slab is set
+	 * @param adConcentrations
+	 *            The snapshot of the previous step
+	 * @param iStartX
+	 *            First x column of the slab
+	 * @param iEndX
+	 *            One past the last x column of the slab
+	 */
+	public void diffuseLoop(double[] adTarget, double[] adConcentrations, int iStartX, int iEndX)
+	{
+		int i = iStartX * m_iHeight * m_iDepth;
 		
-		public void update(Chemokine pSpace, double[][][] ia3Concentrations, double[][][] adDiffusionCoefficients)
+		for ( int x = iStartX; x < iEndX; x++ )
 		{
-			m_pSpace = pSpace;
-			m_ia3Concentrations = ia3Concentrations;
-			m_adDiffusionCoefficients = adDiffusionCoefficients;
+			for ( int y = 0; y < m_iHeight; y++ )
+			{
+				for ( int z = 0; z < m_iDepth; z++ )
+				{
+					adTarget[i++] = gatherCell(adConcentrations, x, y, z);
+				}
+			}
 		}
+	}
+	
+	/**
+	 * Plain convolution of the field with m_adDiffusionCoefficients over the
+	 * slab iStartX &lt;= x &lt; iEndX, treating anything past the edge of the
+	 * grid as empty. Unlike the stencil this is linear for negative values
+	 * too; the two agree while the border is empty and the field positive.
+	 * 
+	 * @param adTarget
+	 *            The field being written, every space in the slab is set
+	 * @param adSource
+	 *            The field being read
+	 * @param iStartX
+	 *            First x column of the slab
+	 * @param iEndX
+	 *            One past the last x column of the slab
+	 */
+	public void linearLoop(double[] adTarget, double[] adSource, int iStartX, int iEndX)
+	{
+		int iStrideX = m_iHeight * m_iDepth;
+		int i = iStartX * iStrideX;
 		
-		public void run()
+		for ( int x = iStartX; x < iEndX; x++ )
 		{
-			for ( int x = m_iStartX; x < m_iWidth; x++ )
+			for ( int y = 0; y < m_iHeight; y++ )
 			{
-				for ( int y = m_iStartY ; y < m_iHeight; y++ )
+				for ( int z = 0; z < m_iDepth; z++, i++ )
 				{
-					for ( int z = m_iStartZ; z < m_iDepth; z++ )
+					double dNew = 0;
+					
+					for ( int r = -1; r < 2; r++ )
 					{
-						for ( int r = -1; r < 2; r++ )
+						if ( x + r < 0 || x + r >= m_iWidth )
 						{
-							for ( int s = -1; s < 2; s++ )
+							continue;
+						}
+						for ( int s = -1; s < 2; s++ )
+						{
+							if ( y + s < 0 || y + s >= m_iHeight )
+							{
+								continue;
+							}
+							int iNRow = i + r * iStrideX + s * m_iDepth;
+							
+							for ( int t = -1; t < 2; t++ )
 							{
-								for ( int t = -1; t < 2; t++ )
+								if ( z + t < 0 || z + t >= m_iDepth )
 								{
-									double iDelta = (double) (m_adDiffusionCoefficients[r + 1][s + 1][t + 1]
-											* (m_ia3Concentrations[x][y][z] - m_ia3Concentrations[x + r][y + s][z + t]));
-											
-									// if negative, then the net diffusion direction
-									// is TO this grid space, so we just ignore it
-									if ( iDelta > 0 )
-									{
-										m_pSpace.field[x + r][y + s][z + t] += iDelta;
-										m_pSpace.field[x][y][z] -= iDelta;
-									}
+									continue;
 								}
+								dNew += m_adDiffusionCoefficients[r + 1][s + 1][t + 1] * adSource[iNRow + t];
 							}
 						}
 					}
+					
+					adTarget[i] = dNew;
 				}
 			}
 		}
 	}
 	
-	
-	
-	
-	public void diffuseLoop(Chemokine pSpace, double[][][] ia3Concentrations, int iStartX, int iStartY, int iStartZ, int iWidth, int iHeight, int iDepth)
+	/**
+	 * Fused stencil, boundary and decay for the slab iStartX &lt;= x &lt; iEndX.
+	 * The border grid spaces are zeroed and each interior grid space takes its
+	 * own stencil value plus those of the border spaces that enforceBoundaryCondition
+	 * would bounce back into it, added in the same order, then decays.
+	 * 
+	 * @param adTarget
+	 *            The field being written, every space in the slab is set
+	 * @param adConcentrations
+	 *            The snapshot of the previous step
+	 * @param dAmountLeft
+	 *            The fraction of chemokine left after decay
+	 * @param iStartX
+	 *            First x column of the slab
+	 * @param iEndX
+	 *            One past the last x column of the slab
+	 * @return the total amount of chemokine in the slab
+	 */
+	public double fusedLoop(double[] adTarget, double[] adConcentrations, double dAmountLeft, int iStartX, int iEndX)
 	{
-		for ( int x = iStartX; x < iWidth; x++ )
+		int iMaxX = m_iWidth - 1, iMaxY = m_iHeight - 1, iMaxZ = m_iDepth - 1;
+		double dTotal = 0;
+		int i = iStartX * m_iHeight * m_iDepth;
+		
+		for ( int x = iStartX; x < iEndX; x++ )
 		{
-			for ( int y = iStartY ; y < iHeight; y++ )
+			boolean bXEdge = (x == 0 || x == iMaxX);
+			// the border columns which bounce back into this one
+			int xLo = (x == 1) ? 0 : x;
+			int xHi = (x == iMaxX - 1) ? iMaxX : x;
+			
+			for ( int y = 0; y < m_iHeight; y++ )
 			{
-				for ( int z = iStartZ; z < iDepth; z++ )
+				boolean bXYEdge = bXEdge || y == 0 || y == iMaxY;
+				int yLo = (y == 1) ? 0 : y;
+				int yHi = (y == iMaxY - 1) ? iMaxY : y;
+				
+				for ( int z = 0; z < m_iDepth; z++, i++ )
 				{
-					// We now diffuse from this grid space outwards
-
-					for ( int r = -1; r < 2; r++ )
+					if ( bXYEdge || z == 0 || z == iMaxZ )
 					{
-						for ( int s = -1; s < 2; s++ )
+						adTarget[i] = 0;
+						continue;
+					}
+					
+					int zLo = (z == 1) ? 0 : z;
+					int zHi = (z == iMaxZ - 1) ? iMaxZ : z;
+					
+					double dNew = gatherCell(adConcentrations, x, y, z);
+					
+					for ( int bx = xLo; bx <= xHi; bx++ )
+					{
+						for ( int by = yLo; by <= yHi; by++ )
 						{
-							for ( int t = -1; t < 2; t++ )
+							for ( int bz = zLo; bz <= zHi; bz++ )
 							{
-								double iDelta = (double) (m_adDiffusionCoefficients[r + 1][s + 1][t + 1]
-										* (ia3Concentrations[x][y][z] - ia3Concentrations[x + r][y + s][z + t]));
-										
-								// if negative, then the net diffusion direction
-								// is TO this grid space, so we just ignore it
-								if ( iDelta > 0 )
+								if ( bx != x || by != y || bz != z )
 								{
-									pSpace.field[x + r][y + s][z + t] += iDelta;
-									pSpace.field[x][y][z] -= iDelta;
+									dNew += gatherCell(adConcentrations, bx, by, bz);
 								}
-								
 							}
 						}
 					}
-
-
+					
+					dNew = dNew * dAmountLeft;
+					adTarget[i] = dNew;
+					dTotal += dNew;
+				}
+			}
+		}
+		
+		return dTotal;
+	}
+	
+	/**
+	 * Gather form of the diffusion stencil. The grid space pulls its inflow
+	 * and outflow from the snapshot, so nothing else is written.
+	 * 
+	 * This is equivalent to the original scatter form, where only the
+	 * interior grid spaces diffused outwards and only when the concentration
+	 * difference was positive. Between two interior spaces exactly one of the
+	 * two directions is positive, so the signed difference is used. A border
+	 * space only receives from interior neighbours, and an interior space only
+	 * loses to border neighbours. The coefficients are symmetric so the same
+	 * coefficient serves both directions.
+	 * 
+	 * @param adConcentrations
+	 *            The snapshot of the previous step
+	 * @param x
+	 *            X position on the grid
+	 * @param y
+	 *            Y position on the grid
+	 * @param z
+	 *            Z position on the grid
+	 * @return the new amount in the grid space before the boundary condition
+	 */
+	protected double gatherCell(double[] adConcentrations, int x, int y, int z)
+	{
+		int iMaxX = m_iWidth - 1, iMaxY = m_iHeight - 1, iMaxZ = m_iDepth - 1;
+		
+		// distance between neighbouring grid spaces in the flat array
+		int iStrideX = m_iHeight * m_iDepth;
+		int iStrideY = m_iDepth;
+		
+		int i = x * iStrideX + y * iStrideY + z;
+		double dOld = adConcentrations[i];
+		double dNew = dOld;
+		boolean bInterior = x > 0 && x < iMaxX && y > 0 && y < iMaxY && z > 0 && z < iMaxZ;
+		
+		for ( int r = -1; r < 2; r++ )
+		{
+			int nx = x + r;
+			if ( nx < 0 || nx > iMaxX )
+			{
+				continue;
+			}
+			boolean bNXInterior = nx > 0 && nx < iMaxX;
+			
+			for ( int s = -1; s < 2; s++ )
+			{
+				int ny = y + s;
+				if ( ny < 0 || ny > iMaxY )
+				{
+					continue;
+				}
+				boolean bNXYInterior = bNXInterior && ny > 0 && ny < iMaxY;
+				int iNRow = i + r * iStrideX + s * iStrideY;
+				
+				for ( int t = -1; t < 2; t++ )
+				{
+					int nz = z + t;
+					if ( nz < 0 || nz > iMaxZ )
+					{
+						continue;
+					}
+					boolean bNInterior = bNXYInterior && nz > 0 && nz < iMaxZ;
+					
+					// positive means net flow TO this grid space
+					double dFlux = m_adDiffusionCoefficients[r + 1][s + 1][t + 1]
+							* (adConcentrations[iNRow + t] - dOld);
+					
+					if ( bInterior && bNInterior )
+					{
+						dNew += dFlux;
+					}
+					else if ( bInterior )
+					{
+						// border spaces never diffuse outwards
+						if ( dFlux < 0 )
+						{
+							dNew += dFlux;
+						}
+					}
+					else if ( bNInterior && dFlux > 0 )
+					{
+						dNew += dFlux;
+					}
 				}
 			}
 		}
+		
+		return dNew;
 	}
 		
 }
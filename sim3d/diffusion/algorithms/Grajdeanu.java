@@ -32,6 +32,7 @@ public class Grajdeanu extends DiffusionAlgorithmMultiThread implements Serializ
 	public Grajdeanu(double dDiffusionCoefficient, int iWidth, int iHeight,
 			int iDepth,int numThreads, double DIFFUSION_TIMESTEP) {
 		super(iWidth, iHeight, iDepth,numThreads);
+		m_dDiffusionTimestep = DIFFUSION_TIMESTEP;
 
 		setDiffusionCoefficients(dDiffusionCoefficient,DIFFUSION_TIMESTEP);
 	}
@@ -88,7 +89,15 @@ public class Grajdeanu extends DiffusionAlgorithmMultiThread implements Serializ
 		// need to normalise so that the total amount being diffused is less
 		// than or equal to the total amount that exists
 		normaliseChemokine(dTotalDistance);
-			
+		
+		// exp(-a(x^2+y^2+z^2)) = exp(-ax^2)exp(-ay^2)exp(-az^2), and the
+		// normalising total factors the same way, so the same weights come
+		// from three 1D kernels
+		double dSide = Math.exp(-Math.pow(Settings.GRID_SIZE, 2)
+				/ (4 * dDiffuseCoeff * DIFFUSION_TIMESTEP));
+		double dTotal1D = 1 + 2 * dSide;
+		m_adSeparableCoefficients = new double[] { dSide / dTotal1D,
+				1 / dTotal1D, dSide / dTotal1D };
 	}
 	
 	/*
@@ -0,0 +1,270 @@
+package sim3d.diffusion.algorithms;
+
+import java.io.Serializable;
+
+import sim3d.diffusion.Chemokine;
+
+/**
+ * Grajdeanu diffusion with the field copied into a working layout where the
+ * longest axis is innermost. The grid is usually much shallower than it is
+ * wide (DEPTH is 10), so the z loop of diffuseLoop is too short and too
+ * branchy for the JIT to unroll or vectorise.
+ *
+ * The working copy has an empty layer around it, so once the border has been
+ * bounced back in every grid space, border included, is the same plain
+ * convolution with no bounds checks. Each line along the inner axis is built
+ * up as nine unit stride 3-tap passes, one for each neighbouring line, which
+ * the JIT can turn into straight line (and on newer VMs, SIMD) code. The
+ * result is copied back into the field with the decay applied on the way.
+ *
+ * As in the separable mode the border is emptied before the step rather than
+ * after, and the sums are in a different order to gatherCell, so the field
+ * agrees with Grajdeanu to rounding rather than bit for bit.
+ *
+ * @author Jason Cosgrove
+ */
+public class GrajdeanuReordered extends Grajdeanu implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Modes for the DiffuseThreads: copy into the working layout, convolve,
+	 * and copy back with the decay
+	 */
+	private static final int REORDER = 20, STREAM = 21, RESTORE = 22;
+
+	/**
+	 * Size of the grid along the outer, middle and inner working axes
+	 */
+	private int m_iOuter, m_iMiddle, m_iInner;
+
+	/**
+	 * Where each of x, y and z moves to in the padded input and the unpadded
+	 * output of the working layout
+	 */
+	private int[] m_aiPaddedStrides = new int[3], m_aiStreamedStrides = new int[3];
+
+	/**
+	 * The coefficients for each of the nine neighbouring lines, three taps
+	 * along the inner axis each, and the offsets of those lines in the
+	 * padded input
+	 */
+	private double[][] m_adLineCoefficients = new double[9][3];
+	private int[] m_aiLineOffsets = new int[9];
+
+	/**
+	 * The padded input, whose outer layer is never written so stays empty,
+	 * and the unpadded output
+	 */
+	private double[] m_adPadded, m_adStreamed;
+
+	/**
+	 * Constructor
+	 *
+	 * @param dDiffusionCoefficient
+	 *            The parameter for the diffusion
+	 * @param iWidth
+	 *            Width of the space
+	 * @param iHeight
+	 *            Height of the space
+	 * @param iDepth
+	 *            Depth of the space
+	 * @param numThreads
+	 *            Number of threads to use
+	 * @param DIFFUSION_TIMESTEP
+	 *            How many seconds one call to diffuse covers
+	 */
+	public GrajdeanuReordered(double dDiffusionCoefficient, int iWidth,
+			int iHeight, int iDepth, int numThreads, double DIFFUSION_TIMESTEP) {
+		super(dDiffusionCoefficient, iWidth, iHeight, iDepth, numThreads,
+				DIFFUSION_TIMESTEP);
+
+		int[] aiSizes = { iWidth, iHeight, iDepth };
+
+		// the longest axis goes innermost, the other two keep their order
+		int iInnerAxis = 2;
+		for (int iAxis = 1; iAxis >= 0; iAxis--) {
+			if (aiSizes[iAxis] > aiSizes[iInnerAxis]) {
+				iInnerAxis = iAxis;
+			}
+		}
+		int iOuterAxis = (iInnerAxis == 0) ? 1 : 0;
+		int iMiddleAxis = 3 - iInnerAxis - iOuterAxis;
+
+		m_iOuter = aiSizes[iOuterAxis];
+		m_iMiddle = aiSizes[iMiddleAxis];
+		m_iInner = aiSizes[iInnerAxis];
+
+		int iPaddedInner = m_iInner + 2;
+		int iPaddedLine = (m_iMiddle + 2) * iPaddedInner;
+
+		m_aiPaddedStrides[iOuterAxis] = iPaddedLine;
+		m_aiPaddedStrides[iMiddleAxis] = iPaddedInner;
+		m_aiPaddedStrides[iInnerAxis] = 1;
+
+		m_aiStreamedStrides[iOuterAxis] = m_iMiddle * m_iInner;
+		m_aiStreamedStrides[iMiddleAxis] = m_iInner;
+		m_aiStreamedStrides[iInnerAxis] = 1;
+
+		m_adPadded = new double[(m_iOuter + 2) * iPaddedLine];
+		m_adStreamed = new double[m_iOuter * m_iMiddle * m_iInner];
+
+		// pick the coefficients back out of the x, y, z order
+		int[] aiOffset = new int[3];
+		for (int r = 0; r < 3; r++) {
+			for (int s = 0; s < 3; s++) {
+				int iLine = r * 3 + s;
+				m_aiLineOffsets[iLine] = (r - 1) * iPaddedLine + (s - 1)
+						* iPaddedInner;
+
+				for (int t = 0; t < 3; t++) {
+					aiOffset[iOuterAxis] = r;
+					aiOffset[iMiddleAxis] = s;
+					aiOffset[iInnerAxis] = t;
+					m_adLineCoefficients[iLine][t] = m_adDiffusionCoefficients[aiOffset[0]][aiOffset[1]][aiOffset[2]];
+				}
+			}
+		}
+	}
+
+	public void diffuse(Chemokine pSpace) {
+		if (isSeparable()) {
+			super.diffuse(pSpace);
+			return;
+		}
+
+		step(pSpace, 1);
+	}
+
+	public double diffuseAndDecay(Chemokine pSpace, double dAmountLeft) {
+		if (isSeparable()) {
+			return super.diffuseAndDecay(pSpace, dAmountLeft);
+		}
+
+		return step(pSpace, dAmountLeft);
+	}
+
+	/**
+	 * One step through the working layout
+	 *
+	 * @return the total amount of chemokine left on the grid
+	 */
+	private double step(Chemokine pSpace, double dAmountLeft) {
+		enforceBoundaryCondition(pSpace);
+
+		double[] adField = pSpace.getM_adField();
+
+		runSlabs(REORDER, m_adPadded, adField, 1);
+		runSlabs(STREAM, m_adStreamed, m_adPadded, 1);
+		double dTotal = runSlabs(RESTORE, adField, m_adStreamed, dAmountLeft);
+
+		// moving the border back in doesn't change the total
+		enforceBoundaryCondition(pSpace);
+
+		return dTotal;
+	}
+
+	protected double runSlab(int iMode, double[] adTarget,
+			double[] adConcentrations, double dAmountLeft, int iStartX,
+			int iEndX) {
+		switch (iMode) {
+		case REORDER:
+			reorderLoop(adTarget, adConcentrations, iStartX, iEndX);
+			return 0;
+		case STREAM:
+			// the slab is shared out along the outer working axis instead
+			streamLoop(adTarget, adConcentrations, iStartX * m_iOuter
+					/ m_iWidth, iEndX * m_iOuter / m_iWidth);
+			return 0;
+		case RESTORE:
+			return restoreLoop(adTarget, adConcentrations, dAmountLeft,
+					iStartX, iEndX);
+		default:
+			return super.runSlab(iMode, adTarget, adConcentrations,
+					dAmountLeft, iStartX, iEndX);
+		}
+	}
+
+	/**
+	 * Copy the slab iStartX &lt;= x &lt; iEndX of the field into the padded
+	 * working layout
+	 */
+	private void reorderLoop(double[] adPadded, double[] adField, int iStartX,
+			int iEndX) {
+		int iStrideX = m_aiPaddedStrides[0], iStrideY = m_aiPaddedStrides[1], iStrideZ = m_aiPaddedStrides[2];
+		// skip the empty layer along every axis
+		int iOrigin = iStrideX + iStrideY + iStrideZ;
+		int i = iStartX * m_iHeight * m_iDepth;
+
+		for (int x = iStartX; x < iEndX; x++) {
+			for (int y = 0; y < m_iHeight; y++) {
+				int iRow = iOrigin + x * iStrideX + y * iStrideY;
+				for (int z = 0; z < m_iDepth; z++, i++) {
+					adPadded[iRow + z * iStrideZ] = adField[i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Convolve every line along the inner axis whose outer coordinate is in
+	 * iFrom &lt;= . &lt; iTo. The inner loops have no branches and unit
+	 * stride
+	 */
+	private void streamLoop(double[] adStreamed, double[] adPadded, int iFrom,
+			int iTo) {
+		int iPaddedInner = m_iInner + 2;
+		int iPaddedLine = (m_iMiddle + 2) * iPaddedInner;
+
+		for (int a = iFrom; a < iTo; a++) {
+			for (int b = 0; b < m_iMiddle; b++) {
+				int iOut = (a * m_iMiddle + b) * m_iInner;
+				// the first grid space of the line, past the empty layer
+				int iIn = (a + 1) * iPaddedLine + (b + 1) * iPaddedInner + 1;
+
+				for (int c = 0; c < m_iInner; c++) {
+					adStreamed[iOut + c] = 0;
+				}
+
+				for (int iLine = 0; iLine < 9; iLine++) {
+					double dLow = m_adLineCoefficients[iLine][0];
+					double dCentre = m_adLineCoefficients[iLine][1];
+					double dHigh = m_adLineCoefficients[iLine][2];
+					int p = iIn + m_aiLineOffsets[iLine];
+
+					for (int c = 0; c < m_iInner; c++) {
+						adStreamed[iOut + c] += dLow * adPadded[p + c - 1]
+								+ dCentre * adPadded[p + c] + dHigh
+								* adPadded[p + c + 1];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copy the slab iStartX &lt;= x &lt; iEndX back into the field, applying
+	 * the decay
+	 *
+	 * @return the total amount of chemokine in the slab
+	 */
+	private double restoreLoop(double[] adField, double[] adStreamed,
+			double dAmountLeft, int iStartX, int iEndX) {
+		int iStrideX = m_aiStreamedStrides[0], iStrideY = m_aiStreamedStrides[1], iStrideZ = m_aiStreamedStrides[2];
+		double dTotal = 0;
+		int i = iStartX * m_iHeight * m_iDepth;
+
+		for (int x = iStartX; x < iEndX; x++) {
+			for (int y = 0; y < m_iHeight; y++) {
+				int iRow = x * iStrideX + y * iStrideY;
+				for (int z = 0; z < m_iDepth; z++, i++) {
+					double dNew = adStreamed[iRow + z * iStrideZ] * dAmountLeft;
+					adField[i] = dNew;
+					dTotal += dNew;
+				}
+			}
+		}
+
+		return dTotal;
+	}
+}
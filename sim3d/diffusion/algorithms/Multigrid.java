@@ -0,0 +1,311 @@
+package sim3d.diffusion.algorithms;
+
+import java.util.Arrays;
+
+/**
+ * Geometric multigrid V-cycle for the steady state of diffusion with decay,
+ * used to precondition the conjugate gradient solve in
+ * DiffusionAlgorithmMultiThread.solveSteadyState.
+ *
+ * Only the interior of the grid is solved for. Bouncing chemokine back in
+ * from the border is a reflection at the face between the border and the
+ * interior, i.e. a zero flux boundary on the faces of the interior grid
+ * spaces, so the grids are cell centred: each coarse grid space is a block of
+ * 2 along each axis that still has more than one grid space, and an axis of
+ * odd length ends with a block of 1. Restriction sums the block and
+ * prolongation copies back into it, and the coarse operators are the
+ * Galerkin products of these, so no coupling crosses the boundary on any
+ * level and the V-cycle is symmetric.
+ *
+ * On every level the operator is (1 - a)u - a (sigma^2 / 2) laplacian(u),
+ * the second order approximation to one step of diffusion with decay.
+ *
+ * @author Jason Cosgrove
+ */
+public class Multigrid {
+
+	/**
+	 * Jacobi sweeps before and after the coarse grid correction, and on the
+	 * coarsest grid
+	 */
+	private static final int SMOOTHING_SWEEPS = 2, COARSE_SWEEPS = 30;
+
+	/**
+	 * Jacobi damping
+	 */
+	private static final double OMEGA = 2.0 / 3.0;
+
+	/**
+	 * Number of levels, level 0 is the interior of the fine grid
+	 */
+	private int m_iLevels;
+
+	/**
+	 * Size of each level along x, y and z
+	 */
+	private int[][] m_aiSizes;
+
+	/**
+	 * For each level and axis, how many fine grid spaces each coarse grid
+	 * space covers along that axis
+	 */
+	private int[][][] m_aiExtents;
+
+	/**
+	 * Coefficients of the operator on each level: the mass of each grid
+	 * space, the coupling to the next grid space along each axis, and the
+	 * diagonal used by Jacobi
+	 */
+	private double[][] m_adMass, m_adDiagonal;
+	private double[][][] m_adCoupling;
+
+	/**
+	 * Right hand side, solution and residual on each level
+	 */
+	private double[][] m_adRHS, m_adSolution, m_adResidual;
+
+	/**
+	 * Dimensions of the full grid including its border
+	 */
+	private int m_iWidth, m_iHeight, m_iDepth;
+
+	/**
+	 * Constructor
+	 *
+	 * @param iWidth
+	 *            Width of the full grid
+	 * @param iHeight
+	 *            Height of the full grid
+	 * @param iDepth
+	 *            Depth of the full grid
+	 * @param adVariance
+	 *            Second moment of the diffusion coefficients along each axis,
+	 *            in grid spaces squared
+	 * @param dAmountLeft
+	 *            The fraction of chemokine left after decay
+	 */
+	public Multigrid(int iWidth, int iHeight, int iDepth, double[] adVariance,
+			double dAmountLeft) {
+		m_iWidth = iWidth;
+		m_iHeight = iHeight;
+		m_iDepth = iDepth;
+
+		int[] aiSize = { iWidth - 2, iHeight - 2, iDepth - 2 };
+
+		// count the levels, stop once the grid is a single space
+		m_iLevels = 1;
+		for (int[] aiLevel = aiSize.clone(); aiLevel[0] * aiLevel[1]
+				* aiLevel[2] > 1; m_iLevels++) {
+			for (int iAxis = 0; iAxis < 3; iAxis++) {
+				aiLevel[iAxis] = (aiLevel[iAxis] + 1) / 2;
+			}
+		}
+
+		m_aiSizes = new int[m_iLevels][];
+		m_aiExtents = new int[m_iLevels][3][];
+		m_adMass = new double[m_iLevels][];
+		m_adDiagonal = new double[m_iLevels][];
+		m_adCoupling = new double[m_iLevels][3][];
+		m_adRHS = new double[m_iLevels][];
+		m_adSolution = new double[m_iLevels][];
+		m_adResidual = new double[m_iLevels][];
+
+		for (int l = 0; l < m_iLevels; l++) {
+			if (l == 0) {
+				m_aiSizes[l] = aiSize;
+				for (int iAxis = 0; iAxis < 3; iAxis++) {
+					m_aiExtents[l][iAxis] = new int[aiSize[iAxis]];
+					Arrays.fill(m_aiExtents[l][iAxis], 1);
+				}
+			} else {
+				m_aiSizes[l] = new int[3];
+				for (int iAxis = 0; iAxis < 3; iAxis++) {
+					int[] aiFine = m_aiExtents[l - 1][iAxis];
+					int iSize = (aiFine.length + 1) / 2;
+					m_aiSizes[l][iAxis] = iSize;
+					m_aiExtents[l][iAxis] = new int[iSize];
+					for (int k = 0; k < iSize; k++) {
+						m_aiExtents[l][iAxis][k] = aiFine[2 * k]
+								+ ((2 * k + 1 < aiFine.length) ? aiFine[2 * k + 1] : 0);
+					}
+				}
+			}
+			setOperator(l, adVariance, dAmountLeft);
+		}
+	}
+
+	/**
+	 * Work out the Galerkin coefficients on a level from how many fine grid
+	 * spaces each of its grid spaces covers
+	 */
+	private void setOperator(int l, double[] adVariance, double dAmountLeft) {
+		int[] aiSize = m_aiSizes[l];
+		int iLength = aiSize[0] * aiSize[1] * aiSize[2];
+
+		m_adMass[l] = new double[iLength];
+		m_adDiagonal[l] = new double[iLength];
+		for (int iAxis = 0; iAxis < 3; iAxis++) {
+			m_adCoupling[l][iAxis] = new double[iLength];
+		}
+		m_adRHS[l] = new double[iLength];
+		m_adSolution[l] = new double[iLength];
+		m_adResidual[l] = new double[iLength];
+
+		int i = 0;
+		for (int x = 0; x < aiSize[0]; x++) {
+			for (int y = 0; y < aiSize[1]; y++) {
+				for (int z = 0; z < aiSize[2]; z++, i++) {
+					int[] aiCoord = { x, y, z };
+					int[] aiExtent = { m_aiExtents[l][0][x],
+							m_aiExtents[l][1][y], m_aiExtents[l][2][z] };
+
+					m_adMass[l][i] = (1 - dAmountLeft) * aiExtent[0]
+							* aiExtent[1] * aiExtent[2];
+					m_adDiagonal[l][i] = m_adMass[l][i];
+
+					for (int iAxis = 0; iAxis < 3; iAxis++) {
+						// the number of fine faces between this block and the
+						// next one along the axis
+						double dFaces = aiExtent[(iAxis + 1) % 3]
+								* aiExtent[(iAxis + 2) % 3];
+						double dCoupling = dAmountLeft * adVariance[iAxis] / 2
+								* dFaces;
+
+						if (aiCoord[iAxis] + 1 < aiSize[iAxis]) {
+							m_adCoupling[l][iAxis][i] = dCoupling;
+							m_adDiagonal[l][i] += dCoupling;
+						}
+						if (aiCoord[iAxis] > 0) {
+							m_adDiagonal[l][i] += dCoupling;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Apply one V-cycle to approximately solve A e = r
+	 *
+	 * @param adCorrection
+	 *            Written with the approximate solution, flat over the full
+	 *            grid with an empty border
+	 * @param adResidual
+	 *            The right hand side, flat over the full grid
+	 */
+	public void vCycle(double[] adCorrection, double[] adResidual) {
+		int[] aiSize = m_aiSizes[0];
+
+		// copy the interior in
+		for (int x = 0; x < aiSize[0]; x++) {
+			for (int y = 0; y < aiSize[1]; y++) {
+				System.arraycopy(adResidual, fullIndex(x + 1, y + 1, 1),
+						m_adRHS[0], (x * aiSize[1] + y) * aiSize[2], aiSize[2]);
+			}
+		}
+
+		cycle(0);
+
+		Arrays.fill(adCorrection, 0);
+		for (int x = 0; x < aiSize[0]; x++) {
+			for (int y = 0; y < aiSize[1]; y++) {
+				System.arraycopy(m_adSolution[0], (x * aiSize[1] + y)
+						* aiSize[2], adCorrection, fullIndex(x + 1, y + 1, 1),
+						aiSize[2]);
+			}
+		}
+	}
+
+	private int fullIndex(int x, int y, int z) {
+		return (x * m_iHeight + y) * m_iDepth + z;
+	}
+
+	private void cycle(int l) {
+		Arrays.fill(m_adSolution[l], 0);
+
+		if (l == m_iLevels - 1) {
+			smooth(l, COARSE_SWEEPS);
+			return;
+		}
+
+		smooth(l, SMOOTHING_SWEEPS);
+
+		// restrict the residual by summing each block
+		residual(l);
+		int[] aiFine = m_aiSizes[l];
+		int[] aiCoarse = m_aiSizes[l + 1];
+		double[] adCoarseRHS = m_adRHS[l + 1];
+		Arrays.fill(adCoarseRHS, 0);
+
+		int i = 0;
+		for (int x = 0; x < aiFine[0]; x++) {
+			for (int y = 0; y < aiFine[1]; y++) {
+				int iCoarseRow = ((x / 2) * aiCoarse[1] + y / 2) * aiCoarse[2];
+				for (int z = 0; z < aiFine[2]; z++, i++) {
+					adCoarseRHS[iCoarseRow + z / 2] += m_adResidual[l][i];
+				}
+			}
+		}
+
+		cycle(l + 1);
+
+		// prolong the correction by copying it back into each block
+		double[] adCoarseSolution = m_adSolution[l + 1];
+		i = 0;
+		for (int x = 0; x < aiFine[0]; x++) {
+			for (int y = 0; y < aiFine[1]; y++) {
+				int iCoarseRow = ((x / 2) * aiCoarse[1] + y / 2) * aiCoarse[2];
+				for (int z = 0; z < aiFine[2]; z++, i++) {
+					m_adSolution[l][i] += adCoarseSolution[iCoarseRow + z / 2];
+				}
+			}
+		}
+
+		smooth(l, SMOOTHING_SWEEPS);
+	}
+
+	/**
+	 * Damped Jacobi sweeps on a level
+	 */
+	private void smooth(int l, int iSweeps) {
+		for (int iSweep = 0; iSweep < iSweeps; iSweep++) {
+			residual(l);
+			double[] adSolution = m_adSolution[l];
+			double[] adResidual = m_adResidual[l];
+			double[] adDiagonal = m_adDiagonal[l];
+			for (int i = 0; i < adSolution.length; i++) {
+				adSolution[i] += OMEGA * adResidual[i] / adDiagonal[i];
+			}
+		}
+	}
+
+	/**
+	 * r = b - A u on a level
+	 */
+	private void residual(int l) {
+		int[] aiSize = m_aiSizes[l];
+		int[] aiStride = { aiSize[1] * aiSize[2], aiSize[2], 1 };
+		double[] adSolution = m_adSolution[l];
+		double[] adResidual = m_adResidual[l];
+		double[] adRHS = m_adRHS[l];
+		double[] adMass = m_adMass[l];
+
+		for (int i = 0; i < adSolution.length; i++) {
+			adResidual[i] = adRHS[i] - adMass[i] * adSolution[i];
+		}
+
+		// each coupling is between a grid space and the next one along
+		for (int iAxis = 0; iAxis < 3; iAxis++) {
+			double[] adCoupling = m_adCoupling[l][iAxis];
+			int iStride = aiStride[iAxis];
+			for (int i = 0; i < adSolution.length; i++) {
+				if (adCoupling[i] != 0) {
+					double dFlux = adCoupling[i]
+							* (adSolution[i] - adSolution[i + iStride]);
+					adResidual[i] -= dFlux;
+					adResidual[i + iStride] += dFlux;
+				}
+			}
+		}
+	}
+}
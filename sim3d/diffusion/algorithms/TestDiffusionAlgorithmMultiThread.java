@@ -3,6 +3,8 @@
  */
 package sim3d.diffusion.algorithms;
 
+import java.util.Random;
+
 import static org.junit.Assert.assertEquals;
 
 import org.junit.After;
@@ -107,8 +109,8 @@ public class TestDiffusionAlgorithmMultiThread {
 																								// particle
 																								// moles
 
-		m_pParticlemoles.field[20][20][20] = 100.0;
-		m_pParticlemoles.field[21][21][21] = 100.0;
+		m_pParticlemoles.setValue(20, 20, 20, 100.0);
+		m_pParticlemoles.setValue(21, 21, 21, 100.0);
 
 		Settings.CXCL13.DECAY_CONSTANT = 0.0;
 
@@ -121,7 +123,7 @@ public class TestDiffusionAlgorithmMultiThread {
 		for (int x = 0; x < 41; x++) {
 			for (int y = 0; y < 41; y++) {
 				for (int z = 0; z < 41; z++) {
-					iPartSum += m_pParticlemoles.field[x][y][z];
+					iPartSum += m_pParticlemoles.getValue(x, y, z);
 				}
 			}
 		}
@@ -146,7 +148,7 @@ public class TestDiffusionAlgorithmMultiThread {
 				Settings.CXCL13.DIFFUSION_TIMESTEP);
 
 		m_pParticlemoles.setDiffusionAlgorithm(da);
-		m_pParticlemoles.field[20][20][20] = 1000;
+		m_pParticlemoles.setValue(20, 20, 20, 1000);
 		double iMeanSquare = 0; // = <x^2> when divided my number of particles
 
 		int iNumSteps = 10;
@@ -160,7 +162,7 @@ public class TestDiffusionAlgorithmMultiThread {
 			for (int y = 0; y < 41; y++) {
 				for (int z = 0; z < 41; z++) {
 					// squared distance from center space
-					iMeanSquare += m_pParticlemoles.field[x][y][z] * (Math.pow(Settings.GRID_SIZE * (20 - x), 2)
+					iMeanSquare += m_pParticlemoles.getValue(x, y, z) * (Math.pow(Settings.GRID_SIZE * (20 - x), 2)
 							+ Math.pow(Settings.GRID_SIZE * (20 - y), 2) + Math.pow(Settings.GRID_SIZE * (20 - z), 2));
 				}
 			}
@@ -197,7 +199,7 @@ public class TestDiffusionAlgorithmMultiThread {
 				Settings.CXCL13.DIFFUSION_TIMESTEP);
 
 		m_pParticlemoles.setDiffusionAlgorithm(da);
-		m_pParticlemoles.field[40][40][40] = 1000000;
+		m_pParticlemoles.setValue(40, 40, 40, 1000000);
 		double iMeanSquare = 0; // = <x^2> when divided my number of particles
 
 		int iNumSteps = 10;
@@ -212,7 +214,7 @@ public class TestDiffusionAlgorithmMultiThread {
 			for (int y = 0; y < 81; y++) {
 				for (int z = 0; z < 81; z++) {
 					// squared distance from center space
-					iMeanSquare += m_pParticlemoles.field[x][y][z]
+					iMeanSquare += m_pParticlemoles.getValue(x, y, z)
 							// multiply by 10 to get it in microns
 							* (Math.pow(10 * (40 - x), 2) + Math.pow(10 * (40 - y), 2) + Math.pow(10 * (40 - z), 2));
 				}
@@ -233,7 +235,7 @@ public class TestDiffusionAlgorithmMultiThread {
 			for (int y = 0; y < 81; y++) {
 				for (int z = 0; z < 81; z++) {
 					// squared distance from center space
-					iMeanSquare += m_pParticlemoles.field[x][y][z] * (Math.pow(Settings.GRID_SIZE * (40 - x), 2)
+					iMeanSquare += m_pParticlemoles.getValue(x, y, z) * (Math.pow(Settings.GRID_SIZE * (40 - x), 2)
 							+ Math.pow(Settings.GRID_SIZE * (40 - y), 2) + Math.pow(Settings.GRID_SIZE * (40 - z), 2));
 				}
 			}
@@ -282,7 +284,7 @@ public class TestDiffusionAlgorithmMultiThread {
 				Settings.CXCL13.DIFFUSION_TIMESTEP);
 
 		m_pParticlemoles.setDiffusionAlgorithm(da);
-		m_pParticlemoles.field[20][20][20] = 1000;
+		m_pParticlemoles.setValue(20, 20, 20, 1000);
 		double iMeanSquare = 0; // = <x^2> when divided my number of particles
 
 		int iNumSteps = 10;
@@ -296,7 +298,7 @@ public class TestDiffusionAlgorithmMultiThread {
 			for (int y = 0; y < 41; y++) {
 				for (int z = 0; z < 41; z++) {
 					// squared distance from center space
-					iMeanSquare += m_pParticlemoles.field[x][y][z] * (Math.pow(Settings.GRID_SIZE * (20 - x), 2)
+					iMeanSquare += m_pParticlemoles.getValue(x, y, z) * (Math.pow(Settings.GRID_SIZE * (20 - x), 2)
 							+ Math.pow(Settings.GRID_SIZE * (20 - y), 2) + Math.pow(Settings.GRID_SIZE * (20 - z), 2));
 				}
 			}
@@ -317,4 +319,289 @@ public class TestDiffusionAlgorithmMultiThread {
 
 	}
 
+	/**
+	 * Test that diffuse ping-pongs between two buffers rather than allocating
+	 * a new snapshot each step, and that the swap doesn't lose any chemokine
+	 */
+	@Test
+	public void testBufferSwap() {
+
+		Settings.CXCL13.DECAY_CONSTANT = 0;
+
+		Chemokine m_pParticlemoles = new Chemokine(schedule, Chemokine.TYPE.CXCL13, 21, 21, 21);
+		DiffusionAlgorithmMultiThread da = new Grajdeanu(Settings.CXCL13.DIFFUSION_COEFFICIENT, 21, 21, 21, 4,
+				Settings.CXCL13.DIFFUSION_TIMESTEP);
+		m_pParticlemoles.setDiffusionAlgorithm(da);
+		m_pParticlemoles.setValue(10, 10, 10, 100.0);
+
+		double[] original = m_pParticlemoles.getM_adField();
+
+		da.diffuse(m_pParticlemoles);
+		assertThat(m_pParticlemoles.getM_adField(), is(not(sameInstance(original))));
+
+		da.diffuse(m_pParticlemoles);
+		assertThat(m_pParticlemoles.getM_adField(), is(sameInstance(original)));
+
+		assertEquals(100, m_pParticlemoles.calculateTotalChemokineLevels(), 0.0001);
+
+		da.shutdown();
+	}
+
+	/**
+	 * The gather stencil writes every grid space exactly once, so the result
+	 * must not depend on how many threads share the grid
+	 */
+	@Test
+	public void testThreadCountDeterminism() {
+
+		Settings.CXCL13.DECAY_CONSTANT = 0;
+
+		int iSize = 23;
+		Random rand = new Random(42);
+
+		Chemokine[] apChemokines = new Chemokine[3];
+		int[] aiThreads = { 1, 3, 4 };
+
+		for (int i = 0; i < apChemokines.length; i++) {
+			apChemokines[i] = new Chemokine(schedule, Chemokine.TYPE.CXCL13, iSize, iSize, iSize);
+			apChemokines[i].setDiffusionAlgorithm(new Grajdeanu(Settings.CXCL13.DIFFUSION_COEFFICIENT, iSize,
+					iSize, iSize, aiThreads[i], Settings.CXCL13.DIFFUSION_TIMESTEP));
+		}
+
+		for (int x = 1; x < iSize - 1; x++) {
+			for (int y = 1; y < iSize - 1; y++) {
+				for (int z = 1; z < iSize - 1; z++) {
+					double dValue = rand.nextDouble() * 100;
+					for (Chemokine pChemokine : apChemokines) {
+						pChemokine.setValue(x, y, z, dValue);
+					}
+				}
+			}
+		}
+
+		for (int step = 0; step < 10; step++) {
+			for (Chemokine pChemokine : apChemokines) {
+				pChemokine.getM_daDiffusionAlgorithm().diffuse(pChemokine);
+			}
+		}
+
+		for (int i = 1; i < apChemokines.length; i++) {
+			for (int x = 0; x < iSize; x++) {
+				for (int y = 0; y < iSize; y++) {
+					for (int z = 0; z < iSize; z++) {
+						assertEquals(Double.doubleToLongBits(apChemokines[0].getValue(x, y, z)),
+								Double.doubleToLongBits(apChemokines[i].getValue(x, y, z)));
+					}
+				}
+			}
+			apChemokines[i].getM_daDiffusionAlgorithm().shutdown();
+		}
+	}
+
+	/**
+	 * The three 1D passes should give the same field as the 27 point stencil
+	 * while conserving the amount of chemokine
+	 */
+	@Test
+	public void testSeparable() {
+
+		Settings.CXCL13.DECAY_CONSTANT = 0;
+
+		int iSize = 19;
+		Random rand = new Random(3);
+
+		Chemokine pStencil = new Chemokine(schedule, Chemokine.TYPE.CXCL13, iSize, iSize, iSize);
+		Chemokine pSeparable = new Chemokine(schedule, Chemokine.TYPE.CXCL13, iSize, iSize, iSize);
+		Grajdeanu daStencil = new Grajdeanu(Settings.CXCL13.DIFFUSION_COEFFICIENT, iSize, iSize, iSize, 1,
+				Settings.CXCL13.DIFFUSION_TIMESTEP);
+		Grajdeanu daSeparable = new Grajdeanu(Settings.CXCL13.DIFFUSION_COEFFICIENT, iSize, iSize, iSize, 3,
+				Settings.CXCL13.DIFFUSION_TIMESTEP);
+		daSeparable.setSeparable(true);
+		pStencil.setDiffusionAlgorithm(daStencil);
+		pSeparable.setDiffusionAlgorithm(daSeparable);
+
+		// the 1D kernels multiply out to the 3D coefficients
+		for (int x = 0; x < 3; x++) {
+			for (int y = 0; y < 3; y++) {
+				for (int z = 0; z < 3; z++) {
+					assertEquals(daStencil.m_adDiffusionCoefficients[x][y][z],
+							daStencil.m_adSeparableCoefficients[x] * daStencil.m_adSeparableCoefficients[y]
+									* daStencil.m_adSeparableCoefficients[z], 1e-15);
+				}
+			}
+		}
+
+		double dTotal = 0;
+		for (int x = 1; x < iSize - 1; x++) {
+			for (int y = 1; y < iSize - 1; y++) {
+				for (int z = 1; z < iSize - 1; z++) {
+					double dValue = rand.nextDouble() * 100;
+					pStencil.setValue(x, y, z, dValue);
+					pSeparable.setValue(x, y, z, dValue);
+					dTotal += dValue;
+				}
+			}
+		}
+
+		for (int step = 0; step < 10; step++) {
+			daStencil.diffuse(pStencil);
+			daSeparable.diffuse(pSeparable);
+		}
+
+		for (int x = 0; x < iSize; x++) {
+			for (int y = 0; y < iSize; y++) {
+				for (int z = 0; z < iSize; z++) {
+					assertEquals(pStencil.getValue(x, y, z), pSeparable.getValue(x, y, z), 1e-9);
+				}
+			}
+		}
+
+		assertEquals(dTotal, pSeparable.calculateTotalChemokineLevels(), dTotal * 1e-12);
+
+		daSeparable.shutdown();
+	}
+
+	/**
+	 * The reordered layout should give the same field as the stencil
+	 * whichever axis is the longest, and the same total as it returns
+	 */
+	@Test
+	public void testReordered() {
+
+		Settings.CXCL13.DECAY_CONSTANT = 0;
+
+		int[][] aiSizes = { { 23, 11, 7 }, { 9, 21, 6 }, { 8, 10, 17 } };
+		Random rand = new Random(5);
+
+		for (int[] aiSize : aiSizes) {
+			Chemokine pStencil = new Chemokine(schedule, Chemokine.TYPE.CXCL13, aiSize[0], aiSize[1], aiSize[2]);
+			Chemokine pReordered = new Chemokine(schedule, Chemokine.TYPE.CXCL13, aiSize[0], aiSize[1], aiSize[2]);
+			Grajdeanu daStencil = new Grajdeanu(Settings.CXCL13.DIFFUSION_COEFFICIENT, aiSize[0], aiSize[1],
+					aiSize[2], 1, Settings.CXCL13.DIFFUSION_TIMESTEP);
+			GrajdeanuReordered daReordered = new GrajdeanuReordered(Settings.CXCL13.DIFFUSION_COEFFICIENT,
+					aiSize[0], aiSize[1], aiSize[2], 3, Settings.CXCL13.DIFFUSION_TIMESTEP);
+			pStencil.setDiffusionAlgorithm(daStencil);
+			pReordered.setDiffusionAlgorithm(daReordered);
+
+			double dTotal = 0;
+			for (int x = 1; x < aiSize[0] - 1; x++) {
+				for (int y = 1; y < aiSize[1] - 1; y++) {
+					for (int z = 1; z < aiSize[2] - 1; z++) {
+						double dValue = rand.nextDouble() * 100;
+						pStencil.setValue(x, y, z, dValue);
+						pReordered.setValue(x, y, z, dValue);
+						dTotal += dValue;
+					}
+				}
+			}
+
+			for (int step = 0; step < 10; step++) {
+				daStencil.diffuse(pStencil);
+				daReordered.diffuse(pReordered);
+			}
+
+			for (int x = 0; x < aiSize[0]; x++) {
+				for (int y = 0; y < aiSize[1]; y++) {
+					for (int z = 0; z < aiSize[2]; z++) {
+						assertEquals(pStencil.getValue(x, y, z), pReordered.getValue(x, y, z), 1e-9);
+					}
+				}
+			}
+
+			assertEquals(dTotal, daReordered.diffuseAndDecay(pReordered, 0.5) * 2, dTotal * 1e-12);
+			assertEquals(dTotal / 2, pReordered.calculateTotalChemokineLevels(), dTotal * 1e-12);
+
+			daReordered.shutdown();
+		}
+	}
+
+	/**
+	 * The implicit solver should cover a whole agent step per call, conserve
+	 * the chemokine, give D = <x^2>/6t and not depend on the thread count
+	 */
+	@Test
+	public void testADI() {
+
+		Settings.CXCL13.DECAY_CONSTANT = 0;
+
+		Chemokine pSingle = new Chemokine(schedule, Chemokine.TYPE.CXCL13, 41, 41, 41);
+		Chemokine pMulti = new Chemokine(schedule, Chemokine.TYPE.CXCL13, 41, 41, 41);
+
+		// one agent step is 60 seconds
+		pSingle.setDiffusionAlgorithm(new ADI(Settings.CXCL13.DIFFUSION_COEFFICIENT, 41, 41, 41, 1, 60, 2));
+		pMulti.setDiffusionAlgorithm(new ADI(Settings.CXCL13.DIFFUSION_COEFFICIENT, 41, 41, 41, 3, 60, 2));
+
+		pSingle.setValue(20, 20, 20, 1000);
+		pMulti.setValue(20, 20, 20, 1000);
+
+		for (int i = 0; i < 3; i++) {
+			pSingle.step(null);
+			pMulti.step(null);
+		}
+
+		assertEquals(3, pSingle.getM_diffTime(), 1e-9);
+
+		double iMeanSquare = 0;
+		for (int x = 0; x < 41; x++) {
+			for (int y = 0; y < 41; y++) {
+				for (int z = 0; z < 41; z++) {
+					assertEquals(Double.doubleToLongBits(pSingle.getValue(x, y, z)),
+							Double.doubleToLongBits(pMulti.getValue(x, y, z)));
+					assertThat(pSingle.getValue(x, y, z), is(greaterThanOrEqualTo(0.0)));
+
+					iMeanSquare += pSingle.getValue(x, y, z) * (Math.pow(Settings.GRID_SIZE * (20 - x), 2)
+							+ Math.pow(Settings.GRID_SIZE * (20 - y), 2) + Math.pow(Settings.GRID_SIZE * (20 - z), 2));
+				}
+			}
+		}
+
+		assertEquals(1000, pSingle.calculateTotalChemokineLevels(), 1e-9);
+
+		iMeanSquare /= 1000;
+		assertThat(iMeanSquare / (6 * pSingle.getM_diffTime() * 60),
+				is(closeTo(Settings.CXCL13.DIFFUSION_COEFFICIENT, Settings.CXCL13.DIFFUSION_COEFFICIENT / 10)));
+
+		pMulti.getM_daDiffusionAlgorithm().shutdown();
+	}
+
+	/**
+	 * The decay rate is per Settings timestep, so over the same time ADI
+	 * must leave as much chemokine as Grajdeanu, whether or not the decay is
+	 * fused with the solve
+	 */
+	@Test
+	public void testADIDecay() {
+
+		Settings.CXCL13.DECAY_CONSTANT = 0.005;
+
+		Chemokine pGrajdeanu = new Chemokine(schedule, Chemokine.TYPE.CXCL13, 41, 41, 41);
+		Chemokine pADI = new Chemokine(schedule, Chemokine.TYPE.CXCL13, 41, 41, 41);
+		Chemokine pFused = new Chemokine(schedule, Chemokine.TYPE.CXCL13, 41, 41, 41);
+
+		pADI.setDiffusionAlgorithm(new ADI(Settings.CXCL13.DIFFUSION_COEFFICIENT, 41, 41, 41, 1, 60, 2));
+		pFused.setDiffusionAlgorithm(new ADI(Settings.CXCL13.DIFFUSION_COEFFICIENT, 41, 41, 41, 1, 60, 2));
+		pFused.setM_bFusedKernel(true);
+
+		pGrajdeanu.setValue(20, 20, 20, 1000);
+		pADI.setValue(20, 20, 20, 1000);
+		pFused.setValue(20, 20, 20, 1000);
+
+		for (int i = 0; i < 3; i++) {
+			pGrajdeanu.step(null);
+			pADI.step(null);
+			pFused.step(null);
+		}
+
+		double dExpected = 1000 * Math.pow(1 - Settings.CXCL13.DECAY_CONSTANT, 3 * 60
+				/ Settings.CXCL13.DIFFUSION_TIMESTEP);
+		assertEquals(dExpected, pADI.calculateTotalChemokineLevels(), dExpected * 1e-9);
+		assertEquals(dExpected, pFused.calculateTotalChemokineLevels(), dExpected * 1e-9);
+
+		// Grajdeanu takes a whole number of steps so it can overshoot by one
+		assertEquals(pGrajdeanu.calculateTotalChemokineLevels(), pADI.calculateTotalChemokineLevels(),
+				dExpected * 2 * Settings.CXCL13.DECAY_CONSTANT);
+
+		Settings.CXCL13.DECAY_CONSTANT = 0;
+	}
+
 }
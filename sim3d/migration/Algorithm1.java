@@ -1,6 +1,8 @@
 package sim3d.migration;
 
-import java.util.ArrayList;
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import sim.util.Bag;
 import sim.util.Double3D;
@@ -8,10 +10,32 @@ import sim3d.Settings;
 import sim3d.cell.BC;
 import sim3d.cell.Lymphocyte;
 import sim3d.diffusion.Chemokine;
+import sim3d.util.BatchODESolver;
+import sim3d.util.MutableVector3D;
 import sim3d.util.ODESolver;
+import sim3d.util.RandomStream;
+import sim3d.util.RandomStreams;
 import sim3d.util.Vector3DHelper;
 
-public class Algorithm1 implements MigrationAlgorithm {
+public class Algorithm1 implements MigrationAlgorithm, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Each thread's scratch space for calculateWhereToMoveNext: the movement,
+	 * the turn added to it and the receptors bound at each pseudopod. Cells
+	 * compute their movements in parallel, so these can't be shared
+	 */
+	private static final ThreadLocal<MutableVector3D[]> ms_av3Scratch = new ThreadLocal<MutableVector3D[]>() {
+		protected MutableVector3D[] initialValue() {
+			return new MutableVector3D[] { new MutableVector3D(), new MutableVector3D() };
+		}
+	};
+	private static final ThreadLocal<double[]> ms_adBoundBuffer = new ThreadLocal<double[]>() {
+		protected double[] initialValue() {
+			return new double[6];
+		}
+	};
 
 	/**
 	 * At each timestep, a lymphocyte stores its putative movements in an array
@@ -35,7 +59,8 @@ public class Algorithm1 implements MigrationAlgorithm {
 				.setM_d3Face(lymphocyte.getM_d3aMovements().get(lymphocyte.getM_d3aMovements().size() - 1).normalize());
 
 		// if space to move then move
-		if (determineSpaceToMove(lymphocyte.x, lymphocyte.y, lymphocyte.z)) {
+		if (determineSpaceToMove(lymphocyte.x, lymphocyte.y, lymphocyte.z,
+				lymphocyte.getStream(RandomStreams.STREAM.CROWDING))) {
 			lymphocyte.setObjectLocation(new Double3D(lymphocyte.x, lymphocyte.y, lymphocyte.z));
 		}
 
@@ -54,22 +79,32 @@ public class Algorithm1 implements MigrationAlgorithm {
 	 * 			the Y component of the target location vector
 	 * @param z
 	 * 			the Z component of the target location vector
+	 * @param rsRandom
+	 * 			the cell's stream to draw the decision from
 	 * @return true if there is space for the cell to move
 	 */
-	public boolean determineSpaceToMove(double x, double y, double z) {
-		Double3D putativeLocation = new Double3D(x, y, z);
-
-		// see if there are any cells at the putative location
-		// 0.7 represents the size of a cell
-		Bag cells = BC.bcEnvironment.getNeighborsExactlyWithinDistance(putativeLocation, 0.7);
-
-		// need to do cells minus one as it includes this cell
-		int otherCells = cells.numObjs - 1;
+	public boolean determineSpaceToMove(double x, double y, double z, RandomStream rsRandom) {
+		int otherCells;
+
+		if (BC.m_ogOccupancy != null) {
+			// the cells in the grid space at the putative location, minus one
+			// as it includes this cell
+			otherCells = BC.m_ogOccupancy.getCount(x, y, z) - 1;
+		} else {
+			Double3D putativeLocation = new Double3D(x, y, z);
+
+			// see if there are any cells at the putative location
+			// 0.7 represents the size of a cell
+			Bag cells = BC.bcEnvironment.getNeighborsExactlyWithinDistance(putativeLocation, 0.7);
+
+			// need to do cells minus one as it includes this cell
+			otherCells = cells.numObjs - 1;
+		}
 
 		// need to account for in
 		double pmove = Math.exp(-(otherCells));
 
-		double random = Settings.RNG.nextDouble();
+		double random = rsRandom.nextDouble();
 
 		if (random < pmove) {
 
@@ -81,7 +116,7 @@ public class Algorithm1 implements MigrationAlgorithm {
 		// there are situations where all cells can become gridlocked, so we
 		// need to allow moves on occasion
 		// to prevent this from happening even in limited space
-		if (Settings.RNG.nextDouble() < 0.9) {
+		if (rsRandom.nextDouble() < 0.9) {
 
 			return false;
 		}
@@ -94,7 +129,20 @@ public class Algorithm1 implements MigrationAlgorithm {
 	@Override
 	public void performMigration(Lymphocyte lymphocyte) {
 
-		Chemokine.TYPE chemokine1 = Chemokine.TYPE.CXCL13;
+		prepareMigration(lymphocyte);
+		computeMigration(lymphocyte);
+		commitMigration(lymphocyte);
+	}
+
+	/**
+	 * The first part of a migration step: carry out the saved movements. This
+	 * moves the cell in the shared environments, so cells must do it one at a
+	 * time
+	 * 
+	 * @param lymphocyte
+	 * 					the lympocyte agent that is migrating
+	 */
+	public void prepareMigration(Lymphocyte lymphocyte) {
 
 		lymphocyte.setCollisionCounter(0); // reset the collision counter for
 											// this timestep
@@ -108,16 +156,80 @@ public class Algorithm1 implements MigrationAlgorithm {
 			// need to deal with that situation
 			performSavedMovements(lymphocyte);
 		}
+	}
 
-		calculateWhereToMoveNext(lymphocyte, chemokine1);
+	/**
+	 * The second part of a migration step: decide where to move next and
+	 * solve the receptor ODE
+	 * 
+	 * @param lymphocyte
+	 * 					the lympocyte agent that is migrating
+	 */
+	public void computeMigration(Lymphocyte lymphocyte) {
+
+		computeMovement(lymphocyte);
+		computeReceptors(lymphocyte);
+	}
+
+	/**
+	 * Decide where to move next. This only reads the chemokine and only
+	 * changes the cell itself, so cells can do it in parallel
+	 * 
+	 * @param lymphocyte
+	 * 					the lympocyte agent that is migrating
+	 */
+	public void computeMovement(Lymphocyte lymphocyte) {
+
+		calculateWhereToMoveNext(lymphocyte, Chemokine.TYPE.CXCL13);
 		lymphocyte.handleBounce(); // Check for bounces
+	}
 
-		ODESolver.solveODE(Settings.BC.ODE.K_a(), Settings.BC.ODE.K_r(), Settings.BC.ODE.K_i(), Settings.BC.ODE.Koff,
-				Settings.BC.ODE.Kdes, chemokine1, lymphocyte);
+	/**
+	 * Solve the receptor ODE, which consumes and releases chemokine. See
+	 * BatchODESolver for doing this for many cells at once
+	 * 
+	 * @param lymphocyte
+	 * 					the lympocyte agent that is migrating
+	 */
+	public void computeReceptors(Lymphocyte lymphocyte) {
+
+		ODESolver.solveODE(Chemokine.TYPE.CXCL13, lymphocyte);
+	}
+
+	/**
+	 * Solve the receptor ODEs of many cells at once
+	 * 
+	 * @param llCells
+	 * 					the lympocyte agents that are migrating
+	 * @param bosSolver
+	 * 					the solver to use
+	 * @param esPool
+	 * 					the pool to solve on, or null for the calling thread
+	 */
+	public void computeReceptors(List<? extends Lymphocyte> llCells, BatchODESolver bosSolver,
+			ExecutorService esPool) {
+
+		if (Settings.BC.ODE.SOLVER == Settings.BC.ODE.INTEGRATOR.EXPONENTIAL) {
+			bosSolver.solveODEExponential(Settings.BC.ODE.K_a(), Settings.BC.ODE.K_r(), Settings.BC.ODE.K_i(),
+					Settings.BC.ODE.Koff, Settings.BC.ODE.Kdes, Chemokine.TYPE.CXCL13, llCells, esPool);
+		} else {
+			bosSolver.solveODE(Settings.BC.ODE.K_a(), Settings.BC.ODE.K_r(), Settings.BC.ODE.K_i(),
+					Settings.BC.ODE.Koff, Settings.BC.ODE.Kdes, Settings.BC.ODE.TOLERANCE, Chemokine.TYPE.CXCL13,
+					llCells, esPool);
+		}
+	}
+
+	/**
+	 * The last part of a migration step: register the new movement with the
+	 * collision grid. Cells must do it one at a time
+	 * 
+	 * @param lymphocyte
+	 * 					the lympocyte agent that is migrating
+	 */
+	public void commitMigration(Lymphocyte lymphocyte) {
 
 		//register the new movement with the grid
 		lymphocyte.registerCollisions(Lymphocyte.m_cgGrid); 
-
 	}
 
 	
@@ -135,10 +247,17 @@ public class Algorithm1 implements MigrationAlgorithm {
 	 * 			how much bias should be placed on the cells leading edge. 
 	 */
 	public void updateMigrationData(Lymphocyte bc, Double3D vMovement, double vectorMagnitude, double persistence) {
+		updateMigrationData(bc, vMovement.x, vMovement.y, vMovement.z);
+	}
+
+	/**
+	 * As above, for the movement vector (x, y, z)
+	 */
+	private void updateMigrationData(Lymphocyte bc, double x, double y, double z) {
 
 		// Reset all the movement/collision data
 		bc.getM_d3aCollisions().clear();
-		bc.setM_d3aMovements(new ArrayList<Double3D>());
+		bc.getM_d3aMovements().clear();
 
 		double speedScalar = 0;
 
@@ -149,7 +268,8 @@ public class Algorithm1 implements MigrationAlgorithm {
 		}
 
 		double travelDistance = Settings.BC.TRAVEL_DISTANCE();
-		bc.getM_d3aMovements().add(vMovement.multiply(travelDistance + speedScalar));
+		double dScale = travelDistance + speedScalar;
+		bc.getM_d3aMovements().add(new Double3D(x * dScale, y * dScale, z * dScale));
 
 	}
 
@@ -196,19 +316,26 @@ public class Algorithm1 implements MigrationAlgorithm {
 	 * 				chemokine sampling pseudeopod
 	 */
 	public static double[] calculateLigandBound(Lymphocyte lymphocyte, Chemokine.TYPE chemokine) {
+		return calculateLigandBound(lymphocyte, chemokine, new double[6]);
+	}
+
+	/**
+	 * As above, storing the bound receptors in iaBoundReceptors rather than
+	 * allocating an array
+	 */
+	public static double[] calculateLigandBound(Lymphocyte lymphocyte, Chemokine.TYPE chemokine,
+			double[] iaBoundReceptors) {
 
 		// determine what receptor you need to reference
 		Lymphocyte.Receptor receptor = setReceptor(chemokine);
 
-		double[][][] ia3Concs = Chemokine.get(chemokine, (int) lymphocyte.x, (int) lymphocyte.y, (int) lymphocyte.z);
-
 		// Assume the receptors are spread evenly around the cell
 		int iReceptors = lymphocyte.getM_LR(receptor) / 6;
 
 		// get CXCL13 concentrations at each psuedopod
 		// {x+, x-, y+, y-, z+, z-}
-		double[] iaConcs = { ia3Concs[2][1][1], ia3Concs[0][1][1], ia3Concs[1][2][1], ia3Concs[1][0][1],
-				ia3Concs[1][1][2], ia3Concs[1][1][0] };
+		double[] iaConcs = Chemokine.getFaces(chemokine, (int) lymphocyte.x, (int) lymphocyte.y, (int) lymphocyte.z,
+				Chemokine.getFaceBuffer());
 
 		double totalLigand = 0;
 
@@ -220,8 +347,6 @@ public class Algorithm1 implements MigrationAlgorithm {
 
 		// store how many receptors are bound at each
 		// of the 6 pseudopods and store values in a double array
-		double[] iaBoundReceptors = new double[6];
-
 		for (int k = 0; k < 6; k++) {
 			double proportionToBind = 0;
 			proportionToBind = iaConcs[k] / totalLigand;
@@ -244,20 +369,19 @@ public class Algorithm1 implements MigrationAlgorithm {
 	 * @return the new direction for the cell to move
 	 */
 	Double3D getMoveDirection(Lymphocyte lymphocyte, Chemokine.TYPE chemokine1) {
+		return getMoveDirection(lymphocyte, chemokine1, new MutableVector3D()).toDouble3D();
+	}
 
-		double[] iaBoundReceptors1 = calculateLigandBound(lymphocyte, chemokine1);
-
-		// the new direction for the cell to move
-		Double3D vMovement1 = new Double3D();
+	/**
+	 * As above, writing the direction into vMovement1
+	 */
+	MutableVector3D getMoveDirection(Lymphocyte lymphocyte, Chemokine.TYPE chemokine1, MutableVector3D vMovement1) {
 
-		// X
-		vMovement1 = vMovement1.add(new Double3D(1, 0, 0).multiply(iaBoundReceptors1[0] - iaBoundReceptors1[1]));
-		// Y
-		vMovement1 = vMovement1.add(new Double3D(0, 1, 0).multiply(iaBoundReceptors1[2] - iaBoundReceptors1[3]));
-		// Z
-		vMovement1 = vMovement1.add(new Double3D(0, 0, 1).multiply(iaBoundReceptors1[4] - iaBoundReceptors1[5]));
+		double[] iaBoundReceptors1 = calculateLigandBound(lymphocyte, chemokine1, ms_adBoundBuffer.get());
 
-		return vMovement1;
+		// the difference in bound receptors across the cell along each axis
+		return vMovement1.set(iaBoundReceptors1[0] - iaBoundReceptors1[1],
+				iaBoundReceptors1[2] - iaBoundReceptors1[3], iaBoundReceptors1[4] - iaBoundReceptors1[5]);
 	}
 
 
@@ -285,11 +409,18 @@ public class Algorithm1 implements MigrationAlgorithm {
 	 */
 	public void calculateWhereToMoveNext(Lymphocyte lymphocyte, Chemokine.TYPE chemokine1) {
 
-		Double3D vMovement = getMoveDirection(lymphocyte, chemokine1);
+		// work in this thread's scratch vectors so nothing is allocated
+		// until the movement is stored
+		MutableVector3D[] av3Scratch = ms_av3Scratch.get();
+		MutableVector3D vMovement = getMoveDirection(lymphocyte, chemokine1, av3Scratch[0]);
+		MutableVector3D newdirection = av3Scratch[1];
 
 		double vectorMagnitude = vMovement.lengthSq();
 		double persistence = 0;
 
+		// whether we have no direction to move in
+		boolean bRandomTurn = true;
+
 		if (vMovement.lengthSq() > 0) {
 			if (vectorMagnitude >= Settings.BC.SIGNAL_THRESHOLD) {
 
@@ -298,35 +429,31 @@ public class Algorithm1 implements MigrationAlgorithm {
 				// can affect cell polarity
 				persistence = Settings.BC.POLARITY;
 
-				Double3D newdirection = vMovement.normalize();
 				// scale the new vector with respect to the old vector,
 				// values less than 1 favour the old vector, values greater than
 				// 1 favour the new vector
 				// this is constrained between 0 and 2
-				newdirection = newdirection.multiply(persistence);
+				vMovement.normalize().multiply(persistence);
 
 				// update the direction that the cell is facing
-				vMovement = lymphocyte.getM_d3Face().add(newdirection);
+				vMovement.add(lymphocyte.getM_d3Face());
 
 				// now add some noise to the movement
-				vMovement = vMovement.add(
-						Vector3DHelper.getRandomDirectionInCone(vMovement.normalize(), Settings.BC.DIRECTION_ERROR()));
+				newdirection.set(vMovement).normalize();
+				vMovement.add(Vector3DHelper.getRandomDirectionInCone(newdirection,
+						Settings.BC.DIRECTION_ERROR(), lymphocyte.getStream(RandomStreams.STREAM.TURNING),
+						newdirection));
 
 				// normalise the vector
 				if (vMovement.lengthSq() > 0) {
-					vMovement = vMovement.normalize();
+					vMovement.normalize();
+					bRandomTurn = false;
 				}
-			} else {
-				vMovement = null;
 			}
 		}
 
 		// we detect no chemokine, or at least difference in chemokine
-		else {
-			vMovement = null;
-		}
-
-		if (vMovement == null || vMovement.lengthSq() == 0) {
+		if (bRandomTurn) {
 			// no data! so do a random turn
 			// was just used to set speed so need to redefine this function...
 			// speaking of which this should be in the model documentation
@@ -336,26 +463,27 @@ public class Algorithm1 implements MigrationAlgorithm {
 			persistence = Settings.BC.RANDOM_POLARITY;
 
 			// lets try the new way
-			Double3D newdirection = Vector3DHelper.getRandomDirectionInCone(lymphocyte.getM_d3Face(),
-					Settings.BC.MAX_TURN_ANGLE());
+			newdirection.set(lymphocyte.getM_d3Face());
+			Vector3DHelper.getRandomDirectionInCone(newdirection, Settings.BC.MAX_TURN_ANGLE(),
+					lymphocyte.getStream(RandomStreams.STREAM.TURNING), newdirection);
 
 			// we need to scale this new direction or it will assume the old one
 			// is equal we were really forcing the new vector such that there
 			// was really
 			// no previous directional bias and perhaps more of a gas like
 			// diffusion??
-			newdirection = newdirection.multiply(persistence);
+			newdirection.multiply(persistence);
 
 			// update the direction that the cell is facing
-			vMovement = lymphocyte.getM_d3Face().add(newdirection);
+			vMovement.set(lymphocyte.getM_d3Face()).add(newdirection);
 
 			// normalise the vector
 			if (vMovement.lengthSq() > 0) {
-				vMovement = vMovement.normalize();
+				vMovement.normalize();
 			}
 		}
 		// update the migration data
-		updateMigrationData(lymphocyte, vMovement, vectorMagnitude, persistence);
+		updateMigrationData(lymphocyte, vMovement.x, vMovement.y, vMovement.z);
 	}
 
 }
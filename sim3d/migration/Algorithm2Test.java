@@ -24,6 +24,7 @@ import sim3d.cell.Lymphocyte;
 import sim3d.diffusion.Chemokine;
 import sim3d.util.Algorithm2;
 import sim3d.util.IO;
+import sim3d.util.RandomStreams;
 
 
 
@@ -125,7 +126,7 @@ public class Algorithm2Test {
 		Algorithm1 a2 = new Algorithm1();
 		
 		boolean test = a2.determineSpaceToMove(bc.x + 0.2, bc.y + 0.2,
-				bc.z + 0.2);
+				bc.z + 0.2, bc.getStream(RandomStreams.STREAM.CROWDING));
 		assertEquals(true, test);
 	}
 
@@ -208,8 +209,8 @@ public class Algorithm2Test {
 
 		//Algorithm2 a2 = new Algorithm2();
 		Chemokine.TYPE chemokine = Chemokine.TYPE.CXCL13;
-		m_pParticle.field[(int) bc.x][(int) bc.y][(int) bc.z] = (1.7 * Math
-				.pow(10, -5));
+		m_pParticle.setValue((int) bc.x, (int) bc.y, (int) bc.z, (1.7 * Math
+				.pow(10, -5)));
 		m_pParticle.step(null);
 		m_pParticle.step(null);
 		m_pParticle.step(null);
@@ -245,8 +246,8 @@ public class Algorithm2Test {
 		Algorithm2 a2 = new Algorithm2();
 		Chemokine.TYPE chemokine = Chemokine.TYPE.CXCL13;
 		Chemokine.TYPE chemokine2 = Chemokine.TYPE.EBI2L;
-		m_pParticle.field[(int) bc.x][(int) bc.y][(int) bc.z] = (1.7 * Math
-				.pow(10, -5));
+		m_pParticle.setValue((int) bc.x, (int) bc.y, (int) bc.z, (1.7 * Math
+				.pow(10, -5)));
 		m_pParticle.step(null);
 		m_pParticle.step(null);
 		m_pParticle.step(null);
@@ -266,7 +267,7 @@ public class Algorithm2Test {
 	@Test
 	public void testReceptorStepDynamic() {
 
-		m_pParticle.field[15][15][15] = (1.7 * Math.pow(10, -9));
+		m_pParticle.setValue(15, 15, 15, (1.7 * Math.pow(10, -9)));
 
 		Settings.BC.ODE.Rf = 10000;
 		Settings.BC.ODE.Ri = 10000;
@@ -299,7 +300,7 @@ public class Algorithm2Test {
 	 */
 	@Test
 	public void testReceptorStepConservation() {
-		m_pParticle.field[15][15][15] = (1.7 * Math.pow(10, -9));
+		m_pParticle.setValue(15, 15, 15, (1.7 * Math.pow(10, -9)));
 
 		Settings.BC.ODE.Rf = 1000;
 		Settings.BC.ODE.Ri = 1000;
@@ -337,7 +338,7 @@ public class Algorithm2Test {
 			for (int j = 0; j < 1; j++) {
 				bcCells[j].step(null);// why are you passing in null
 			}
-			m_pParticle.field[15][15][15] = (1.7 * Math.pow(10, -9));
+			m_pParticle.setValue(15, 15, 15, (1.7 * Math.pow(10, -9)));
 			m_pParticle.step(null);
 		}
 
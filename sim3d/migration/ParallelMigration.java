@@ -0,0 +1,223 @@
+package sim3d.migration;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import sim.engine.SimState;
+import sim.engine.Steppable;
+import sim.engine.Stoppable;
+import sim3d.Settings;
+import sim3d.cell.Lymphocyte;
+import sim3d.util.BatchODESolver;
+
+/**
+ * Steps the migration of every lymphocyte added to it, sharing the work out
+ * across a pool of threads. It is scheduled in place of the cells and splits
+ * each step into four phases, see Algorithm1:
+ *
+ * prepare - in an order shuffled with Settings.RNG, as MASON's schedule
+ * would, one cell at a time carries out its saved movements
+ *
+ * move - the cells are split into contiguous blocks, one per thread, and
+ * decide where to move next. Each cell draws from its own random number
+ * streams and only reads the chemokine
+ *
+ * receptors - a BatchODESolver solves the receptor ODEs of all the cells
+ * together on the same threads
+ *
+ * commit - one at a time the cells register their paths with the collision
+ * grid and record their data
+ *
+ * For a given seed the results don't depend on the number of threads.
+ * Unlike stepping the cells on their own, a cell decides where to move from
+ * the chemokine as it was at the start of the step, and the cells share the
+ * chemokine second by second as they solve their ODEs.
+ *
+ * @author Jason Cosgrove
+ */
+public class ParallelMigration implements Steppable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The cells, in the order they were last stepped
+	 */
+	private List<Lymphocyte> m_llCells = new ArrayList<Lymphocyte>();
+
+	/**
+	 * The migration algorithm, which holds no state of its own
+	 */
+	private Algorithm1 m_a1Migration = new Algorithm1();
+
+	/**
+	 * Number of threads the compute phase is shared out across
+	 */
+	private int m_iThreads;
+
+	/**
+	 * Long-lived pool that runs the move and receptor phases, null with one
+	 * thread or once shutdown has been called
+	 */
+	private transient ExecutorService m_esPool;
+
+	/**
+	 * Solves the receptor ODEs of all the cells, on m_esPool
+	 */
+	private transient BatchODESolver m_bosReceptors;
+
+	/**
+	 * One task per thread, each moving a contiguous block of m_llCells
+	 */
+	private transient List<ComputeTask> m_lTasks;
+
+	/**
+	 * @param numThreads
+	 *            number of threads to share the work out across
+	 */
+	public ParallelMigration(int numThreads) {
+		m_iThreads = Math.max(1, numThreads);
+		initialiseWorkers();
+	}
+
+	/**
+	 * Build the members that aren't serialised: the tasks, the receptor
+	 * solver and, with more than one thread, the pool
+	 */
+	private void initialiseWorkers() {
+		m_lTasks = new ArrayList<ComputeTask>();
+		for (int i = 0; i < m_iThreads; i++) {
+			m_lTasks.add(new ComputeTask());
+		}
+		m_bosReceptors = new BatchODESolver(m_iThreads);
+
+		if (m_iThreads > 1) {
+			// daemon threads so an idle pool never keeps the JVM alive
+			m_esPool = Executors.newFixedThreadPool(m_iThreads,
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "migration");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		initialiseWorkers();
+	}
+
+	/**
+	 * Step a cell from now on
+	 *
+	 * @param lymphocyte
+	 *            the cell to step
+	 * @return a Stoppable that stops stepping the cell
+	 */
+	public Stoppable add(final Lymphocyte lymphocyte) {
+		m_llCells.add(lymphocyte);
+
+		return new Stoppable() {
+			private static final long serialVersionUID = 1L;
+
+			public void stop() {
+				m_llCells.remove(lymphocyte);
+			}
+		};
+	}
+
+	/**
+	 * @return the number of cells being stepped
+	 */
+	public int size() {
+		return m_llCells.size();
+	}
+
+	@Override
+	public void step(SimState state) {
+		shuffle();
+
+		for (Lymphocyte lymphocyte : m_llCells) {
+			m_a1Migration.prepareMigration(lymphocyte);
+		}
+
+		int iCount = m_llCells.size();
+		for (int i = 0; i < m_iThreads; i++) {
+			m_lTasks.get(i).update(i * iCount / m_iThreads, (i + 1) * iCount
+					/ m_iThreads);
+		}
+
+		try {
+			if (m_esPool == null) {
+				for (ComputeTask ctTask : m_lTasks) {
+					ctTask.call();
+				}
+			} else {
+				// blocks until every block has moved
+				for (Future<Object> fResult : m_esPool.invokeAll(m_lTasks)) {
+					fResult.get();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+
+		m_a1Migration.computeReceptors(m_llCells, m_bosReceptors, m_esPool);
+
+		for (Lymphocyte lymphocyte : m_llCells) {
+			m_a1Migration.commitMigration(lymphocyte);
+			lymphocyte.recordStep();
+		}
+	}
+
+	/**
+	 * Shut the thread pool down. Call once the simulation has finished; if
+	 * it is stepped again the work is done on the calling thread
+	 */
+	public void shutdown() {
+		if (m_esPool != null) {
+			m_esPool.shutdown();
+			m_esPool = null;
+		}
+	}
+
+	/**
+	 * Fisher-Yates shuffle of the cells using Settings.RNG, so that no cell
+	 * always gets to move first
+	 */
+	private void shuffle() {
+		for (int i = m_llCells.size() - 1; i > 0; i--) {
+			Collections.swap(m_llCells, i, Settings.RNG.nextInt(i + 1));
+		}
+	}
+
+	class ComputeTask implements Callable<Object> {
+
+		private int m_iFrom, m_iTo;
+
+		public void update(int iFrom, int iTo) {
+			m_iFrom = iFrom;
+			m_iTo = iTo;
+		}
+
+		public Object call() {
+			for (int i = m_iFrom; i < m_iTo; i++) {
+				m_a1Migration.computeMovement(m_llCells.get(i));
+			}
+			return null;
+		}
+	}
+}
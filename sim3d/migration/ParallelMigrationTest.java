@@ -0,0 +1,243 @@
+package sim3d.migration;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import ec.util.MersenneTwisterFast;
+import sim.engine.Schedule;
+import sim.engine.Stoppable;
+import sim.field.continuous.Continuous3D;
+import sim.util.Double3D;
+import sim3d.Settings;
+import sim3d.cell.BC;
+import sim3d.cell.Lymphocyte;
+import sim3d.collisiondetection.CollisionGrid;
+import sim3d.collisiondetection.OccupancyGrid;
+import sim3d.diffusion.Chemokine;
+import sim3d.util.IO;
+import sim3d.util.RandomStreams;
+
+public class ParallelMigrationTest {
+
+	public static Document parameters;
+
+	/**
+	 * Initialise the simulation parameters
+	 */
+	private static void loadParameters() {
+
+		String paramFile = "/Users/jc1571/Dropbox/CXCL13Sim/Simulation/LymphSimParameters.xml";
+		parameters = IO.openXMLFile(paramFile);
+		Settings.BC.loadParameters(parameters);
+		Settings.BC.ODE.loadParameters(parameters);
+		Settings.FDC.loadParameters(parameters);
+	}
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		loadParameters();
+		Settings.WIDTH = 31;
+		Settings.HEIGHT = 31;
+		Settings.DEPTH = 31;
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Chemokine.reset();
+		BC.drawEnvironment = null;
+		BC.m_ogOccupancy = null;
+		if (BC.m_cgGrid != null) {
+			BC.m_cgGrid.shutdown();
+			BC.m_cgGrid = null;
+		}
+	}
+
+	private double[] runCells(int iThreads, int iCells) {
+		try {
+			return runCells(iThreads, iCells, false, false);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Step some B cells over a CXCL13 gradient with the given number of
+	 * threads, or on their own if iThreads is 0
+	 *
+	 * @param bShutdown
+	 *            shut the pool down before stepping
+	 * @param bCopy
+	 *            step a serialised copy of the ParallelMigration and cells
+	 * @return the positions and receptors of the cells followed by the CXCL13
+	 *         field
+	 */
+	@SuppressWarnings("unchecked")
+	private double[] runCells(int iThreads, int iCells, boolean bShutdown,
+			boolean bCopy) throws Exception {
+		Settings.RNG = new MersenneTwisterFast(123);
+		Settings.STREAMS = new RandomStreams(123);
+		Chemokine.reset();
+
+		Chemokine cxcl13 = new Chemokine(new Schedule(), Chemokine.TYPE.CXCL13,
+				31, 31, 31);
+		for (int x = 0; x < 31; x++) {
+			for (int y = 0; y < 31; y++) {
+				for (int z = 0; z < 31; z++) {
+					cxcl13.setValue(x, y, z, 1e-10 * (x + 1));
+				}
+			}
+		}
+
+		BC.bcEnvironment = new Continuous3D(Settings.BC.DISCRETISATION, 31, 31,
+				31);
+		BC.drawEnvironment = BC.bcEnvironment;
+		BC.m_ogOccupancy = new OccupancyGrid(31, 31, 31,
+				BC.OCCUPANCY_DISCRETISATION);
+		if (BC.m_cgGrid != null) {
+			BC.m_cgGrid.shutdown();
+		}
+		BC.m_cgGrid = new CollisionGrid(31, 31, 31, 1);
+
+		ParallelMigration pmMigration = new ParallelMigration(Math.max(1,
+				iThreads));
+		List<BC> bcCells = new ArrayList<BC>();
+		for (int i = 0; i < iCells; i++) {
+			BC bc = new BC();
+			bc.setObjectLocation(new Double3D(Settings.RNG.nextInt(25) + 3,
+					Settings.RNG.nextInt(25) + 3, Settings.RNG.nextInt(25) + 3));
+			bc.setStopper(pmMigration.add(bc));
+			bcCells.add(bc);
+		}
+
+		if (bShutdown) {
+			pmMigration.shutdown();
+		}
+		if (bCopy) {
+			ByteArrayOutputStream baosBytes = new ByteArrayOutputStream();
+			ObjectOutputStream oosOut = new ObjectOutputStream(baosBytes);
+			oosOut.writeObject(pmMigration);
+			oosOut.writeObject(bcCells);
+			oosOut.close();
+			pmMigration.shutdown();
+
+			ObjectInputStream oisIn = new ObjectInputStream(
+					new ByteArrayInputStream(baosBytes.toByteArray()));
+			pmMigration = (ParallelMigration) oisIn.readObject();
+			bcCells = (List<BC>) oisIn.readObject();
+		}
+
+		for (int i = 0; i < 5; i++) {
+			if (iThreads > 0) {
+				pmMigration.step(null);
+			} else {
+				for (BC bc : bcCells) {
+					bc.step(null);
+				}
+			}
+			BC.m_cgGrid.step(null);
+		}
+		pmMigration.shutdown();
+
+		double[] adResults = new double[bcCells.size() * 5
+				+ cxcl13.getM_adField().length];
+		int iResult = 0;
+		for (BC bc : bcCells) {
+			adResults[iResult++] = bc.x;
+			adResults[iResult++] = bc.y;
+			adResults[iResult++] = bc.z;
+			adResults[iResult++] = bc.getM_LR(Lymphocyte.Receptor.CXCR5);
+			adResults[iResult++] = bc.getM_Rf(Lymphocyte.Receptor.CXCR5);
+		}
+		for (double dValue : cxcl13.getM_adField()) {
+			adResults[iResult++] = dValue;
+		}
+
+		return adResults;
+	}
+
+	/**
+	 * The results must not depend on the number of threads
+	 */
+	@Test
+	public void testThreadsGiveSameResults() {
+		double[] adOne = runCells(1, 200);
+		double[] adFour = runCells(4, 200);
+
+		assertArrayEquals(adOne, adFour, 0);
+	}
+
+	/**
+	 * Once the pool has been shut down, or the ParallelMigration has been
+	 * copied by serialisation, every cell must still be stepped
+	 */
+	@Test
+	public void testWithoutPool() throws Exception {
+		double[] adOne = runCells(1, 200);
+
+		assertArrayEquals(adOne, runCells(4, 200, true, false), 0);
+		assertArrayEquals(adOne, runCells(4, 200, false, true), 0);
+	}
+
+	/**
+	 * A cell on its own has nothing to share the chemokine with, so it must
+	 * move exactly as it does when stepped sequentially. The chemokine it
+	 * consumes is summed in a different order, so may differ by rounding
+	 */
+	@Test
+	public void testOneCellMatchesSequential() {
+		double[] adSequential = runCells(0, 1);
+		double[] adParallel = runCells(2, 1);
+
+		for (int i = 0; i < 5; i++) {
+			assertEquals(adSequential[i], adParallel[i], 0);
+		}
+		for (int i = 5; i < adSequential.length; i++) {
+			assertEquals(adSequential[i], adParallel[i], 1e-20);
+		}
+	}
+
+	/**
+	 * The cells must consume chemokine
+	 */
+	@Test
+	public void testChemokineConsumed() {
+		double[] adResults = runCells(2, 200);
+
+		double dTotal = 0;
+		double dStart = 0;
+		for (int i = 200 * 5; i < adResults.length; i++) {
+			int iX = (i - 200 * 5) / (31 * 31);
+			dTotal += adResults[i];
+			dStart += 1e-10 * (iX + 1);
+		}
+
+		assertTrue(dTotal < dStart);
+	}
+
+	/**
+	 * Stopping a cell must stop it being stepped
+	 */
+	@Test
+	public void testStop() {
+		Settings.RNG = new MersenneTwisterFast(123);
+		ParallelMigration pmMigration = new ParallelMigration(1);
+
+		BC bc = new BC();
+		Stoppable stopper = pmMigration.add(bc);
+		assertEquals(1, pmMigration.size());
+
+		stopper.stop();
+		assertEquals(0, pmMigration.size());
+	}
+}
@@ -57,14 +57,22 @@ public class Algorithm2 implements MigrationAlgorithm {
 	 */
 
 	public boolean determineSpaceToMove(double x, double y, double z) {
-		Double3D putativeLocation = new Double3D(x, y, z);
+		int otherCells;
 
-		// see if there are any cells at the putative location
-		// 0.7 represents the size of a cell
-		Bag cells = BC.bcEnvironment.getNeighborsExactlyWithinDistance(putativeLocation, 0.7);
+		if (BC.m_ogOccupancy != null) {
+			// the cells in the grid space at the putative location, minus one
+			// as it includes this cell
+			otherCells = BC.m_ogOccupancy.getCount(x, y, z) - 1;
+		} else {
+			Double3D putativeLocation = new Double3D(x, y, z);
 
-		// need to do cells minus one as it includes this cell
-		int otherCells = cells.numObjs - 1;
+			// see if there are any cells at the putative location
+			// 0.7 represents the size of a cell
+			Bag cells = BC.bcEnvironment.getNeighborsExactlyWithinDistance(putativeLocation, 0.7);
+
+			// need to do cells minus one as it includes this cell
+			otherCells = cells.numObjs - 1;
+		}
 
 		// need to account for in
 		double pmove = Math.exp(-otherCells);
@@ -100,11 +108,9 @@ public class Algorithm2 implements MigrationAlgorithm {
 		calculateWhereToMoveNext(lymphocyte, chemokine1, chemokine2);
 		lymphocyte.handleBounce(); // Check for bounces
 
-		ODESolver.solveODE(Settings.BC.ODE.K_a(), Settings.BC.ODE.K_r(), Settings.BC.ODE.K_i(), Settings.BC.ODE.Koff,
-				Settings.BC.ODE.Kdes, chemokine1, lymphocyte);
+		ODESolver.solveODE(chemokine1, lymphocyte);
 
-		ODESolver.solveODE(Settings.BC.ODE.K_a(), Settings.BC.ODE.K_r(), Settings.BC.ODE.K_i(), Settings.BC.ODE.Koff,
-				Settings.BC.ODE.Kdes, chemokine2, lymphocyte);
+		ODESolver.solveODE(chemokine2, lymphocyte);
 
 		lymphocyte.registerCollisions(Lymphocyte.m_cgGrid); // Register the new
 															// movement with the
@@ -127,8 +133,8 @@ public class Algorithm2 implements MigrationAlgorithm {
 		bc.getM_d3aCollisions().clear();
 		bc.setM_d3aMovements(new ArrayList<Double3D>());
 
-		double CXCR5signalling = bc.getM_receptorMap().get(Receptor.CXCR5).get(0);
-		double EBI2signalling = bc.getM_receptorMap().get(Receptor.EBI2).get(0);
+		double CXCR5signalling = bc.getM_LR(Receptor.CXCR5);
+		double EBI2signalling = bc.getM_LR(Receptor.EBI2);
 		
 		double receptorsSignalling = CXCR5signalling + EBI2signalling;
 		
@@ -191,15 +197,13 @@ public class Algorithm2 implements MigrationAlgorithm {
 		// determine what receptor you need to reference
 		Lymphocyte.Receptor receptor = setReceptor(chemokine);
 
-		double[][][] ia3Concs = Chemokine.get(chemokine, (int) lymphocyte.x, (int) lymphocyte.y, (int) lymphocyte.z);
-
 		// Assume the receptors are spread evenly around the cell
 		int iReceptors = lymphocyte.getM_LR(receptor) / 6;
 
 		// get CXCL13 concentrations at each psuedopod
 		// {x+, x-, y+, y-, z+, z-}
-		double[] iaConcs = { ia3Concs[2][1][1], ia3Concs[0][1][1], ia3Concs[1][2][1], ia3Concs[1][0][1],
-				ia3Concs[1][1][2], ia3Concs[1][1][0] };
+		double[] iaConcs = Chemokine.getFaces(chemokine, (int) lymphocyte.x, (int) lymphocyte.y, (int) lymphocyte.z,
+				Chemokine.getFaceBuffer());
 
 		double totalLigand = 0;
 
@@ -0,0 +1,391 @@
+package sim3d.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import sim3d.cell.Lymphocyte;
+import sim3d.cell.ReceptorStore;
+import sim3d.diffusion.Chemokine;
+
+/**
+ * Solves the receptor ODE of a whole population of lymphocytes at once.
+ * Each second of a step is one pass over the cells in flat arrays: read the
+ * chemokine around the cell, step its receptor columns in the ReceptorStore
+ * with ODESolver.stepReceptors, and work out how much chemokine it consumes
+ * and releases at each face. A pass can be shared out across threads.
+ *
+ * The changes to the chemokine go into a delta per grid space rather than
+ * into the Chemokine. The cells read the field with the delta on top, and
+ * the delta is added to the Chemokine once at the end of the step.
+ *
+ * Within a second every cell reads the chemokine as it was at the start of
+ * the second, and the deltas are summed in the order of the cells, so the
+ * results don't depend on the number of threads. Unlike ODESolver.solveODE,
+ * where a cell consumes all it will this step before the next cell starts,
+ * the cells share the chemokine second by second. solveODEExponential does
+ * the whole step in one pass with ExponentialODESolver instead.
+ *
+ * With a tolerance, a cell whose receptors have settled stops being solved
+ * and repeats the chemokine it bound and released in its last second, as
+ * ODESolver.solveODE does, and once every cell has settled the rest of the
+ * passes are added in one go.
+ *
+ * @author Jason Cosgrove
+ */
+public class BatchODESolver {
+
+	/**
+	 * avogadors number - number of molecules in 1 mole
+	 */
+	private static final double AVOGADRO = 6.0221409e+23;
+
+	/**
+	 * volume of one gridspace in litres
+	 */
+	private static final double VOLUME = 1e-12;
+
+	/**
+	 * Number of threads each pass is shared out across
+	 */
+	private int m_iThreads;
+
+	/**
+	 * One task per thread, each solving a contiguous block of the cells
+	 */
+	private List<PassTask> m_lTasks;
+
+	/**
+	 * Number of cells being solved
+	 */
+	private int m_iCount;
+
+	/**
+	 * The ReceptorStore slot of each cell
+	 */
+	private int[] m_aiSlots = new int[0];
+
+	/**
+	 * The grid space of each face of each cell, 6 per cell as in
+	 * Chemokine.getFaces. The cells read from m_aiRead, where -1 is off the
+	 * grid, and write to m_aiWrite, which wraps round as Chemokine.add does
+	 */
+	private int[] m_aiRead = new int[0], m_aiWrite = new int[0];
+
+	/**
+	 * The change each cell makes at each of its faces this pass
+	 */
+	private double[] m_adChanges = new double[0];
+
+	/**
+	 * The change to each grid space so far this step, 0 between steps
+	 */
+	private double[] m_adDelta = new double[0];
+
+	/**
+	 * The field being solved against and the receptor columns and rates, set
+	 * for the length of solveODE
+	 */
+	private double[] m_adField;
+	private int[] m_aiLR, m_aiRf, m_aiRi, m_aiRd;
+	private double m_dKa, m_dKr, m_dKi, m_dKoff, m_dKdes;
+
+	/**
+	 * Whether each pass is a whole step with ExponentialODESolver rather
+	 * than a second with ODESolver
+	 */
+	private boolean m_bExponential;
+
+	/**
+	 * See ODESolver.solveODE, 0 to solve every second
+	 */
+	private int m_iTolerance;
+
+	/**
+	 * Whether each cell's receptors have settled this step
+	 */
+	private boolean[] m_abSettled = new boolean[0];
+
+	/**
+	 * @param numThreads
+	 *            number of blocks to share each pass out into, one per
+	 *            thread of the pool the solve methods are given
+	 */
+	public BatchODESolver(int numThreads) {
+		m_iThreads = Math.max(1, numThreads);
+
+		m_lTasks = new ArrayList<PassTask>();
+		for (int i = 0; i < m_iThreads; i++) {
+			m_lTasks.add(new PassTask());
+		}
+	}
+
+	/**
+	 * Solve the receptor ODE of the cells for one step, as ODESolver.solveODE
+	 * does for a single cell. The cells must share a ReceptorStore
+	 * 
+	 * @param esPool
+	 *            pool to run the passes on, or null to run them on the
+	 *            calling thread. It belongs to the caller, who shuts it down
+	 */
+	public void solveODE(double Ka, double Kr, double Ki, double Koff,
+			double Kdes, Chemokine.TYPE chemokine,
+			List<? extends Lymphocyte> llCells, ExecutorService esPool) {
+		solve(Ka, Kr, Ki, Koff, Kdes, 0, chemokine, llCells, false, esPool);
+	}
+
+	/**
+	 * Solve the receptor ODE of the cells for one step, stopping early for
+	 * the cells whose receptors have settled as ODESolver.solveODE does. The
+	 * cells must share a ReceptorStore
+	 * 
+	 * @param iTolerance
+	 *            the change in a receptor count below which the receptors
+	 *            have settled, 0 to always solve every second
+	 * @param esPool
+	 *            pool to run the passes on, or null to run them on the
+	 *            calling thread
+	 */
+	public void solveODE(double Ka, double Kr, double Ki, double Koff,
+			double Kdes, int iTolerance, Chemokine.TYPE chemokine,
+			List<? extends Lymphocyte> llCells, ExecutorService esPool) {
+		solve(Ka, Kr, Ki, Koff, Kdes, iTolerance, chemokine, llCells, false,
+				esPool);
+	}
+
+	/**
+	 * Solve the receptor ODE of the cells for one step, as
+	 * ExponentialODESolver.solveODE does for a single cell. The cells must
+	 * share a ReceptorStore
+	 * 
+	 * @param esPool
+	 *            pool to run the passes on, or null to run them on the
+	 *            calling thread
+	 */
+	public void solveODEExponential(double Ka, double Kr, double Ki,
+			double Koff, double Kdes, Chemokine.TYPE chemokine,
+			List<? extends Lymphocyte> llCells, ExecutorService esPool) {
+		solve(Ka, Kr, Ki, Koff, Kdes, 0, chemokine, llCells, true, esPool);
+	}
+
+	private void solve(double Ka, double Kr, double Ki, double Koff,
+			double Kdes, int iTolerance, Chemokine.TYPE chemokine,
+			List<? extends Lymphocyte> llCells, boolean bExponential,
+			ExecutorService esPool) {
+
+		m_iCount = llCells.size();
+		if (m_iCount == 0) {
+			return;
+		}
+
+		Chemokine chemokineGrid = Chemokine.getInstance(chemokine);
+		m_adField = chemokineGrid.getM_adField();
+		if (m_adDelta.length != m_adField.length) {
+			m_adDelta = new double[m_adField.length];
+		}
+		if (m_aiSlots.length < m_iCount) {
+			int iCapacity = Math.max(m_iCount, m_aiSlots.length * 2);
+			m_aiSlots = new int[iCapacity];
+			m_aiRead = new int[iCapacity * 6];
+			m_aiWrite = new int[iCapacity * 6];
+			m_adChanges = new double[iCapacity * 6];
+			m_abSettled = new boolean[iCapacity];
+		}
+		Arrays.fill(m_abSettled, 0, m_iCount, false);
+
+		Lymphocyte.Receptor receptor = ODESolver.getReceptor(chemokine);
+		ReceptorStore rsReceptors = llCells.get(0).getReceptorStore();
+		m_aiLR = rsReceptors.getColumn(receptor, ReceptorStore.LR);
+		m_aiRf = rsReceptors.getColumn(receptor, ReceptorStore.RF);
+		m_aiRi = rsReceptors.getColumn(receptor, ReceptorStore.RI);
+		m_aiRd = rsReceptors.getColumn(receptor, ReceptorStore.RD);
+		m_dKa = Ka;
+		m_dKr = Kr;
+		m_dKi = Ki;
+		m_dKoff = Koff;
+		m_dKdes = Kdes;
+		m_bExponential = bExponential;
+		m_iTolerance = iTolerance;
+
+		for (int i = 0; i < m_iCount; i++) {
+			Lymphocyte lymphocyte = llCells.get(i);
+			if (lymphocyte.getReceptorStore() != rsReceptors) {
+				throw new IllegalArgumentException(
+						"The cells must share a ReceptorStore");
+			}
+			m_aiSlots[i] = lymphocyte.getReceptorSlot();
+
+			int x = (int) lymphocyte.x;
+			int y = (int) lymphocyte.y;
+			int z = (int) lymphocyte.z;
+			int iFace = i * 6;
+
+			chemokineGrid.getFaceIndices(x, y, z, m_aiRead, iFace);
+			m_aiWrite[iFace] = chemokineGrid.getWrappedIndex(x + 1, y, z);
+			m_aiWrite[iFace + 1] = chemokineGrid.getWrappedIndex(x - 1, y, z);
+			m_aiWrite[iFace + 2] = chemokineGrid.getWrappedIndex(x, y + 1, z);
+			m_aiWrite[iFace + 3] = chemokineGrid.getWrappedIndex(x, y - 1, z);
+			m_aiWrite[iFace + 4] = chemokineGrid.getWrappedIndex(x, y, z + 1);
+			m_aiWrite[iFace + 5] = chemokineGrid.getWrappedIndex(x, y, z - 1);
+		}
+
+		for (int i = 0; i < m_iThreads; i++) {
+			m_lTasks.get(i).update(i * m_iCount / m_iThreads, (i + 1)
+					* m_iCount / m_iThreads);
+		}
+
+		int iFaces = m_iCount * 6;
+		int iPasses = bExponential ? 1 : ODESolver.SECONDS_PER_STEP;
+		for (int iPass = 0; iPass < iPasses; iPass++) {
+			runTasks(esPool);
+
+			int iSettled = 0;
+			for (PassTask ptTask : m_lTasks) {
+				iSettled += ptTask.m_iSettled;
+			}
+
+			// the rest of the passes would all be the same as this one
+			int iRepeats = (iSettled == m_iCount) ? iPasses - iPass : 1;
+
+			// in the order of the cells whichever thread solved them
+			for (int i = 0; i < iFaces; i++) {
+				m_adDelta[m_aiWrite[i]] += m_adChanges[i] * iRepeats;
+			}
+
+			if (iRepeats > 1) {
+				break;
+			}
+		}
+
+		if (!bExponential) {
+			long lTaken = 0;
+			for (PassTask ptTask : m_lTasks) {
+				lTaken += ptTask.m_lTaken;
+			}
+			ODESolver.getSubStepStatistics().add(m_iCount, lTaken,
+					(long) m_iCount * iPasses - lTaken);
+		}
+
+		// add each touched grid space once, clearing the delta as we go
+		for (int i = 0; i < iFaces; i++) {
+			int iIndex = m_aiWrite[i];
+			if (m_adDelta[iIndex] != 0) {
+				chemokineGrid.addAtIndex(iIndex, m_adDelta[iIndex]);
+				m_adDelta[iIndex] = 0;
+			}
+		}
+
+		m_adField = null;
+		m_aiLR = m_aiRf = m_aiRi = m_aiRd = null;
+	}
+
+	/**
+	 * Run one pass of every block, blocking until they have all finished.
+	 * Without a pool the blocks are run one after another
+	 */
+	private void runTasks(ExecutorService esPool) {
+		try {
+			if (esPool == null) {
+				for (PassTask ptTask : m_lTasks) {
+					ptTask.call();
+				}
+			} else {
+				for (Future<Object> fResult : esPool.invokeAll(m_lTasks)) {
+					fResult.get();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	class PassTask implements Callable<Object> {
+
+		private int m_iFrom, m_iTo;
+
+		/**
+		 * The chemokine at each face of the cell being solved
+		 */
+		private double[] m_adFaces = new double[6];
+
+		/**
+		 * Receptors bound and ligands dissociated, see
+		 * ODESolver.stepReceptors
+		 */
+		private double[] m_adBound = new double[2];
+
+		/**
+		 * Number of cells in the block that have settled and seconds solved
+		 * this step
+		 */
+		private int m_iSettled;
+		private long m_lTaken;
+
+		public void update(int iFrom, int iTo) {
+			m_iFrom = iFrom;
+			m_iTo = iTo;
+			m_iSettled = 0;
+			m_lTaken = 0;
+		}
+
+		public Object call() {
+			for (int i = m_iFrom; i < m_iTo; i++) {
+				// keeps the changes of its last second
+				if (m_abSettled[i]) {
+					continue;
+				}
+				int iFace = i * 6;
+				int iSlot = m_aiSlots[i];
+				int iLR = m_aiLR[iSlot], iRf = m_aiRf[iSlot];
+				int iRi = m_aiRi[iSlot], iRd = m_aiRd[iSlot];
+				m_lTaken++;
+
+				double totalLigand = 0;
+				double dSum = 0;
+				for (int k = 0; k < 6; k++) {
+					int iIndex = m_aiRead[iFace + k];
+					m_adFaces[k] = (iIndex < 0) ? 0 : Math.max(0,
+							m_adField[iIndex] + m_adDelta[iIndex]);
+				}
+				for (int k = 0; k < 6; k++) {
+					totalLigand += m_adFaces[k] / VOLUME;
+					dSum += m_adFaces[k];
+				}
+
+				if (m_bExponential) {
+					ExponentialODESolver.stepReceptors(m_dKa, m_dKr, m_dKi,
+							m_dKoff, m_dKdes, totalLigand, m_aiLR, m_aiRf,
+							m_aiRi, m_aiRd, iSlot,
+							ODESolver.SECONDS_PER_STEP, m_adBound);
+				} else {
+					ODESolver.stepReceptors(m_dKa, m_dKr, m_dKi, m_dKoff,
+							m_dKdes, totalLigand, m_aiLR, m_aiRf, m_aiRi,
+							m_aiRd, iSlot, m_adBound);
+				}
+
+				if (Math.abs(m_aiLR[iSlot] - iLR) < m_iTolerance
+						&& Math.abs(m_aiRf[iSlot] - iRf) < m_iTolerance
+						&& Math.abs(m_aiRi[iSlot] - iRi) < m_iTolerance
+						&& Math.abs(m_aiRd[iSlot] - iRd) < m_iTolerance) {
+					m_abSettled[i] = true;
+					m_iSettled++;
+				}
+
+				// bound receptors are shared out in proportion to the
+				// chemokine at each face and dissociated ligand evenly
+				double dReleased = (m_adBound[1] / 6) / AVOGADRO;
+				for (int k = 0; k < 6; k++) {
+					double dBound = (int) (m_adFaces[k] / dSum * m_adBound[0]);
+					m_adChanges[iFace + k] = dReleased - dBound / AVOGADRO;
+				}
+			}
+			return null;
+		}
+	}
+}
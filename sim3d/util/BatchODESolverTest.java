@@ -0,0 +1,234 @@
+package sim3d.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ec.util.MersenneTwisterFast;
+import sim.engine.Schedule;
+import sim3d.cell.BC;
+import sim3d.cell.Lymphocyte;
+import sim3d.cell.ReceptorStore;
+import sim3d.diffusion.Chemokine;
+
+public class BatchODESolverTest {
+
+	private static final double Ka = 1e5, Kr = 0.004, Ki = 0.0033,
+			Koff = 0.0048, Kdes = 0.075;
+
+	@After
+	public void tearDown() throws Exception {
+		Chemokine.reset();
+		Lymphocyte.m_rsReceptorStore = new ReceptorStore();
+		ODESolver.resetSubStepStatistics();
+	}
+
+	/**
+	 * A fresh CXCL13 field rising along x
+	 */
+	private Chemokine newField() {
+		Chemokine.reset();
+		Chemokine cxcl13 = new Chemokine(new Schedule(), Chemokine.TYPE.CXCL13,
+				21, 21, 21);
+		for (int x = 0; x < 21; x++) {
+			for (int y = 0; y < 21; y++) {
+				for (int z = 0; z < 21; z++) {
+					cxcl13.setValue(x, y, z, 1e-18 * (x + 1));
+				}
+			}
+		}
+		return cxcl13;
+	}
+
+	/**
+	 * Some B cells with free receptors at random positions
+	 */
+	private List<BC> newCells(int iCells) {
+		MersenneTwisterFast rng = new MersenneTwisterFast(7);
+		List<BC> bcCells = new ArrayList<BC>();
+		for (int i = 0; i < iCells; i++) {
+			BC bc = new BC();
+			bc.x = rng.nextInt(19) + 1;
+			bc.y = rng.nextInt(19) + 1;
+			bc.z = rng.nextInt(19) + 1;
+			bc.setM_Rf(Lymphocyte.Receptor.CXCR5, 48000);
+			bc.setM_LR(Lymphocyte.Receptor.CXCR5, 0);
+			bc.setM_Ri(Lymphocyte.Receptor.CXCR5, 0);
+			bc.setM_Rd(Lymphocyte.Receptor.CXCR5, 0);
+			bcCells.add(bc);
+		}
+		return bcCells;
+	}
+
+	/**
+	 * @return the receptors of the cells followed by the field
+	 */
+	private double[] results(List<BC> bcCells, Chemokine cxcl13) {
+		double[] adResults = new double[bcCells.size() * 4
+				+ cxcl13.getM_adField().length];
+		int iResult = 0;
+		for (BC bc : bcCells) {
+			adResults[iResult++] = bc.getM_LR(Lymphocyte.Receptor.CXCR5);
+			adResults[iResult++] = bc.getM_Rf(Lymphocyte.Receptor.CXCR5);
+			adResults[iResult++] = bc.getM_Ri(Lymphocyte.Receptor.CXCR5);
+			adResults[iResult++] = bc.getM_Rd(Lymphocyte.Receptor.CXCR5);
+		}
+		for (double dValue : cxcl13.getM_adField()) {
+			adResults[iResult++] = dValue;
+		}
+		return adResults;
+	}
+
+	/**
+	 * A cell on its own must end up as it does with ODESolver, up to rounding
+	 * in the chemokine
+	 */
+	@Test
+	public void testOneCellMatchesSolveODE() {
+		Chemokine cxcl13 = newField();
+		List<BC> bcCells = newCells(1);
+		ODESolver.solveODE(Ka, Kr, Ki, Koff, Kdes, Chemokine.TYPE.CXCL13,
+				bcCells.get(0));
+		double[] adExpected = results(bcCells, cxcl13);
+
+		cxcl13 = newField();
+		bcCells = newCells(1);
+		new BatchODESolver(1).solveODE(Ka, Kr, Ki, Koff, Kdes,
+				Chemokine.TYPE.CXCL13, bcCells, null);
+		double[] adActual = results(bcCells, cxcl13);
+
+		assertTrue(bcCells.get(0).getM_LR(Lymphocyte.Receptor.CXCR5) > 0);
+		for (int i = 0; i < 4; i++) {
+			assertEquals(adExpected[i], adActual[i], 0);
+		}
+		for (int i = 4; i < adExpected.length; i++) {
+			assertEquals(adExpected[i], adActual[i], 1e-30);
+		}
+	}
+
+	/**
+	 * Likewise for the exponential solver
+	 */
+	@Test
+	public void testOneCellMatchesExponential() {
+		Chemokine cxcl13 = newField();
+		List<BC> bcCells = newCells(1);
+		ExponentialODESolver.solveODE(Ka, Kr, Ki, Koff, Kdes,
+				Chemokine.TYPE.CXCL13, bcCells.get(0));
+		double[] adExpected = results(bcCells, cxcl13);
+
+		cxcl13 = newField();
+		bcCells = newCells(1);
+		new BatchODESolver(1).solveODEExponential(Ka, Kr, Ki, Koff,
+				Kdes, Chemokine.TYPE.CXCL13, bcCells, null);
+		double[] adActual = results(bcCells, cxcl13);
+
+		assertTrue(bcCells.get(0).getM_LR(Lymphocyte.Receptor.CXCR5) > 0);
+		for (int i = 0; i < 4; i++) {
+			assertEquals(adExpected[i], adActual[i], 0);
+		}
+		for (int i = 4; i < adExpected.length; i++) {
+			assertEquals(adExpected[i], adActual[i], 1e-30);
+		}
+	}
+
+	/**
+	 * The results must not depend on the number of threads
+	 */
+	@Test
+	public void testThreadsGiveSameResults() {
+		Chemokine cxcl13 = newField();
+		List<BC> bcCells = newCells(200);
+		new BatchODESolver(1).solveODE(Ka, Kr, Ki, Koff, Kdes,
+				Chemokine.TYPE.CXCL13, bcCells, null);
+		double[] adOne = results(bcCells, cxcl13);
+
+		ExecutorService esPool = Executors.newFixedThreadPool(4);
+		try {
+			cxcl13 = newField();
+			bcCells = newCells(200);
+			BatchODESolver bosSolver = new BatchODESolver(4);
+			bosSolver.solveODE(Ka, Kr, Ki, Koff, Kdes, Chemokine.TYPE.CXCL13,
+					bcCells, esPool);
+			assertArrayEquals(adOne, results(bcCells, cxcl13), 0);
+
+			// and again, now the solver's buffers are reused
+			double dTotal = cxcl13.calculateTotalChemokineLevels();
+			bosSolver.solveODE(Ka, Kr, Ki, Koff, Kdes, Chemokine.TYPE.CXCL13,
+					bcCells, esPool);
+			assertTrue(cxcl13.calculateTotalChemokineLevels() < dTotal);
+		} finally {
+			esPool.shutdown();
+		}
+	}
+
+	/**
+	 * Without a pool every block must still be solved, one after another
+	 */
+	@Test
+	public void testBlocksWithoutPool() {
+		Chemokine cxcl13 = newField();
+		List<BC> bcCells = newCells(200);
+		new BatchODESolver(1).solveODE(Ka, Kr, Ki, Koff, Kdes,
+				Chemokine.TYPE.CXCL13, bcCells, null);
+		double[] adOne = results(bcCells, cxcl13);
+
+		cxcl13 = newField();
+		bcCells = newCells(200);
+		new BatchODESolver(4).solveODE(Ka, Kr, Ki, Koff, Kdes,
+				Chemokine.TYPE.CXCL13, bcCells, null);
+		assertArrayEquals(adOne, results(bcCells, cxcl13), 0);
+	}
+
+	/**
+	 * Stopping early must not make the results depend on the number of
+	 * threads either, and must save seconds
+	 */
+	@Test
+	public void testEarlyExitThreads() {
+		Chemokine cxcl13 = newField();
+		List<BC> bcCells = newCells(200);
+		BatchODESolver bosSolver = new BatchODESolver(1);
+		for (int i = 0; i < 10; i++) {
+			bosSolver.solveODE(Ka, Kr, Ki, Koff, Kdes, 5,
+					Chemokine.TYPE.CXCL13, bcCells, null);
+		}
+		double[] adOne = results(bcCells, cxcl13);
+		assertEquals(2000, ODESolver.getSubStepStatistics().getSolves());
+		assertTrue(ODESolver.getSubStepStatistics().getSaved() > 0);
+
+		ExecutorService esPool = Executors.newFixedThreadPool(4);
+		try {
+			cxcl13 = newField();
+			bcCells = newCells(200);
+			bosSolver = new BatchODESolver(4);
+			for (int i = 0; i < 10; i++) {
+				bosSolver.solveODE(Ka, Kr, Ki, Koff, Kdes, 5,
+						Chemokine.TYPE.CXCL13, bcCells, esPool);
+			}
+			assertArrayEquals(adOne, results(bcCells, cxcl13), 0);
+		} finally {
+			esPool.shutdown();
+		}
+	}
+
+	/**
+	 * Cells with receptors in different stores can't be solved together
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testSharedReceptorStore() {
+		newField();
+		List<BC> bcCells = newCells(1);
+		Lymphocyte.m_rsReceptorStore = new ReceptorStore();
+		bcCells.addAll(newCells(1));
+
+		new BatchODESolver(1).solveODE(Ka, Kr, Ki, Koff, Kdes,
+				Chemokine.TYPE.CXCL13, bcCells, null);
+	}
+}
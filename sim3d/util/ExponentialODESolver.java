@@ -0,0 +1,179 @@
+package sim3d.util;
+
+import sim3d.cell.Lymphocyte;
+import sim3d.cell.ReceptorStore;
+import sim3d.diffusion.Chemokine;
+
+/**
+ * Advances the receptor ODE over a whole step in one go, rather than a
+ * second at a time as ODESolver does. For a given amount of ligand, each
+ * second of ODESolver.stepReceptors is a linear map of the receptor counts
+ * in which every rate is scaled by the weights of its Runge Kutta stages.
+ * Raising the matrix of that map to the number of seconds in a step gives
+ * the whole step. Two extra states count the ligand bound and dissociated
+ * along the way, so the chemokine is only read and updated once per step.
+ *
+ * The ligand is read at the start of the step and assumed not to change
+ * during it, and the counts aren't truncated every second, so the results
+ * are close to ODESolver's but not the same. Where a cell uses up a
+ * significant part of the ligand around it in a step, ODESolver is the
+ * better choice.
+ *
+ * @author Jason Cosgrove
+ */
+public class ExponentialODESolver {
+
+	/**
+	 * The weights of the Runge Kutta stages in ODESolver.stepReceptors add
+	 * up to this multiple of each rate
+	 */
+	static final double RK4_WEIGHT = 41.0 / 24.0;
+
+	/**
+	 * The order of the states in the transition matrix
+	 */
+	private static final int RF = 0, LR = 1, RD = 2, RI = 3, BOUND = 4,
+			DISSOCIATED = 5, STATES = 6;
+
+	/**
+	 * Solve the receptor ODE for one step, as ODESolver.solveODE does
+	 */
+	public static void solveODE(double Ka, double Kr, double Ki, double Koff,
+			double Kdes, Chemokine.TYPE chemokine, Lymphocyte lymphocyte) {
+
+		Lymphocyte.Receptor receptor = ODESolver.getReceptor(chemokine);
+		ReceptorStore rsReceptors = lymphocyte.getReceptorStore();
+
+		// get CXCL13 amounts at each psuedopod
+		// {x+, x-, y+, y-, z+, z-}
+		double[] iaConcs = Chemokine.getFaces(chemokine, (int) lymphocyte.x,
+				(int) lymphocyte.y, (int) lymphocyte.z,
+				Chemokine.getFaceBuffer());
+
+		double vol = 1e-12;// volume of one gridspace in litres
+		double totalLigand = 0;
+		for (int j = 0; j < 6; j++) {
+			totalLigand += iaConcs[j] / vol;
+		}
+
+		double[] adChanges = new double[2];
+		stepReceptors(Ka, Kr, Ki, Koff, Kdes, totalLigand,
+				rsReceptors.getColumn(receptor, ReceptorStore.LR),
+				rsReceptors.getColumn(receptor, ReceptorStore.RF),
+				rsReceptors.getColumn(receptor, ReceptorStore.RI),
+				rsReceptors.getColumn(receptor, ReceptorStore.RD),
+				lymphocyte.getReceptorSlot(), ODESolver.SECONDS_PER_STEP,
+				adChanges);
+
+		ODESolver.consumeLigand(lymphocyte, chemokine, adChanges[0]);
+		ODESolver.addChemokine(lymphocyte, chemokine, adChanges[1]);
+	}
+
+	/**
+	 * Advance the receptors of the cell in iSlot by iSeconds of
+	 * ODESolver.stepReceptors at once, with the ligand held constant
+	 *
+	 * @param totalLigand
+	 *            the ligand around the cell
+	 * @param adChanges
+	 *            set to the number of receptors that bound ligand, then the
+	 *            number of ligands that dissociated, over the whole time
+	 */
+	static void stepReceptors(double Ka, double Kr, double Ki, double Koff,
+			double Kdes, double totalLigand, int[] aiLR, int[] aiRf,
+			int[] aiRi, int[] aiRd, int iSlot, int iSeconds,
+			double[] adChanges) {
+
+		// the proportion of each state that moves on each second
+		double dBind = Math.min(1,
+				Math.max(0, RK4_WEIGHT * Ka * totalLigand));
+		double dDes = RK4_WEIGHT * Kdes;
+		double dIn = RK4_WEIGHT * Ki;
+		double dRec = RK4_WEIGHT * Kr;
+
+		// as in ODESolver, favour desensitisation if the two would take
+		// more than LR
+		double dOff = Math.min(RK4_WEIGHT * Koff, Math.max(0, 1 - dDes));
+
+		// one second, row major so the new state is adSecond times the old
+		double[] adSecond = new double[STATES * STATES];
+		adSecond[RF * STATES + RF] = 1 - dBind;
+		adSecond[RF * STATES + LR] = dOff;
+		adSecond[RF * STATES + RI] = dRec;
+		adSecond[LR * STATES + RF] = dBind;
+		adSecond[LR * STATES + LR] = 1 - dOff - dDes;
+		adSecond[RD * STATES + LR] = dDes;
+		adSecond[RD * STATES + RD] = 1 - dIn;
+		adSecond[RI * STATES + RD] = dIn;
+		adSecond[RI * STATES + RI] = 1 - dRec;
+		adSecond[BOUND * STATES + RF] = dBind;
+		adSecond[BOUND * STATES + BOUND] = 1;
+		adSecond[DISSOCIATED * STATES + LR] = dOff;
+		adSecond[DISSOCIATED * STATES + DISSOCIATED] = 1;
+
+		double[] adStep = power(adSecond, iSeconds);
+
+		int iRf = aiRf[iSlot];
+		int iLR = aiLR[iSlot];
+		int iRd = aiRd[iSlot];
+		int iRi = aiRi[iSlot];
+
+		double[] adEnd = new double[STATES];
+		for (int i = 0; i < STATES; i++) {
+			adEnd[i] = adStep[i * STATES + RF] * iRf + adStep[i * STATES + LR]
+					* iLR + adStep[i * STATES + RD] * iRd
+					+ adStep[i * STATES + RI] * iRi;
+		}
+
+		adChanges[0] = adEnd[BOUND];
+		adChanges[1] = adEnd[DISSOCIATED];
+
+		// the free receptors take up the truncation so none are lost
+		int iTotal = iRf + iLR + iRd + iRi;
+		aiLR[iSlot] = (int) adEnd[LR];
+		aiRd[iSlot] = (int) adEnd[RD];
+		aiRi[iSlot] = (int) adEnd[RI];
+		aiRf[iSlot] = iTotal - aiLR[iSlot] - aiRd[iSlot] - aiRi[iSlot];
+	}
+
+	/**
+	 * @return adMatrix to the power of iPower, by repeated squaring
+	 */
+	static double[] power(double[] adMatrix, int iPower) {
+		double[] adResult = new double[STATES * STATES];
+		for (int i = 0; i < STATES; i++) {
+			adResult[i * STATES + i] = 1;
+		}
+
+		double[] adSquare = adMatrix;
+		while (iPower > 0) {
+			if ((iPower & 1) != 0) {
+				adResult = multiply(adResult, adSquare);
+			}
+			iPower >>= 1;
+			if (iPower > 0) {
+				adSquare = multiply(adSquare, adSquare);
+			}
+		}
+		return adResult;
+	}
+
+	/**
+	 * @return adA times adB
+	 */
+	private static double[] multiply(double[] adA, double[] adB) {
+		double[] adProduct = new double[STATES * STATES];
+		for (int i = 0; i < STATES; i++) {
+			for (int k = 0; k < STATES; k++) {
+				double dA = adA[i * STATES + k];
+				if (dA == 0) {
+					continue;
+				}
+				for (int j = 0; j < STATES; j++) {
+					adProduct[i * STATES + j] += dA * adB[k * STATES + j];
+				}
+			}
+		}
+		return adProduct;
+	}
+}
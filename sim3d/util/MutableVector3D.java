@@ -0,0 +1,120 @@
+package sim3d.util;
+
+import java.io.Serializable;
+
+import sim.util.Double3D;
+
+/**
+ * A vector whose coordinates can be changed in place, for arithmetic on the
+ * migration and collision paths where chaining Double3D operations would
+ * allocate a new Double3D at every step. Each operation works on this vector
+ * and returns it, so calls can be chained in the same way, and the results
+ * are the same as the equivalent Double3D operations in the same order.
+ *
+ * Instances are scratch space: they aren't thread safe, so each thread (or
+ * cell) keeps its own, and anything that needs to outlive the calculation
+ * should be copied out with toDouble3D.
+ *
+ * @author Jason Cosgrove
+ */
+public class MutableVector3D implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public double x, y, z;
+
+	public MutableVector3D() {
+	}
+
+	public MutableVector3D(double x, double y, double z) {
+		set(x, y, z);
+	}
+
+	public MutableVector3D set(double x, double y, double z) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		return this;
+	}
+
+	public MutableVector3D set(Double3D d3Other) {
+		return set(d3Other.x, d3Other.y, d3Other.z);
+	}
+
+	public MutableVector3D set(MutableVector3D v3Other) {
+		return set(v3Other.x, v3Other.y, v3Other.z);
+	}
+
+	public MutableVector3D add(Double3D d3Other) {
+		return set(x + d3Other.x, y + d3Other.y, z + d3Other.z);
+	}
+
+	public MutableVector3D add(MutableVector3D v3Other) {
+		return set(x + v3Other.x, y + v3Other.y, z + v3Other.z);
+	}
+
+	/**
+	 * Add d3Other times dScale, as add(d3Other.multiply(dScale)) would
+	 */
+	public MutableVector3D addScaled(Double3D d3Other, double dScale) {
+		return set(x + d3Other.x * dScale, y + d3Other.y * dScale, z
+				+ d3Other.z * dScale);
+	}
+
+	public MutableVector3D subtract(Double3D d3Other) {
+		return set(x - d3Other.x, y - d3Other.y, z - d3Other.z);
+	}
+
+	public MutableVector3D subtract(MutableVector3D v3Other) {
+		return set(x - v3Other.x, y - v3Other.y, z - v3Other.z);
+	}
+
+	public MutableVector3D multiply(double dScale) {
+		return set(x * dScale, y * dScale, z * dScale);
+	}
+
+	/**
+	 * Scale to unit length, as Double3D.normalize does
+	 * 
+	 * @throws ArithmeticException
+	 *             if the length is zero or not finite, as there is no
+	 *             direction to keep
+	 */
+	public MutableVector3D normalize() {
+		double dInvertedLength = 1.0 / Math.sqrt(x * x + y * y + z * z);
+		if (Double.isInfinite(dInvertedLength) || dInvertedLength == 0
+				|| Double.isNaN(dInvertedLength)) {
+			throw new ArithmeticException(this + " length is " + length()
+					+ ", cannot normalize");
+		}
+		return multiply(dInvertedLength);
+	}
+
+	public double length() {
+		return Math.sqrt(lengthSq());
+	}
+
+	public double lengthSq() {
+		return x * x + y * y + z * z;
+	}
+
+	public double dotProduct(Double3D d3Other) {
+		return x * d3Other.x + y * d3Other.y + z * d3Other.z;
+	}
+
+	public double dotProduct(MutableVector3D v3Other) {
+		return x * v3Other.x + y * v3Other.y + z * v3Other.z;
+	}
+
+	/**
+	 * @return a Double3D with the same coordinates, for storing
+	 */
+	public Double3D toDouble3D() {
+		return new Double3D(x, y, z);
+	}
+
+	@Override
+	public String toString() {
+		return "MutableVector3D[" + x + "," + y + "," + z + "]";
+	}
+}
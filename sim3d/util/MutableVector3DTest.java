@@ -0,0 +1,71 @@
+package sim3d.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ec.util.MersenneTwisterFast;
+import sim.util.Double3D;
+
+public class MutableVector3DTest {
+
+	/**
+	 * Each operation must give exactly what the equivalent Double3D operation
+	 * does
+	 */
+	@Test
+	public void testMatchesDouble3D() {
+		MersenneTwisterFast rng = new MersenneTwisterFast(3);
+		MutableVector3D v3Vector = new MutableVector3D();
+
+		for (int i = 0; i < 1000; i++) {
+			Double3D d3A = new Double3D(rng.nextGaussian(), rng.nextGaussian(),
+					rng.nextGaussian());
+			Double3D d3B = new Double3D(rng.nextGaussian(), rng.nextGaussian(),
+					rng.nextGaussian());
+			double dScale = rng.nextGaussian();
+
+			assertEquals(d3A.add(d3B), v3Vector.set(d3A).add(d3B).toDouble3D());
+			assertEquals(d3A.subtract(d3B), v3Vector.set(d3A).subtract(d3B)
+					.toDouble3D());
+			assertEquals(d3A.multiply(dScale), v3Vector.set(d3A)
+					.multiply(dScale).toDouble3D());
+			assertEquals(d3A.add(d3B.multiply(dScale)), v3Vector.set(d3A)
+					.addScaled(d3B, dScale).toDouble3D());
+			assertEquals(d3A.normalize(), v3Vector.set(d3A).normalize()
+					.toDouble3D());
+			assertEquals(d3A.lengthSq(), v3Vector.set(d3A).lengthSq(), 0);
+			assertEquals(d3A.length(), v3Vector.set(d3A).length(), 0);
+			assertEquals(Vector3DHelper.dotProduct(d3A, d3B), v3Vector
+					.set(d3A).dotProduct(d3B), 0);
+		}
+	}
+
+	/**
+	 * Like Double3D, a vector without a finite, non-zero length can't be
+	 * normalised
+	 */
+	@Test(expected = ArithmeticException.class)
+	public void testNormalizeZero() {
+		new MutableVector3D().normalize();
+	}
+
+	@Test(expected = ArithmeticException.class)
+	public void testNormalizeInfinite() {
+		new MutableVector3D(Double.POSITIVE_INFINITY, 0, 0).normalize();
+	}
+
+	/**
+	 * The operations change the vector and return it so they can be chained
+	 */
+	@Test
+	public void testChaining() {
+		MutableVector3D v3Vector = new MutableVector3D(1, 2, 3);
+		MutableVector3D v3Other = new MutableVector3D(1, 1, 1);
+
+		assertSame(v3Vector, v3Vector.add(v3Other).multiply(2)
+				.subtract(v3Other));
+		assertEquals(new Double3D(3, 5, 7), v3Vector.toDouble3D());
+		assertEquals(3 + 5 + 7, v3Vector.dotProduct(v3Other), 0);
+	}
+}
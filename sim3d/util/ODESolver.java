@@ -2,7 +2,9 @@ package sim3d.util;
 
 
 
+import sim3d.Settings;
 import sim3d.cell.Lymphocyte;
+import sim3d.cell.ReceptorStore;
 import sim3d.diffusion.Chemokine;
 
 
@@ -22,165 +24,206 @@ public class ODESolver {
 	public static void solveODEDiffTimestep(double Ka, double Kr, double Ki,double Koff,double Kdes,
 			Chemokine.TYPE chemokine,Lymphocyte lymphocyte) {
 		
+		// sub-steps of two seconds, so every rate is doubled
+		solveODE(Ka * 2, Kr * 2, Ki * 2, Koff * 2, Kdes * 2, SECONDS_PER_STEP / 2, 0,
+				chemokine, lymphocyte);
+	}
+
+	
+	/**
+	 * Solve the ODE for one step with the rates and the solver in
+	 * Settings.BC.ODE
+	 */
+	public static void solveODE(Chemokine.TYPE chemokine, Lymphocyte lymphocyte) {
+
+		if (Settings.BC.ODE.SOLVER == Settings.BC.ODE.INTEGRATOR.EXPONENTIAL) {
+			ExponentialODESolver.solveODE(Settings.BC.ODE.K_a(), Settings.BC.ODE.K_r(), Settings.BC.ODE.K_i(),
+					Settings.BC.ODE.Koff, Settings.BC.ODE.Kdes, chemokine, lymphocyte);
+		} else {
+			solveODE(Settings.BC.ODE.K_a(), Settings.BC.ODE.K_r(), Settings.BC.ODE.K_i(),
+					Settings.BC.ODE.Koff, Settings.BC.ODE.Kdes, SECONDS_PER_STEP,
+					Settings.BC.ODE.TOLERANCE, chemokine, lymphocyte);
+		}
+	}
+
+	/**
+	 * This portion of the ODE does not interface directly with the ABM so we
+	 * calculate this separately 4th order Runge Kutta
+	 */
+	public static void solveODE(double Ka, double Kr, double Ki,double Koff,double Kdes,
+			Chemokine.TYPE chemokine,Lymphocyte lymphocyte) {
+
+		solveODE(Ka, Kr, Ki, Koff, Kdes, SECONDS_PER_STEP, 0, chemokine, lymphocyte);
+	}
+
+	/**
+	 * Solve the ODE in iSubSteps sub-steps, stopping early once the receptors
+	 * have settled: if no receptor count changes by iTolerance or more in a
+	 * sub-step, the rest of the sub-steps are taken to be the same as that
+	 * one, so the chemokine it bound and released is repeated for them in one
+	 * go and the counts are left as they are. The sub-steps taken and saved
+	 * go into getSubStepStatistics
+	 * 
+	 * @param iTolerance
+	 *            the change in a receptor count below which the receptors
+	 *            have settled, 0 to always take every sub-step
+	 */
+	public static void solveODE(double Ka, double Kr, double Ki,double Koff,double Kdes,
+			int iSubSteps, int iTolerance, Chemokine.TYPE chemokine,Lymphocyte lymphocyte) {
 		
 
 		//figure out which receptor you need
-		Lymphocyte.Receptor receptor = null;
-		
-		switch (chemokine) {
-		case CXCL13: 
-			receptor = Lymphocyte.Receptor.CXCR5;
-			break;
-		case CCL19:
-			receptor = Lymphocyte.Receptor.CCR7;	
-			break;
-			
-		case EBI2L:
-			receptor = Lymphocyte.Receptor.EBI2;	
-			break;
-		default:
-			break;
-		}
+		Lymphocyte.Receptor receptor = getReceptor(chemokine);
 
-	
-		double h = 1;//dont need to divide by 60 as the rates are in terms of seconds. 
-		int iR_i, iL_r, iR_d, iR_f;
+		// the cell's receptor counts
+		ReceptorStore rsReceptors = lymphocyte.getReceptorStore();
+		int iSlot = lymphocyte.getReceptorSlot();
+		int[] aiLR = rsReceptors.getColumn(receptor, ReceptorStore.LR);
+		int[] aiRf = rsReceptors.getColumn(receptor, ReceptorStore.RF);
+		int[] aiRi = rsReceptors.getColumn(receptor, ReceptorStore.RI);
+		int[] aiRd = rsReceptors.getColumn(receptor, ReceptorStore.RD);
+
+		// sampled into this thread's buffer so the loop doesn't allocate
+		double[] iaConcs = Chemokine.getFaceBuffer();
+		double[] adChanges = new double[2];
 
 		//every second do the following
-		for (int i = 0; i < 30; i++) {
+		for (int i = 0; i < iSubSteps; i++) {
 			
 			
 			
 			//calculate the total amount of ligand available
 
-			double[][][] ia3Concs = Chemokine.get(chemokine, (int) lymphocyte.x,
-					(int) lymphocyte.y, (int) lymphocyte.z);
+			// get CXCL13 amounts at each psuedopod
+			// {x+, x-, y+, y-, z+, z-}
+			Chemokine.getFaces(chemokine, (int) lymphocyte.x,
+					(int) lymphocyte.y, (int) lymphocyte.z, iaConcs);
 
 			
 			
 			double vol = 1e-12;// volume of one gridspace in litres
 			
-			// get CXCL13 concentrations at each psuedopod
-			// {x+, x-, y+, y-, z+, z-}
-			double[] iaConcs = { ia3Concs[2][1][1]/ vol, ia3Concs[0][1][1]/ vol,
-					ia3Concs[1][2][1]/ vol, ia3Concs[1][0][1]/ vol, ia3Concs[1][1][2]/ vol,
-					ia3Concs[1][1][0] / vol};
-			
 			
 			double totalLigand = 0;
 			
 			for (int j = 0; j < 6; j++) // for each pseudopod
 			{
-				totalLigand += iaConcs[j];
+				totalLigand += iaConcs[j] / vol;
 			}
 			
+			int iLR = aiLR[iSlot], iRf = aiRf[iSlot], iRi = aiRi[iSlot], iRd = aiRd[iSlot];
 
-			iR_i = lymphocyte.getM_Ri(receptor);	
-			iL_r = lymphocyte.getM_LR(receptor);	
-			iR_d = lymphocyte.getM_Rd(receptor);
-			iR_f = lymphocyte.getM_Rf(receptor);
-
-
-			double ligandBinding1 = h * (Ka*2 * totalLigand);
-			double ligandBinding2 = h * ((Ka*2 * totalLigand) + ligandBinding1 / 2);
-			double ligandBinding3 = h * ((Ka*2 * totalLigand) + ligandBinding2 / 2);
-			double ligandBinding4 = h * ((Ka*2 * totalLigand) + ligandBinding3);
-			
-
-			// receptors desensitised from surface
-			double LRdK1 = h * (Kdes*2 * iL_r);
-			double LRdK2 = h * ((Kdes*2 * iL_r) + LRdK1 / 2);
-			double LRdK3 = h * ((Kdes*2 * iL_r) + LRdK2 / 2);
-			double LRdK4 = h * ((Kdes*2 * iL_r) + LRdK3);
-			
-			// receptors internalised from surface
-			double LRK1 = h * (Ki*2 * iR_d);
-			double LRK2 = h * ((Ki*2 * iR_d) + LRK1 / 2);
-			double LRK3 = h * ((Ki*2 * iR_d) + LRK2 / 2);
-			double LRK4 = h * ((Ki*2 * iR_d) + LRK3);
-			
-			// receptors that are recycled from internal pool
-			double RfK1 = h * (Kr*2 * iR_i);
-			double RfK2 = h * ((Kr*2 * iR_i) + RfK1 / 2);
-			double RfK3 = h * ((Kr*2 * iR_i) + RfK2 / 2);
-			double RfK4 = h * ((Kr*2 * iR_i) + RfK3);
-
-			// ligand dissociation from receptor
-			double RdisK1 = h * (Koff*2 * iL_r);
-			double RdisK2 = h * ((Koff*2 * iL_r) + RdisK1 / 2);
-			double RdisK3 = h * ((Koff*2 * iL_r) + RdisK2 / 2);
-			double RdisK4 = h * ((Koff*2 * iL_r) + RdisK3);
-			
-			
-			// the total change in bound receptor for this time increment is
-			// given by this equation
-			double proportionToBind = ((ligandBinding1 / 6) + (ligandBinding2 / 3)
-									+ (ligandBinding3 / 3) + (ligandBinding4 / 6));
-					
-			
-			// cap the amount of receptors that can be bound
-			if (proportionToBind > 1) {proportionToBind = 1;}
-			else if (proportionToBind < 0) {proportionToBind = 0;}
-	
-
-			
-			//determine the number of receptors that have bound
-			double receptorsBound = (int) (proportionToBind * iR_f);
+			stepReceptors(Ka, Kr, Ki, Koff, Kdes, totalLigand, aiLR, aiRf,
+					aiRi, aiRd, iSlot, adChanges);
 
+			boolean bSettled = Math.abs(aiLR[iSlot] - iLR) < iTolerance
+					&& Math.abs(aiRf[iSlot] - iRf) < iTolerance
+					&& Math.abs(aiRi[iSlot] - iRi) < iTolerance
+					&& Math.abs(aiRd[iSlot] - iRd) < iTolerance;
+			int iRepeats = bSettled ? iSubSteps - i : 1;
 			
 			//remove any chemokine that has bound from the grid
-			consumeLigand(lymphocyte,chemokine, receptorsBound);
-			
-			int receptorsRecycled = (int) ((RfK1 / 6) + (RfK2 / 3) + (RfK3 / 3) + (RfK4 / 6));
-			int receptorsInternalised = (int) ((LRK1 / 6) + (LRK2 / 3) + (LRK3 / 3) + (LRK4 / 6));
-			int ligandDissociation = (int) ((RdisK1 / 6) + (RdisK2 / 3) + (RdisK3 / 3) + (RdisK4 / 6));
-			
+			consumeLigand(lymphocyte,chemokine, adChanges[0] * iRepeats);
 			
 			//add chemokine that dissociates to grid
-			addChemokine(lymphocyte,chemokine, ligandDissociation);
-			
-			
-			double receptorsDesensitised = (int) ((LRdK1 / 6) + (LRdK2 / 3) + (LRdK3 / 3) + (LRdK4 / 6));
-			
-			
-			// Desensitisation and ligand dissociation are both a function of LR
-			// need to make sure that both values dont surpass the value of LR,
-			// if this happns then favour desensitisation
-			if(ligandDissociation + receptorsDesensitised > iL_r){
-				
-				ligandDissociation = (int) (iL_r - receptorsDesensitised);
+			addChemokine(lymphocyte,chemokine, adChanges[1] * iRepeats);
+
+			if (bSettled) {
+				ms_sssStatistics.record(i + 1, iRepeats - 1);
+				return;
 			}
+		}
+		ms_sssStatistics.record(iSubSteps, 0);
+	}
 
-						
-			int d_rf = lymphocyte.getM_Rf(receptor);
-			int d_ri = lymphocyte.getM_Ri(receptor);			
-			int d_lr = lymphocyte.getM_LR(receptor);			
-			int d_rd = lymphocyte.getM_Rd(receptor);
-			
-			d_rf = (int) (d_rf - receptorsBound + ligandDissociation + receptorsRecycled);			
-			d_lr = (int) (d_lr + receptorsBound - ligandDissociation - receptorsDesensitised);		
-			d_rd = (int) (d_rd + receptorsDesensitised - receptorsInternalised);	
-			d_ri = (int) (d_ri + receptorsInternalised - receptorsRecycled);
-			
-			
-			lymphocyte.setM_Rf(receptor, d_rf);
-			lymphocyte.setM_Ri(receptor, d_ri);
-			lymphocyte.setM_LR(receptor, d_lr);
-			lymphocyte.setM_Rd(receptor, d_rd);	
-				
+	/**
+	 * How many sub-steps the solvers took and how many they saved by
+	 * stopping early
+	 */
+	public static class SubStepStatistics {
+
+		private long m_lSolves, m_lTaken, m_lSaved;
+
+		/**
+		 * @return the number of times the ODE of a cell was solved
+		 */
+		public long getSolves() {
+			return m_lSolves;
+		}
+
+		/**
+		 * @return the number of sub-steps taken
+		 */
+		public long getTaken() {
+			return m_lTaken;
+		}
+
+		/**
+		 * @return the number of sub-steps saved by stopping early
+		 */
+		public long getSaved() {
+			return m_lSaved;
+		}
+
+		/**
+		 * @return the proportion of the sub-steps that were saved
+		 */
+		public double getSavedFraction() {
+			return (double) m_lSaved / Math.max(1, m_lTaken + m_lSaved);
+		}
+
+		void record(int iTaken, int iSaved) {
+			add(1, iTaken, iSaved);
+		}
+
+		void add(long lSolves, long lTaken, long lSaved) {
+			m_lSolves += lSolves;
+			m_lTaken += lTaken;
+			m_lSaved += lSaved;
+		}
+
+		void reset() {
+			m_lSolves = m_lTaken = m_lSaved = 0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d solves, %d sub-steps taken, %d saved (%.1f%%)",
+					m_lSolves, m_lTaken, m_lSaved, 100 * getSavedFraction());
 		}
 	}
 
-	
 	/**
-	 * This portion of the ODE does not interface directly with the ABM so we
-	 * calculate this separately 4th order Runge Kutta
+	 * The sub-steps since the last resetSubStepStatistics. NB: only the
+	 * thread stepping the cells may solve, see BatchODESolver for solving in
+	 * parallel
 	 */
-	public static void solveODE(double Ka, double Kr, double Ki,double Koff,double Kdes,
-			Chemokine.TYPE chemokine,Lymphocyte lymphocyte) {
-		
+	private static final SubStepStatistics ms_sssStatistics = new SubStepStatistics();
 
-		//figure out which receptor you need
+	/**
+	 * @return the sub-steps taken and saved by solveODE and BatchODESolver
+	 *         since the last resetSubStepStatistics
+	 */
+	public static SubStepStatistics getSubStepStatistics() {
+		return ms_sssStatistics;
+	}
+
+	/**
+	 * Start counting sub-steps again, e.g. at the start of a step
+	 */
+	public static void resetSubStepStatistics() {
+		ms_sssStatistics.reset();
+	}
+
+	/**
+	 * The number of one second iterations of the receptor ODE in each step
+	 */
+	public static final int SECONDS_PER_STEP = 60;
+
+	/**
+	 * @return the receptor that binds the chemokine
+	 */
+	public static Lymphocyte.Receptor getReceptor(Chemokine.TYPE chemokine) {
 		Lymphocyte.Receptor receptor = null;
 		
 		switch (chemokine) {
@@ -197,138 +240,108 @@ public class ODESolver {
 		default:
 			break;
 		}
+		return receptor;
+	}
 
-	
-		double h = 1;//dont need to divide by 60 as the rates are in terms of seconds. 
-		int iR_i, iL_r, iR_d, iR_f;
-
-		//every second do the following
-		for (int i = 0; i < 60; i++) {
-			
-			
-			
-			//calculate the total amount of ligand available
-
-			double[][][] ia3Concs = Chemokine.get(chemokine, (int) lymphocyte.x,
-					(int) lymphocyte.y, (int) lymphocyte.z);
+	/**
+	 * One second of the receptor ODE, 4th order Runge Kutta with h = 1, for
+	 * the cell in iSlot of the receptor columns. Shared by solveODE and
+	 * BatchODESolver so the two always agree
+	 * 
+	 * @param totalLigand
+	 *            the ligand around the cell
+	 * @param adChanges
+	 *            set to the number of receptors that bound ligand, then the
+	 *            number of ligands that dissociated
+	 */
+	static void stepReceptors(double Ka, double Kr, double Ki, double Koff,
+			double Kdes, double totalLigand, int[] aiLR, int[] aiRf,
+			int[] aiRi, int[] aiRd, int iSlot, double[] adChanges) {
 
-			
-			
-			double vol = 1e-12;// volume of one gridspace in litres
-			
-			// get CXCL13 concentrations at each psuedopod
-			// {x+, x-, y+, y-, z+, z-}
-			double[] iaConcs = { ia3Concs[2][1][1]/ vol, ia3Concs[0][1][1]/ vol,
-					ia3Concs[1][2][1]/ vol, ia3Concs[1][0][1]/ vol, ia3Concs[1][1][2]/ vol,
-					ia3Concs[1][1][0] / vol};
-			
-			
-			double totalLigand = 0;
-			
-			for (int j = 0; j < 6; j++) // for each pseudopod
-			{
-				totalLigand += iaConcs[j];
-			}
-			
+		double h = 1;//dont need to divide by 60 as the rates are in terms of seconds. 
 
-			iR_i = lymphocyte.getM_Ri(receptor);	
-			iL_r = lymphocyte.getM_LR(receptor);	
-			iR_d = lymphocyte.getM_Rd(receptor);
-			iR_f = lymphocyte.getM_Rf(receptor);
+		int iR_i = aiRi[iSlot];	
+		int iL_r = aiLR[iSlot];	
+		int iR_d = aiRd[iSlot];
+		int iR_f = aiRf[iSlot];
 
 
-			double ligandBinding1 = h * (Ka * totalLigand);
-			double ligandBinding2 = h * ((Ka * totalLigand) + ligandBinding1 / 2);
-			double ligandBinding3 = h * ((Ka * totalLigand) + ligandBinding2 / 2);
-			double ligandBinding4 = h * ((Ka * totalLigand) + ligandBinding3);
-			
+		double ligandBinding1 = h * (Ka * totalLigand);
+		double ligandBinding2 = h * ((Ka * totalLigand) + ligandBinding1 / 2);
+		double ligandBinding3 = h * ((Ka * totalLigand) + ligandBinding2 / 2);
+		double ligandBinding4 = h * ((Ka * totalLigand) + ligandBinding3);
+		
 
-			// receptors desensitised from surface
-			double LRdK1 = h * (Kdes * iL_r);
-			double LRdK2 = h * ((Kdes * iL_r) + LRdK1 / 2);
-			double LRdK3 = h * ((Kdes * iL_r) + LRdK2 / 2);
-			double LRdK4 = h * ((Kdes * iL_r) + LRdK3);
-			
-			// receptors internalised from surface
-			double LRK1 = h * (Ki * iR_d);
-			double LRK2 = h * ((Ki * iR_d) + LRK1 / 2);
-			double LRK3 = h * ((Ki * iR_d) + LRK2 / 2);
-			double LRK4 = h * ((Ki * iR_d) + LRK3);
-			
-			// receptors that are recycled from internal pool
-			double RfK1 = h * (Kr * iR_i);
-			double RfK2 = h * ((Kr * iR_i) + RfK1 / 2);
-			double RfK3 = h * ((Kr * iR_i) + RfK2 / 2);
-			double RfK4 = h * ((Kr * iR_i) + RfK3);
-
-			// ligand dissociation from receptor
-			double RdisK1 = h * (Koff * iL_r);
-			double RdisK2 = h * ((Koff * iL_r) + RdisK1 / 2);
-			double RdisK3 = h * ((Koff * iL_r) + RdisK2 / 2);
-			double RdisK4 = h * ((Koff * iL_r) + RdisK3);
-			
-			
-			// the total change in bound receptor for this time increment is
-			// given by this equation
-			double proportionToBind = ((ligandBinding1 / 6) + (ligandBinding2 / 3)
-									+ (ligandBinding3 / 3) + (ligandBinding4 / 6));
-					
-			
-			// cap the amount of receptors that can be bound
-			if (proportionToBind > 1) {proportionToBind = 1;}
-			else if (proportionToBind < 0) {proportionToBind = 0;}
-	
+		// receptors desensitised from surface
+		double LRdK1 = h * (Kdes * iL_r);
+		double LRdK2 = h * ((Kdes * iL_r) + LRdK1 / 2);
+		double LRdK3 = h * ((Kdes * iL_r) + LRdK2 / 2);
+		double LRdK4 = h * ((Kdes * iL_r) + LRdK3);
+		
+		// receptors internalised from surface
+		double LRK1 = h * (Ki * iR_d);
+		double LRK2 = h * ((Ki * iR_d) + LRK1 / 2);
+		double LRK3 = h * ((Ki * iR_d) + LRK2 / 2);
+		double LRK4 = h * ((Ki * iR_d) + LRK3);
+		
+		// receptors that are recycled from internal pool
+		double RfK1 = h * (Kr * iR_i);
+		double RfK2 = h * ((Kr * iR_i) + RfK1 / 2);
+		double RfK3 = h * ((Kr * iR_i) + RfK2 / 2);
+		double RfK4 = h * ((Kr * iR_i) + RfK3);
+
+		// ligand dissociation from receptor
+		double RdisK1 = h * (Koff * iL_r);
+		double RdisK2 = h * ((Koff * iL_r) + RdisK1 / 2);
+		double RdisK3 = h * ((Koff * iL_r) + RdisK2 / 2);
+		double RdisK4 = h * ((Koff * iL_r) + RdisK3);
+		
+		
+		// the total change in bound receptor for this time increment is
+		// given by this equation
+		double proportionToBind = ((ligandBinding1 / 6) + (ligandBinding2 / 3)
+								+ (ligandBinding3 / 3) + (ligandBinding4 / 6));
+				
+		
+		// cap the amount of receptors that can be bound
+		if (proportionToBind > 1) {proportionToBind = 1;}
+		else if (proportionToBind < 0) {proportionToBind = 0;}
 
-			
-			//determine the number of receptors that have bound
-			double receptorsBound = (int) (proportionToBind * iR_f);
 
-			
-			//remove any chemokine that has bound from the grid
-			consumeLigand(lymphocyte,chemokine, receptorsBound);
-			
-			int receptorsRecycled = (int) ((RfK1 / 6) + (RfK2 / 3) + (RfK3 / 3) + (RfK4 / 6));
-			int receptorsInternalised = (int) ((LRK1 / 6) + (LRK2 / 3) + (LRK3 / 3) + (LRK4 / 6));
-			int ligandDissociation = (int) ((RdisK1 / 6) + (RdisK2 / 3) + (RdisK3 / 3) + (RdisK4 / 6));
-			
-			
-			//add chemokine that dissociates to grid
-			addChemokine(lymphocyte,chemokine, ligandDissociation);
-			
-			
-			double receptorsDesensitised = (int) ((LRdK1 / 6) + (LRdK2 / 3) + (LRdK3 / 3) + (LRdK4 / 6));
-			
-			
-			// Desensitisation and ligand dissociation are both a function of LR
-			// need to make sure that both values dont surpass the value of LR,
-			// if this happns then favour desensitisation
-			if(ligandDissociation + receptorsDesensitised > iL_r){
-				
-				ligandDissociation = (int) (iL_r - receptorsDesensitised);
-			}
+		
+		//determine the number of receptors that have bound
+		double receptorsBound = (int) (proportionToBind * iR_f);
 
-						
-			int d_rf = lymphocyte.getM_Rf(receptor);
-			int d_ri = lymphocyte.getM_Ri(receptor);			
-			int d_lr = lymphocyte.getM_LR(receptor);			
-			int d_rd = lymphocyte.getM_Rd(receptor);
-			
-			d_rf = (int) (d_rf - receptorsBound + ligandDissociation + receptorsRecycled);			
-			d_lr = (int) (d_lr + receptorsBound - ligandDissociation - receptorsDesensitised);		
-			d_rd = (int) (d_rd + receptorsDesensitised - receptorsInternalised);	
-			d_ri = (int) (d_ri + receptorsInternalised - receptorsRecycled);
-			
+		int receptorsRecycled = (int) ((RfK1 / 6) + (RfK2 / 3) + (RfK3 / 3) + (RfK4 / 6));
+		int receptorsInternalised = (int) ((LRK1 / 6) + (LRK2 / 3) + (LRK3 / 3) + (LRK4 / 6));
+		int ligandDissociation = (int) ((RdisK1 / 6) + (RdisK2 / 3) + (RdisK3 / 3) + (RdisK4 / 6));
+		
+		// the chemokine that dissociates goes back to the grid before the cap
+		// below
+		adChanges[0] = receptorsBound;
+		adChanges[1] = ligandDissociation;
+		
+		
+		double receptorsDesensitised = (int) ((LRdK1 / 6) + (LRdK2 / 3) + (LRdK3 / 3) + (LRdK4 / 6));
+		
+		
+		// Desensitisation and ligand dissociation are both a function of LR
+		// need to make sure that both values dont surpass the value of LR,
+		// if this happns then favour desensitisation
+		if(ligandDissociation + receptorsDesensitised > iL_r){
 			
-			lymphocyte.setM_Rf(receptor, d_rf);
-			lymphocyte.setM_Ri(receptor, d_ri);
-			lymphocyte.setM_LR(receptor, d_lr);
-			lymphocyte.setM_Rd(receptor, d_rd);	
-				
+			ligandDissociation = (int) (iL_r - receptorsDesensitised);
 		}
+
+		
+		aiRf[iSlot] = (int) (iR_f - receptorsBound + ligandDissociation + receptorsRecycled);			
+		aiLR[iSlot] = (int) (iL_r + receptorsBound - ligandDissociation - receptorsDesensitised);		
+		aiRd[iSlot] = (int) (iR_d + receptorsDesensitised - receptorsInternalised);	
+		aiRi[iSlot] = (int) (iR_i + receptorsInternalised - receptorsRecycled);
 	}
 	
 	
-	private static void consumeLigand(Lymphocyte lymphocyte, Chemokine.TYPE chemokine, double deltaRb) {
+	static void consumeLigand(Lymphocyte lymphocyte, Chemokine.TYPE chemokine, double deltaRb) {
 		
 		double x = lymphocyte.x;
 		double y = lymphocyte.y;
@@ -395,15 +408,11 @@ public class ODESolver {
 	
 	private static double[] determineReceptorDistribution(Lymphocyte lymphocyte, Chemokine.TYPE chemokine,double deltaReceptorsBound){
 
-		double[][][] ia3Concs = Chemokine.get(chemokine, (int) lymphocyte.x,
-				(int) lymphocyte.y, (int) lymphocyte.z);
-		
-		
 		// get CXCL13 concentrations at each psuedopod
 		// {x+, x-, y+, y-, z+, z-}
-		double[] iaConcs = { ia3Concs[2][1][1], ia3Concs[0][1][1],
-				ia3Concs[1][2][1], ia3Concs[1][0][1], ia3Concs[1][1][2],
-				ia3Concs[1][1][0] };
+		double[] iaConcs = Chemokine.getFaces(chemokine, (int) lymphocyte.x,
+				(int) lymphocyte.y, (int) lymphocyte.z,
+				Chemokine.getFaceBuffer());
 
 		double totalLigand = 0;
 		
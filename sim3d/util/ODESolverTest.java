@@ -0,0 +1,102 @@
+package sim3d.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+import sim.engine.Schedule;
+import sim3d.cell.BC;
+import sim3d.cell.Lymphocyte;
+import sim3d.cell.ReceptorStore;
+import sim3d.diffusion.Chemokine;
+
+public class ODESolverTest {
+
+	private static final double Ka = 1e3, Kr = 0.004, Ki = 0.0033,
+			Koff = 0.0048, Kdes = 0.075;
+
+	@After
+	public void tearDown() throws Exception {
+		Chemokine.reset();
+		Lymphocyte.m_rsReceptorStore = new ReceptorStore();
+		ODESolver.resetSubStepStatistics();
+	}
+
+	/**
+	 * A cell with free receptors in the middle of a uniform CXCL13 field
+	 */
+	private BC newCell(double dLigand) {
+		Chemokine.reset();
+		Chemokine cxcl13 = new Chemokine(new Schedule(), Chemokine.TYPE.CXCL13,
+				11, 11, 11);
+		for (int x = 0; x < 11; x++) {
+			for (int y = 0; y < 11; y++) {
+				for (int z = 0; z < 11; z++) {
+					cxcl13.setValue(x, y, z, dLigand);
+				}
+			}
+		}
+
+		BC bc = new BC();
+		bc.x = 5;
+		bc.y = 5;
+		bc.z = 5;
+		bc.setM_LR(Lymphocyte.Receptor.CXCR5, 0);
+		bc.setM_Rf(Lymphocyte.Receptor.CXCR5, 48000);
+		bc.setM_Ri(Lymphocyte.Receptor.CXCR5, 0);
+		bc.setM_Rd(Lymphocyte.Receptor.CXCR5, 0);
+		return bc;
+	}
+
+	/**
+	 * Solve the ODE of a cell for a number of steps
+	 *
+	 * @return LR, Rf, Ri and Rd at the end
+	 */
+	private int[] solve(BC bc, int iSteps, int iTolerance) {
+		for (int i = 0; i < iSteps; i++) {
+			ODESolver.solveODE(Ka, Kr, Ki, Koff, Kdes,
+					ODESolver.SECONDS_PER_STEP, iTolerance,
+					Chemokine.TYPE.CXCL13, bc);
+		}
+		return new int[] { bc.getM_LR(Lymphocyte.Receptor.CXCR5),
+				bc.getM_Rf(Lymphocyte.Receptor.CXCR5),
+				bc.getM_Ri(Lymphocyte.Receptor.CXCR5),
+				bc.getM_Rd(Lymphocyte.Receptor.CXCR5) };
+	}
+
+	/**
+	 * With no ligand nothing changes, so a cell must stop after one second
+	 * and end up exactly as if it hadn't
+	 */
+	@Test
+	public void testEarlyExitWithoutLigand() {
+		int[] aiExpected = solve(newCell(0), 1, 0);
+		ODESolver.resetSubStepStatistics();
+
+		assertArrayEquals(aiExpected, solve(newCell(0), 1, 1));
+		assertEquals(1, ODESolver.getSubStepStatistics().getSolves());
+		assertEquals(1, ODESolver.getSubStepStatistics().getTaken());
+		assertEquals(ODESolver.SECONDS_PER_STEP - 1, ODESolver
+				.getSubStepStatistics().getSaved());
+	}
+
+	/**
+	 * Once the receptors are close to equilibrium most seconds must be
+	 * saved, without moving far from the full solution
+	 */
+	@Test
+	public void testEarlyExitAtEquilibrium() {
+		int[] aiExpected = solve(newCell(1e-16), 30, 0);
+		assertEquals(0, ODESolver.getSubStepStatistics().getSaved());
+		ODESolver.resetSubStepStatistics();
+
+		int[] aiActual = solve(newCell(1e-16), 30, 5);
+		for (int i = 0; i < 4; i++) {
+			assertEquals(aiExpected[i], aiActual[i], 48000 * 0.01);
+		}
+		assertEquals(30, ODESolver.getSubStepStatistics().getSolves());
+		assertTrue(ODESolver.getSubStepStatistics().getSavedFraction() > 0.5);
+	}
+}
@@ -0,0 +1,96 @@
+package sim3d.util;
+
+import java.io.Serializable;
+
+/**
+ * A small, fast random number generator (SplitMix64) whose whole state is a
+ * single long. That makes it cheap to give every agent its own, and the
+ * state can be saved with snapshot and put back with restore when a
+ * simulation is checkpointed.
+ *
+ * Streams are normally made by RandomStreams so that they are derived from
+ * the seed of the run.
+ *
+ * @author Jason Cosgrove
+ */
+public class RandomStream implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The golden ratio as a 64 bit fraction, added to the state each draw
+	 */
+	static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+	private long m_lState;
+
+	/**
+	 * @param lSeed
+	 *            the starting state
+	 */
+	public RandomStream(long lSeed) {
+		m_lState = lSeed;
+	}
+
+	/**
+	 * @return a uniformly distributed long
+	 */
+	public long nextLong() {
+		m_lState += GOLDEN_GAMMA;
+		return mix64(m_lState);
+	}
+
+	/**
+	 * @return a uniformly distributed double in [0, 1)
+	 */
+	public double nextDouble() {
+		return (nextLong() >>> 11) * 0x1.0p-53;
+	}
+
+	/**
+	 * @return a uniformly distributed int in [0, iBound)
+	 */
+	public int nextInt(int iBound) {
+		if (iBound <= 0) {
+			throw new IllegalArgumentException("iBound must be positive");
+		}
+
+		int iRandom = (int) (nextLong() >>> 33);
+		int iMask = iBound - 1;
+
+		if ((iBound & iMask) == 0) {
+			return (int) ((iBound * (long) iRandom) >>> 31);
+		}
+
+		// reject the top values that would make the lower ones more likely
+		for (int u = iRandom; u - (iRandom = u % iBound) + iMask < 0;) {
+			u = (int) (nextLong() >>> 33);
+		}
+		return iRandom;
+	}
+
+	/**
+	 * @return the state of the stream, for restore
+	 */
+	public long snapshot() {
+		return m_lState;
+	}
+
+	/**
+	 * Put the stream back to a state returned by snapshot, after which it
+	 * gives the same numbers it gave then
+	 */
+	public void restore(long lState) {
+		m_lState = lState;
+	}
+
+	/**
+	 * The SplitMix64 finaliser, which scrambles the bits of z so that nearby
+	 * inputs give unrelated outputs
+	 */
+	static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,118 @@
+package sim3d.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class RandomStreamTest {
+
+	/**
+	 * The same seed, agent and stream must give the same numbers
+	 */
+	@Test
+	public void testGetStreamRepeatable() {
+		RandomStream rs1 = new RandomStreams(5).getStream(3,
+				RandomStreams.STREAM.TURNING);
+		RandomStream rs2 = new RandomStreams(5).getStream(3,
+				RandomStreams.STREAM.TURNING);
+
+		for (int i = 0; i < 100; i++) {
+			assertEquals(rs1.nextLong(), rs2.nextLong());
+		}
+	}
+
+	/**
+	 * Changing the seed, the agent or the stream must give different numbers
+	 */
+	@Test
+	public void testGetStreamIndependent() {
+		RandomStreams rsStreams = new RandomStreams(5);
+		long lFirst = rsStreams.getStream(3, RandomStreams.STREAM.TURNING)
+				.nextLong();
+
+		assertNotEquals(lFirst,
+				rsStreams.getStream(4, RandomStreams.STREAM.TURNING).nextLong());
+		assertNotEquals(lFirst,
+				rsStreams.getStream(3, RandomStreams.STREAM.CROWDING)
+						.nextLong());
+		assertNotEquals(lFirst,
+				new RandomStreams(6).getStream(3, RandomStreams.STREAM.TURNING)
+						.nextLong());
+	}
+
+	/**
+	 * A restored stream must repeat the numbers it gave after the snapshot
+	 */
+	@Test
+	public void testSnapshotRestore() {
+		RandomStream rsStream = new RandomStream(11);
+		rsStream.nextDouble();
+
+		long lState = rsStream.snapshot();
+		double[] adFirst = new double[10];
+		for (int i = 0; i < adFirst.length; i++) {
+			adFirst[i] = rsStream.nextDouble();
+		}
+
+		rsStream.restore(lState);
+		for (int i = 0; i < adFirst.length; i++) {
+			assertEquals(adFirst[i], rsStream.nextDouble(), 0);
+		}
+	}
+
+	/**
+	 * Agent numbers are handed out in order and carry on from a checkpoint
+	 */
+	@Test
+	public void testNewAgent() {
+		RandomStreams rsStreams = new RandomStreams(5);
+		assertEquals(0, rsStreams.newAgent());
+		assertEquals(1, rsStreams.newAgent());
+		assertEquals(2, rsStreams.getAgentCount());
+
+		RandomStreams rsRestored = new RandomStreams(5);
+		rsRestored.setAgentCount(rsStreams.getAgentCount());
+		assertEquals(2, rsRestored.newAgent());
+	}
+
+	/**
+	 * nextDouble must be in [0, 1) with a mean of a half
+	 */
+	@Test
+	public void testNextDouble() {
+		RandomStream rsStream = new RandomStream(1);
+		double dTotal = 0;
+		int iDraws = 100000;
+
+		for (int i = 0; i < iDraws; i++) {
+			double d = rsStream.nextDouble();
+			assertTrue(d >= 0 && d < 1);
+			dTotal += d;
+		}
+
+		assertEquals(0.5, dTotal / iDraws, 0.01);
+	}
+
+	/**
+	 * nextInt must be in [0, bound) and spread evenly
+	 */
+	@Test
+	public void testNextInt() {
+		RandomStream rsStream = new RandomStream(1);
+		int[] aiCounts = new int[7];
+		int iDraws = 70000;
+
+		for (int i = 0; i < iDraws; i++) {
+			aiCounts[rsStream.nextInt(7)]++;
+		}
+
+		for (int iCount : aiCounts) {
+			assertEquals(iDraws / 7, iCount, iDraws / 70);
+		}
+
+		for (int i = 0; i < 1000; i++) {
+			int iValue = rsStream.nextInt(8);
+			assertTrue(iValue >= 0 && iValue < 8);
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package sim3d.util;
+
+import java.io.Serializable;
+
+/**
+ * Hands out the random number streams of the agents. Each agent has a number
+ * and a separate stream for each thing it does at random, and the starting
+ * state of a stream depends only on the seed of the run, the agent's number
+ * and which stream it is. So an agent draws the same numbers whatever order
+ * the agents are stepped in and however many threads step them.
+ *
+ * @author Jason Cosgrove
+ */
+public class RandomStreams implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * ENUM for the things an agent does at random
+	 */
+	public static enum STREAM {
+		/**
+		 * Whether a cell moves into a crowded space
+		 */
+		CROWDING,
+		/**
+		 * Which way a cell turns, including the way it first faces
+		 */
+		TURNING
+	}
+
+	/**
+	 * The seed of the run, already mixed
+	 */
+	private long m_lSeed;
+
+	/**
+	 * How many agent numbers have been handed out
+	 */
+	private long m_lAgents = 0;
+
+	/**
+	 * @param lSeed
+	 *            the seed of the run
+	 */
+	public RandomStreams(long lSeed) {
+		m_lSeed = RandomStream.mix64(lSeed + RandomStream.GOLDEN_GAMMA);
+	}
+
+	/**
+	 * @return the number for a new agent
+	 */
+	public long newAgent() {
+		return m_lAgents++;
+	}
+
+	/**
+	 * @return how many agent numbers have been handed out, for checkpoints
+	 */
+	public long getAgentCount() {
+		return m_lAgents;
+	}
+
+	/**
+	 * Carry on handing out agent numbers from a checkpoint
+	 */
+	public void setAgentCount(long lAgents) {
+		m_lAgents = lAgents;
+	}
+
+	/**
+	 * @param lAgent
+	 *            the agent's number, see newAgent
+	 * @param eStream
+	 *            which of the agent's streams
+	 * @return the stream, at its starting state
+	 */
+	public RandomStream getStream(long lAgent, STREAM eStream) {
+		long lState = RandomStream.mix64(m_lSeed + lAgent
+				* RandomStream.GOLDEN_GAMMA);
+		return new RandomStream(RandomStream.mix64(lState + eStream.ordinal()
+				+ 1));
+	}
+}
@@ -220,7 +220,7 @@ public class UnitTests extends AbstractAnalysis {
 				for (int z = 0; z < 125; z++) {
 					distance += ((62 - x) * (62 - x) + (62 - y) * (62 - y) + (62 - z)
 							* (62 - z))
-							* p.field[x][y][z];
+							* p.getValue(x, y, z);
 				}
 			}
 		}
@@ -30,6 +30,19 @@ public class Vector3DHelper {
 				* Math.sin(phi), z);
 	}
 
+	/**
+	 * As getRandomDirection(), drawing from the given stream rather than
+	 * Settings.RNG
+	 */
+	public static Double3D getRandomDirection(RandomStream rng) {
+		double z = rng.nextDouble() * 2 - 1;
+		double phi = rng.nextDouble() * 2 * Math.PI;
+
+		return new Double3D(Math.sqrt(1 - z * z) * Math.cos(phi), Math.sqrt(1
+				- z * z)
+				* Math.sin(phi), z);
+	}
+
 	/**
 	 * Generates a uniform random point on the surface of the unit sphere within
 	 * a specified cone
@@ -42,6 +55,46 @@ public class Vector3DHelper {
 	 */
 	public static Double3D getRandomDirectionInCone(Double3D d3Direction,
 			double dConeAngle) {
+		return getDirectionInCone(d3Direction, dConeAngle,
+				Settings.RNG.nextDouble(), Settings.RNG.nextDouble());
+	}
+
+	/**
+	 * As getRandomDirectionInCone(d3Direction, dConeAngle), drawing from the
+	 * given stream rather than Settings.RNG
+	 */
+	public static Double3D getRandomDirectionInCone(Double3D d3Direction,
+			double dConeAngle, RandomStream rng) {
+		return getDirectionInCone(d3Direction, dConeAngle, rng.nextDouble(),
+				rng.nextDouble());
+	}
+
+	/**
+	 * As getRandomDirectionInCone(d3Direction, dConeAngle, rng), writing the
+	 * direction into v3Out rather than allocating it. v3Out may be
+	 * v3Direction
+	 */
+	public static MutableVector3D getRandomDirectionInCone(
+			MutableVector3D v3Direction, double dConeAngle, RandomStream rng,
+			MutableVector3D v3Out) {
+		double dRandomHeight = rng.nextDouble();
+		double dRandomAngle = rng.nextDouble();
+
+		// see getDirectionInCone
+		double z = (1 - Math.cos(dConeAngle)) * dRandomHeight
+				+ Math.cos(dConeAngle);
+		double phi = dRandomAngle * 2 * Math.PI;
+
+		return rotateUsingVector(Math.sqrt(1 - z * z) * Math.cos(phi),
+				Math.sqrt(1 - z * z) * Math.sin(phi), z, v3Direction.x,
+				v3Direction.y, v3Direction.z, v3Out);
+	}
+
+	/**
+	 * The direction in the cone for two uniform random numbers in [0, 1)
+	 */
+	private static Double3D getDirectionInCone(Double3D d3Direction,
+			double dConeAngle, double dRandomHeight, double dRandomAngle) {
 		// see http://math.stackexchange.com/a/205589
 
 		// Basically the surface area of a sphere has a 1-1 relationship with
@@ -53,11 +106,11 @@ public class Vector3DHelper {
 		// cos dConeAngle and 1 and convert it to the spherical equivalent
 
 		// Height on surface of cylinder
-		double z = (1 - Math.cos(dConeAngle)) * Settings.RNG.nextDouble()
+		double z = (1 - Math.cos(dConeAngle)) * dRandomHeight
 				+ Math.cos(dConeAngle);
 
 		// Angle on surface of cylinder
-		double phi = Settings.RNG.nextDouble() * 2 * Math.PI;
+		double phi = dRandomAngle * 2 * Math.PI;
 
 		// Change from cylindrical coordinates to spherical
 		return rotateUsingVector(
@@ -137,31 +190,42 @@ public class Vector3DHelper {
 		if (d3Direction.z == 1) {
 			// we're in the right direction
 			return d3Point;
-		} else if (d3Direction.z == -1) {
-			// We're facing the wrong way! Just negate the z coordinate
-			return new Double3D(d3Point.x, d3Point.y, -d3Point.z);
 		}
 
-		// math.stackexchange.com/questions/180418/calculate-rotation-matrix-to-align-vector-b-in-3d/476311#476311
+		return rotateUsingVector(d3Point.x, d3Point.y, d3Point.z,
+				d3Direction.x, d3Direction.y, d3Direction.z,
+				new MutableVector3D()).toDouble3D();
+	}
 
-		Double3D d3Cross = crossProduct(new Double3D(0, 0, 1), d3Direction);
-		double a = (1 - dotProduct(new Double3D(0, 0, 1), d3Direction))
-				/ (d3Cross.length() * d3Cross.length());
+	/**
+	 * As rotateUsingVector(d3Point, d3Direction), on coordinates, writing the
+	 * rotated vector into v3Out
+	 */
+	public static MutableVector3D rotateUsingVector(double dPointX,
+			double dPointY, double dPointZ, double dDirectionX,
+			double dDirectionY, double dDirectionZ, MutableVector3D v3Out) {
+		if (dDirectionZ == 1) {
+			// we're in the right direction
+			return v3Out.set(dPointX, dPointY, dPointZ);
+		} else if (dDirectionZ == -1) {
+			// We're facing the wrong way! Just negate the z coordinate
+			return v3Out.set(dPointX, dPointY, -dPointZ);
+		}
 
-		double x = d3Point.x
-				* (1 + a * (-d3Cross.z * d3Cross.z - d3Cross.y * d3Cross.y))
-				+ d3Point.y * (-d3Cross.z + a * d3Cross.x * d3Cross.y)
-				+ d3Point.z * (d3Cross.y + a * d3Cross.x * d3Cross.z);
-		double y = d3Point.x * (d3Cross.z + a * d3Cross.x * d3Cross.y)
-				+ d3Point.y
-				* (1 + a * (-d3Cross.z * d3Cross.z - d3Cross.x * d3Cross.x))
-				+ d3Point.z * (-d3Cross.x + a * d3Cross.y * d3Cross.z);
-		double z = d3Point.x * (-d3Cross.y + a * d3Cross.x * d3Cross.z)
-				+ d3Point.y * (d3Cross.x + a * d3Cross.y * d3Cross.z)
-				+ d3Point.z
-				* (1 + a * (-d3Cross.x * d3Cross.x - d3Cross.y * d3Cross.y));
+		// math.stackexchange.com/questions/180418/calculate-rotation-matrix-to-align-vector-b-in-3d/476311#476311
 
-		return new Double3D(x, y, z);
+		// the cross product and dot product of (0, 0, 1) and the direction,
+		// written out in full so the signs of any zeros match crossProduct
+		double dCrossX = 0 * dDirectionZ - 1 * dDirectionY;
+		double dCrossY = 1 * dDirectionX - 0 * dDirectionZ;
+		double dCrossZ = 0 * dDirectionY - 0 * dDirectionX;
+		double dCrossLength = Math.sqrt(dCrossX * dCrossX + dCrossY * dCrossY
+				+ dCrossZ * dCrossZ);
+		double a = (1 - (0 * dDirectionX + 0 * dDirectionY + 1 * dDirectionZ))
+				/ (dCrossLength * dCrossLength);
+
+		return rotate(dPointX, dPointY, dPointZ, dCrossX, dCrossY, dCrossZ, a,
+				v3Out);
 	}
 
 	/**
@@ -193,20 +257,28 @@ public class Vector3DHelper {
 		double a = (1 - dotProduct(d3OldDirection, d3NewDirection))
 				/ (d3Cross.length() * d3Cross.length());
 
-		double x = d3Point.x
-				* (1 + a * (-d3Cross.z * d3Cross.z - d3Cross.y * d3Cross.y))
-				+ d3Point.y * (-d3Cross.z + a * d3Cross.x * d3Cross.y)
-				+ d3Point.z * (d3Cross.y + a * d3Cross.x * d3Cross.z);
-		double y = d3Point.x * (d3Cross.z + a * d3Cross.x * d3Cross.y)
-				+ d3Point.y
-				* (1 + a * (-d3Cross.z * d3Cross.z - d3Cross.x * d3Cross.x))
-				+ d3Point.z * (-d3Cross.x + a * d3Cross.y * d3Cross.z);
-		double z = d3Point.x * (-d3Cross.y + a * d3Cross.x * d3Cross.z)
-				+ d3Point.y * (d3Cross.x + a * d3Cross.y * d3Cross.z)
-				+ d3Point.z
-				* (1 + a * (-d3Cross.x * d3Cross.x - d3Cross.y * d3Cross.y));
+		return rotate(d3Point.x, d3Point.y, d3Point.z, d3Cross.x, d3Cross.y,
+				d3Cross.z, a, new MutableVector3D()).toDouble3D();
+	}
 
-		return new Double3D(x, y, z);
+	/**
+	 * Rotate a point about the axis dCross, where a is (1 - cos theta) over
+	 * the squared length of dCross, writing the result into v3Out
+	 */
+	private static MutableVector3D rotate(double dPointX, double dPointY,
+			double dPointZ, double dCrossX, double dCrossY, double dCrossZ,
+			double a, MutableVector3D v3Out) {
+		double x = dPointX * (1 + a * (-dCrossZ * dCrossZ - dCrossY * dCrossY))
+				+ dPointY * (-dCrossZ + a * dCrossX * dCrossY) + dPointZ
+				* (dCrossY + a * dCrossX * dCrossZ);
+		double y = dPointX * (dCrossZ + a * dCrossX * dCrossY) + dPointY
+				* (1 + a * (-dCrossZ * dCrossZ - dCrossX * dCrossX)) + dPointZ
+				* (-dCrossX + a * dCrossY * dCrossZ);
+		double z = dPointX * (-dCrossY + a * dCrossX * dCrossZ) + dPointY
+				* (dCrossX + a * dCrossY * dCrossZ) + dPointZ
+				* (1 + a * (-dCrossX * dCrossX - dCrossY * dCrossY));
+
+		return v3Out.set(x, y, z);
 	}
 
 	/**
@@ -167,4 +167,35 @@ public class Vector3DHelperTest {
 		assertEquals(answerZ, outputZ);
 	}
 
+	/**
+	 * The version of getRandomDirectionInCone writing into a MutableVector3D
+	 * must give exactly the same directions as the one returning a Double3D,
+	 * including when it overwrites the direction it was given
+	 */
+	@Test
+	public void testRandomDirectionInConeInPlace() {
+		RandomStream rsExpected = new RandomStream(5);
+		RandomStream rsActual = new RandomStream(5);
+		MutableVector3D v3Direction = new MutableVector3D();
+
+		for (int i = 0; i < 1000; i++) {
+			Double3D d3Direction;
+			if (i == 0) {
+				d3Direction = new Double3D(0, 0, 1);
+			} else if (i == 1) {
+				d3Direction = new Double3D(0, 0, -1);
+			} else {
+				d3Direction = Vector3DHelper.getRandomDirection();
+			}
+
+			Double3D d3Expected = Vector3DHelper.getRandomDirectionInCone(
+					d3Direction, Math.PI / 3, rsExpected);
+			v3Direction.set(d3Direction);
+			Vector3DHelper.getRandomDirectionInCone(v3Direction, Math.PI / 3,
+					rsActual, v3Direction);
+
+			assertEquals(d3Expected, v3Direction.toDouble3D());
+		}
+	}
+
 }